@@ -51,6 +51,34 @@ public final class ArchiveUtils {
         os.flush();
     }
 
+    /**
+     * Formats block offsets as the comma separated lengths of the blocks, the form stored in the metadata file.
+     */
+    @Nonnull
+    public static String formatBlockOffsets(@Nonnull final long[] blockOffsets) {
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 1; i < blockOffsets.length; i++) {
+            if (i > 1) {
+                buf.append(',');
+            }
+            buf.append(blockOffsets[i] - blockOffsets[i - 1]);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Inverse of {@link #formatBlockOffsets}.
+     */
+    @Nonnull
+    public static long[] parseBlockOffsets(@Nonnull final String blockLengths) {
+        final String[] split = blockLengths.split(",");
+        final long[] blockOffsets = new long[split.length + 1];
+        for (int i = 0; i < split.length; i++) {
+            blockOffsets[i + 1] = blockOffsets[i] + Long.parseLong(split[i]);
+        }
+        return blockOffsets;
+    }
+
     /**
      * Converts a byte array to a hex string.  The String returned
      * will be of length exactly {@code bytes.length * 2}.
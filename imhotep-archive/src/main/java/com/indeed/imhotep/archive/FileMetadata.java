@@ -15,6 +15,8 @@
 
 import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
 
+import java.util.Arrays;
+
 /**
  * @author jsgroth
  */
@@ -26,6 +28,7 @@ public class FileMetadata {
     private final long startOffset;
     private final SquallArchiveCompressor compressor;
     private String archiveFilename;
+    private final long[] blockOffsets;
 
     public FileMetadata(String filename,
                         long size,
@@ -34,6 +37,17 @@ public class FileMetadata {
                         long startOffset,
                         SquallArchiveCompressor compressor,
                         String archiveFilename) {
+        this(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename, null);
+    }
+
+    public FileMetadata(String filename,
+                        long size,
+                        long timestamp,
+                        String checksum,
+                        long startOffset,
+                        SquallArchiveCompressor compressor,
+                        String archiveFilename,
+                        long[] blockOffsets) {
         this.filename = filename;
         this.size = size;
         this.timestamp = timestamp;
@@ -41,6 +55,7 @@ public class FileMetadata {
         this.startOffset = startOffset;
         this.compressor = compressor;
         this.archiveFilename = archiveFilename;
+        this.blockOffsets = blockOffsets;
     }
 
     public String getFilename() {
@@ -71,6 +86,14 @@ public class FileMetadata {
         return archiveFilename;
     }
 
+    /**
+     * @return the offsets of the compressed blocks relative to the start offset followed by the end of the last
+     * block, or null if the file is not block compressed or is empty
+     */
+    public long[] getBlockOffsets() {
+        return blockOffsets;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -87,6 +110,7 @@ public class FileMetadata {
         if (checksum != null ? !checksum.equals(that.checksum) : that.checksum != null) return false;
         if (compressor != that.compressor) return false;
         if (filename != null ? !filename.equals(that.filename) : that.filename != null) return false;
+        if (!Arrays.equals(blockOffsets, that.blockOffsets)) return false;
 
         return true;
     }
@@ -100,6 +124,7 @@ public class FileMetadata {
         result = 31 * result + (int) (startOffset ^ (startOffset >>> 32));
         result = 31 * result + (compressor != null ? compressor.hashCode() : 0);
         result = 31 * result + (archiveFilename != null ? archiveFilename.hashCode() : 0);
+        result = 31 * result + Arrays.hashCode(blockOffsets);
         return result;
     }
 
@@ -112,6 +137,7 @@ public class FileMetadata {
                 ", checksum='" + checksum + '\'' +
                 ", startOffset=" + startOffset +
                 ", compressor=" + compressor +
+                ", blocks=" + (blockOffsets != null ? blockOffsets.length - 1 : 0) +
                 '}';
     }
 
@@ -14,6 +14,8 @@
  package com.indeed.imhotep.archive;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.util.io.Files;
 import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
 
@@ -29,10 +31,16 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.DigestInputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author jsgroth
@@ -99,7 +107,8 @@ public class SquallArchiveReader {
         final SquallArchiveCompressor compressor = split.length > 5 ?
                 SquallArchiveCompressor.fromKey(split[5]) : SquallArchiveCompressor.NONE;
         final String archiveFilename = split.length > 6 ? split[6] : "archive.bin";
-        return new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename);
+        final long[] blockOffsets = split.length > 7 ? ArchiveUtils.parseBlockOffsets(split[7]) : null;
+        return new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename, blockOffsets);
     }
 
     /**
@@ -136,6 +145,53 @@ public class SquallArchiveReader {
         }
     }
 
+    /**
+     * copies every file in the archive that is accepted by the filter to a local directory, extracting up to
+     * numThreads files at a time
+     * each file is streamed to disk, so memory use is bounded by the number of threads
+     *
+     * @param localDir the directory to copy files into
+     * @param filter a function specifying which files should be copied
+     * @param numThreads the number of files to extract concurrently
+     * @throws IOException if there is an IO problem
+     */
+    public void copyAllToLocal(final File localDir, FileMetadataFilter filter, int numThreads) throws IOException {
+        if (numThreads <= 1) {
+            copyAllToLocal(localDir, filter);
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SquallArchiveReader-%d").build());
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final FileMetadata metadata : readMetadata()) {
+                if (filter.accept(metadata)) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            copyToLocal(metadata, localDir);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            for (final Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while copying " + path + " to " + localDir);
+                } catch (ExecutionException e) {
+                    Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * copy a file from this archive to a local directory
      * 
@@ -180,7 +236,8 @@ public class SquallArchiveReader {
     }
 
     public void tryCopyToLocal(FileMetadata file, File localDir) throws IOException {
-        if (!localDir.exists() && !localDir.mkdirs()) {
+        // checked after mkdirs since other threads may be extracting into the same directories
+        if (!localDir.mkdirs() && !localDir.isDirectory()) {
             throw new IOException("could not create directory " + localDir);
         }
 
@@ -191,7 +248,7 @@ public class SquallArchiveReader {
             final String[] parentDirs = fullFilename.substring(0, lastSlash).split("/");
             final String fullParentPath = Files.buildPath(parentDirs);
             final File parentFile = new File(localDir, fullParentPath);
-            if ((!parentFile.exists() && !parentFile.mkdirs()) || (parentFile.exists() && !parentFile.isDirectory())) {
+            if (!parentFile.mkdirs() && !parentFile.isDirectory()) {
                 throw new IOException("unable to create directory " + parentFile.getAbsolutePath());
             }
             targetFile = new File(parentFile, fullFilename.substring(lastSlash + 1));
@@ -16,8 +16,12 @@
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.indeed.imhotep.archive.compression.BlockCompressionOutputStream;
 import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
 
 import org.apache.hadoop.fs.FSDataOutputStream;
@@ -26,24 +30,38 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
 import com.indeed.util.compress.CompressionOutputStream;
+import com.indeed.util.io.Files;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.security.DigestOutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -64,6 +82,8 @@ public class SquallArchiveWriter {
 
     private final SquallArchiveCompressor defaultCompressor;
 
+    private final int numThreads;
+
     private int archivePathCounter;
 
     /**
@@ -82,12 +102,21 @@ public class SquallArchiveWriter {
     }
 
     public SquallArchiveWriter(FileSystem fs, Path path, boolean create, SquallArchiveCompressor defaultCompressor) throws IOException {
+        this(fs, path, create, defaultCompressor, 1);
+    }
+
+    /**
+     * @param numThreads the number of threads the batch append methods use to compress and checksum files,
+     *                   files are still written to the archive in order
+     */
+    public SquallArchiveWriter(FileSystem fs, Path path, boolean create, SquallArchiveCompressor defaultCompressor, int numThreads) throws IOException {
         this.fs = fs;
         this.path = path;
 
         pendingMetadataWrites = Lists.newArrayList();
 
         this.defaultCompressor = defaultCompressor;
+        this.numThreads = numThreads;
 
         if (create) {
             archivePathCounter = 0;
@@ -182,6 +211,10 @@ public class SquallArchiveWriter {
     }
 
     private void batchAppend(Iterable<File> files, SquallArchiveCompressor compressor, Path archivePath) throws IOException {
+        if (numThreads > 1) {
+            parallelBatchAppend(files, compressor, archivePath);
+            return;
+        }
         final FSDataOutputStream os = fs.create(archivePath, false);
         try {
             for (final File file : files) {
@@ -209,6 +242,84 @@ public class SquallArchiveWriter {
         }
     }
 
+    /**
+     * Compresses and checksums files on a thread pool while this thread appends the finished files in order.
+     * At most two files per thread are in flight, small files are held in memory and larger ones in temp files.
+     */
+    private void parallelBatchAppend(Iterable<File> files, final SquallArchiveCompressor compressor, Path archivePath) throws IOException {
+        final List<PendingFile> pendingFiles = Lists.newArrayList();
+        for (final File file : files) {
+            if (file.isDirectory()) {
+                collectFiles(file, Lists.newArrayList(file.getName()), pendingFiles);
+            } else {
+                pendingFiles.add(new PendingFile(file, Collections.<String>emptyList()));
+            }
+        }
+
+        final File tempDir = com.google.common.io.Files.createTempDir();
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SquallArchiveWriter-%d").build());
+        final Deque<Future<CompressedFile>> inFlight = new ArrayDeque<Future<CompressedFile>>();
+        try {
+            final FSDataOutputStream os = fs.create(archivePath, false);
+            try {
+                final Iterator<PendingFile> iterator = pendingFiles.iterator();
+                while (iterator.hasNext() || !inFlight.isEmpty()) {
+                    while (iterator.hasNext() && inFlight.size() < 2 * numThreads) {
+                        final PendingFile pendingFile = iterator.next();
+                        inFlight.add(executor.submit(new Callable<CompressedFile>() {
+                            @Override
+                            public CompressedFile call() throws IOException {
+                                return CompressedFile.compress(pendingFile, compressor, tempDir);
+                            }
+                        }));
+                    }
+                    final CompressedFile compressedFile = getUninterruptibly(inFlight.removeFirst());
+                    final long startOffset = os.getPos();
+                    compressedFile.writeTo(os);
+                    pendingMetadataWrites.add(new FileMetadata(compressedFile.filename, compressedFile.size,
+                            compressedFile.timestamp, compressedFile.result.checksum, startOffset, compressor,
+                            archivePath.getName(), compressedFile.result.blockOffsets));
+                }
+                commit();
+            } finally {
+                os.close();
+            }
+        } finally {
+            for (final Future<CompressedFile> future : inFlight) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Files.delete(tempDir.getAbsolutePath());
+        }
+    }
+
+    private static void collectFiles(File directory, List<String> parentDirectories, List<PendingFile> pendingFiles) {
+        for (final File file : sorted(directory.listFiles())) {
+            if (file.isDirectory()) {
+                final List<String> newParentDirectories = Lists.newArrayList(parentDirectories);
+                newParentDirectories.add(file.getName());
+                collectFiles(file, newParentDirectories, pendingFiles);
+            } else {
+                pendingFiles.add(new PendingFile(file, parentDirectories));
+            }
+        }
+    }
+
+    private static CompressedFile getUninterruptibly(Future<CompressedFile> future) throws IOException {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
     /**
      * recursively append a directory to the archive
      * does not modify metadata.txt until {@link #commit()} is called
@@ -271,25 +382,31 @@ public class SquallArchiveWriter {
     }
 
     private void internalAppendFile(FSDataOutputStream os, File file, List<String> parentDirectories, SquallArchiveCompressor compressor, String archiveFilename) throws IOException {
-        final String baseFilename = file.getName().replaceAll("\\s+", "_");
-        final String filename = makeFilename(parentDirectories, baseFilename);
+        final String filename = makeFilename(parentDirectories, file);
         final long size = file.length();
         final long timestamp = file.lastModified();
         final long startOffset = os.getPos();
 
+        final CompressionResult result = compressFile(file, compressor, os);
+
+        pendingMetadataWrites.add(new FileMetadata(filename, size, timestamp, result.checksum, startOffset, compressor, archiveFilename, result.blockOffsets));
+    }
+
+    private static CompressionResult compressFile(File file, SquallArchiveCompressor compressor, OutputStream os) throws IOException {
         final InputStream is = new BufferedInputStream(new FileInputStream(file));
-        final String checksum;
         try {
             final CompressionOutputStream cos = compressor.newOutputStream(os);
             final DigestOutputStream dos = new DigestOutputStream(cos, ArchiveUtils.getMD5Digest());
             ByteStreams.copy(is, dos);
-            checksum = ArchiveUtils.toHex(dos.getMessageDigest().digest());
+            final String checksum = ArchiveUtils.toHex(dos.getMessageDigest().digest());
             cos.finish();
+            if (cos instanceof BlockCompressionOutputStream) {
+                return new CompressionResult(checksum, ((BlockCompressionOutputStream) cos).getBlockOffsets());
+            }
+            return new CompressionResult(checksum, null);
         } finally {
             is.close();
         }
-
-        pendingMetadataWrites.add(new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename));
     }
 
     /**
@@ -312,7 +429,12 @@ public class SquallArchiveWriter {
                     w.println(line);
                 }
                 for (final FileMetadata file : pendingMetadataWrites) {
-                    w.println(TAB.join(file.getFilename(), file.getSize(), file.getTimestamp(), file.getChecksum(), file.getStartOffset(), file.getCompressor().getKey(), file.getArchiveFilename()));
+                    final String line = TAB.join(file.getFilename(), file.getSize(), file.getTimestamp(), file.getChecksum(), file.getStartOffset(), file.getCompressor().getKey(), file.getArchiveFilename());
+                    if (file.getBlockOffsets() != null) {
+                        w.println(line + "\t" + ArchiveUtils.formatBlockOffsets(file.getBlockOffsets()));
+                    } else {
+                        w.println(line);
+                    }
                 }
             } finally {
                 w.close();
@@ -325,6 +447,10 @@ public class SquallArchiveWriter {
         pendingMetadataWrites.clear();
     }
 
+    private static String makeFilename(List<String> parentDirectories, File file) {
+        return makeFilename(parentDirectories, file.getName().replaceAll("\\s+", "_"));
+    }
+
     private static String makeFilename(List<String> parentDirectories, String baseFilename) {
         final List<String> stringsToJoin = new ArrayList<String>(parentDirectories);
         stringsToJoin.add(baseFilename);
@@ -340,4 +466,79 @@ public class SquallArchiveWriter {
         });
         return files;
     }
-}
\ No newline at end of file
+
+    private static final class CompressionResult {
+        private final String checksum;
+        private final long[] blockOffsets;
+
+        private CompressionResult(String checksum, long[] blockOffsets) {
+            this.checksum = checksum;
+            this.blockOffsets = blockOffsets;
+        }
+    }
+
+    private static final class PendingFile {
+        private final File file;
+        private final List<String> parentDirectories;
+
+        private PendingFile(File file, List<String> parentDirectories) {
+            this.file = file;
+            this.parentDirectories = parentDirectories;
+        }
+    }
+
+    /**
+     * a file compressed ahead of being appended, either in memory or in a temp file
+     */
+    private static final class CompressedFile {
+        private static final long IN_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+        private final String filename;
+        private final long size;
+        private final long timestamp;
+        private final CompressionResult result;
+        private final byte[] bytes;
+        private final File tempFile;
+
+        private CompressedFile(String filename, long size, long timestamp, CompressionResult result, byte[] bytes, File tempFile) {
+            this.filename = filename;
+            this.size = size;
+            this.timestamp = timestamp;
+            this.result = result;
+            this.bytes = bytes;
+            this.tempFile = tempFile;
+        }
+
+        private static CompressedFile compress(PendingFile pendingFile, SquallArchiveCompressor compressor, File tempDir) throws IOException {
+            final File file = pendingFile.file;
+            final String filename = makeFilename(pendingFile.parentDirectories, file);
+            final long size = file.length();
+            final long timestamp = file.lastModified();
+            if (size <= IN_MEMORY_LIMIT) {
+                final ByteArrayOutputStream os = new ByteArrayOutputStream((int) size + 64);
+                final CompressionResult result = compressFile(file, compressor, os);
+                return new CompressedFile(filename, size, timestamp, result, os.toByteArray(), null);
+            }
+            final File tempFile = File.createTempFile("compressed", ".tmp", tempDir);
+            final OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile), 65536);
+            final CompressionResult result;
+            try {
+                result = compressFile(file, compressor, os);
+            } finally {
+                os.close();
+            }
+            return new CompressedFile(filename, size, timestamp, result, null, tempFile);
+        }
+
+        private void writeTo(OutputStream os) throws IOException {
+            if (bytes != null) {
+                os.write(bytes);
+            } else {
+                com.google.common.io.Files.copy(tempFile, os);
+                if (!tempFile.delete()) {
+                    throw new IOException("unable to delete " + tempFile);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive.compression;
+
+import java.io.IOException;
+
+/**
+ * Compresses a single block of bytes at a time, see {@link BlockCompressionOutputStream}.
+ * Implementations must be thread safe.
+ */
+interface BlockCodec {
+    int maxCompressedLength(int rawLength);
+
+    /**
+     * @return the number of bytes written to dest
+     */
+    int compress(byte[] src, int srcLength, byte[] dest) throws IOException;
+
+    /**
+     * decompresses exactly rawLength bytes into dest
+     */
+    void decompress(byte[] src, int srcLength, byte[] dest, int rawLength) throws IOException;
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive.compression;
+
+import com.google.common.io.ByteStreams;
+import com.indeed.util.compress.CompressionInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads blocks written by {@link BlockCompressionOutputStream}. The wrapped stream may start at any block
+ * boundary and may end after any block.
+ */
+public class BlockCompressionInputStream extends CompressionInputStream {
+    private final BlockCodec codec;
+    private final byte[] header = new byte[BlockCompressionOutputStream.HEADER_LENGTH];
+    private final byte[] compressed;
+    private final byte[] block = new byte[BlockCompressionOutputStream.BLOCK_SIZE];
+    private int blockLength = 0;
+    private int position = 0;
+    private boolean eof = false;
+
+    BlockCompressionInputStream(InputStream in, BlockCodec codec) throws IOException {
+        super(in);
+        this.codec = codec;
+        this.compressed = new byte[codec.maxCompressedLength(BlockCompressionOutputStream.BLOCK_SIZE)];
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int n = Math.min(len, blockLength - position);
+        System.arraycopy(block, position, bytes, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return blockLength - position;
+    }
+
+    @Override
+    public void resetState() throws IOException {
+        blockLength = 0;
+        position = 0;
+        eof = false;
+    }
+
+    private boolean fill() throws IOException {
+        while (position == blockLength) {
+            if (eof || !readBlock()) {
+                eof = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readBlock() throws IOException {
+        final int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        header[0] = (byte) first;
+        ByteStreams.readFully(in, header, 1, header.length - 1);
+        final int rawLength = getInt(header, 0);
+        final int compressedLength = getInt(header, 4);
+        if (rawLength == 0) {
+            return false;
+        }
+        if (rawLength < 0 || rawLength > block.length || compressedLength < 0 || compressedLength > compressed.length) {
+            throw new IOException("corrupt block header: raw length = " + rawLength + ", compressed length = " + compressedLength);
+        }
+        try {
+            if (compressedLength == rawLength) {
+                ByteStreams.readFully(in, block, 0, rawLength);
+            } else {
+                ByteStreams.readFully(in, compressed, 0, compressedLength);
+                codec.decompress(compressed, compressedLength, block, rawLength);
+            }
+        } catch (EOFException e) {
+            throw new IOException("truncated block", e);
+        }
+        blockLength = rawLength;
+        position = 0;
+        return true;
+    }
+
+    private static int getInt(byte[] bytes, int off) {
+        return ((bytes[off] & 0xFF) << 24) | ((bytes[off + 1] & 0xFF) << 16) | ((bytes[off + 2] & 0xFF) << 8) | (bytes[off + 3] & 0xFF);
+    }
+}
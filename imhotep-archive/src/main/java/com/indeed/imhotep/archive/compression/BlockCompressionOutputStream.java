@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive.compression;
+
+import com.indeed.util.compress.CompressionOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Splits the stream into {@link #BLOCK_SIZE} byte blocks that are compressed independently, so that a reader
+ * can start decompressing at any block given its offset.
+ *
+ * Each block is written as its uncompressed length, its compressed length and the compressed bytes. A block
+ * whose compressed length equals its uncompressed length is stored uncompressed. The stream ends with a block
+ * header of two zeros.
+ */
+public class BlockCompressionOutputStream extends CompressionOutputStream {
+    /** uncompressed size of every block but the last, part of the archive format */
+    public static final int BLOCK_SIZE = 256 * 1024;
+
+    static final int HEADER_LENGTH = 8;
+
+    private final BlockCodec codec;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] compressed;
+    private final byte[] header = new byte[HEADER_LENGTH];
+    private int blockLength = 0;
+
+    private long[] blockOffsets = new long[16];
+    private int numBlocks = 0;
+    private long bytesWritten = 0;
+    private boolean finished = false;
+
+    BlockCompressionOutputStream(OutputStream out, BlockCodec codec) {
+        super(out);
+        this.codec = codec;
+        this.compressed = new byte[codec.maxCompressedLength(BLOCK_SIZE)];
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(bytes, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        if (blockLength == BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (blockLength > 0) {
+            writeBlock();
+        }
+        writeHeader(0, 0);
+        finished = true;
+    }
+
+    @Override
+    public void resetState() throws IOException {
+        blockLength = 0;
+        numBlocks = 0;
+        bytesWritten = 0;
+        finished = false;
+    }
+
+    /**
+     * @return the offset of each block relative to the start of the stream followed by the offset of the end
+     * of the last block, or null if no blocks have been written
+     */
+    public long[] getBlockOffsets() {
+        if (numBlocks == 0) {
+            return null;
+        }
+        final long[] ret = Arrays.copyOf(blockOffsets, numBlocks + 1);
+        ret[numBlocks] = bytesWritten;
+        return ret;
+    }
+
+    private void writeBlock() throws IOException {
+        if (numBlocks + 1 >= blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blockOffsets.length * 2);
+        }
+        blockOffsets[numBlocks++] = bytesWritten;
+
+        final int compressedLength = codec.compress(block, blockLength, compressed);
+        if (compressedLength < blockLength) {
+            writeHeader(blockLength, compressedLength);
+            out.write(compressed, 0, compressedLength);
+            bytesWritten += HEADER_LENGTH + compressedLength;
+        } else {
+            writeHeader(blockLength, blockLength);
+            out.write(block, 0, blockLength);
+            bytesWritten += HEADER_LENGTH + blockLength;
+        }
+        blockLength = 0;
+    }
+
+    private void writeHeader(int rawLength, int compressedLength) throws IOException {
+        putInt(header, 0, rawLength);
+        putInt(header, 4, compressedLength);
+        out.write(header);
+    }
+
+    private static void putInt(byte[] bytes, int off, int value) {
+        bytes[off] = (byte) (value >>> 24);
+        bytes[off + 1] = (byte) (value >>> 16);
+        bytes[off + 2] = (byte) (value >>> 8);
+        bytes[off + 3] = (byte) value;
+    }
+}
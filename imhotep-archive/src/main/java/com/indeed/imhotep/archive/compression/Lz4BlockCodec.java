@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive.compression;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.IOException;
+
+final class Lz4BlockCodec implements BlockCodec {
+    static final Lz4BlockCodec INSTANCE = new Lz4BlockCodec();
+
+    private final LZ4Compressor compressor;
+    private final LZ4FastDecompressor decompressor;
+
+    private Lz4BlockCodec() {
+        final LZ4Factory factory = LZ4Factory.fastestInstance();
+        compressor = factory.fastCompressor();
+        decompressor = factory.fastDecompressor();
+    }
+
+    @Override
+    public int maxCompressedLength(int rawLength) {
+        return compressor.maxCompressedLength(rawLength);
+    }
+
+    @Override
+    public int compress(byte[] src, int srcLength, byte[] dest) throws IOException {
+        try {
+            return compressor.compress(src, 0, srcLength, dest, 0, dest.length);
+        } catch (LZ4Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcLength, byte[] dest, int rawLength) throws IOException {
+        final int read;
+        try {
+            read = decompressor.decompress(src, 0, dest, 0, rawLength);
+        } catch (LZ4Exception e) {
+            throw new IOException("corrupt lz4 block", e);
+        }
+        if (read != srcLength) {
+            throw new IOException("corrupt lz4 block: expected " + srcLength + " compressed bytes, read " + read);
+        }
+    }
+}
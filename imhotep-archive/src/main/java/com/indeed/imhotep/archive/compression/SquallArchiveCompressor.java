@@ -65,6 +65,34 @@ public enum SquallArchiveCompressor {
             final SnappyCodec codec = new SnappyCodec();
             return codec;
         }
+    },
+    LZ4("lz4") {
+        @Override
+        public CompressionInputStream newInputStream(InputStream is) throws IOException {
+            return new BlockCompressionInputStream(is, Lz4BlockCodec.INSTANCE);
+        }
+        @Override
+        public CompressionOutputStream newOutputStream(OutputStream os) throws IOException {
+            return new BlockCompressionOutputStream(os, Lz4BlockCodec.INSTANCE);
+        }
+        @Override
+        public boolean isBlockCompressed() {
+            return true;
+        }
+    },
+    ZSTD("zstd") {
+        @Override
+        public CompressionInputStream newInputStream(InputStream is) throws IOException {
+            return new BlockCompressionInputStream(is, ZstdBlockCodec.INSTANCE);
+        }
+        @Override
+        public CompressionOutputStream newOutputStream(OutputStream os) throws IOException {
+            return new BlockCompressionOutputStream(os, ZstdBlockCodec.INSTANCE);
+        }
+        @Override
+        public boolean isBlockCompressed() {
+            return true;
+        }
     };
 
     private static final Map<String, SquallArchiveCompressor> lookup;
@@ -86,6 +114,14 @@ public enum SquallArchiveCompressor {
 
     public abstract CompressionOutputStream newOutputStream(OutputStream os) throws IOException;
 
+    /**
+     * @return true if streams from this compressor are split into independently compressed blocks of
+     * {@link BlockCompressionOutputStream#BLOCK_SIZE} bytes, see {@link BlockCompressionOutputStream#getBlockOffsets}
+     */
+    public boolean isBlockCompressed() {
+        return false;
+    }
+
     public String getKey() {
         return key;
     }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive.compression;
+
+import com.github.luben.zstd.Zstd;
+
+import java.io.IOException;
+
+final class ZstdBlockCodec implements BlockCodec {
+    static final ZstdBlockCodec INSTANCE = new ZstdBlockCodec();
+
+    private static final int LEVEL = 3;
+
+    private ZstdBlockCodec() {
+    }
+
+    @Override
+    public int maxCompressedLength(int rawLength) {
+        return (int) Zstd.compressBound(rawLength);
+    }
+
+    @Override
+    public int compress(byte[] src, int srcLength, byte[] dest) throws IOException {
+        final long n = Zstd.compressByteArray(dest, 0, dest.length, src, 0, srcLength, LEVEL);
+        if (Zstd.isError(n)) {
+            throw new IOException("zstd compression failed: " + Zstd.getErrorName(n));
+        }
+        return (int) n;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcLength, byte[] dest, int rawLength) throws IOException {
+        final long n = Zstd.decompressByteArray(dest, 0, rawLength, src, 0, srcLength);
+        if (Zstd.isError(n)) {
+            throw new IOException("corrupt zstd block: " + Zstd.getErrorName(n));
+        }
+        if (n != rawLength) {
+            throw new IOException("corrupt zstd block: expected " + rawLength + " bytes, got " + n);
+        }
+    }
+}
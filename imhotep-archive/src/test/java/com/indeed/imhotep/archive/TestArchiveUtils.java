@@ -19,6 +19,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import com.indeed.imhotep.archive.ArchiveUtils;
 
@@ -39,4 +40,11 @@ public class TestArchiveUtils extends TestCase {
             }
         }
     }
+
+    public void testBlockOffsets() {
+        final long[] blockOffsets = new long[]{0, 100, 350, 351};
+        final String formatted = ArchiveUtils.formatBlockOffsets(blockOffsets);
+        assertEquals("100,250,1", formatted);
+        assertTrue(Arrays.equals(blockOffsets, ArchiveUtils.parseBlockOffsets(formatted)));
+    }
 }
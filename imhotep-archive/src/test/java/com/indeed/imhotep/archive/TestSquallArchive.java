@@ -37,6 +37,7 @@ import java.util.List;
 import java.util.Random;
 
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.GZIP;
+import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.LZ4;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.NONE;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.SNAPPY;
 import static org.junit.Assert.assertEquals;
@@ -77,6 +78,48 @@ public class TestSquallArchive {
         }
     }
 
+    @Test
+    public void testParallel() throws IOException {
+        final FileSystem fs = new NicerLocalFileSystem();
+        final Path tempDir = new Path(getTempDir());
+        final File localTempDir = new File(getTempDir());
+        final File localTempDir2 = new File(getTempDir());
+        try {
+            final Random rand = new Random(0);
+            final File subDir = new File(localTempDir, "sub");
+            if (!subDir.mkdir()) throw new IOException();
+            for (int i = 0; i < 20; ++i) {
+                // a few files are large enough to be compressed into temp files
+                final int len = i % 7 == 0 ? 5 * 1024 * 1024 : rand.nextInt(4096);
+                final OutputStream os = new FileOutputStream(new File(i % 2 == 0 ? localTempDir : subDir, "tempfile" + i));
+                for (int j = 0; j < len; ++j) {
+                    os.write(rand.nextInt(16));
+                }
+                os.close();
+            }
+
+            final SquallArchiveWriter writer = new SquallArchiveWriter(fs, tempDir, true, LZ4, 4);
+            writer.batchAppendDirectory(localTempDir);
+
+            final SquallArchiveReader reader = new SquallArchiveReader(fs, tempDir);
+            final List<FileMetadata> metadata = reader.readMetadata();
+            assertEquals(20, metadata.size());
+            for (int i = 1; i < metadata.size(); ++i) {
+                assertTrue(metadata.get(i - 1).getStartOffset() < metadata.get(i).getStartOffset());
+            }
+
+            reader.copyAllToLocal(localTempDir2, new AcceptAllFileMetadataFilter(), 4);
+            for (final FileMetadata file : metadata) {
+                assertTrue(com.google.common.io.Files.equal(
+                        new File(localTempDir, file.getFilename()), new File(localTempDir2, file.getFilename())));
+            }
+        } finally {
+            fs.delete(tempDir, true);
+            Files.delete(localTempDir.getAbsolutePath());
+            Files.delete(localTempDir2.getAbsolutePath());
+        }
+    }
+
     private static String getTempDir() {
         return com.google.common.io.Files.createTempDir().getAbsolutePath();
     }
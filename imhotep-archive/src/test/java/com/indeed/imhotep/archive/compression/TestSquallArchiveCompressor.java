@@ -28,7 +28,9 @@ import java.io.IOException;
 import java.util.Random;
 
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.GZIP;
+import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.LZ4;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.NONE;
+import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.ZSTD;
 
 /**
  * @author jsgroth
@@ -40,6 +42,39 @@ public class TestSquallArchiveCompressor extends TestCase {
     public void testCompressors() throws IOException {
         compressorTestCase(NONE);
         compressorTestCase(GZIP);
+        compressorTestCase(LZ4);
+        compressorTestCase(ZSTD);
+    }
+
+    @Test
+    public void testReadFromBlock() throws IOException {
+        final byte[] data = new byte[3 * BlockCompressionOutputStream.BLOCK_SIZE + 1000];
+        final Random rand = new Random(0);
+        for (int i = 0; i < data.length; ++i) {
+            // half compressible, half not
+            data[i] = (byte) (i < data.length / 2 ? rand.nextInt(4) : rand.nextInt(256));
+        }
+        for (final SquallArchiveCompressor compressor : new SquallArchiveCompressor[]{LZ4, ZSTD}) {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final BlockCompressionOutputStream os = (BlockCompressionOutputStream) compressor.newOutputStream(baos);
+            os.write(data);
+            os.finish();
+            final long[] blockOffsets = os.getBlockOffsets();
+            assertEquals(5, blockOffsets.length);
+
+            final byte[] bytes = baos.toByteArray();
+            for (int block = 0; block < 4; ++block) {
+                final int start = (int) blockOffsets[block];
+                final int end = (int) blockOffsets[block + 1];
+                final CompressionInputStream is = compressor.newInputStream(new ByteArrayInputStream(bytes, start, end - start));
+                final int rawStart = block * BlockCompressionOutputStream.BLOCK_SIZE;
+                final int rawEnd = Math.min(rawStart + BlockCompressionOutputStream.BLOCK_SIZE, data.length);
+                for (int i = rawStart; i < rawEnd; ++i) {
+                    assertEquals(data[i] & 0xFF, is.read());
+                }
+                assertEquals(-1, is.read());
+            }
+        }
     }
 
     private void compressorTestCase(SquallArchiveCompressor compressor) throws IOException {
@@ -19,6 +19,7 @@ import com.google.common.io.Closer;
 import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.imhotep.io.LimitedBufferedOutputStream;
+import com.indeed.imhotep.io.MeteredOutputStream;
 import com.indeed.imhotep.io.TempFileSizeLimitExceededException;
 import com.indeed.imhotep.io.WriteLimitExceededException;
 import com.indeed.util.core.Throwables2;
@@ -79,6 +80,10 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     private final List<TermCount>[] termCountListBuf;
 
+    private final DistinctCountSketch[][] groupSketchesBuf;
+
+    private final QuantileSketch[][] groupQuantilesBuf;
+
     private FTGSIterator lastIterator;
 
     protected final AtomicLong tempFileSizeBytesLeft;
@@ -119,6 +124,8 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
         nullBuf = new Object[sessions.length];
         groupStatsBuf = new long[sessions.length][];
         termCountListBuf = new List[sessions.length];
+        groupSketchesBuf = new DistinctCountSketch[sessions.length][];
+        groupQuantilesBuf = new QuantileSketch[sessions.length][];
     }
 
     @Override
@@ -375,6 +382,70 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
         return ret.subList(0, end);
     }
 
+    @Override
+    public DistinctCountSketch[] getGroupDistinctSketches(final String field, final boolean isIntField, final int precision) throws ImhotepOutOfMemoryException {
+        executeMemoryException(groupSketchesBuf, new ThrowingFunction<ImhotepSession, DistinctCountSketch[]>() {
+            @Override
+            public DistinctCountSketch[] apply(ImhotepSession session) throws Exception {
+                return session.getGroupDistinctSketches(field, isIntField, precision);
+            }
+        });
+
+        int numGroups = 0;
+        for (final DistinctCountSketch[] sketches : groupSketchesBuf) {
+            numGroups = Math.max(numGroups, sketches.length);
+        }
+
+        final DistinctCountSketch[] merged = new DistinctCountSketch[numGroups];
+        for (final DistinctCountSketch[] sketches : groupSketchesBuf) {
+            for (int group = 1; group < sketches.length; ++group) {
+                final DistinctCountSketch sketch = sketches[group];
+                if (sketch == null) {
+                    continue;
+                }
+                if (merged[group] == null) {
+                    merged[group] = sketch;
+                } else {
+                    merged[group].merge(sketch);
+                }
+            }
+        }
+        Arrays.fill(groupSketchesBuf, null);
+        return merged;
+    }
+
+    @Override
+    public QuantileSketch[] getGroupQuantiles(final int stat, final double accuracy) throws ImhotepOutOfMemoryException {
+        executeMemoryException(groupQuantilesBuf, new ThrowingFunction<ImhotepSession, QuantileSketch[]>() {
+            @Override
+            public QuantileSketch[] apply(ImhotepSession session) throws Exception {
+                return session.getGroupQuantiles(stat, accuracy);
+            }
+        });
+
+        int numGroups = 0;
+        for (final QuantileSketch[] sketches : groupQuantilesBuf) {
+            numGroups = Math.max(numGroups, sketches.length);
+        }
+
+        final QuantileSketch[] merged = new QuantileSketch[numGroups];
+        for (final QuantileSketch[] sketches : groupQuantilesBuf) {
+            for (int group = 1; group < sketches.length; ++group) {
+                final QuantileSketch sketch = sketches[group];
+                if (sketch == null) {
+                    continue;
+                }
+                if (merged[group] == null) {
+                    merged[group] = sketch;
+                } else {
+                    merged[group].merge(sketch);
+                }
+            }
+        }
+        Arrays.fill(groupQuantilesBuf, null);
+        return merged;
+    }
+
     @Override
     public int pushStat(final String statName) throws ImhotepOutOfMemoryException {
         executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
@@ -632,12 +703,14 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
         }
     }
 
-    private RawFTGSIterator persist(final FTGSIterator iterator) throws IOException {
+    protected RawFTGSIterator persist(final FTGSIterator iterator) throws IOException {
         final File tmp = File.createTempFile("ftgs", ".tmp");
+        MeteredOutputStream spillOut = null;
         OutputStream out = null;
         try {
             final long start = System.currentTimeMillis();
-            out = new LimitedBufferedOutputStream(new FileOutputStream(tmp), tempFileSizeBytesLeft);
+            spillOut = new MeteredOutputStream(new FileOutputStream(tmp));
+            out = new LimitedBufferedOutputStream(spillOut, tempFileSizeBytesLeft);
             FTGSOutputStreamWriter.write(iterator, numStats, out);
             if(log.isDebugEnabled()) {
                 log.debug("time to merge splits to file: " + (System.currentTimeMillis() - start) + " ms, file length: " + tmp.length());
@@ -653,6 +726,10 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
             if (out != null) {
                 out.close();
             }
+            if (spillOut != null) {
+                RequestSpan.addSpillBytes(spillOut.getCount());
+                RequestSpan.addPhaseNanos(RequestSpan.Phase.SPILL, spillOut.getNanos());
+            }
         }
         final BufferedInputStream bufferedInputStream;
         try {
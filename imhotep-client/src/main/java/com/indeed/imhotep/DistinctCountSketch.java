@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mergeable distinct value counter.
+ *
+ * While the number of distinct values is small the sketch keeps the exact set of 64 bit term hashes
+ * in a sorted array and {@link #cardinality()} is exact. Once keeping the hashes would use more memory
+ * than the HyperLogLog registers for the configured precision the sketch switches to registers and
+ * the cardinality becomes an estimate with a relative standard error of about 1.04 / sqrt(2^precision).
+ */
+public final class DistinctCountSketch {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+    public static final int DEFAULT_PRECISION = 14;
+
+    private static final byte EXACT = 0;
+    private static final byte ESTIMATED = 1;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final int precision;
+    private final int exactLimit;
+
+    // sorted unique hashes while exact, null once switched to registers
+    private long[] hashes;
+    private int numHashes;
+    // unsorted tail of hashes, merged into hashes when full
+    private long[] pending;
+    private int numPending;
+
+    private byte[] registers;
+
+    public DistinctCountSketch(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION + ", was " + precision);
+        }
+        this.precision = precision;
+        this.exactLimit = (1 << precision) / 8;
+        this.hashes = new long[0];
+        this.pending = new long[Math.min(exactLimit, 64)];
+    }
+
+    public static long hashInt(long term) {
+        return HASH_FUNCTION.hashLong(term).asLong();
+    }
+
+    public static long hashString(String term) {
+        return HASH_FUNCTION.hashBytes(term.getBytes(Charsets.UTF_8)).asLong();
+    }
+
+    /**
+     * @return an upper bound on the heap memory used by a sketch with the given precision
+     */
+    public static long maxMemoryUsage(int precision) {
+        return 3L * (1 << precision);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public boolean isExact() {
+        return registers == null;
+    }
+
+    public void addInt(long term) {
+        addHash(hashInt(term));
+    }
+
+    public void addString(String term) {
+        addHash(hashString(term));
+    }
+
+    public void addHash(long hash) {
+        if (registers != null) {
+            updateRegister(hash);
+            return;
+        }
+        if (numPending == pending.length) {
+            flushPending();
+            if (registers != null) {
+                updateRegister(hash);
+                return;
+            }
+        }
+        pending[numPending++] = hash;
+    }
+
+    public void merge(DistinctCountSketch other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("cannot merge sketches with different precisions: " + precision + " and " + other.precision);
+        }
+        if (other.registers == null) {
+            for (int i = 0; i < other.numHashes; i++) {
+                addHash(other.hashes[i]);
+            }
+            for (int i = 0; i < other.numPending; i++) {
+                addHash(other.pending[i]);
+            }
+            return;
+        }
+        if (registers == null) {
+            switchToRegisters();
+        }
+        final byte[] otherRegisters = other.registers;
+        for (int i = 0; i < registers.length; i++) {
+            if (otherRegisters[i] > registers[i]) {
+                registers[i] = otherRegisters[i];
+            }
+        }
+    }
+
+    public long cardinality() {
+        if (registers == null) {
+            flushPending();
+            if (registers == null) {
+                return numHashes;
+            }
+        }
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (final byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        final double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // linear counting is more accurate for small cardinalities
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    public byte[] toBytes() {
+        if (registers == null) {
+            flushPending();
+        }
+        if (registers == null) {
+            final ByteBuffer buffer = ByteBuffer.allocate(2 + 4 + numHashes * 8);
+            buffer.put((byte) precision);
+            buffer.put(EXACT);
+            buffer.putInt(numHashes);
+            for (int i = 0; i < numHashes; i++) {
+                buffer.putLong(hashes[i]);
+            }
+            return buffer.array();
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(2 + registers.length);
+        buffer.put((byte) precision);
+        buffer.put(ESTIMATED);
+        buffer.put(registers);
+        return buffer.array();
+    }
+
+    public static DistinctCountSketch fromBytes(byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final DistinctCountSketch sketch = new DistinctCountSketch(buffer.get());
+        final byte type = buffer.get();
+        if (type == EXACT) {
+            final int n = buffer.getInt();
+            final long[] hashes = new long[n];
+            for (int i = 0; i < n; i++) {
+                hashes[i] = buffer.getLong();
+            }
+            sketch.hashes = hashes;
+            sketch.numHashes = n;
+        } else if (type == ESTIMATED) {
+            sketch.registers = new byte[1 << sketch.precision];
+            buffer.get(sketch.registers);
+        } else {
+            throw new IllegalArgumentException("unknown sketch type: " + type);
+        }
+        return sketch;
+    }
+
+    private void flushPending() {
+        if (numPending == 0) {
+            return;
+        }
+        Arrays.sort(pending, 0, numPending);
+        final long[] merged = new long[numHashes + numPending];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < numHashes || j < numPending) {
+            final long next;
+            if (j >= numPending || (i < numHashes && hashes[i] <= pending[j])) {
+                next = hashes[i++];
+            } else {
+                next = pending[j++];
+            }
+            if (n == 0 || merged[n - 1] != next) {
+                merged[n++] = next;
+            }
+        }
+        hashes = merged;
+        numHashes = n;
+        numPending = 0;
+        if (numHashes > exactLimit) {
+            switchToRegisters();
+        } else if (pending.length < exactLimit) {
+            pending = new long[Math.min(exactLimit, pending.length * 2)];
+        }
+    }
+
+    private void switchToRegisters() {
+        registers = new byte[1 << precision];
+        for (int i = 0; i < numHashes; i++) {
+            updateRegister(hashes[i]);
+        }
+        for (int i = 0; i < numPending; i++) {
+            updateRegister(pending[i]);
+        }
+        hashes = null;
+        numHashes = 0;
+        pending = null;
+        numPending = 0;
+    }
+
+    private void updateRegister(long hash) {
+        final int index = (int) (hash >>> (64 - precision));
+        final long rest = (hash << precision) | (1L << (precision - 1));
+        final byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+}
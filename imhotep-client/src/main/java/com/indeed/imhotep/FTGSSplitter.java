@@ -18,6 +18,7 @@ import com.google.common.base.Function;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import com.indeed.imhotep.io.LimitedBufferedOutputStream;
+import com.indeed.imhotep.io.MeteredOutputStream;
 import com.indeed.imhotep.io.TempFileSizeLimitExceededException;
 import com.indeed.imhotep.io.WriteLimitExceededException;
 import com.indeed.util.core.Throwables2;
@@ -53,6 +54,7 @@ public final class FTGSSplitter implements Runnable, Closeable {
 
     private final FTGSOutputStreamWriter[] outputs;
     private final File[] files;
+    private final MeteredOutputStream[] spillStreams;
     private final OutputStream[] outputStreams;
     private final RawFTGSIterator[] ftgsIterators;
 
@@ -63,6 +65,11 @@ public final class FTGSSplitter implements Runnable, Closeable {
     private final int numStats;
     private final int largePrime;
 
+    // the splitting runs on its own thread and can outlive the request that created the splitter, so it is charged
+    // to a child span that is added to the request's span when the splitting is done
+    private final RequestSpan requestSpan = RequestSpan.current();
+    private final RequestSpan span = requestSpan == null ? null : requestSpan.child();
+
     public FTGSSplitter(FTGSIterator ftgsIterator, final int numSplits, final int numStats, final String threadNameSuffix, final int largePrime, final AtomicLong tempFileSizeBytesLeft) throws IOException {
         this.iterator = ftgsIterator;
         this.numSplits = numSplits;
@@ -70,6 +77,7 @@ public final class FTGSSplitter implements Runnable, Closeable {
         this.largePrime = largePrime;
         outputs = new FTGSOutputStreamWriter[numSplits];
         files = new File[numSplits];
+        spillStreams = new MeteredOutputStream[numSplits];
         outputStreams = new OutputStream[numSplits];
         ftgsIterators = new RawFTGSIterator[numSplits];
         final AtomicInteger doneCounter = new AtomicInteger();
@@ -78,7 +86,8 @@ public final class FTGSSplitter implements Runnable, Closeable {
         try {
             for (int i = 0; i < numSplits; i++) {
                 files[i] = File.createTempFile("ftgsSplitter", ".tmp");
-                outputStreams[i] = new LimitedBufferedOutputStream(new FileOutputStream(files[i]), tempFileSizeBytesLeft, 65536);
+                spillStreams[i] = new MeteredOutputStream(new FileOutputStream(files[i]));
+                outputStreams[i] = new LimitedBufferedOutputStream(spillStreams[i], tempFileSizeBytesLeft, 65536);
                 outputs[i] = new FTGSOutputStreamWriter(outputStreams[i]);
                 ftgsIterators[i] = new SplitterRawFTGSIterator(i, numStats, doneCounter, numSplits);
             }
@@ -97,6 +106,7 @@ public final class FTGSSplitter implements Runnable, Closeable {
     }
 
     public void run() {
+        RequestSpan.attach(span);
         try {
             final RawFTGSIterator rawIterator;
             if (iterator instanceof RawFTGSIterator) {
@@ -151,6 +161,14 @@ public final class FTGSSplitter implements Runnable, Closeable {
             throw Throwables.propagate(t);
         } finally {
             Closeables2.closeQuietly(iterator, log);
+            for (final MeteredOutputStream spillStream : spillStreams) {
+                RequestSpan.addSpillBytes(spillStream.getCount());
+                RequestSpan.addPhaseNanos(RequestSpan.Phase.SPILL, spillStream.getNanos());
+            }
+            RequestSpan.attach(null);
+            if (span != null && !requestSpan.merge(span)) {
+                log.debug("request " + requestSpan + " finished before its FTGS was split, not charging it for the split");
+            }
         }
     }
 
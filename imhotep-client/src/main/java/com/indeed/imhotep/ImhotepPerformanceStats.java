@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.indeed.imhotep.protobuf.OperationStatsMessage;
+import com.indeed.imhotep.protobuf.PerformanceStatsMessage;
+import com.indeed.imhotep.protobuf.RequestSpanMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Latency histograms and totals of every request type a daemon has served, and the spans of recent requests.
+ */
+public class ImhotepPerformanceStats {
+    public final List<OperationStats> operations;
+    public final List<RequestSpan> recentSpans;
+
+    public ImhotepPerformanceStats(List<OperationStats> operations, List<RequestSpan> recentSpans) {
+        this.operations = operations;
+        this.recentSpans = recentSpans;
+    }
+
+    public List<OperationStats> getOperations() {
+        return operations;
+    }
+
+    public List<RequestSpan> getRecentSpans() {
+        return recentSpans;
+    }
+
+    public PerformanceStatsMessage toProto() {
+        final PerformanceStatsMessage.Builder builder = PerformanceStatsMessage.newBuilder();
+        for (final OperationStats operation : operations) {
+            builder.addOperation(operation.toProto());
+        }
+        for (final RequestSpan span : recentSpans) {
+            builder.addRecentSpan(span.toProto());
+        }
+        return builder.build();
+    }
+
+    public static ImhotepPerformanceStats fromProto(PerformanceStatsMessage protoStats) {
+        final List<OperationStats> operations = new ArrayList<OperationStats>(protoStats.getOperationCount());
+        for (final OperationStatsMessage operation : protoStats.getOperationList()) {
+            operations.add(OperationStats.fromProto(operation));
+        }
+        final List<RequestSpan> recentSpans = new ArrayList<RequestSpan>(protoStats.getRecentSpanCount());
+        for (final RequestSpanMessage span : protoStats.getRecentSpanList()) {
+            recentSpans.add(RequestSpan.fromProto(span));
+        }
+        return new ImhotepPerformanceStats(operations, recentSpans);
+    }
+
+    public static class OperationStats {
+        public final String requestType;
+        public final long count;
+        public final long errors;
+        public final long bytesIn;
+        public final long bytesOut;
+        public final long docsScanned;
+        public final long spillBytes;
+        public final LatencyHistogram latency;
+
+        public OperationStats(String requestType, long count, long errors, long bytesIn, long bytesOut,
+                              long docsScanned, long spillBytes, LatencyHistogram latency) {
+            this.requestType = requestType;
+            this.count = count;
+            this.errors = errors;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.docsScanned = docsScanned;
+            this.spillBytes = spillBytes;
+            this.latency = latency;
+        }
+
+        public String getRequestType() {
+            return requestType;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getDocsScanned() {
+            return docsScanned;
+        }
+
+        public long getSpillBytes() {
+            return spillBytes;
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public OperationStatsMessage toProto() {
+            return OperationStatsMessage.newBuilder()
+                    .setRequestType(requestType)
+                    .setCount(count)
+                    .setErrors(errors)
+                    .setBytesIn(bytesIn)
+                    .setBytesOut(bytesOut)
+                    .setDocsScanned(docsScanned)
+                    .setSpillBytes(spillBytes)
+                    .setLatency(latency.toProto())
+                    .build();
+        }
+
+        public static OperationStats fromProto(OperationStatsMessage protoStats) {
+            return new OperationStats(protoStats.getRequestType(), protoStats.getCount(), protoStats.getErrors(),
+                    protoStats.getBytesIn(), protoStats.getBytesOut(), protoStats.getDocsScanned(),
+                    protoStats.getSpillBytes(), LatencyHistogram.fromProto(protoStats.getLatency()));
+        }
+    }
+}
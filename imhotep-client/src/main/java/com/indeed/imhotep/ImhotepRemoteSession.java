@@ -21,6 +21,8 @@ import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import com.indeed.flamdex.writer.FlamdexDocument;
 import com.indeed.imhotep.api.DocIterator;
 import com.indeed.imhotep.api.FTGSIterator;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
@@ -140,6 +142,35 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         return ImhotepStatusDump.fromProto(response.getStatusDump());
     }
 
+    /**
+     * @param sessionId if not null only the spans of this session's requests are returned
+     */
+    public static ImhotepPerformanceStats getPerformanceStats(final String host, final int port, @Nullable final String sessionId) throws IOException {
+        final ImhotepRequest.Builder builder = getBuilderForType(ImhotepRequest.RequestType.GET_PERFORMANCE_STATS);
+        if (sessionId != null) {
+            builder.setSessionId(sessionId);
+        }
+
+        final ImhotepResponse response = sendRequest(builder.build(), host, port);
+
+        return ImhotepPerformanceStats.fromProto(response.getPerformanceStats());
+    }
+
+    /**
+     * Appends documents to a live shard on the given daemon, creating the shard if it does not exist yet.
+     * The documents are visible to sessions opened after this call returns.
+     */
+    public static void appendToLiveShard(final String host, final int port, final String dataset, final String shardId,
+                                         final List<FlamdexDocument> documents) throws IOException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.APPEND_TO_LIVE_SHARD)
+                .setDataset(dataset)
+                .addShardRequest(shardId)
+                .addAllDocument(ImhotepClientMarshaller.marshalDocuments(documents))
+                .build();
+
+        sendRequest(request, host, port);
+    }
+
     public static ImhotepRemoteSession openSession(final String host, final int port, final String dataset, final List<String> shards, @Nullable String sessionId) throws ImhotepOutOfMemoryException, IOException {
         return openSession(host, port, dataset, shards, DEFAULT_MERGE_THREAD_LIMIT, getUsername(), false, -1, sessionId, -1, null);
     }
@@ -152,13 +183,36 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
     public static ImhotepRemoteSession openSession(final String host, final int port, final String dataset, final List<String> shards,
                                                    final int mergeThreadLimit, final String username,
                                                    final boolean optimizeGroupZeroLookups, final int socketTimeout, @Nullable String sessionId, final long tempFileSizeLimit, @Nullable final AtomicLong tempFileSizeBytesLeft) throws ImhotepOutOfMemoryException, IOException {
+        return openSession(host, port, dataset, shards, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId, tempFileSizeLimit, tempFileSizeBytesLeft, null);
+    }
+
+    /**
+     * @param snapshotId if not null, the new session's groups, dynamic metrics and stats are restored from the
+     *                   snapshot with this id previously written by {@link #exportSnapshot}
+     */
+    public static ImhotepRemoteSession openSession(final String host, final int port, final String dataset, final List<String> shards,
+                                                   final int mergeThreadLimit, final String username,
+                                                   final boolean optimizeGroupZeroLookups, final int socketTimeout, @Nullable String sessionId, final long tempFileSizeLimit, @Nullable final AtomicLong tempFileSizeBytesLeft,
+                                                   @Nullable final String snapshotId) throws ImhotepOutOfMemoryException, IOException {
+        return openSession(host, port, dataset, shards, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId, tempFileSizeLimit, tempFileSizeBytesLeft, snapshotId, 0);
+    }
+
+    /**
+     * @param priority sessions with a higher priority get a larger share of the daemon's cpu while other sessions
+     *                 of the same daemon are busy, from 0 (the default) to 9
+     */
+    public static ImhotepRemoteSession openSession(final String host, final int port, final String dataset, final List<String> shards,
+                                                   final int mergeThreadLimit, final String username,
+                                                   final boolean optimizeGroupZeroLookups, final int socketTimeout, @Nullable String sessionId, final long tempFileSizeLimit, @Nullable final AtomicLong tempFileSizeBytesLeft,
+                                                   @Nullable final String snapshotId, final int priority) throws ImhotepOutOfMemoryException, IOException {
         final Socket socket = newSocket(host, port, socketTimeout);
         final OutputStream os = Streams.newBufferedOutputStream(socket.getOutputStream());
         final InputStream is = Streams.newBufferedInputStream(socket.getInputStream());
 
         try {
             log.trace("sending open request to "+host+":"+port+" for shards "+shards);
-            final ImhotepRequest openSessionRequest = getBuilderForType(ImhotepRequest.RequestType.OPEN_SESSION)
+            final ImhotepRequest.Builder openSessionRequestBuilder = getBuilderForType(
+                    snapshotId == null ? ImhotepRequest.RequestType.OPEN_SESSION : ImhotepRequest.RequestType.OPEN_SESSION_FROM_SNAPSHOT)
                     .setUsername(username)
                     .setDataset(dataset)
                     .setMergeThreadLimit(mergeThreadLimit)
@@ -167,7 +221,11 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
                     .setClientVersion(CURRENT_CLIENT_VERSION)
                     .setSessionId(sessionId == null ? "" : sessionId)
                     .setTempFileSizeLimit(tempFileSizeLimit)
-                    .build();
+                    .setSessionPriority(priority);
+            if (snapshotId != null) {
+                openSessionRequestBuilder.setSnapshotId(snapshotId);
+            }
+            final ImhotepRequest openSessionRequest = openSessionRequestBuilder.build();
             try {
                 ImhotepProtobufShipping.sendProtobuf(openSessionRequest, os);
     
@@ -215,6 +273,7 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_GROUP_STATS)
                 .setSessionId(sessionId)
                 .setStat(stat)
+                .setSparseGroupStats(true)
                 .build();
         final ImhotepResponse response;
         try {
@@ -224,6 +283,16 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         }
 
         final List<Long> groupStats = response.getGroupStatList();
+        if (response.hasGroupStatNumGroups()) {
+            final long[] ret = new long[response.getGroupStatNumGroups()];
+            final List<Integer> groupDeltas = response.getGroupStatGroupDeltaList();
+            int group = 0;
+            for (int i = 0; i < groupDeltas.size(); ++i) {
+                group += groupDeltas.get(i);
+                ret[group] = groupStats.get(i);
+            }
+            return ret;
+        }
         final long[] ret = new long[groupStats.size()];
         for (int i = 0; i < ret.length; ++i) {
             ret[i] = groupStats.get(i);
@@ -641,6 +710,75 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         }
     }
 
+    @Override
+    public DistinctCountSketch[] getGroupDistinctSketches(String field, boolean isIntField, int precision) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_GROUP_DISTINCT)
+                .setSessionId(sessionId)
+                .setField(field)
+                .setIsIntField(isIntField)
+                .setSketchPrecision(precision)
+                .build();
+
+        try {
+            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
+            final List<ByteString> groupSketches = response.getGroupSketchList();
+            final DistinctCountSketch[] ret = new DistinctCountSketch[groupSketches.size()];
+            for (int group = 0; group < ret.length; ++group) {
+                final ByteString sketch = groupSketches.get(group);
+                if (!sketch.isEmpty()) {
+                    ret[group] = DistinctCountSketch.fromBytes(sketch.toByteArray());
+                }
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public QuantileSketch[] getGroupQuantiles(int stat, double accuracy) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_GROUP_QUANTILES)
+                .setSessionId(sessionId)
+                .setStat(stat)
+                .setAccuracy(accuracy)
+                .build();
+
+        try {
+            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
+            final List<ByteString> groupSketches = response.getGroupSketchList();
+            final QuantileSketch[] ret = new QuantileSketch[groupSketches.size()];
+            for (int group = 0; group < ret.length; ++group) {
+                final ByteString sketch = groupSketches.get(group);
+                if (!sketch.isEmpty()) {
+                    ret[group] = QuantileSketch.fromBytes(sketch.toByteArray());
+                }
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * writes this session's groups, dynamic metrics and pushed stats to the daemon's local disk so that a new
+     * session on the same versions of the shards can be opened from it later. snapshot ids can't be reused, and
+     * daemons delete snapshots once they expire
+     * @return the shards included in the snapshot
+     */
+    public List<String> exportSnapshot(String snapshotId) {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.EXPORT_SNAPSHOT)
+                .setSessionId(sessionId)
+                .setSnapshotId(snapshotId)
+                .build();
+
+        try {
+            final ImhotepResponse response = sendRequest(request, host, port, socketTimeout);
+            return response.getShardIdList();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public int pushStat(String statName) throws ImhotepOutOfMemoryException {
         final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.PUSH_STAT)
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.indeed.imhotep.protobuf.LatencyHistogramMessage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in log-linear buckets: each power of two is split into 16 equal buckets,
+ * so any percentile is reported within 1/16th of the recorded latency no matter how large it is, in a fixed
+ * amount of memory. Recording is lock free.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // the highest bit of a non-negative long is bit 62
+    private static final int NUM_BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // retry until we either set the max or see a larger one
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalMicros() {
+        return totalMicros.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, or 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        final long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    /**
+     * adds everything recorded by other to this histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            final long n = other.buckets.get(i);
+            if (n != 0) {
+                buckets.addAndGet(i, n);
+            }
+        }
+        count.addAndGet(other.count.get());
+        totalMicros.addAndGet(other.totalMicros.get());
+        long max;
+        final long otherMax = other.maxMicros.get();
+        while (otherMax > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, otherMax)) {
+            // retry until we either set the max or see a larger one
+        }
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    public LatencyHistogramMessage toProto() {
+        final LatencyHistogramMessage.Builder builder = LatencyHistogramMessage.newBuilder()
+                .setMaxMicros(maxMicros.get())
+                .setTotalMicros(totalMicros.get());
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            final long n = buckets.get(i);
+            if (n != 0) {
+                builder.addBucketIndex(i);
+                builder.addBucketCount(n);
+            }
+        }
+        return builder.build();
+    }
+
+    public static LatencyHistogram fromProto(LatencyHistogramMessage protoHistogram) {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < protoHistogram.getBucketIndexCount(); i++) {
+            final long n = protoHistogram.getBucketCount(i);
+            histogram.buckets.addAndGet(protoHistogram.getBucketIndex(i), n);
+            histogram.count.addAndGet(n);
+        }
+        histogram.maxMicros.set(protoHistogram.getMaxMicros());
+        histogram.totalMicros.set(protoHistogram.getTotalMicros());
+        return histogram;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch over long values with a relative accuracy guarantee.
+ *
+ * Values are counted in logarithmically sized buckets, so any quantile returned is within
+ * {@code accuracy * |value|} of a value actually at that rank. Sketches built with the same accuracy
+ * can be merged by adding bucket counts, which makes the result independent of how documents were
+ * spread across shards.
+ */
+public final class QuantileSketch {
+    public static final double DEFAULT_ACCURACY = 0.01;
+
+    /**
+     * rough heap usage of an empty sketch, used for memory accounting
+     */
+    public static final long BASE_MEMORY_USAGE = 256;
+
+    private final double accuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    private final Int2LongOpenHashMap positiveBuckets = new Int2LongOpenHashMap();
+    private final Int2LongOpenHashMap negativeBuckets = new Int2LongOpenHashMap();
+    private long zeroCount;
+
+    private long count;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    public QuantileSketch(double accuracy) {
+        if (!(accuracy > 0 && accuracy < 1)) {
+            throw new IllegalArgumentException("accuracy must be between 0 and 1 exclusive, was " + accuracy);
+        }
+        this.accuracy = accuracy;
+        this.gamma = (1 + accuracy) / (1 - accuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    public double getAccuracy() {
+        return accuracy;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public void add(long value) {
+        add(value, 1);
+    }
+
+    public void add(long value, long n) {
+        if (n <= 0) {
+            return;
+        }
+        if (value > 0) {
+            positiveBuckets.addTo(bucketIndex(value), n);
+        } else if (value < 0) {
+            // -Long.MIN_VALUE overflows, but a bucket of Long.MAX_VALUE is close enough
+            negativeBuckets.addTo(bucketIndex(value == Long.MIN_VALUE ? Long.MAX_VALUE : -value), n);
+        } else {
+            zeroCount += n;
+        }
+        count += n;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(QuantileSketch other) {
+        if (other.accuracy != accuracy) {
+            throw new IllegalArgumentException("cannot merge sketches with different accuracies: " + accuracy + " and " + other.accuracy);
+        }
+        for (final Int2LongMap.Entry entry : other.positiveBuckets.int2LongEntrySet()) {
+            positiveBuckets.addTo(entry.getIntKey(), entry.getLongValue());
+        }
+        for (final Int2LongMap.Entry entry : other.negativeBuckets.int2LongEntrySet()) {
+            negativeBuckets.addTo(entry.getIntKey(), entry.getLongValue());
+        }
+        zeroCount += other.zeroCount;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @param q the quantile to estimate, between 0 and 1 inclusive
+     * @return the estimated value at quantile q, or NaN if the sketch is empty
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("quantile must be between 0 and 1, was " + q);
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        final long rank = (long) (q * (count - 1));
+        long seen = 0;
+
+        final int[] negativeIndexes = sortedIndexes(negativeBuckets);
+        for (int i = negativeIndexes.length - 1; i >= 0; i--) {
+            seen += negativeBuckets.get(negativeIndexes[i]);
+            if (seen > rank) {
+                return clamp(-bucketValue(negativeIndexes[i]));
+            }
+        }
+        seen += zeroCount;
+        if (seen > rank) {
+            return 0;
+        }
+        final int[] positiveIndexes = sortedIndexes(positiveBuckets);
+        for (final int index : positiveIndexes) {
+            seen += positiveBuckets.get(index);
+            if (seen > rank) {
+                return clamp(bucketValue(index));
+            }
+        }
+        return max;
+    }
+
+    public long memoryUsage() {
+        return BASE_MEMORY_USAGE + 24L * (positiveBuckets.size() + negativeBuckets.size());
+    }
+
+    /**
+     * buckets are written as varint encoded deltas of their sorted indexes followed by varint counts
+     */
+    public byte[] toBytes() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteBuffer header = ByteBuffer.allocate(8 * 5);
+        header.putDouble(accuracy);
+        header.putLong(count);
+        header.putLong(min);
+        header.putLong(max);
+        header.putLong(zeroCount);
+        out.write(header.array(), 0, header.position());
+        writeBuckets(out, positiveBuckets);
+        writeBuckets(out, negativeBuckets);
+        return out.toByteArray();
+    }
+
+    public static QuantileSketch fromBytes(byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final QuantileSketch sketch = new QuantileSketch(buffer.getDouble());
+        sketch.count = buffer.getLong();
+        sketch.min = buffer.getLong();
+        sketch.max = buffer.getLong();
+        sketch.zeroCount = buffer.getLong();
+        readBuckets(buffer, sketch.positiveBuckets);
+        readBuckets(buffer, sketch.negativeBuckets);
+        return sketch;
+    }
+
+    private int bucketIndex(long value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    private double bucketValue(int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    private double clamp(double value) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static int[] sortedIndexes(Int2LongOpenHashMap buckets) {
+        final int[] indexes = buckets.keySet().toIntArray();
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    private static void writeBuckets(ByteArrayOutputStream out, Int2LongOpenHashMap buckets) {
+        final int[] indexes = sortedIndexes(buckets);
+        writeVarLong(out, indexes.length);
+        int previous = 0;
+        for (final int index : indexes) {
+            // zigzag so that the first, possibly negative, index stays small
+            final long delta = (long) index - previous;
+            writeVarLong(out, (delta << 1) ^ (delta >> 63));
+            writeVarLong(out, buckets.get(index));
+            previous = index;
+        }
+    }
+
+    private static void readBuckets(ByteBuffer buffer, Int2LongOpenHashMap buckets) {
+        final int size = (int) readVarLong(buffer);
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            final long zigzag = readVarLong(buffer);
+            final int index = (int) (previous + ((zigzag >>> 1) ^ -(zigzag & 1)));
+            buckets.put(index, readVarLong(buffer));
+            previous = index;
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
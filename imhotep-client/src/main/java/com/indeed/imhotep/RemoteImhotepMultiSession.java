@@ -132,6 +132,25 @@ public class RemoteImhotepMultiSession extends AbstractImhotepMultiSession {
         return mergers;
     }
 
+    /**
+     * snapshots are written to each daemon's local disk, so a session opened from the returned snapshot
+     * must use the same assignment of shards to daemons
+     * @return the shards included in the snapshot
+     */
+    public List<String> exportSnapshot(final String snapshotId) {
+        final List<String>[] shardIds = new List[sessions.length];
+        executeRuntimeException(shardIds, new ThrowingFunction<ImhotepSession, List<String>>() {
+            public List<String> apply(final ImhotepSession session) throws Exception {
+                return ((ImhotepRemoteSession) session).exportSnapshot(snapshotId);
+            }
+        });
+        final List<String> ret = new ArrayList<String>();
+        for (final List<String> sessionShardIds : shardIds) {
+            ret.addAll(sessionShardIds);
+        }
+        return ret;
+    }
+
     @Override
     protected void postClose() {
         if (shutDownExecutorOnClose) {
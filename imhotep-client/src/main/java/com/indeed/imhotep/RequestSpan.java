@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.indeed.imhotep.protobuf.RequestSpanMessage;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What one request to a daemon cost: how long it took, the bytes it read and wrote, the docs it scanned, what it
+ * spilled to temp files and where the time went.
+ *
+ * The span of the request being served is attached to the thread doing the work, and code deep in a session
+ * charges it through the static methods, which do nothing on threads without a span. Work handed to other
+ * threads must {@link #attach} the span there too, or a {@link #child} if the work may outlive the request.
+ */
+public final class RequestSpan {
+    public enum Phase {
+        /** reading term doc lists, only timed when ImhotepLocalSession.logTiming is set */
+        POSTINGS,
+        /** looking up groups and stats of docs, only timed when ImhotepLocalSession.logTiming is set */
+        GROUP_LOOKUP,
+        /** writing temp files */
+        SPILL,
+        /** blocked writing the response to the socket */
+        NETWORK
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final ThreadLocal<RequestSpan> currentSpan = new ThreadLocal<RequestSpan>();
+
+    private final String requestType;
+    private final String sessionId;
+    private final long startTimeMillis;
+    private final long startNanos;
+
+    private final AtomicLong docsScanned = new AtomicLong();
+    private final AtomicLong spillBytes = new AtomicLong();
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(PHASES.length);
+
+    private volatile long durationNanos = -1;
+    private volatile boolean error;
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+
+    public RequestSpan(String requestType, @Nullable String sessionId) {
+        this.requestType = requestType;
+        this.sessionId = sessionId;
+        this.startTimeMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    // for spans read back from a daemon, which have already finished
+    private RequestSpan(String requestType, @Nullable String sessionId, long startTimeMillis) {
+        this.requestType = requestType;
+        this.sessionId = sessionId;
+        this.startTimeMillis = startTimeMillis;
+        this.startNanos = 0;
+    }
+
+    /**
+     * @return the span attached to the calling thread, or null
+     */
+    public static @Nullable RequestSpan current() {
+        return currentSpan.get();
+    }
+
+    /**
+     * attaches span to the calling thread
+     * @return the span that was attached before, to be attached again when the work is done
+     */
+    public static @Nullable RequestSpan attach(@Nullable RequestSpan span) {
+        final RequestSpan previous = currentSpan.get();
+        if (span == null) {
+            currentSpan.remove();
+        } else {
+            currentSpan.set(span);
+        }
+        return previous;
+    }
+
+    public static void addDocsScanned(long docs) {
+        final RequestSpan span = currentSpan.get();
+        if (span != null) {
+            span.docsScanned.addAndGet(docs);
+        }
+    }
+
+    public static void addSpillBytes(long bytes) {
+        final RequestSpan span = currentSpan.get();
+        if (span != null) {
+            span.spillBytes.addAndGet(bytes);
+        }
+    }
+
+    public static void addPhaseNanos(Phase phase, long nanos) {
+        final RequestSpan span = currentSpan.get();
+        if (span != null) {
+            span.phaseNanos.addAndGet(phase.ordinal(), nanos);
+        }
+    }
+
+    /**
+     * @return a span for work on behalf of this one that may still be running when this one finishes, to be
+     *         added to this one with {@link #merge} once the work is done
+     */
+    public RequestSpan child() {
+        return new RequestSpan(requestType, sessionId);
+    }
+
+    /**
+     * adds the docs, spilled bytes and phase times charged to a {@link #child} to this span
+     * @return false without adding anything if this span has already finished
+     */
+    public synchronized boolean merge(RequestSpan child) {
+        if (isFinished()) {
+            return false;
+        }
+        docsScanned.addAndGet(child.docsScanned.get());
+        spillBytes.addAndGet(child.spillBytes.get());
+        for (int i = 0; i < PHASES.length; i++) {
+            phaseNanos.addAndGet(i, child.phaseNanos.get(i));
+        }
+        return true;
+    }
+
+    /**
+     * records the end of the request, the span must not be charged anything after this
+     */
+    public synchronized void finish(long bytesIn, long bytesOut, long networkNanos, boolean error) {
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.error = error;
+        phaseNanos.addAndGet(Phase.NETWORK.ordinal(), networkNanos);
+        durationNanos = System.nanoTime() - startNanos;
+    }
+
+    public String getRequestType() {
+        return requestType;
+    }
+
+    public @Nullable String getSessionId() {
+        return sessionId;
+    }
+
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * @return the time from the start of the request to {@link #finish}, or to now if it has not finished yet
+     */
+    public long getDurationMicros() {
+        final long nanos = durationNanos;
+        return TimeUnit.NANOSECONDS.toMicros(nanos >= 0 ? nanos : System.nanoTime() - startNanos);
+    }
+
+    public boolean isFinished() {
+        return durationNanos >= 0;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getDocsScanned() {
+        return docsScanned.get();
+    }
+
+    public long getSpillBytes() {
+        return spillBytes.get();
+    }
+
+    public long getPhaseMicros(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMicros(phaseNanos.get(phase.ordinal()));
+    }
+
+    public RequestSpanMessage toProto() {
+        final RequestSpanMessage.Builder builder = RequestSpanMessage.newBuilder()
+                .setRequestType(requestType)
+                .setStartTimeMillis(startTimeMillis)
+                .setDurationMicros(getDurationMicros())
+                .setError(error)
+                .setBytesIn(bytesIn)
+                .setBytesOut(bytesOut)
+                .setDocsScanned(docsScanned.get())
+                .setSpillBytes(spillBytes.get());
+        if (sessionId != null) {
+            builder.setSessionId(sessionId);
+        }
+        for (final Phase phase : PHASES) {
+            builder.addPhaseMicros(getPhaseMicros(phase));
+        }
+        return builder.build();
+    }
+
+    public static RequestSpan fromProto(RequestSpanMessage protoSpan) {
+        final RequestSpan span = new RequestSpan(protoSpan.getRequestType(),
+                protoSpan.hasSessionId() ? protoSpan.getSessionId() : null, protoSpan.getStartTimeMillis());
+        span.durationNanos = TimeUnit.MICROSECONDS.toNanos(protoSpan.getDurationMicros());
+        span.error = protoSpan.getError();
+        span.bytesIn = protoSpan.getBytesIn();
+        span.bytesOut = protoSpan.getBytesOut();
+        span.docsScanned.set(protoSpan.getDocsScanned());
+        span.spillBytes.set(protoSpan.getSpillBytes());
+        for (int i = 0; i < Math.min(PHASES.length, protoSpan.getPhaseMicrosCount()); i++) {
+            span.phaseNanos.set(i, TimeUnit.MICROSECONDS.toNanos(protoSpan.getPhaseMicros(i)));
+        }
+        return span;
+    }
+
+    @Override
+    public String toString() {
+        return requestType + (sessionId != null ? " " + sessionId : "") + " " + getDurationMicros() + "us";
+    }
+}
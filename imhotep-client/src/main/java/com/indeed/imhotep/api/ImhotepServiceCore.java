@@ -13,10 +13,13 @@
  */
  package com.indeed.imhotep.api;
 
+import com.indeed.flamdex.writer.FlamdexDocument;
 import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.DistinctCountSketch;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
 import com.indeed.imhotep.ImhotepStatusDump;
+import com.indeed.imhotep.QuantileSketch;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.ShardInfo;
@@ -49,6 +52,9 @@ public interface ImhotepServiceCore {
     int handleMetricRegroup2D(String sessionId, int xStat, long xMin, long xMax, long xIntervalSize, int yStat, long yMin, long yMax, long yIntervalSize) throws ImhotepOutOfMemoryException;
     int handleMetricFilter(String sessionId, int stat, long min, long max, boolean negate) throws ImhotepOutOfMemoryException;
     List<TermCount> handleApproximateTopTerms(String sessionId, String field, boolean isIntField, int k);
+    DistinctCountSketch[] handleGetGroupDistinctSketches(String sessionId, String field, boolean isIntField, int precision) throws ImhotepOutOfMemoryException;
+    QuantileSketch[] handleGetGroupQuantiles(String sessionId, int stat, double accuracy) throws ImhotepOutOfMemoryException;
+    void handleReleaseGroupSketches(String sessionId);
     int handlePushStat(String sessionId, String metric) throws ImhotepOutOfMemoryException;
     int handlePopStat(String sessionId);
     void handleGetFTGSIterator(String sessionId, String[] intFields, String[] stringFields, OutputStream os) throws IOException;
@@ -71,14 +77,18 @@ public interface ImhotepServiceCore {
     void handleRebuildAndFilterIndexes(String sessionId, String[] intFields, String[] stringFields) throws ImhotepOutOfMemoryException;
     void handleResetGroups(String sessionId) throws ImhotepOutOfMemoryException;
     int handleGetNumGroups(String sessionId);
+    List<String> handleExportSnapshot(String sessionId, String snapshotId) throws IOException, ImhotepOutOfMemoryException;
 
     // open session methods return session id
     String handleOpenSession(String dataset, List<String> shardRequestList, String username, String ipAddress, int clientVersion, int mergeThreadLimit, boolean optimizeGroupZeroLookups, String sessionId, AtomicLong tempFileSizeBytesLeft) throws ImhotepOutOfMemoryException;
+    String handleOpenSession(String dataset, List<String> shardRequestList, String username, String ipAddress, int clientVersion, int mergeThreadLimit, boolean optimizeGroupZeroLookups, String sessionId, AtomicLong tempFileSizeBytesLeft, int priority) throws ImhotepOutOfMemoryException;
+    String handleOpenSessionFromSnapshot(String dataset, List<String> shardRequestList, String username, String ipAddress, int clientVersion, int mergeThreadLimit, boolean optimizeGroupZeroLookups, String sessionId, AtomicLong tempFileSizeBytesLeft, String snapshotId, int priority) throws ImhotepOutOfMemoryException, IOException;
 
     // non-session-based methods
     @Deprecated List<ShardInfo> handleGetShardList();
     List<DatasetInfo> handleGetDatasetList();
     ImhotepStatusDump handleGetStatusDump();
+    void handleAppendToLiveShard(String dataset, String shardId, List<FlamdexDocument> documents) throws IOException, ImhotepOutOfMemoryException;
 
     void close();
 }
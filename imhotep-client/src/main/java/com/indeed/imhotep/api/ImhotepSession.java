@@ -13,8 +13,10 @@
  */
  package com.indeed.imhotep.api;
 
+import com.indeed.imhotep.DistinctCountSketch;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.QuantileSketch;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
@@ -260,6 +262,31 @@ public interface ImhotepSession extends Closeable {
      */
     List<TermCount> approximateTopTerms(String field, boolean isIntField, int k);
 
+    /**
+     * Count the distinct terms of a field in each group without iterating over the terms on the client.
+     *
+     * Groups with few distinct terms are counted exactly, groups with more distinct terms than the
+     * precision allows to keep exactly are counted by a HyperLogLog estimate.
+     *
+     * @param field the field to count distinct terms for
+     * @param isIntField whether or not the field is an int field
+     * @param precision log2 of the number of HyperLogLog registers, between
+     *                  {@link DistinctCountSketch#MIN_PRECISION} and {@link DistinctCountSketch#MAX_PRECISION}
+     * @return a sketch for each group, indexed by group; entries for groups without documents may be null
+     * @throws ImhotepOutOfMemoryException if performing this operation would cause imhotep to run out of memory
+     */
+    DistinctCountSketch[] getGroupDistinctSketches(String field, boolean isIntField, int precision) throws ImhotepOutOfMemoryException;
+
+    /**
+     * Build a quantile sketch of a metric's per-document values for each group in a single pass over the documents.
+     *
+     * @param stat the index of the metric
+     * @param accuracy the relative accuracy of the returned quantiles, for example 0.01 for 1%
+     * @return a sketch for each group, indexed by group; entries for groups without documents may be null
+     * @throws ImhotepOutOfMemoryException if performing this operation would cause imhotep to run out of memory
+     */
+    QuantileSketch[] getGroupQuantiles(int stat, double accuracy) throws ImhotepOutOfMemoryException;
+
     /**
      * push the metric specified by statName
      * @param statName the metric to push
@@ -24,6 +24,7 @@ import com.google.common.primitives.Longs;
 import com.indeed.util.core.Pair;
 import com.indeed.imhotep.DatasetInfo;
 import com.indeed.imhotep.RemoteImhotepMultiSession;
+import com.indeed.imhotep.ImhotepPerformanceStats;
 import com.indeed.imhotep.ImhotepRemoteSession;
 import com.indeed.imhotep.ImhotepStatusDump;
 import com.indeed.imhotep.ShardInfo;
@@ -276,6 +277,7 @@ public class ImhotepClient implements Closeable {
 
         private Collection<String> requestedMetrics = Collections.emptyList();
         private int mergeThreadLimit = ImhotepRemoteSession.DEFAULT_MERGE_THREAD_LIMIT;
+        private int priority = 0;
         private String username;
         private boolean optimizeGroupZeroLookups = false;
         private int socketTimeout = -1;
@@ -284,6 +286,7 @@ public class ImhotepClient implements Closeable {
 
         private List<ShardIdWithVersion> chosenShards = null;
         private List<String> shardsOverride = null;
+        private String snapshotId = null;
 
         public SessionBuilder(final String dataset, final DateTime start, final DateTime end) {
             this.dataset = dataset;
@@ -300,8 +303,12 @@ public class ImhotepClient implements Closeable {
             this.mergeThreadLimit = mergeThreadLimit;
             return this;
         }
-        @Deprecated
+        /**
+         * Sessions with a higher priority get a larger share of the daemons while other sessions are running,
+         * from 0 (the default) to 9.
+         */
         public SessionBuilder priority(int priority) {
+            this.priority = priority;
             return this;
         }
         public SessionBuilder socketTimeout(int socketTimeout) {
@@ -332,6 +339,15 @@ public class ImhotepClient implements Closeable {
             return this;
         }
 
+        /**
+         * Restores the session from a snapshot written by {@link RemoteImhotepMultiSession#exportSnapshot}.
+         * Snapshots are stored on the daemons, so the shards must be served by the same daemons as when it was exported.
+         */
+        public SessionBuilder fromSnapshot(String snapshotId) {
+            this.snapshotId = snapshotId;
+            return this;
+        }
+
         /**
          * Returns shards that were selected for the time range requested in the constructor.
          * Shards in the list are sorted chronologically.
@@ -380,8 +396,8 @@ public class ImhotepClient implements Closeable {
                 username = ImhotepRemoteSession.getUsername();
             }
             List<String> chosenShardIDs = shardsOverride != null ? shardsOverride : ShardIdWithVersion.keepShardIds(getChosenShards());
-            return getSessionForShards(dataset, chosenShardIDs, requestedMetrics, mergeThreadLimit, username,
-                    optimizeGroupZeroLookups, socketTimeout, localTempFileSizeLimit, daemonTempFileSizeLimit);
+            return getSessionForShards(dataset, chosenShardIDs, requestedMetrics, mergeThreadLimit, priority, username,
+                    optimizeGroupZeroLookups, socketTimeout, localTempFileSizeLimit, daemonTempFileSizeLimit, snapshotId);
         }
 
     }
@@ -463,13 +479,14 @@ public class ImhotepClient implements Closeable {
                                      final int mergeThreadLimit, final int priority, final String username,
                                      final boolean optimizeGroupZeroLookups, final int socketTimeout) {
 
-        return getSessionForShards(dataset, requestedShards, requestedMetrics, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, -1, -1);
+        return getSessionForShards(dataset, requestedShards, requestedMetrics, mergeThreadLimit, priority, username, optimizeGroupZeroLookups, socketTimeout, -1, -1, null);
     }
 
     private ImhotepSession getSessionForShards(final String dataset, final Collection<String> requestedShards, final Collection<String> requestedMetrics,
-                                               final int mergeThreadLimit, final String username,
+                                               final int mergeThreadLimit, final int priority, final String username,
                                                final boolean optimizeGroupZeroLookups, final int socketTimeout,
-                                               long localTempFileSizeLimit, long daemonTempFileSizeLimit) {
+                                               long localTempFileSizeLimit, long daemonTempFileSizeLimit,
+                                               @Nullable String snapshotId) {
 
         if(requestedShards == null || requestedShards.size() == 0) {
             throw new IllegalArgumentException("No shards");
@@ -478,7 +495,7 @@ public class ImhotepClient implements Closeable {
         final AtomicLong localTempFileSizeBytesLeft = localTempFileSizeLimit > 0 ? new AtomicLong(localTempFileSizeLimit) : null;
         while (retries > 0) {
             final String sessionId = UUID.randomUUID().toString();
-            final ImhotepRemoteSession[] remoteSessions = internalGetSession(dataset, requestedShards, requestedMetrics, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId, daemonTempFileSizeLimit, localTempFileSizeBytesLeft);
+            final ImhotepRemoteSession[] remoteSessions = internalGetSession(dataset, requestedShards, requestedMetrics, mergeThreadLimit, priority, username, optimizeGroupZeroLookups, socketTimeout, sessionId, daemonTempFileSizeLimit, localTempFileSizeBytesLeft, snapshotId);
             if (remoteSessions == null) {
                 --retries;
                 if (retries > 0) {
@@ -621,7 +638,8 @@ public class ImhotepClient implements Closeable {
 
     // returns null on error
     private ImhotepRemoteSession[] internalGetSession(final String dataset, Collection<String> requestedShards, Collection<String> requestedMetrics, final int mergeThreadLimit,
-                                                      final String username, final boolean optimizeGroupZeroLookups, final int socketTimeout, @Nullable final String sessionId, final long tempFileSizeLimit, @Nullable final AtomicLong tempFileSizeBytesLeft) {
+                                                      final int priority, final String username, final boolean optimizeGroupZeroLookups, final int socketTimeout, @Nullable final String sessionId, final long tempFileSizeLimit, @Nullable final AtomicLong tempFileSizeBytesLeft,
+                                                      @Nullable final String snapshotId) {
 
         final Map<Host, List<String>> shardRequestMap = buildShardRequestMap(dataset, requestedShards, requestedMetrics);
 
@@ -640,7 +658,7 @@ public class ImhotepClient implements Closeable {
                 futures.add(executor.submit(new Callable<ImhotepRemoteSession>() {
                     @Override
                     public ImhotepRemoteSession call() throws Exception {
-                        return ImhotepRemoteSession.openSession(host.hostname, host.port, dataset, shardList, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId, tempFileSizeLimit, tempFileSizeBytesLeft);
+                        return ImhotepRemoteSession.openSession(host.hostname, host.port, dataset, shardList, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId, tempFileSizeLimit, tempFileSizeBytesLeft, snapshotId, priority);
                     }
                 }));
             }
@@ -799,6 +817,33 @@ public class ImhotepClient implements Closeable {
         return ret;
     }
 
+    public Map<Host, ImhotepPerformanceStats> getPerformanceStats() {
+        final List<Host> hosts = hostsSource.getHosts();
+
+        final Map<Host, Future<ImhotepPerformanceStats>> futures = Maps.newHashMap();
+        for (final Host host : hosts) {
+            final Future<ImhotepPerformanceStats> future = rpcExecutor.submit(new Callable<ImhotepPerformanceStats>() {
+                @Override
+                public ImhotepPerformanceStats call() throws Exception {
+                    return ImhotepRemoteSession.getPerformanceStats(host.hostname, host.port, null);
+                }
+            });
+            futures.put(host, future);
+        }
+
+        final Map<Host, ImhotepPerformanceStats> ret = new HashMap<Host, ImhotepPerformanceStats>();
+        for (final Host host : hosts) {
+            try {
+                ret.put(host, futures.get(host).get());
+            } catch (ExecutionException e) {
+                log.error("error getting performance stats from " + host, e);
+            } catch (InterruptedException e) {
+                log.error("error getting performance stats from " + host, e);
+            }
+        }
+        return ret;
+    }
+
     @Override
     public void close() throws IOException {
         rpcExecutor.shutdownNow();
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.indeed.imhotep.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to the underlying stream and the time spent blocked writing them. Meant to sit under a
+ * buffer so that the clock is only read once per buffer flush. Not thread safe.
+ */
+public final class MeteredOutputStream extends FilterOutputStream {
+    private long count = 0;
+    private long nanos = 0;
+
+    public MeteredOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        final long start = System.nanoTime();
+        out.write(b);
+        nanos += System.nanoTime() - start;
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final long start = System.nanoTime();
+        out.write(b, off, len);
+        nanos += System.nanoTime() - start;
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        final long start = System.nanoTime();
+        out.flush();
+        nanos += System.nanoTime() - start;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+}
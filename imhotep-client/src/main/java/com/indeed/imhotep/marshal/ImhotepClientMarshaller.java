@@ -18,19 +18,24 @@ import com.google.common.collect.Lists;
 import com.indeed.flamdex.query.BooleanOp;
 import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
+import com.indeed.flamdex.writer.FlamdexDocument;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
+import com.indeed.imhotep.protobuf.FlamdexDocumentMessage;
 import com.indeed.imhotep.protobuf.GroupMultiRemapMessage;
 import com.indeed.imhotep.protobuf.GroupRemapMessage;
+import com.indeed.imhotep.protobuf.IntFieldAndTerms;
 import com.indeed.imhotep.protobuf.Operator;
 import com.indeed.imhotep.protobuf.QueryMessage;
 import com.indeed.imhotep.protobuf.QueryRemapMessage;
 import com.indeed.imhotep.protobuf.RegroupConditionMessage;
+import com.indeed.imhotep.protobuf.StringFieldAndTerms;
 import com.indeed.imhotep.protobuf.TermCountMessage;
 import com.indeed.imhotep.protobuf.TermMessage;
+import it.unimi.dsi.fastutil.longs.LongList;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -148,4 +153,27 @@ public final class ImhotepClientMarshaller {
         }
         return ret;
     }
+
+    public static FlamdexDocumentMessage marshal(final FlamdexDocument document) {
+        final FlamdexDocumentMessage.Builder builder = FlamdexDocumentMessage.newBuilder();
+        for (final Map.Entry<String, LongList> entry : document.getIntFields().entrySet()) {
+            final IntFieldAndTerms.Builder field = IntFieldAndTerms.newBuilder().setField(entry.getKey());
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                field.addTerms(entry.getValue().getLong(i));
+            }
+            builder.addIntField(field);
+        }
+        for (final Map.Entry<String, List<String>> entry : document.getStringFields().entrySet()) {
+            builder.addStringField(StringFieldAndTerms.newBuilder().setField(entry.getKey()).addAllTerms(entry.getValue()));
+        }
+        return builder.build();
+    }
+
+    public static List<FlamdexDocumentMessage> marshalDocuments(final List<FlamdexDocument> documents) {
+        final List<FlamdexDocumentMessage> ret = Lists.newArrayListWithCapacity(documents.size());
+        for (final FlamdexDocument document : documents) {
+            ret.add(marshal(document));
+        }
+        return ret;
+    }
 }
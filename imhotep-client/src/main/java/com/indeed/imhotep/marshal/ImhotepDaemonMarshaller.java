@@ -18,19 +18,24 @@ import com.google.common.collect.Lists;
 import com.indeed.flamdex.query.BooleanOp;
 import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
+import com.indeed.flamdex.writer.FlamdexDocument;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
+import com.indeed.imhotep.protobuf.FlamdexDocumentMessage;
 import com.indeed.imhotep.protobuf.GroupMultiRemapMessage;
 import com.indeed.imhotep.protobuf.GroupRemapMessage;
+import com.indeed.imhotep.protobuf.IntFieldAndTerms;
 import com.indeed.imhotep.protobuf.Operator;
 import com.indeed.imhotep.protobuf.QueryMessage;
 import com.indeed.imhotep.protobuf.QueryRemapMessage;
 import com.indeed.imhotep.protobuf.RegroupConditionMessage;
+import com.indeed.imhotep.protobuf.StringFieldAndTerms;
 import com.indeed.imhotep.protobuf.TermCountMessage;
 import com.indeed.imhotep.protobuf.TermMessage;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -144,4 +149,23 @@ public final class ImhotepDaemonMarshaller {
         }
         return ret;
     }
+
+    public static FlamdexDocument marshal(final FlamdexDocumentMessage protoDocument) {
+        final FlamdexDocument ret = new FlamdexDocument();
+        for (final IntFieldAndTerms field : protoDocument.getIntFieldList()) {
+            ret.getIntFields().put(field.getField(), new LongArrayList(field.getTermsList()));
+        }
+        for (final StringFieldAndTerms field : protoDocument.getStringFieldList()) {
+            ret.getStringFields().put(field.getField(), new ArrayList<String>(field.getTermsList()));
+        }
+        return ret;
+    }
+
+    public static List<FlamdexDocument> marshalDocumentList(final List<FlamdexDocumentMessage> protoDocuments) {
+        final List<FlamdexDocument> ret = Lists.newArrayListWithCapacity(protoDocuments.size());
+        for (final FlamdexDocumentMessage protoDocument : protoDocuments) {
+            ret.add(marshal(protoDocument));
+        }
+        return ret;
+    }
 }
@@ -24,6 +24,7 @@ import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.api.StringValueLookup;
 import com.indeed.flamdex.fieldcache.FieldCacher;
+import com.indeed.flamdex.fieldcache.IntFieldCacher;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIterator;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIteratorImpl;
 
@@ -42,7 +43,7 @@ public abstract class AbstractFlamdexReader implements FlamdexReader {
     protected final int numDocs;
     private final boolean useMMapMetrics;
 
-    private final Map<String, FieldCacher> intFieldCachers;
+    private final Map<String, IntFieldCacher> intFieldCachers;
 
     protected AbstractFlamdexReader(String directory, int numDocs) {
         this(directory, numDocs, System.getProperty("flamdex.mmap.fieldcache") != null);
@@ -64,7 +65,7 @@ public abstract class AbstractFlamdexReader implements FlamdexReader {
 
     @Override
     public final IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
-        final FieldCacher fieldCacher = getMetricCacher(metric);
+        final IntFieldCacher fieldCacher = getMetricCacher(metric);
         final UnsortedIntTermDocIterator iterator = createUnsortedIntTermDocIterator(metric);
         try {
             return cacheField(iterator, metric, fieldCacher);
@@ -81,7 +82,7 @@ public abstract class AbstractFlamdexReader implements FlamdexReader {
         }
     }
 
-    private IntValueLookup cacheField(UnsortedIntTermDocIterator iterator, String metric, FieldCacher fieldCacher) {
+    private IntValueLookup cacheField(UnsortedIntTermDocIterator iterator, String metric, IntFieldCacher fieldCacher) {
         if (useMMapMetrics) {
             try {
                 return fieldCacher.newMMapFieldCache(iterator, numDocs, metric, directory);
@@ -96,14 +97,14 @@ public abstract class AbstractFlamdexReader implements FlamdexReader {
     public final long memoryRequired(String metric) {
         if (useMMapMetrics) return 0;
 
-        final FieldCacher fieldCacher = getMetricCacher(metric);
+        final IntFieldCacher fieldCacher = getMetricCacher(metric);
         return fieldCacher.memoryRequired(numDocs);
     }
 
-    private FieldCacher getMetricCacher(String metric) {
+    private IntFieldCacher getMetricCacher(String metric) {
         synchronized (intFieldCachers) {
             if (!intFieldCachers.containsKey(metric)) {
-                final FieldCacher cacher = FieldCacher.getCacherForField(metric, this);
+                final IntFieldCacher cacher = FieldCacher.getCompactCacherForField(metric, this);
                 intFieldCachers.put(metric, cacher);
             }
             return intFieldCachers.get(metric);
@@ -88,6 +88,11 @@ public final class MemoryFlamdex implements FlamdexReader, FlamdexWriter, Flamde
 
     private long memoryUsageEstimate = initialMemoryUsageEstimate();
 
+    // the last snapshot taken and the fields changed since, unchanged fields are shared with the next snapshot
+    private MemoryFlamdex lastSnapshot;
+    private final Set<String> modifiedIntFields = new HashSet<String>();
+    private final Set<String> modifiedStringFields = new HashSet<String>();
+
     @Override
     public Collection<String> getIntFields() {
         return intFields.keySet();
@@ -221,6 +226,7 @@ public final class MemoryFlamdex implements FlamdexReader, FlamdexWriter, Flamde
                 if (currentDocList != null && currentDocList.size() > 0) terms.put(term, currentDocList);
                 intFields.put(field, terms);
                 memoryUsageEstimate += usage(field, terms);
+                lastSnapshot = null;
             }
         };
     }
@@ -253,6 +259,7 @@ public final class MemoryFlamdex implements FlamdexReader, FlamdexWriter, Flamde
                 if (currentDocList != null && currentDocList.size() > 0) terms.put(term, currentDocList);
                 stringFields.put(field, terms);
                 memoryUsageEstimate += usage(field, terms);
+                lastSnapshot = null;
             }
         };
     }
@@ -266,6 +273,7 @@ public final class MemoryFlamdex implements FlamdexReader, FlamdexWriter, Flamde
                 intFields.put(intField, myIntTerms = new Long2ObjectRBTreeMap<IntArrayList>());
                 memoryUsageEstimate += TREE_MAP_ENTRY_USAGE + usage(intField) + INT_2_OBJECT_RB_TREE_MAP_USAGE;
             }
+            modifiedIntFields.add(intField);
             final LongSet seenIntTerms = new LongOpenHashSet();
             final LongList terms = docIntFields.get(intField);
             for (int i = 0; i < terms.size(); ++i) {
@@ -291,6 +299,7 @@ public final class MemoryFlamdex implements FlamdexReader, FlamdexWriter, Flamde
                 stringFields.put(stringField, myStringTerms = new TreeMap<String, IntArrayList>());
                 memoryUsageEstimate += TREE_MAP_ENTRY_USAGE + usage(stringField) + TREE_MAP_USAGE;
             }
+            modifiedStringFields.add(stringField);
             final Set<String> seenStringTerms = new HashSet<String>();
             final List<String> terms = docStringFields.get(stringField);
             for (final String term : terms) {
@@ -398,6 +407,7 @@ public final class MemoryFlamdex implements FlamdexReader, FlamdexWriter, Flamde
     }
 
     public void readFields(DataInput in) throws IOException {
+        lastSnapshot = null;
         numDocs = in.readInt();
 
         final int numIntFields = in.readInt();
@@ -787,6 +797,79 @@ public final class MemoryFlamdex implements FlamdexReader, FlamdexWriter, Flamde
         return ret;
     }
 
+    /**
+     * Returns a read-only point-in-time copy of this flamdex. Only the term maps of fields changed since the last
+     * snapshot are copied, the others are shared with it. Doc lists share their backing arrays with this flamdex,
+     * which is safe because {@link #addDocument} only appends past the end of a doc list or moves it to a new array.
+     * Must not be called concurrently with {@link #addDocument}.
+     */
+    public MemoryFlamdex snapshot() {
+        final MemoryFlamdex ret = new MemoryFlamdex();
+        ret.numDocs = numDocs;
+        ret.memoryUsageEstimate = memoryUsageEstimate;
+        for (final Map.Entry<String, Long2ObjectSortedMap<IntArrayList>> field : intFields.entrySet()) {
+            if (lastSnapshot != null && !modifiedIntFields.contains(field.getKey())) {
+                ret.intFields.put(field.getKey(), lastSnapshot.intFields.get(field.getKey()));
+                continue;
+            }
+            final Long2ObjectSortedMap<IntArrayList> terms = new Long2ObjectRBTreeMap<IntArrayList>();
+            for (final Long2ObjectMap.Entry<IntArrayList> term : field.getValue().long2ObjectEntrySet()) {
+                terms.put(term.getLongKey(), IntArrayList.wrap(term.getValue().elements(), term.getValue().size()));
+            }
+            ret.intFields.put(field.getKey(), terms);
+        }
+        for (final Map.Entry<String, SortedMap<String, IntArrayList>> field : stringFields.entrySet()) {
+            if (lastSnapshot != null && !modifiedStringFields.contains(field.getKey())) {
+                ret.stringFields.put(field.getKey(), lastSnapshot.stringFields.get(field.getKey()));
+                continue;
+            }
+            final SortedMap<String, IntArrayList> terms = new TreeMap<String, IntArrayList>();
+            for (final Map.Entry<String, IntArrayList> term : field.getValue().entrySet()) {
+                terms.put(term.getKey(), IntArrayList.wrap(term.getValue().elements(), term.getValue().size()));
+            }
+            ret.stringFields.put(field.getKey(), terms);
+        }
+        lastSnapshot = ret;
+        modifiedIntFields.clear();
+        modifiedStringFields.clear();
+        return ret;
+    }
+
+    /**
+     * @return an estimate of the memory held by the term maps of a {@link #snapshot}, on top of {@link #getMemoryUsageEstimate}
+     */
+    public long getSnapshotMemoryUsageEstimate() {
+        long size = initialMemoryUsageEstimate();
+        for (final Map.Entry<String, Long2ObjectSortedMap<IntArrayList>> field : intFields.entrySet()) {
+            size += TREE_MAP_ENTRY_USAGE + INT_2_OBJECT_RB_TREE_MAP_USAGE
+                    + field.getValue().size() * (INT_2_OBJECT_RB_TREE_MAP_ENTRY_USAGE + INT_ARRAY_LIST_USAGE);
+        }
+        for (final Map.Entry<String, SortedMap<String, IntArrayList>> field : stringFields.entrySet()) {
+            size += TREE_MAP_ENTRY_USAGE + TREE_MAP_USAGE
+                    + field.getValue().size() * (TREE_MAP_ENTRY_USAGE + INT_ARRAY_LIST_USAGE);
+        }
+        return size;
+    }
+
+    /**
+     * @return an estimate of what {@link #addDocument} adds to the memory usage for doc, assuming every term is new
+     * and including its share of a later {@link #snapshot}
+     */
+    public static long estimateMemoryUsage(FlamdexDocument doc) {
+        long size = 0;
+        for (final Map.Entry<String, LongList> field : doc.getIntFields().entrySet()) {
+            size += TREE_MAP_ENTRY_USAGE + usage(field.getKey()) + INT_2_OBJECT_RB_TREE_MAP_USAGE;
+            size += field.getValue().size() * (2 * (INT_2_OBJECT_RB_TREE_MAP_ENTRY_USAGE + INT_ARRAY_LIST_USAGE) + 8);
+        }
+        for (final Map.Entry<String, List<String>> field : doc.getStringFields().entrySet()) {
+            size += TREE_MAP_ENTRY_USAGE + usage(field.getKey()) + TREE_MAP_USAGE;
+            for (final String term : field.getValue()) {
+                size += usage(term) + 2 * (TREE_MAP_ENTRY_USAGE + INT_ARRAY_LIST_USAGE) + 8;
+            }
+        }
+        return size;
+    }
+
     private static int getPrefixLen(byte[] a, byte[] b, int n) {
         for (int i = 0; i < n; ++i) {
             if (a[i] != b[i]) return i;
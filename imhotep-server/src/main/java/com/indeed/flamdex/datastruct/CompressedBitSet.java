@@ -0,0 +1,708 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.datastruct;
+
+import java.util.Arrays;
+
+/**
+ * Bit set for sparse sets of doc ids.
+ *
+ * Docs are split into chunks of 65536 by the high 16 bits of the doc id. Chunks without any docs take no
+ * space, chunks with few docs keep a sorted array of the low 16 bits and chunks with more than 4096 docs
+ * switch to a 1024 word bitmap, so the set is never much larger than a {@link FastBitSet} of the same size.
+ */
+public final class CompressedBitSet {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_WORDS = CHUNK_SIZE >> 6;
+    // beyond this many values an array container is larger than a bitmap container
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final long CONTAINER_OVERHEAD = 40;
+
+    private final int size;
+
+    private char[] keys;
+    private Container[] containers;
+    private int numContainers;
+
+    // index of the container last used by set(), docs usually arrive in runs within a chunk
+    private int lastIndex = -1;
+
+    public CompressedBitSet(int size) {
+        this.size = size;
+        keys = new char[4];
+        containers = new Container[4];
+    }
+
+    /**
+     * @return an upper bound on the memory used by a set of the given size that never holds more than maxCardinality docs
+     */
+    public static long maxMemoryUsage(int size, long maxCardinality) {
+        final long numChunks = ((long) size + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        final long maxContainers = Math.min(numChunks, Math.max(maxCardinality, 0));
+        final long containerBytes = Math.min(numChunks * (8L * CHUNK_WORDS + CONTAINER_OVERHEAD),
+                                             4L * maxCardinality + maxContainers * CONTAINER_OVERHEAD);
+        // keys and container references grow by doubling
+        return 64 + 2 * 10 * Math.max(maxContainers, 4) + containerBytes;
+    }
+
+    /**
+     * @return true if a set of the given size holding at most maxCardinality docs should be a CompressedBitSet rather than a FastBitSet
+     */
+    public static boolean isSparse(int size, long maxCardinality) {
+        return 2 * maxMemoryUsage(size, maxCardinality) < FastBitSet.calculateMemoryUsage(size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return numContainers == 0;
+    }
+
+    public boolean get(final int i) {
+        final int index = indexOf((char) (i >>> CHUNK_BITS));
+        return index >= 0 && containers[index].contains((char) i);
+    }
+
+    public void set(final int i) {
+        final char key = (char) (i >>> CHUNK_BITS);
+        int index = lastIndex;
+        if (index < 0 || keys[index] != key) {
+            index = indexOf(key);
+            if (index < 0) {
+                index = -index - 1;
+                insertContainer(index, key, new ArrayContainer());
+            }
+            lastIndex = index;
+        }
+        containers[index] = containers[index].add((char) i);
+    }
+
+    public int cardinality() {
+        int ret = 0;
+        for (int i = 0; i < numContainers; i++) {
+            ret += containers[i].cardinality();
+        }
+        return ret;
+    }
+
+    public long memoryUsage() {
+        long ret = 64 + 2L * keys.length + 8L * containers.length;
+        for (int i = 0; i < numContainers; i++) {
+            ret += containers[i].memoryUsage();
+        }
+        return ret;
+    }
+
+    public void and(final CompressedBitSet other) {
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < numContainers; i++) {
+            while (j < other.numContainers && other.keys[j] < keys[i]) {
+                j++;
+            }
+            if (j < other.numContainers && other.keys[j] == keys[i]) {
+                final Container container = containers[i].and(other.containers[j]);
+                if (container.cardinality() > 0) {
+                    keys[n] = keys[i];
+                    containers[n++] = container;
+                }
+            }
+        }
+        truncate(n);
+    }
+
+    public void andNot(final CompressedBitSet other) {
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < numContainers; i++) {
+            while (j < other.numContainers && other.keys[j] < keys[i]) {
+                j++;
+            }
+            Container container = containers[i];
+            if (j < other.numContainers && other.keys[j] == keys[i]) {
+                container = container.andNot(other.containers[j]);
+            }
+            if (container.cardinality() > 0) {
+                keys[n] = keys[i];
+                containers[n++] = container;
+            }
+        }
+        truncate(n);
+    }
+
+    public void or(final CompressedBitSet other) {
+        final int capacity = numContainers + other.numContainers;
+        final char[] newKeys = new char[Math.max(capacity, 4)];
+        final Container[] newContainers = new Container[newKeys.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < numContainers || j < other.numContainers) {
+            if (j >= other.numContainers || (i < numContainers && keys[i] < other.keys[j])) {
+                newKeys[n] = keys[i];
+                newContainers[n++] = containers[i++];
+            } else if (i >= numContainers || other.keys[j] < keys[i]) {
+                newKeys[n] = other.keys[j];
+                newContainers[n++] = other.containers[j++].copy();
+            } else {
+                newKeys[n] = keys[i];
+                newContainers[n++] = containers[i++].or(other.containers[j++]);
+            }
+        }
+        keys = newKeys;
+        containers = newContainers;
+        numContainers = n;
+        lastIndex = -1;
+    }
+
+    public void and(final FastBitSet other) {
+        final long[] bits = other.bits;
+        int n = 0;
+        for (int i = 0; i < numContainers; i++) {
+            final int offset = keys[i] * CHUNK_WORDS;
+            if (offset >= bits.length) {
+                break;
+            }
+            final Container container = containers[i].andWords(bits, offset, Math.min(bits.length, offset + CHUNK_WORDS));
+            if (container.cardinality() > 0) {
+                keys[n] = keys[i];
+                containers[n++] = container;
+            }
+        }
+        truncate(n);
+    }
+
+    public void or(final FastBitSet other) {
+        final long[] bits = other.bits;
+        final int numChunks = (int) (((long) size + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+        for (int key = 0; key < numChunks; key++) {
+            final int offset = key * CHUNK_WORDS;
+            if (offset >= bits.length) {
+                break;
+            }
+            final int end = Math.min(bits.length, offset + CHUNK_WORDS);
+            boolean empty = true;
+            for (int w = offset; w < end; w++) {
+                if (bits[w] != 0) {
+                    empty = false;
+                    break;
+                }
+            }
+            if (empty) {
+                continue;
+            }
+            final BitmapContainer chunk = new BitmapContainer();
+            System.arraycopy(bits, offset, chunk.words, 0, end - offset);
+            chunk.clearFrom(chunkSize(key));
+            final int index = indexOf((char) key);
+            if (index >= 0) {
+                containers[index] = ((BitmapContainer) chunk.or(containers[index])).optimize();
+            } else if (chunk.cardinality > 0) {
+                insertContainer(-index - 1, (char) key, chunk.optimize());
+            }
+        }
+    }
+
+    /**
+     * inverts every doc between 0 and size
+     */
+    public void invertAll() {
+        final int numChunks = (int) (((long) size + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+        final char[] newKeys = new char[Math.max(numChunks, 4)];
+        final Container[] newContainers = new Container[newKeys.length];
+        int n = 0;
+        int i = 0;
+        for (int key = 0; key < numChunks; key++) {
+            final Container inverted;
+            if (i < numContainers && keys[i] == key) {
+                inverted = containers[i++].invert(chunkSize(key));
+            } else {
+                final BitmapContainer full = new BitmapContainer();
+                full.setRange(chunkSize(key));
+                inverted = full.optimize();
+            }
+            if (inverted.cardinality() > 0) {
+                newKeys[n] = (char) key;
+                newContainers[n++] = inverted;
+            }
+        }
+        keys = newKeys;
+        containers = newContainers;
+        numContainers = n;
+        lastIndex = -1;
+    }
+
+    void andInto(final long[] bits) {
+        int word = 0;
+        for (int i = 0; i < numContainers; i++) {
+            final int offset = keys[i] * CHUNK_WORDS;
+            if (offset >= bits.length) {
+                break;
+            }
+            Arrays.fill(bits, word, offset, 0L);
+            final int end = Math.min(bits.length, offset + CHUNK_WORDS);
+            containers[i].andInto(bits, offset, end);
+            word = end;
+        }
+        Arrays.fill(bits, word, bits.length, 0L);
+    }
+
+    void orInto(final long[] bits) {
+        for (int i = 0; i < numContainers; i++) {
+            final int offset = keys[i] * CHUNK_WORDS;
+            if (offset >= bits.length) {
+                break;
+            }
+            containers[i].orInto(bits, offset, Math.min(bits.length, offset + CHUNK_WORDS));
+        }
+    }
+
+    void andNotInto(final long[] bits) {
+        for (int i = 0; i < numContainers; i++) {
+            final int offset = keys[i] * CHUNK_WORDS;
+            if (offset >= bits.length) {
+                break;
+            }
+            containers[i].andNotInto(bits, offset, Math.min(bits.length, offset + CHUNK_WORDS));
+        }
+    }
+
+    private int chunkSize(int key) {
+        return (int) Math.min(CHUNK_SIZE, (long) size - ((long) key << CHUNK_BITS));
+    }
+
+    private int indexOf(final char key) {
+        if (numContainers == 0 || keys[numContainers - 1] < key) {
+            return -numContainers - 1;
+        }
+        return Arrays.binarySearch(keys, 0, numContainers, key);
+    }
+
+    private void insertContainer(final int index, final char key, final Container container) {
+        if (numContainers == keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+            containers = Arrays.copyOf(containers, containers.length * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, numContainers - index);
+        System.arraycopy(containers, index, containers, index + 1, numContainers - index);
+        keys[index] = key;
+        containers[index] = container;
+        numContainers++;
+        lastIndex = -1;
+    }
+
+    private void truncate(final int n) {
+        Arrays.fill(containers, n, numContainers, null);
+        numContainers = n;
+        lastIndex = -1;
+    }
+
+    /*
+     * Operations may modify and return this container or return a new one, but never modify their argument.
+     */
+    private static abstract class Container {
+        abstract Container add(char value);
+
+        abstract boolean contains(char value);
+
+        abstract int cardinality();
+
+        abstract long memoryUsage();
+
+        abstract Container copy();
+
+        abstract Container and(Container other);
+
+        abstract Container andNot(Container other);
+
+        abstract Container or(Container other);
+
+        // keeps the values whose bits are set in bits[offset, end)
+        abstract Container andWords(long[] bits, int offset, int end);
+
+        // inverts the values from 0 to chunkSize
+        abstract Container invert(int chunkSize);
+
+        abstract void andInto(long[] bits, int offset, int end);
+
+        abstract void orInto(long[] bits, int offset, int end);
+
+        abstract void andNotInto(long[] bits, int offset, int end);
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            values = new char[4];
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(final char value) {
+            int index = cardinality;
+            if (cardinality > 0 && values[cardinality - 1] >= value) {
+                index = Arrays.binarySearch(values, 0, cardinality, value);
+                if (index >= 0) {
+                    return this;
+                }
+                index = -index - 1;
+            }
+            if (cardinality == MAX_ARRAY_SIZE) {
+                return toBitmap().add(value);
+            }
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, Math.max(4, values.length * 2)));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        boolean contains(final char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        long memoryUsage() {
+            return CONTAINER_OVERHEAD + 2L * values.length;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(4, cardinality)), cardinality);
+        }
+
+        @Override
+        Container and(final Container other) {
+            if (other instanceof BitmapContainer) {
+                final BitmapContainer bitmap = (BitmapContainer) other;
+                int n = 0;
+                for (int i = 0; i < cardinality; i++) {
+                    if (bitmap.contains(values[i])) {
+                        values[n++] = values[i];
+                    }
+                }
+                cardinality = n;
+                return this;
+            }
+            final ArrayContainer array = (ArrayContainer) other;
+            int n = 0;
+            int j = 0;
+            for (int i = 0; i < cardinality && j < array.cardinality; i++) {
+                while (j < array.cardinality && array.values[j] < values[i]) {
+                    j++;
+                }
+                if (j < array.cardinality && array.values[j] == values[i]) {
+                    values[n++] = values[i];
+                }
+            }
+            cardinality = n;
+            return this;
+        }
+
+        @Override
+        Container andNot(final Container other) {
+            int n = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (!other.contains(values[i])) {
+                    values[n++] = values[i];
+                }
+            }
+            cardinality = n;
+            return this;
+        }
+
+        @Override
+        Container or(final Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.copy().or(this);
+            }
+            final ArrayContainer array = (ArrayContainer) other;
+            if (cardinality + array.cardinality > MAX_ARRAY_SIZE) {
+                return ((BitmapContainer) toBitmap().or(other)).optimize();
+            }
+            final char[] merged = new char[Math.max(4, cardinality + array.cardinality)];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < cardinality || j < array.cardinality) {
+                if (j >= array.cardinality || (i < cardinality && values[i] < array.values[j])) {
+                    merged[n++] = values[i++];
+                } else if (i >= cardinality || array.values[j] < values[i]) {
+                    merged[n++] = array.values[j++];
+                } else {
+                    merged[n++] = values[i++];
+                    j++;
+                }
+            }
+            values = merged;
+            cardinality = n;
+            return this;
+        }
+
+        @Override
+        Container andWords(final long[] bits, final int offset, final int end) {
+            int n = 0;
+            for (int i = 0; i < cardinality; i++) {
+                final int word = offset + (values[i] >>> 6);
+                if (word < end && (bits[word] & (1L << values[i])) != 0) {
+                    values[n++] = values[i];
+                }
+            }
+            cardinality = n;
+            return this;
+        }
+
+        @Override
+        Container invert(final int chunkSize) {
+            final BitmapContainer bitmap = new BitmapContainer();
+            bitmap.setRange(chunkSize);
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.words[values[i] >>> 6] &= ~(1L << values[i]);
+            }
+            bitmap.cardinality = chunkSize - cardinality;
+            return bitmap.optimize();
+        }
+
+        @Override
+        void andInto(final long[] bits, final int offset, final int end) {
+            int i = 0;
+            for (int word = 0; word < end - offset; word++) {
+                long mask = 0;
+                while (i < cardinality && (values[i] >>> 6) == word) {
+                    mask |= 1L << values[i];
+                    i++;
+                }
+                bits[offset + word] &= mask;
+            }
+        }
+
+        @Override
+        void orInto(final long[] bits, final int offset, final int end) {
+            for (int i = 0; i < cardinality; i++) {
+                final int word = offset + (values[i] >>> 6);
+                if (word < end) {
+                    bits[word] |= 1L << values[i];
+                }
+            }
+        }
+
+        @Override
+        void andNotInto(final long[] bits, final int offset, final int end) {
+            for (int i = 0; i < cardinality; i++) {
+                final int word = offset + (values[i] >>> 6);
+                if (word < end) {
+                    bits[word] &= ~(1L << values[i]);
+                }
+            }
+        }
+
+        private BitmapContainer toBitmap() {
+            final BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.words[values[i] >>> 6] |= 1L << values[i];
+            }
+            bitmap.cardinality = cardinality;
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words = new long[CHUNK_WORDS];
+        private int cardinality;
+
+        @Override
+        Container add(final char value) {
+            final long bit = 1L << value;
+            final int word = value >>> 6;
+            if ((words[word] & bit) == 0) {
+                words[word] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(final char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        long memoryUsage() {
+            return CONTAINER_OVERHEAD + 8L * CHUNK_WORDS;
+        }
+
+        @Override
+        Container copy() {
+            final BitmapContainer ret = new BitmapContainer();
+            System.arraycopy(words, 0, ret.words, 0, CHUNK_WORDS);
+            ret.cardinality = cardinality;
+            return ret;
+        }
+
+        @Override
+        Container and(final Container other) {
+            if (other instanceof ArrayContainer) {
+                final ArrayContainer array = (ArrayContainer) other;
+                final char[] values = new char[Math.max(4, Math.min(cardinality, array.cardinality))];
+                int n = 0;
+                for (int i = 0; i < array.cardinality && n < values.length; i++) {
+                    if (contains(array.values[i])) {
+                        values[n++] = array.values[i];
+                    }
+                }
+                return new ArrayContainer(values, n);
+            }
+            final long[] otherWords = ((BitmapContainer) other).words;
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                words[i] &= otherWords[i];
+            }
+            return recount().optimize();
+        }
+
+        @Override
+        Container andNot(final Container other) {
+            if (other instanceof ArrayContainer) {
+                final ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++) {
+                    words[array.values[i] >>> 6] &= ~(1L << array.values[i]);
+                }
+            } else {
+                final long[] otherWords = ((BitmapContainer) other).words;
+                for (int i = 0; i < CHUNK_WORDS; i++) {
+                    words[i] &= ~otherWords[i];
+                }
+            }
+            return recount().optimize();
+        }
+
+        @Override
+        Container or(final Container other) {
+            if (other instanceof ArrayContainer) {
+                final ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++) {
+                    add(array.values[i]);
+                }
+                return this;
+            }
+            final long[] otherWords = ((BitmapContainer) other).words;
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                words[i] |= otherWords[i];
+            }
+            return recount();
+        }
+
+        @Override
+        Container andWords(final long[] bits, final int offset, final int end) {
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                words[i] &= offset + i < end ? bits[offset + i] : 0L;
+            }
+            return recount().optimize();
+        }
+
+        @Override
+        Container invert(final int chunkSize) {
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                words[i] = ~words[i];
+            }
+            clearFrom(chunkSize);
+            return optimize();
+        }
+
+        @Override
+        void andInto(final long[] bits, final int offset, final int end) {
+            for (int i = offset; i < end; i++) {
+                bits[i] &= words[i - offset];
+            }
+        }
+
+        @Override
+        void orInto(final long[] bits, final int offset, final int end) {
+            for (int i = offset; i < end; i++) {
+                bits[i] |= words[i - offset];
+            }
+        }
+
+        @Override
+        void andNotInto(final long[] bits, final int offset, final int end) {
+            for (int i = offset; i < end; i++) {
+                bits[i] &= ~words[i - offset];
+            }
+        }
+
+        void setRange(final int end) {
+            Arrays.fill(words, 0, end >>> 6, -1L);
+            if ((end & 0x3F) != 0) {
+                words[end >>> 6] = ~(-1L << end);
+            }
+            cardinality = end;
+        }
+
+        // clears every value at or above start and recounts
+        void clearFrom(final int start) {
+            if (start < CHUNK_SIZE) {
+                final int word = start >>> 6;
+                words[word] &= ~(-1L << start);
+                Arrays.fill(words, word + 1, CHUNK_WORDS, 0L);
+            }
+            recount();
+        }
+
+        private BitmapContainer recount() {
+            int count = 0;
+            for (final long word : words) {
+                count += Long.bitCount(word);
+            }
+            cardinality = count;
+            return this;
+        }
+
+        private Container optimize() {
+            if (cardinality > MAX_ARRAY_SIZE) {
+                return this;
+            }
+            final char[] values = new char[Math.max(4, cardinality)];
+            int n = 0;
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, n);
+        }
+    }
+}
@@ -20,7 +20,8 @@ import java.util.Arrays;
  */
 public final class FastBitSet {
     private final int size;
-    private final long[] bits;
+    // package-private for CompressedBitSet
+    final long[] bits;
 
     public FastBitSet(int size) {
         this.size = size;
@@ -95,6 +96,21 @@ public final class FastBitSet {
             bits[i] |= other.bits[i];
     }
 
+    public final void and(final CompressedBitSet other) {
+        other.andInto(bits);
+    }
+
+    public final void or(final CompressedBitSet other) {
+        other.orInto(bits);
+    }
+
+    /**
+     * clears every bit that is set in other
+     */
+    public final void andNot(final CompressedBitSet other) {
+        other.andNotInto(bits);
+    }
+
     public final void nand(final FastBitSet other) {
         final int end = Math.min(other.bits.length, bits.length);
         for (int i = 0; i < end; ++i)
@@ -20,5 +20,10 @@ import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
  */
 public interface FastBitSetPooler {
     FastBitSet create(int size) throws FlamdexOutOfMemoryException;
+
+    /**
+     * reserves {@link CompressedBitSet#maxMemoryUsage}(size, maxCardinality) bytes, which must be released when done
+     */
+    CompressedBitSet createCompressed(int size, long maxCardinality) throws FlamdexOutOfMemoryException;
     void release(long bytes);
 }
@@ -24,6 +24,11 @@ public class MockFastBitSetPooler implements FastBitSetPooler {
         return new FastBitSet(size);
     }
 
+    @Override
+    public CompressedBitSet createCompressed(int size, long maxCardinality) throws FlamdexOutOfMemoryException {
+        return new CompressedBitSet(size);
+    }
+
     @Override
     public void release(long bytes) {
     }
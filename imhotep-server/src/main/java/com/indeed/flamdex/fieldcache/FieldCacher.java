@@ -48,7 +48,7 @@ import java.util.UUID;
 /**
  * @author jsgroth
  */
-public enum FieldCacher {
+public enum FieldCacher implements IntFieldCacher {
     LONG {
         @Override
         public long memoryRequired(int numDocs) {
@@ -342,10 +342,41 @@ public enum FieldCacher {
     abstract String getMMapFileName(String field);
 
     public static FieldCacher getCacherForField(String field, FlamdexReader r) {
+        final long[] minMaxTerm = FlamdexUtils.getMinMaxTerm(field, r);
+        return getCacherForRange(minMaxTerm[0], minMaxTerm[1]);
+    }
+
+    /**
+     * Like {@link #getCacherForField} but returns a {@link PackedFieldCacher} when packing the field relative to its
+     * min term saves at least a quarter of the memory of the narrowest fixed width cache, e.g. for unixtimes or ids,
+     * and a {@link SortedColumnFieldCacher} when the field is sorted or nearly sorted by doc id and its runs save a
+     * quarter again.
+     */
+    public static IntFieldCacher getCompactCacherForField(String field, FlamdexReader r) {
         final long[] minMaxTerm = FlamdexUtils.getMinMaxTerm(field, r);
         final long minTermVal = minMaxTerm[0];
         final long maxTermVal = minMaxTerm[1];
+        final int numDocs = r.getNumDocs();
+        final FieldCacher fixed = getCacherForRange(minTermVal, maxTermVal);
+        IntFieldCacher best = fixed;
+        if (PackedFieldCacher.bitsPerValue(minTermVal, maxTermVal) < 64) {
+            final PackedFieldCacher packed = new PackedFieldCacher(minTermVal, maxTermVal);
+            if (packed.memoryRequired(numDocs) * 4 <= fixed.memoryRequired(numDocs) * 3) {
+                best = packed;
+            }
+        }
+        // a sorted column takes at least a byte per doc
+        final long bestMemory = best.memoryRequired(numDocs);
+        if (bestMemory > numDocs) {
+            final SortedColumnFieldCacher sorted = SortedColumnFieldCacher.forField(field, r, bestMemory * 3 / 4);
+            if (sorted != null) {
+                return sorted;
+            }
+        }
+        return best;
+    }
 
+    private static FieldCacher getCacherForRange(long minTermVal, long maxTermVal) {
         if (minTermVal >= 0 && maxTermVal <= 1) {
             return BITSET;
         } else if (minTermVal >= 0 && maxTermVal <= 255) {
@@ -369,7 +400,7 @@ public enum FieldCacher {
         }
     }
 
-    private static <T extends Closeable> T cacheToFileAtomically(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory, File cacheFile, CacheToFileOperation<T> op) throws IOException {
+    static <T extends Closeable> T cacheToFileAtomically(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory, File cacheFile, CacheToFileOperation<T> op) throws IOException {
         final File tmp = new File(directory, "fld-" + field + ".intcache." + UUID.randomUUID());
         final T ret;
         try {
@@ -389,7 +420,7 @@ public enum FieldCacher {
         return ret;
     }
 
-    private static interface CacheToFileOperation<T> {
+    static interface CacheToFileOperation<T> {
         T execute(UnsortedIntTermDocIterator iterator, int numDocs, File f) throws IOException;
     }
 }
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.IntValueLookup;
+
+import java.io.IOException;
+
+/**
+ * Caches an int field as an {@link IntValueLookup}, either on the heap or in a memory mapped file in the index
+ * directory.
+ */
+public interface IntFieldCacher {
+    long memoryRequired(int numDocs);
+
+    IntValueLookup newFieldCache(UnsortedIntTermDocIterator iterator, int numDocs);
+
+    IntValueLookup newMMapFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory) throws IOException;
+}
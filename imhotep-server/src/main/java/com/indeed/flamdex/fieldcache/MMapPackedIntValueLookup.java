@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.util.mmap.LongArray;
+import com.indeed.util.mmap.MMapBuffer;
+import org.apache.log4j.Logger;
+
+/**
+ * Values packed by {@link PackedFieldCacher} in a memory mapped file, whose header holds the min and max term and
+ * the number of bits per value.
+ */
+public final class MMapPackedIntValueLookup implements IntValueLookup {
+    private static final Logger LOG = Logger.getLogger(MMapPackedIntValueLookup.class);
+
+    private final MMapBuffer buffer;
+    private final LongArray longArray;
+    private final int bitsPerValue;
+    private final long mask;
+    private final long base;
+    private final long min;
+    private final long max;
+
+    public MMapPackedIntValueLookup(MMapBuffer buffer, int numDocs) {
+        this.buffer = buffer;
+        final LongArray header = buffer.memory().longArray(0, PackedFieldCacher.HEADER_LONGS);
+        final long minTerm = header.get(0);
+        final long maxTerm = header.get(1);
+        bitsPerValue = (int) header.get(2);
+        longArray = buffer.memory().longArray(0, PackedFieldCacher.HEADER_LONGS + PackedFieldCacher.numWords(numDocs, bitsPerValue));
+        mask = PackedFieldCacher.mask(bitsPerValue);
+        base = minTerm - 1;
+        // docs without a term are 0
+        min = Math.min(minTerm, 0);
+        max = Math.max(maxTerm, 0);
+    }
+
+    @Override
+    public long getMin() {
+        return min;
+    }
+
+    @Override
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public void lookup(int[] docIds, long[] values, int n) {
+        final int bitsPerValue = this.bitsPerValue;
+        for (int i = 0; i < n; ++i) {
+            final long bitIndex = (long) docIds[i] * bitsPerValue;
+            final long word = PackedFieldCacher.HEADER_LONGS + (bitIndex >>> 6);
+            final int shift = (int) bitIndex & 63;
+            long code = longArray.get(word) >>> shift;
+            if (shift + bitsPerValue > 64) {
+                code |= longArray.get(word + 1) << (64 - shift);
+            }
+            code &= mask;
+            values[i] = code == 0 ? 0 : base + code;
+        }
+    }
+
+    @Override
+    public long memoryUsed() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        Closeables2.closeQuietly(buffer, LOG);
+    }
+}
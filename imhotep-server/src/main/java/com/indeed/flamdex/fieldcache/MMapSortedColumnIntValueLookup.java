@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.util.mmap.ByteArray;
+import com.indeed.util.mmap.IntArray;
+import com.indeed.util.mmap.LongArray;
+import com.indeed.util.mmap.MMapBuffer;
+import org.apache.log4j.Logger;
+
+/**
+ * {@link SortedColumnIntValueLookup} in a memory mapped file written by {@link SortedColumnFieldCacher}: a header with
+ * the number of runs, min and max, then the run offsets, the run start docs and a delta byte per doc.
+ */
+public final class MMapSortedColumnIntValueLookup implements IntValueLookup {
+    private static final Logger LOG = Logger.getLogger(MMapSortedColumnIntValueLookup.class);
+
+    private final MMapBuffer buffer;
+    private final LongArray runOffsets;
+    private final IntArray runStartDocs;
+    private final ByteArray deltas;
+    private final int numRuns;
+    private final long min;
+    private final long max;
+
+    public MMapSortedColumnIntValueLookup(MMapBuffer buffer, int numDocs) {
+        this.buffer = buffer;
+        final LongArray header = buffer.memory().longArray(0, SortedColumnFieldCacher.HEADER_LONGS);
+        numRuns = (int) header.get(0);
+        min = header.get(1);
+        max = header.get(2);
+        final long runOffsetsStart = 8L * SortedColumnFieldCacher.HEADER_LONGS;
+        final long runStartDocsStart = runOffsetsStart + 8L * numRuns;
+        final long deltasStart = runStartDocsStart + 4L * numRuns;
+        runOffsets = buffer.memory().longArray(runOffsetsStart, numRuns);
+        runStartDocs = buffer.memory().intArray(runStartDocsStart, numRuns);
+        deltas = buffer.memory().byteArray(deltasStart, numDocs);
+    }
+
+    @Override
+    public long getMin() {
+        return min;
+    }
+
+    @Override
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public void lookup(int[] docIds, long[] values, int n) {
+        if (n <= 0) {
+            return;
+        }
+        final int lastRun = numRuns - 1;
+
+        int run = findRun(docIds[0]);
+        int runStart = runStartDocs.get(run);
+        int nextRunStart = run < lastRun ? runStartDocs.get(run + 1) : Integer.MAX_VALUE;
+        long runOffset = runOffsets.get(run);
+        for (int i = 0; i < n; ++i) {
+            final int doc = docIds[i];
+            if (doc >= nextRunStart) {
+                run = advanceRun(run + 1, doc);
+                runStart = runStartDocs.get(run);
+                nextRunStart = run < lastRun ? runStartDocs.get(run + 1) : Integer.MAX_VALUE;
+                runOffset = runOffsets.get(run);
+            } else if (doc < runStart) {
+                run = findRun(doc);
+                runStart = runStartDocs.get(run);
+                nextRunStart = run < lastRun ? runStartDocs.get(run + 1) : Integer.MAX_VALUE;
+                runOffset = runOffsets.get(run);
+            }
+            values[i] = runOffset + deltas.get(doc);
+        }
+    }
+
+    // same as SortedColumnIntValueLookup.advanceRun
+    private int advanceRun(int run, int docId) {
+        final int lastRun = numRuns - 1;
+        for (int i = 0; i < SortedColumnIntValueLookup.LINEAR_RUNS; ++i) {
+            if (run == lastRun || runStartDocs.get(run + 1) > docId) {
+                return run;
+            }
+            ++run;
+        }
+        int lo = run;
+        int step = 1;
+        int hi;
+        while (true) {
+            final int next = lastRun - lo < step ? lastRun + 1 : lo + step;
+            if (next > lastRun || runStartDocs.get(next) > docId) {
+                hi = next - 1;
+                break;
+            }
+            lo = next;
+            step <<= 1;
+        }
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (runStartDocs.get(mid) <= docId) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private int findRun(int docId) {
+        int lo = 0;
+        int hi = numRuns - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (runStartDocs.get(mid) <= docId) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public long memoryUsed() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        Closeables2.closeQuietly(buffer, LOG);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.util.mmap.LongArray;
+import com.indeed.util.mmap.MMapBuffer;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Caches an int field whose terms span a narrow range as frame of reference bit packed values: each doc gets
+ * term - min + 1 in just enough bits for the range of the field, and 0 if it has no term, so that a unixtime or an id
+ * field far from zero does not need a long[] or an int[].
+ */
+public final class PackedFieldCacher implements IntFieldCacher {
+    private static final Logger log = Logger.getLogger(PackedFieldCacher.class);
+
+    // min term, max term and bits per value
+    static final int HEADER_LONGS = 3;
+
+    private static final int BUFFER_SIZE = 32;
+
+    private final long minTerm;
+    private final long maxTerm;
+    private final int bitsPerValue;
+
+    /**
+     * @throws IllegalArgumentException if the range does not fit in 63 bits
+     */
+    public PackedFieldCacher(long minTerm, long maxTerm) {
+        if (maxTerm < minTerm || maxTerm - minTerm < 0 || maxTerm - minTerm == Long.MAX_VALUE) {
+            throw new IllegalArgumentException("cannot pack terms from " + minTerm + " to " + maxTerm);
+        }
+        this.minTerm = minTerm;
+        this.maxTerm = maxTerm;
+        bitsPerValue = bitsPerValue(minTerm, maxTerm);
+    }
+
+    /**
+     * @return the bits needed to pack terms from minTerm to maxTerm, or 64 if the range is too wide to pack
+     */
+    static int bitsPerValue(long minTerm, long maxTerm) {
+        final long range = maxTerm - minTerm;
+        if (maxTerm < minTerm || range < 0 || range == Long.MAX_VALUE) {
+            return 64;
+        }
+        // codes go up to range + 1, 0 is kept for docs without a term
+        return 64 - Long.numberOfLeadingZeros(range + 1);
+    }
+
+    static long numWords(int numDocs, int bitsPerValue) {
+        return ((long) numDocs * bitsPerValue + 63) >>> 6;
+    }
+
+    static long mask(int bitsPerValue) {
+        return bitsPerValue == 64 ? -1L : (1L << bitsPerValue) - 1;
+    }
+
+    public int getBitsPerValue() {
+        return bitsPerValue;
+    }
+
+    public long getMinTerm() {
+        return minTerm;
+    }
+
+    public long getMaxTerm() {
+        return maxTerm;
+    }
+
+    @Override
+    public long memoryRequired(int numDocs) {
+        return 8L * numWords(numDocs, bitsPerValue);
+    }
+
+    @Override
+    public IntValueLookup newFieldCache(UnsortedIntTermDocIterator iterator, int numDocs) {
+        final long numWords = numWords(numDocs, bitsPerValue);
+        if (numWords > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many docs to pack in a long[]: " + numDocs);
+        }
+        final long[] words = new long[(int) numWords];
+        final long mask = mask(bitsPerValue);
+        final int[] docIdBuf = new int[BUFFER_SIZE];
+        while (iterator.nextTerm()) {
+            final long code = iterator.term() - minTerm + 1;
+            while (true) {
+                final int n = iterator.nextDocs(docIdBuf);
+                for (int i = 0; i < n; ++i) {
+                    final long bitIndex = (long) docIdBuf[i] * bitsPerValue;
+                    final int word = (int) (bitIndex >>> 6);
+                    final int shift = (int) bitIndex & 63;
+                    // a doc may have been set by an earlier term, the last term wins as in the other caches
+                    words[word] = (words[word] & ~(mask << shift)) | (code << shift);
+                    if (shift + bitsPerValue > 64) {
+                        words[word + 1] = (words[word + 1] & ~(mask >>> (64 - shift))) | (code >>> (64 - shift));
+                    }
+                }
+                if (n < docIdBuf.length) {
+                    break;
+                }
+            }
+        }
+        return new PackedIntValueLookup(words, bitsPerValue, minTerm, maxTerm);
+    }
+
+    @Override
+    public IntValueLookup newMMapFieldCache(UnsortedIntTermDocIterator iterator, final int numDocs, String field, String directory) throws IOException {
+        final File cacheFile = new File(directory, getMMapFileName(field));
+        MMapBuffer buffer;
+        try {
+            buffer = new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+        } catch (FileNotFoundException e) {
+            buffer = FieldCacher.cacheToFileAtomically(iterator, numDocs, field, directory, cacheFile, new FieldCacher.CacheToFileOperation<MMapBuffer>() {
+                @Override
+                public MMapBuffer execute(UnsortedIntTermDocIterator iterator, int numDocs, File f) throws IOException {
+                    return cacheToFile(iterator, numDocs, f);
+                }
+            });
+        }
+        return new MMapPackedIntValueLookup(buffer, numDocs);
+    }
+
+    private MMapBuffer cacheToFile(UnsortedIntTermDocIterator iterator, int numDocs, File file) throws IOException {
+        final long numLongs = HEADER_LONGS + numWords(numDocs, bitsPerValue);
+        final long length = 8 * numLongs;
+        final MMapBuffer buffer = new MMapBuffer(file, 0L, length, FileChannel.MapMode.READ_WRITE, ByteOrder.LITTLE_ENDIAN);
+        final LongArray longArray = buffer.memory().longArray(0, numLongs);
+        try {
+            longArray.set(0, minTerm);
+            longArray.set(1, maxTerm);
+            longArray.set(2, bitsPerValue);
+            final long mask = mask(bitsPerValue);
+            final int[] docIdBuf = new int[BUFFER_SIZE];
+            while (iterator.nextTerm()) {
+                final long code = iterator.term() - minTerm + 1;
+                while (true) {
+                    final int n = iterator.nextDocs(docIdBuf);
+                    for (int i = 0; i < n; ++i) {
+                        final long bitIndex = (long) docIdBuf[i] * bitsPerValue;
+                        final long word = HEADER_LONGS + (bitIndex >>> 6);
+                        final int shift = (int) bitIndex & 63;
+                        longArray.set(word, (longArray.get(word) & ~(mask << shift)) | (code << shift));
+                        if (shift + bitsPerValue > 64) {
+                            longArray.set(word + 1, (longArray.get(word + 1) & ~(mask >>> (64 - shift))) | (code >>> (64 - shift)));
+                        }
+                    }
+                    if (n < docIdBuf.length) {
+                        break;
+                    }
+                }
+            }
+            buffer.sync(0, length);
+        } catch (RuntimeException e) {
+            Closeables2.closeQuietly(buffer, log);
+            throw e;
+        } catch (IOException e) {
+            Closeables2.closeQuietly(buffer, log);
+            throw e;
+        }
+        return buffer;
+    }
+
+    String getMMapFileName(String field) {
+        return "fld-" + field + ".packedcache";
+    }
+
+    @Override
+    public String toString() {
+        return "PackedFieldCacher{" + bitsPerValue + " bits from " + minTerm + "}";
+    }
+}
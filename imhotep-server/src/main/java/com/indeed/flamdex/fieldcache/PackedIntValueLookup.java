@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.IntValueLookup;
+
+/**
+ * Values packed by {@link PackedFieldCacher}, bitsPerValue bits per doc in a long[].
+ */
+public final class PackedIntValueLookup implements IntValueLookup {
+    private long[] words;
+    private final int bitsPerValue;
+    private final long mask;
+    private final long base;
+    private final long min;
+    private final long max;
+
+    public PackedIntValueLookup(long[] words, int bitsPerValue, long minTerm, long maxTerm) {
+        this.words = words;
+        this.bitsPerValue = bitsPerValue;
+        mask = PackedFieldCacher.mask(bitsPerValue);
+        base = minTerm - 1;
+        // docs without a term are 0
+        min = Math.min(minTerm, 0);
+        max = Math.max(maxTerm, 0);
+    }
+
+    @Override
+    public long getMin() {
+        return min;
+    }
+
+    @Override
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public void lookup(int[] docIds, long[] values, int n) {
+        final long[] words = this.words;
+        final int bitsPerValue = this.bitsPerValue;
+        for (int i = 0; i < n; ++i) {
+            final long bitIndex = (long) docIds[i] * bitsPerValue;
+            final int word = (int) (bitIndex >>> 6);
+            final int shift = (int) bitIndex & 63;
+            long code = words[word] >>> shift;
+            if (shift + bitsPerValue > 64) {
+                code |= words[word + 1] << (64 - shift);
+            }
+            code &= mask;
+            values[i] = code == 0 ? 0 : base + code;
+        }
+    }
+
+    @Override
+    public long memoryUsed() {
+        return 8L * words.length;
+    }
+
+    @Override
+    public void close() {
+        words = null;
+    }
+}
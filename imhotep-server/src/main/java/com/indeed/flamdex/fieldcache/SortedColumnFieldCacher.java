@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntTermDocIterator;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.datastruct.FastBitSet;
+import com.indeed.util.mmap.ByteArray;
+import com.indeed.util.mmap.IntArray;
+import com.indeed.util.mmap.LongArray;
+import com.indeed.util.mmap.MMapBuffer;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Caches an int field that is sorted or nearly sorted by doc id, such as the time of an index sorted by time, as a
+ * {@link SortedColumnIntValueLookup}: a run offset per 256 values and a byte per doc.
+ *
+ * The runs are computed by {@link #forField} from the field's values in doc order. A run lasts while the values stay
+ * within a byte of its offset, so values that wobble by a few dozen from doc to doc share runs, and a run is only
+ * started when a value leaves that range. It gives up when a doc has more than one term or the runs need more memory
+ * than they are worth.
+ */
+public final class SortedColumnFieldCacher implements IntFieldCacher {
+    private static final Logger log = Logger.getLogger(SortedColumnFieldCacher.class);
+
+    // number of runs, min and max
+    static final int HEADER_LONGS = 3;
+
+    private static final int BUFFER_SIZE = 32;
+
+    private final long[] runOffsets;
+    private final int[] runStartDocs;
+    private final long min;
+    private final long max;
+
+    private SortedColumnFieldCacher(long[] runOffsets, int[] runStartDocs, long min, long max) {
+        this.runOffsets = runOffsets;
+        this.runStartDocs = runStartDocs;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return a cacher for the field if every doc has at most one term, every term is within a byte of the run it
+     * falls in and the cache takes at most maxMemory bytes, otherwise null
+     */
+    public static SortedColumnFieldCacher forField(String field, FlamdexReader r, long maxMemory) {
+        final int numDocs = r.getNumDocs();
+        // terms visit docs out of doc order when the column wobbles, so runs are built from the values by doc
+        final long[] values = new long[numDocs];
+        final FastBitSet hasTerm = new FastBitSet(numDocs);
+        final int[] docIdBuf = new int[BUFFER_SIZE];
+        final IntTermDocIterator iterator = r.getIntTermDocIterator(field);
+        try {
+            while (iterator.nextTerm()) {
+                final long term = iterator.term();
+                // keeps run offsets and deltas far from overflowing
+                if (term < Long.MIN_VALUE / 2 || term > Long.MAX_VALUE / 2) {
+                    return null;
+                }
+                while (true) {
+                    final int n = iterator.fillDocIdBuffer(docIdBuf);
+                    for (int i = 0; i < n; ++i) {
+                        final int doc = docIdBuf[i];
+                        if (hasTerm.get(doc)) {
+                            return null;
+                        }
+                        hasTerm.set(doc);
+                        values[doc] = term;
+                    }
+                    if (n < docIdBuf.length) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            iterator.close();
+        }
+        // docs without a term are 0
+        final RunBuilder runs = new RunBuilder();
+        for (int doc = 0; doc < numDocs; ++doc) {
+            runs.add(doc, values[doc]);
+            if ((doc & 0xFFFF) == 0 && SortedColumnIntValueLookup.memoryRequired(runs.size(), numDocs) > maxMemory) {
+                return null;
+            }
+        }
+        if (runs.size() == 0 || SortedColumnIntValueLookup.memoryRequired(runs.size(), numDocs) > maxMemory) {
+            return null;
+        }
+        return new SortedColumnFieldCacher(runs.offsets.toLongArray(), runs.startDocs.toIntArray(), runs.min, runs.max);
+    }
+
+    public int getNumRuns() {
+        return runOffsets.length;
+    }
+
+    @Override
+    public long memoryRequired(int numDocs) {
+        return SortedColumnIntValueLookup.memoryRequired(runOffsets.length, numDocs);
+    }
+
+    @Override
+    public IntValueLookup newFieldCache(UnsortedIntTermDocIterator iterator, int numDocs) {
+        final byte[] deltas = new byte[numDocs];
+        for (int run = 0; run < runOffsets.length; ++run) {
+            final int end = run + 1 < runStartDocs.length ? runStartDocs[run + 1] : numDocs;
+            final byte zero = zeroDelta(runOffsets[run]);
+            for (int doc = runStartDocs[run]; doc < end; ++doc) {
+                deltas[doc] = zero;
+            }
+        }
+        final int[] docIdBuf = new int[BUFFER_SIZE];
+        while (iterator.nextTerm()) {
+            final long term = iterator.term();
+            int run = -1;
+            while (true) {
+                final int n = iterator.nextDocs(docIdBuf);
+                for (int i = 0; i < n; ++i) {
+                    final int doc = docIdBuf[i];
+                    run = advance(run, doc);
+                    deltas[doc] = delta(term, runOffsets[run]);
+                }
+                if (n < docIdBuf.length) {
+                    break;
+                }
+            }
+        }
+        return new SortedColumnIntValueLookup(runOffsets, runStartDocs, deltas);
+    }
+
+    @Override
+    public IntValueLookup newMMapFieldCache(UnsortedIntTermDocIterator iterator, final int numDocs, String field, String directory) throws IOException {
+        final File cacheFile = new File(directory, getMMapFileName(field));
+        MMapBuffer buffer;
+        try {
+            buffer = new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+        } catch (FileNotFoundException e) {
+            buffer = FieldCacher.cacheToFileAtomically(iterator, numDocs, field, directory, cacheFile, new FieldCacher.CacheToFileOperation<MMapBuffer>() {
+                @Override
+                public MMapBuffer execute(UnsortedIntTermDocIterator iterator, int numDocs, File f) throws IOException {
+                    return cacheToFile(iterator, numDocs, f);
+                }
+            });
+        }
+        return new MMapSortedColumnIntValueLookup(buffer, numDocs);
+    }
+
+    private MMapBuffer cacheToFile(UnsortedIntTermDocIterator iterator, int numDocs, File file) throws IOException {
+        final int numRuns = runOffsets.length;
+        final long runOffsetsStart = 8L * HEADER_LONGS;
+        final long runStartDocsStart = runOffsetsStart + 8L * numRuns;
+        final long deltasStart = runStartDocsStart + 4L * numRuns;
+        final long length = deltasStart + numDocs;
+        final MMapBuffer buffer = new MMapBuffer(file, 0L, length, FileChannel.MapMode.READ_WRITE, ByteOrder.LITTLE_ENDIAN);
+        try {
+            final LongArray header = buffer.memory().longArray(0, HEADER_LONGS);
+            header.set(0, numRuns);
+            header.set(1, min);
+            header.set(2, max);
+            final LongArray offsetsArray = buffer.memory().longArray(runOffsetsStart, numRuns);
+            final IntArray startDocsArray = buffer.memory().intArray(runStartDocsStart, numRuns);
+            for (int run = 0; run < numRuns; ++run) {
+                offsetsArray.set(run, runOffsets[run]);
+                startDocsArray.set(run, runStartDocs[run]);
+            }
+            final ByteArray deltas = buffer.memory().byteArray(deltasStart, numDocs);
+            for (int run = 0; run < numRuns; ++run) {
+                final int end = run + 1 < numRuns ? runStartDocs[run + 1] : numDocs;
+                final byte zero = zeroDelta(runOffsets[run]);
+                for (int doc = runStartDocs[run]; doc < end; ++doc) {
+                    deltas.set(doc, zero);
+                }
+            }
+            final int[] docIdBuf = new int[BUFFER_SIZE];
+            while (iterator.nextTerm()) {
+                final long term = iterator.term();
+                int run = -1;
+                while (true) {
+                    final int n = iterator.nextDocs(docIdBuf);
+                    for (int i = 0; i < n; ++i) {
+                        final int doc = docIdBuf[i];
+                        run = advance(run, doc);
+                        deltas.set(doc, delta(term, runOffsets[run]));
+                    }
+                    if (n < docIdBuf.length) {
+                        break;
+                    }
+                }
+            }
+            buffer.sync(0, length);
+        } catch (RuntimeException e) {
+            Closeables2.closeQuietly(buffer, log);
+            throw e;
+        } catch (IOException e) {
+            Closeables2.closeQuietly(buffer, log);
+            throw e;
+        }
+        return buffer;
+    }
+
+    // docs of a term come in ascending order, so only the first one of each term needs a search
+    private int advance(int run, int doc) {
+        if (run < 0) {
+            return SortedColumnIntValueLookup.findRun(runStartDocs, doc);
+        }
+        while (run + 1 < runStartDocs.length && runStartDocs[run + 1] <= doc) {
+            ++run;
+        }
+        return run;
+    }
+
+    private static byte zeroDelta(long runOffset) {
+        return -runOffset >= Byte.MIN_VALUE && -runOffset <= Byte.MAX_VALUE ? (byte) -runOffset : 0;
+    }
+
+    private static byte delta(long term, long runOffset) {
+        final long delta = term - runOffset;
+        if (delta < Byte.MIN_VALUE || delta > Byte.MAX_VALUE) {
+            throw new IllegalStateException("term " + term + " is outside of its run at " + runOffset + ", the field changed since its runs were computed");
+        }
+        return (byte) delta;
+    }
+
+    String getMMapFileName(String field) {
+        return "fld-" + field + ".sortedcache";
+    }
+
+    @Override
+    public String toString() {
+        return "SortedColumnFieldCacher{" + runOffsets.length + " runs}";
+    }
+
+    private static final class RunBuilder {
+        final LongArrayList offsets = new LongArrayList();
+        final IntArrayList startDocs = new IntArrayList();
+        long offset;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        void add(int doc, long value) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            if (!offsets.isEmpty() && value >= offset + Byte.MIN_VALUE && value <= offset + Byte.MAX_VALUE) {
+                return;
+            }
+            // the value is near the bottom of the run so that the following ones can grow by 191 or drop by 64
+            offset = value + 64;
+            offsets.add(offset);
+            startDocs.add(doc);
+        }
+
+        int size() {
+            return offsets.size();
+        }
+    }
+}
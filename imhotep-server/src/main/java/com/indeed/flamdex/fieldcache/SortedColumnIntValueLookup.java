@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.IntValueLookup;
+
+/**
+ * Run encoded values of a column that is sorted or nearly sorted by doc id: the docs from runStartDocs[i] up to the
+ * start of the next run have the value runOffsets[i] + deltas[doc], with a signed byte delta per doc.
+ *
+ * Lookups keep a cursor on the current run, so that ascending doc ids as passed by FTGS and regroup only advance it
+ * instead of binary searching every doc. Jumps past more than a few runs gallop from the cursor.
+ */
+public final class SortedColumnIntValueLookup implements IntValueLookup {
+    // runs stepped over one at a time before galloping
+    static final int LINEAR_RUNS = 4;
+
+    private long[] runOffsets;
+    private int[] runStartDocs;
+    private byte[] deltas;
+    private final long min;
+    private final long max;
+    private final long memoryUsed;
+
+    public SortedColumnIntValueLookup(long[] runOffsets, int[] runStartDocs, byte[] deltas) {
+        this(runOffsets, runStartDocs, deltas, memoryRequired(runOffsets.length, deltas.length));
+    }
+
+    public SortedColumnIntValueLookup(long[] runOffsets, int[] runStartDocs, byte[] deltas, long memoryUsed) {
+        if (runOffsets.length == 0 || runOffsets.length != runStartDocs.length) {
+            throw new IllegalArgumentException("every run must have an offset and a start doc");
+        }
+        this.runOffsets = runOffsets;
+        this.runStartDocs = runStartDocs;
+        this.deltas = deltas;
+        this.memoryUsed = memoryUsed;
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int run = 0; run < runOffsets.length; ++run) {
+            final int end = run + 1 < runStartDocs.length ? runStartDocs[run + 1] : deltas.length;
+            for (int doc = runStartDocs[run]; doc < end; ++doc) {
+                final long value = runOffsets[run] + deltas[doc];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        this.min = deltas.length > 0 ? min : 0;
+        this.max = deltas.length > 0 ? max : 0;
+    }
+
+    static long memoryRequired(int numRuns, int numDocs) {
+        return 12L * numRuns + numDocs;
+    }
+
+    /**
+     * @return the last run that starts at or before docId
+     */
+    static int findRun(int[] runStartDocs, int docId) {
+        int lo = 0;
+        int hi = runStartDocs.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (runStartDocs[mid] <= docId) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the last run that starts at or before docId, which must not be before the start of run
+     */
+    static int advanceRun(int[] runStartDocs, int run, int docId) {
+        final int lastRun = runStartDocs.length - 1;
+        for (int i = 0; i < LINEAR_RUNS; ++i) {
+            if (run == lastRun || runStartDocs[run + 1] > docId) {
+                return run;
+            }
+            ++run;
+        }
+        // double the step until it passes docId, then binary search the last step
+        int lo = run;
+        int step = 1;
+        int hi;
+        while (true) {
+            final int next = lastRun - lo < step ? lastRun + 1 : lo + step;
+            if (next > lastRun || runStartDocs[next] > docId) {
+                hi = next - 1;
+                break;
+            }
+            lo = next;
+            step <<= 1;
+        }
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (runStartDocs[mid] <= docId) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public long getMin() {
+        return min;
+    }
+
+    @Override
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public void lookup(int[] docIds, long[] values, int n) {
+        if (n <= 0) {
+            return;
+        }
+        final long[] runOffsets = this.runOffsets;
+        final int[] runStartDocs = this.runStartDocs;
+        final byte[] deltas = this.deltas;
+        final int lastRun = runStartDocs.length - 1;
+
+        int run = findRun(runStartDocs, docIds[0]);
+        int runStart = runStartDocs[run];
+        int nextRunStart = run < lastRun ? runStartDocs[run + 1] : Integer.MAX_VALUE;
+        for (int i = 0; i < n; ++i) {
+            final int doc = docIds[i];
+            if (doc >= nextRunStart) {
+                run = advanceRun(runStartDocs, run + 1, doc);
+                runStart = runStartDocs[run];
+                nextRunStart = run < lastRun ? runStartDocs[run + 1] : Integer.MAX_VALUE;
+            } else if (doc < runStart) {
+                // doc ids went backwards, fall back to a search
+                run = findRun(runStartDocs, doc);
+                runStart = runStartDocs[run];
+                nextRunStart = run < lastRun ? runStartDocs[run + 1] : Integer.MAX_VALUE;
+            }
+            values[i] = runOffsets[run] + deltas[doc];
+        }
+    }
+
+    @Override
+    public long memoryUsed() {
+        return memoryUsed;
+    }
+
+    @Override
+    public void close() {
+        runOffsets = null;
+        runStartDocs = null;
+        deltas = null;
+    }
+}
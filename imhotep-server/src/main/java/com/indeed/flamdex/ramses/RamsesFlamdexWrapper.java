@@ -24,6 +24,7 @@ import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.StringValueLookup;
 import com.indeed.flamdex.fieldcache.FieldCacher;
+import com.indeed.flamdex.fieldcache.SortedColumnIntValueLookup;
 import com.indeed.imhotep.io.caching.CachedFile;
 import com.indeed.imhotep.metrics.Count;
 
@@ -155,7 +156,12 @@ public class RamsesFlamdexWrapper implements FlamdexReader {
                 throw new RuntimeException("unable to load ramses time metric from directory " + directory + ", missing one or more required files");
             }
         
-            return new RamsesTimeIntValueLookup(timeUpperBits, docIdBoundaries, timeLowerBits, memoryOverhead);
+            // time is (upper bits << 8) | (128 + lower bits), which is a sorted column with a run per upper bits
+            final long[] runOffsets = new long[timeUpperBits.length];
+            for (int i = 0; i < timeUpperBits.length; ++i) {
+                runOffsets[i] = ((long) timeUpperBits[i] << 8) + 128;
+            }
+            return new SortedColumnIntValueLookup(runOffsets, docIdBoundaries, timeLowerBits, memoryOverhead);
 
         } catch(IOException e) {
             throw new RuntimeException("unable to load ramses time metric from directory " + directory + ", missing one or more required files");
@@ -15,6 +15,7 @@
 
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.query.BooleanOp;
@@ -28,6 +29,10 @@ class BooleanQueryEvaluator implements QueryEvaluator {
     private final BooleanOp operator;
     private final List<? extends QueryEvaluator> operands;
 
+    // bound for the reader last asked about, so nested clauses are not walked again on every level
+    private FlamdexReader cardinalityReader;
+    private long cardinality;
+
     BooleanQueryEvaluator(BooleanOp operator, List<? extends QueryEvaluator> operands) {
         if (operator == BooleanOp.NOT && operands.size() != 1) {
             throw new IllegalArgumentException("bug, more than one operand is disallowed with NOT");
@@ -42,6 +47,25 @@ class BooleanQueryEvaluator implements QueryEvaluator {
             for (final QueryEvaluator operand : operands) {
                 operand.and(r, bitSet, bitSetPooler);
             }
+            return;
+        }
+        // for NOT only the docs to clear need to be collected
+        final long maxCardinality = operator == BooleanOp.OR ? maxCardinality(r) : operands.get(0).maxCardinality(r);
+        if (CompressedBitSet.isSparse(bitSet.size(), maxCardinality)) {
+            final CompressedBitSet tmp = bitSetPooler.createCompressed(bitSet.size(), maxCardinality);
+            try {
+                if (operator == BooleanOp.OR) {
+                    for (final QueryEvaluator operand : operands) {
+                        operand.or(r, tmp, bitSetPooler);
+                    }
+                    bitSet.and(tmp);
+                } else {
+                    operands.get(0).or(r, tmp, bitSetPooler);
+                    bitSet.andNot(tmp);
+                }
+            } finally {
+                bitSetPooler.release(CompressedBitSet.maxMemoryUsage(bitSet.size(), maxCardinality));
+            }
         } else {
             FastBitSet tmp = bitSetPooler.create(bitSet.size());
             try {
@@ -67,17 +91,34 @@ class BooleanQueryEvaluator implements QueryEvaluator {
             for (final QueryEvaluator operand : operands) {
                 operand.or(r, bitSet, bitSetPooler);
             }
-        } else {
-            FastBitSet tmp = bitSetPooler.create(bitSet.size());
-            try {
-                if (operator == BooleanOp.AND) {
+        } else if (operator == BooleanOp.AND) {
+            final long maxCardinality = maxCardinality(r);
+            if (CompressedBitSet.isSparse(bitSet.size(), maxCardinality)) {
+                final CompressedBitSet tmp = bitSetPooler.createCompressed(bitSet.size(), maxCardinality);
+                try {
+                    intersect(r, tmp, bitSetPooler);
+                    bitSet.or(tmp);
+                } finally {
+                    bitSetPooler.release(CompressedBitSet.maxMemoryUsage(bitSet.size(), maxCardinality));
+                }
+            } else {
+                FastBitSet tmp = bitSetPooler.create(bitSet.size());
+                try {
                     tmp.setAll();
                     for (final QueryEvaluator operand : operands) {
                         operand.and(r, tmp, bitSetPooler);
                     }
-                } else {
-                    operands.get(0).not(r, tmp, bitSetPooler);
+                    bitSet.or(tmp);
+                } finally {
+                    final long bytes = tmp.memoryUsage();
+                    tmp = null;
+                    bitSetPooler.release(bytes);
                 }
+            }
+        } else {
+            FastBitSet tmp = bitSetPooler.create(bitSet.size());
+            try {
+                operands.get(0).not(r, tmp, bitSetPooler);
                 bitSet.or(tmp);
             } finally {
                 final long bytes = tmp.memoryUsage();
@@ -104,4 +145,104 @@ class BooleanQueryEvaluator implements QueryEvaluator {
         }
         bitSet.invertAll();
     }
+
+    @Override
+    public void and(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        if (operator == BooleanOp.AND) {
+            for (final QueryEvaluator operand : operands) {
+                if (bitSet.isEmpty()) {
+                    return;
+                }
+                operand.and(r, bitSet, bitSetPooler);
+            }
+            return;
+        }
+        final long maxCardinality = operator == BooleanOp.OR ? maxCardinality(r) : operands.get(0).maxCardinality(r);
+        final CompressedBitSet tmp = bitSetPooler.createCompressed(bitSet.size(), maxCardinality);
+        try {
+            if (operator == BooleanOp.OR) {
+                for (final QueryEvaluator operand : operands) {
+                    operand.or(r, tmp, bitSetPooler);
+                }
+                bitSet.and(tmp);
+            } else {
+                operands.get(0).or(r, tmp, bitSetPooler);
+                bitSet.andNot(tmp);
+            }
+        } finally {
+            bitSetPooler.release(CompressedBitSet.maxMemoryUsage(bitSet.size(), maxCardinality));
+        }
+    }
+
+    @Override
+    public void or(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        if (operator == BooleanOp.OR) {
+            for (final QueryEvaluator operand : operands) {
+                operand.or(r, bitSet, bitSetPooler);
+            }
+            return;
+        }
+        final long maxCardinality = operator == BooleanOp.AND ? maxCardinality(r) : r.getNumDocs();
+        final CompressedBitSet tmp = bitSetPooler.createCompressed(bitSet.size(), maxCardinality);
+        try {
+            if (operator == BooleanOp.AND) {
+                intersect(r, tmp, bitSetPooler);
+            } else {
+                operands.get(0).or(r, tmp, bitSetPooler);
+                tmp.invertAll();
+            }
+            bitSet.or(tmp);
+        } finally {
+            bitSetPooler.release(CompressedBitSet.maxMemoryUsage(bitSet.size(), maxCardinality));
+        }
+    }
+
+    @Override
+    public long maxCardinality(FlamdexReader r) {
+        if (cardinalityReader != r) {
+            cardinality = computeMaxCardinality(r);
+            cardinalityReader = r;
+        }
+        return cardinality;
+    }
+
+    private long computeMaxCardinality(FlamdexReader r) {
+        if (operator == BooleanOp.AND) {
+            long ret = r.getNumDocs();
+            for (final QueryEvaluator operand : operands) {
+                ret = Math.min(ret, operand.maxCardinality(r));
+            }
+            return ret;
+        } else if (operator == BooleanOp.OR) {
+            long ret = 0;
+            for (final QueryEvaluator operand : operands) {
+                ret += operand.maxCardinality(r);
+            }
+            return Math.min(ret, r.getNumDocs());
+        } else {
+            return r.getNumDocs();
+        }
+    }
+
+    /*
+     * evaluates an AND into an empty set, starting from the operand with the fewest docs
+     * so that the set never holds more than maxCardinality(r) docs
+     */
+    private void intersect(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        int smallest = 0;
+        long smallestCardinality = Long.MAX_VALUE;
+        for (int i = 0; i < operands.size(); i++) {
+            final long cardinality = operands.get(i).maxCardinality(r);
+            if (cardinality < smallestCardinality) {
+                smallest = i;
+                smallestCardinality = cardinality;
+            }
+        }
+        operands.get(smallest).or(r, bitSet, bitSetPooler);
+        for (int i = 0; i < operands.size() && !bitSet.isEmpty(); i++) {
+            if (i != smallest) {
+                operands.get(i).and(r, bitSet, bitSetPooler);
+            }
+        }
+    }
 }
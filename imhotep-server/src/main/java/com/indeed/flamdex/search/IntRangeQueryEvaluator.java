@@ -16,6 +16,7 @@
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.query.Term;
@@ -243,4 +244,35 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
             bitSet.setRange(lastDoc, numDocs);
         }
     }
+
+    @Override
+    public void and(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        FastBitSet localBitSet = bitSetPooler.create(r.getNumDocs());
+        try {
+            or(r, localBitSet, bitSetPooler);
+            bitSet.and(localBitSet);
+        } finally {
+            final long memUsage = localBitSet.memoryUsage();
+            localBitSet = null;
+            bitSetPooler.release(memUsage);
+        }
+    }
+
+    @Override
+    public void or(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        FastBitSet localBitSet = bitSetPooler.create(r.getNumDocs());
+        try {
+            or(r, localBitSet, bitSetPooler);
+            bitSet.or(localBitSet);
+        } finally {
+            final long memUsage = localBitSet.memoryUsage();
+            localBitSet = null;
+            bitSetPooler.release(memUsage);
+        }
+    }
+
+    @Override
+    public long maxCardinality(FlamdexReader r) {
+        return r.getNumDocs();
+    }
 }
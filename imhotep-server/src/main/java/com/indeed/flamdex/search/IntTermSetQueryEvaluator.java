@@ -17,8 +17,10 @@ import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
+import com.indeed.flamdex.utils.IntTermSeeker;
 
 import java.util.Arrays;
 
@@ -31,6 +33,10 @@ public class IntTermSetQueryEvaluator implements QueryEvaluator {
     private final String field;
     private final long[] terms;
 
+    // docFreq sum over terms in the reader last walked, filled in by maxCardinality or by a search
+    private FlamdexReader cardinalityReader;
+    private long cardinality;
+
     public IntTermSetQueryEvaluator(String field, long[] terms) {
         this.field = field;
         this.terms = new long[terms.length];
@@ -40,6 +46,17 @@ public class IntTermSetQueryEvaluator implements QueryEvaluator {
 
     @Override
     public void and(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final long maxCardinality = maxCardinality(r);
+        if (CompressedBitSet.isSparse(r.getNumDocs(), maxCardinality)) {
+            final CompressedBitSet localBitSet = bitSetPooler.createCompressed(r.getNumDocs(), maxCardinality);
+            try {
+                internalSearch(r, localBitSet);
+                bitSet.and(localBitSet);
+            } finally {
+                bitSetPooler.release(CompressedBitSet.maxMemoryUsage(r.getNumDocs(), maxCardinality));
+            }
+            return;
+        }
         FastBitSet localBitSet = bitSetPooler.create(r.getNumDocs());
         try {
             internalSearch(r, localBitSet);
@@ -63,20 +80,64 @@ public class IntTermSetQueryEvaluator implements QueryEvaluator {
         bitSet.invertAll();
     }
 
+    @Override
+    public void and(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final long maxCardinality = maxCardinality(r);
+        final CompressedBitSet localBitSet = bitSetPooler.createCompressed(r.getNumDocs(), maxCardinality);
+        try {
+            internalSearch(r, localBitSet);
+            bitSet.and(localBitSet);
+        } finally {
+            bitSetPooler.release(CompressedBitSet.maxMemoryUsage(r.getNumDocs(), maxCardinality));
+        }
+    }
+
+    @Override
+    public void or(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        internalSearch(r, bitSet);
+    }
+
+    @Override
+    public long maxCardinality(FlamdexReader r) {
+        if (cardinalityReader != r) {
+            final IntTermIterator iterator = r.getIntTermIterator(field);
+            long ret = 0;
+            try {
+                final IntTermSeeker seeker = new IntTermSeeker(iterator);
+                for (final long term : terms) {
+                    if (seeker.seek(term)) {
+                        ret += iterator.docFreq();
+                    }
+                }
+            } finally {
+                iterator.close();
+            }
+            cacheCardinality(r, ret);
+        }
+        return cardinality;
+    }
+
+    private void cacheCardinality(FlamdexReader r, long docFreqSum) {
+        cardinalityReader = r;
+        cardinality = Math.min(docFreqSum, r.getNumDocs());
+    }
+
     private void internalSearch(FlamdexReader r, FastBitSet bitSet) {
         final IntTermIterator iterator = r.getIntTermIterator(field);
-        int ix = 0;
         try {
             final DocIdStream docIdStream = r.getDocIdStream();
             try {
-                while (ix < terms.length) {
-                    final int[] docIdBuffer = new int[BUFFER_SIZE];
-                    iterator.reset(terms[ix++]);
-                    if (!iterator.next()) break;
-                    if(iterator.term() != terms[ix-1]) continue;
-                    docIdStream.reset(iterator);
-                    readDocIdStream(docIdStream, docIdBuffer, bitSet);
+                final int[] docIdBuffer = new int[BUFFER_SIZE];
+                final IntTermSeeker seeker = new IntTermSeeker(iterator);
+                long docFreqSum = 0;
+                for (final long term : terms) {
+                    if (seeker.seek(term)) {
+                        docFreqSum += iterator.docFreq();
+                        docIdStream.reset(iterator);
+                        readDocIdStream(docIdStream, docIdBuffer, bitSet);
+                    }
                 }
+                cacheCardinality(r, docFreqSum);
             } finally {
                 docIdStream.close();
             }
@@ -94,4 +155,38 @@ public class IntTermSetQueryEvaluator implements QueryEvaluator {
             if (n < docIdBuffer.length) break;
         }
     }
+
+    private void internalSearch(FlamdexReader r, CompressedBitSet bitSet) {
+        final IntTermIterator iterator = r.getIntTermIterator(field);
+        try {
+            final DocIdStream docIdStream = r.getDocIdStream();
+            try {
+                final int[] docIdBuffer = new int[BUFFER_SIZE];
+                final IntTermSeeker seeker = new IntTermSeeker(iterator);
+                long docFreqSum = 0;
+                for (final long term : terms) {
+                    if (seeker.seek(term)) {
+                        docFreqSum += iterator.docFreq();
+                        docIdStream.reset(iterator);
+                        readDocIdStream(docIdStream, docIdBuffer, bitSet);
+                    }
+                }
+                cacheCardinality(r, docFreqSum);
+            } finally {
+                docIdStream.close();
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    private void readDocIdStream(DocIdStream docIdStream, int[] docIdBuffer, CompressedBitSet bitSet) {
+        while (true) {
+            final int n = docIdStream.fillDocIdBuffer(docIdBuffer);
+            for (int i = 0; i < n; ++i) {
+                bitSet.set(docIdBuffer[i]);
+            }
+            if (n < docIdBuffer.length) break;
+        }
+    }
 }
@@ -15,6 +15,7 @@
 
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 
@@ -25,4 +26,12 @@ interface QueryEvaluator {
     void and(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException;
     void or(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException;
     void not(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException;
+
+    void and(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException;
+    void or(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException;
+
+    /**
+     * @return an upper bound on the number of docs matching this query, or the number of docs in r if there is no cheap bound
+     */
+    long maxCardinality(FlamdexReader r);
 }
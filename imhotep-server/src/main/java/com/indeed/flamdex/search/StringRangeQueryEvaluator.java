@@ -17,6 +17,7 @@ import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.query.Term;
@@ -142,4 +143,35 @@ class StringRangeQueryEvaluator implements QueryEvaluator {
         internalSearch(r, bitSet);
         bitSet.invertAll();
     }
+
+    @Override
+    public void and(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        FastBitSet localBitSet = bitSetPooler.create(r.getNumDocs());
+        try {
+            or(r, localBitSet, bitSetPooler);
+            bitSet.and(localBitSet);
+        } finally {
+            final long memUsage = localBitSet.memoryUsage();
+            localBitSet = null;
+            bitSetPooler.release(memUsage);
+        }
+    }
+
+    @Override
+    public void or(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        FastBitSet localBitSet = bitSetPooler.create(r.getNumDocs());
+        try {
+            or(r, localBitSet, bitSetPooler);
+            bitSet.or(localBitSet);
+        } finally {
+            final long memUsage = localBitSet.memoryUsage();
+            localBitSet = null;
+            bitSetPooler.release(memUsage);
+        }
+    }
+
+    @Override
+    public long maxCardinality(FlamdexReader r) {
+        return r.getNumDocs();
+    }
 }
@@ -14,10 +14,12 @@
  package com.indeed.flamdex.search;
 
 import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.TermIterator;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.query.Term;
@@ -200,4 +202,74 @@ class TermQueryEvaluator implements QueryEvaluator {
         }
         bitSet.setRange(lastDoc, bitSet.size());
     }
+
+    @Override
+    public void and(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) throws FlamdexOutOfMemoryException {
+        final long maxCardinality = maxCardinality(r);
+        final CompressedBitSet termDocs = bitSetPooler.createCompressed(bitSet.size(), maxCardinality);
+        try {
+            or(r, termDocs, bitSetPooler);
+            bitSet.and(termDocs);
+        } finally {
+            bitSetPooler.release(CompressedBitSet.maxMemoryUsage(bitSet.size(), maxCardinality));
+        }
+    }
+
+    @Override
+    public void or(FlamdexReader r, CompressedBitSet bitSet, FastBitSetPooler bitSetPooler) {
+        final TermIterator iterator = seekTerm(r);
+        if (iterator == null) {
+            return;
+        }
+        final DocIdStream docIdStream = r.getDocIdStream();
+        try {
+            docIdStream.reset(iterator);
+            final int[] docIdBuffer = new int[64];
+            while (true) {
+                final int n = docIdStream.fillDocIdBuffer(docIdBuffer);
+                for (int i = 0; i < n; ++i) {
+                    bitSet.set(docIdBuffer[i]);
+                }
+                if (n < docIdBuffer.length) break;
+            }
+        } finally {
+            iterator.close();
+            docIdStream.close();
+        }
+    }
+
+    @Override
+    public long maxCardinality(FlamdexReader r) {
+        final TermIterator iterator = seekTerm(r);
+        if (iterator == null) {
+            return 0;
+        }
+        try {
+            return iterator.docFreq();
+        } finally {
+            iterator.close();
+        }
+    }
+
+    // returns an iterator positioned at the term, or null if the term is not in the index
+    private TermIterator seekTerm(FlamdexReader r) {
+        if (term.isIntField()) {
+            final IntTermIterator iterator = r.getIntTermIterator(term.getFieldName());
+            final long termIntVal = term.getTermIntVal();
+            iterator.reset(termIntVal);
+            if (iterator.next() && iterator.term() == termIntVal) {
+                return iterator;
+            }
+            iterator.close();
+        } else {
+            final StringTermIterator iterator = r.getStringTermIterator(term.getFieldName());
+            final String termStringVal = term.getTermStringVal();
+            iterator.reset(termStringVal);
+            if (iterator.next() && iterator.term().equals(termStringVal)) {
+                return iterator;
+            }
+            iterator.close();
+        }
+        return null;
+    }
 }
@@ -15,6 +15,7 @@
 
 import com.google.common.collect.Maps;
 import com.indeed.imhotep.io.caching.CachedFile;
+import com.indeed.imhotep.io.caching.PagedFile;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.core.reference.SharedReference;
 import com.indeed.util.mmap.MMapBuffer;
@@ -27,6 +28,7 @@ import java.io.IOException;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -38,19 +40,74 @@ public final class MapCache implements Closeable {
 
     private final Map<String, SharedReference<MMapBuffer>> mappingCache = Maps.newHashMap();
 
+    // files mapped by copyOrOpenPaged whose pages are loaded on demand, read without the lock on every term
+    private final Map<String, PagedFile> pagedFiles = new ConcurrentHashMap<String, PagedFile>();
+
     public MapCache() {}
 
-    public synchronized SharedReference<MMapBuffer> copyOrOpen(String filename) throws IOException {
+    public SharedReference<MMapBuffer> copyOrOpen(String filename) throws IOException {
+        final SharedReference<MMapBuffer> reference;
+        synchronized (this) {
+            reference = open(filename, false);
+        }
+        final PagedFile pagedFile = pagedFiles.get(filename);
+        if (pagedFile != null) {
+            // already mapped sparsely, callers of this method expect every page to be present
+            try {
+                pagedFile.ensureLoaded(0, pagedFile.length());
+            } catch (IOException e) {
+                Closeables2.closeQuietly(reference, log);
+                throw e;
+            }
+        }
+        return reference;
+    }
+
+    /**
+     * Like {@link #copyOrOpen}, but a remote file is mapped from a sparse local copy whose pages are only fetched
+     * by {@link #ensureLoaded}. Callers must ensure every range they read has been loaded.
+     */
+    public synchronized SharedReference<MMapBuffer> copyOrOpenPaged(String filename) throws IOException {
+        return open(filename, true);
+    }
+
+    /**
+     * fetches the pages of a file opened by {@link #copyOrOpenPaged} that overlap the range, a no-op for files
+     * that were copied whole
+     */
+    public void ensureLoaded(String filename, long offset, long length) throws IOException {
+        final PagedFile pagedFile = pagedFiles.get(filename);
+        if (pagedFile != null) {
+            pagedFile.ensureLoaded(offset, length);
+        }
+    }
+
+    private SharedReference<MMapBuffer> open(String filename, boolean paged) throws IOException {
         SharedReference<MMapBuffer> reference = mappingCache.get(filename);
         if (reference == null) {
             final File file;
             final MMapBuffer mmapBuf;
             final CachedFile cf = CachedFile.create(filename);
+            final PagedFile pagedFile = paged ? cf.loadFilePaged() : null;
 
-            file = cf.loadFile();
-            mmapBuf = new MMapBuffer(file, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+            if (pagedFile != null) {
+                file = pagedFile.getFile();
+            } else {
+                file = cf.loadFile();
+            }
+            try {
+                mmapBuf = new MMapBuffer(file, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+            } catch (IOException e) {
+                if (pagedFile != null) {
+                    pagedFile.release();
+                }
+                throw e;
+            }
             reference = SharedReference.create(mmapBuf);
             mappingCache.put(filename, reference);
+            if (pagedFile != null) {
+                pagedFiles.put(filename, pagedFile);
+            }
         }
         return reference.copy();
     }
@@ -60,5 +117,11 @@ public final class MapCache implements Closeable {
         for (Map.Entry<String, SharedReference<MMapBuffer>> entry : mappingCache.entrySet()) {
             Closeables2.closeQuietly(entry.getValue(), log);
         }
+        mappingCache.clear();
+        // paged copies evicted from the file cache are deleted once every reader has released them
+        for (final PagedFile pagedFile : pagedFiles.values()) {
+            pagedFile.release();
+        }
+        pagedFiles.clear();
     }
 }
@@ -64,11 +64,12 @@ public final class NativeDocIdStream implements DocIdStream {
         if (!filename.equals(currentFileOpen)) {
 
             if (file != null) file.close();
-            file = mapCache.copyOrOpen(filename);
+            file = mapCache.copyOrOpenPaged(filename);
 
             memory = file.get().memory();
             currentFileOpen = filename;
         }
+        mapCache.ensureLoaded(filename, term.getOffset(), SimpleDocIdStream.MAX_VINT_BYTES * (long) term.docFreq());
         buffer.reset(memory.getAddress()+term.getOffset(), term.docFreq());
         lastDoc = 0;
     }
@@ -51,8 +51,13 @@ public abstract class NativeTermDocIterator implements TermDocIterator {
 
     private boolean closed = false;
 
+    private final String filename;
+    private final MapCache mapCache;
+
     NativeTermDocIterator(String filename, MapCache mapCache) throws IOException {
-        file = mapCache.copyOrOpen(filename);
+        this.filename = filename;
+        this.mapCache = mapCache;
+        file = mapCache.copyOrOpenPaged(filename);
         memory = file.get().memory();
     }
 
@@ -82,6 +87,11 @@ public abstract class NativeTermDocIterator implements TermDocIterator {
         } while (bufferedTerms < docFreqBuffer.length && bufferNext());
         currentTermDocsRemaining = docFreqBuffer[termIndex];
         lastDoc = 0;
+        try {
+            mapCache.ensureLoaded(filename, offset, SimpleDocIdStream.MAX_VINT_BYTES * totalDocFreq);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         buffer.reset(memory.getAddress()+offset, totalDocFreq);
         return true;
     }
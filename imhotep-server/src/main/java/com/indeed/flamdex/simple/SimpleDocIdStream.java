@@ -30,6 +30,9 @@ final class SimpleDocIdStream implements DocIdStream {
 
     public static final int BUFFER_SIZE = 8192;
 
+    // upper bound on the bytes per doc in a doc list, used to load the pages of a term's docs up front
+    static final int MAX_VINT_BYTES = 5;
+
     private final MapCache mapCache;
 
     private final byte[] buffer;
@@ -73,7 +76,7 @@ final class SimpleDocIdStream implements DocIdStream {
         if (!filename.equals(currentFileOpen)) {
 
             if (file != null) file.close();
-            file = mapCache.copyOrOpen(filename);
+            file = mapCache.copyOrOpenPaged(filename);
 
             memory = file.get().memory();
             currentFileOpen = filename;
@@ -84,6 +87,7 @@ final class SimpleDocIdStream implements DocIdStream {
         }
 
         final long offset = term.getOffset();
+        mapCache.ensureLoaded(filename, offset, MAX_VINT_BYTES * (long) term.docFreq());
         if (offset >= bufferOffset && offset < bufferOffset + bufferLen) {
             bufferPtr = (int) (offset - bufferOffset);
         } else {
@@ -140,6 +144,8 @@ final class SimpleDocIdStream implements DocIdStream {
     private void refillBuffer(long offset) throws IOException {
         bufferLen = (int)Math.min(buffer.length, memory.length() - offset);
         if (bufferLen > 0) {
+            // the buffer may be reused by later terms, so all of it must be loaded
+            mapCache.ensureLoaded(currentFileOpen, offset, bufferLen);
             memory.getBytes(offset, buffer, 0, bufferLen);
         }
         bufferOffset = offset;
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.utils;
+
+import com.indeed.flamdex.api.StringTermIterator;
+
+/**
+ * {@link TermSeeker} for string fields, terms are ordered by {@link String#compareTo}
+ */
+public final class StringTermSeeker extends TermSeeker {
+    private final StringTermIterator iterator;
+
+    private String target;
+
+    public StringTermSeeker(StringTermIterator iterator) {
+        this.iterator = iterator;
+    }
+
+    /**
+     * positions the iterator on the term if the field has it. terms must be requested in ascending order.
+     * @return true if the iterator is positioned on the term
+     */
+    public boolean seek(String term) {
+        target = term;
+        return seekTarget();
+    }
+
+    @Override
+    int compareToTarget() {
+        return iterator.term().compareTo(target);
+    }
+
+    @Override
+    boolean next() {
+        return iterator.next();
+    }
+
+    @Override
+    void resetToTarget() {
+        iterator.reset(target);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.utils;
+
+/**
+ * Looks up an ascending sequence of terms in one field, merge joining them against the term dictionary.
+ *
+ * Each lookup first scans forward from the current term and only resets the iterator, which searches the
+ * term index, when the requested term is not within a few terms. The scan distance adapts to how dense the
+ * requested terms are in the field: it doubles every time a scan finds its term and halves every time it has
+ * to fall back to a reset, so dense term sets are streamed and sparse ones are sought directly.
+ */
+abstract class TermSeeker {
+    private static final int INITIAL_SCAN_LIMIT = 16;
+    private static final int MAX_SCAN_LIMIT = 256;
+
+    private int scanLimit = INITIAL_SCAN_LIMIT;
+    private boolean positioned = false;
+    private boolean exhausted = false;
+
+    /**
+     * compares the iterator's current term to the requested one
+     */
+    abstract int compareToTarget();
+
+    abstract boolean next();
+
+    /**
+     * resets the iterator to the first term not less than the requested one
+     */
+    abstract void resetToTarget();
+
+    /**
+     * positions the iterator on the requested term if the field has it
+     * @return true if the iterator is positioned on the term
+     */
+    final boolean seekTarget() {
+        if (exhausted) {
+            return false;
+        }
+        if (positioned) {
+            int cmp = compareToTarget();
+            if (cmp >= 0) {
+                return cmp == 0;
+            }
+            for (int i = 0; i < scanLimit; i++) {
+                if (!next()) {
+                    exhausted = true;
+                    return false;
+                }
+                cmp = compareToTarget();
+                if (cmp >= 0) {
+                    scanLimit = Math.min(scanLimit * 2, MAX_SCAN_LIMIT);
+                    return cmp == 0;
+                }
+            }
+            scanLimit = Math.max(scanLimit / 2, 1);
+        }
+        resetToTarget();
+        positioned = next();
+        if (!positioned) {
+            exhausted = true;
+            return false;
+        }
+        return compareToTarget() == 0;
+    }
+}
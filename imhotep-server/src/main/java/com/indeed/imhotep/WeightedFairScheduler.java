@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.collect.Maps;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out a fixed number of cpu slots to units of work in weighted fair order.
+ *
+ * Work is grouped into flows, one per user and priority. A flow is charged the time its units hold a slot
+ * divided by its weight, and a free slot always goes to the waiting flow that has been charged the least,
+ * so a flow with weight 4 gets four times the cpu of a flow with weight 1 while both have work queued.
+ * Flows that go idle do not bank credit: they rejoin at the charge of the most recently scheduled flow.
+ *
+ * Long running units call {@link #checkpoint} between batches of work to give their slot back when other
+ * units are waiting and they have held it for longer than the quantum.
+ */
+public final class WeightedFairScheduler {
+    public static final int MAX_PRIORITY = 9;
+
+    private static final ThreadLocal<Slot> currentSlot = new ThreadLocal<Slot>();
+
+    private final long quantumNanos;
+
+    private final Map<String, FlowState> flows = Maps.newHashMap();
+    private int freeSlots;
+    // charge of the most recently scheduled flow, only ever increases
+    private double virtualTime = 0;
+    private volatile int numWaiting = 0;
+
+    public WeightedFairScheduler(int numSlots, long quantum, TimeUnit unit) {
+        if (numSlots <= 0) {
+            throw new IllegalArgumentException("numSlots must be positive: " + numSlots);
+        }
+        this.freeSlots = numSlots;
+        this.quantumNanos = unit.toNanos(quantum);
+    }
+
+    /**
+     * @param name the user or tenant the work is done for
+     * @param priority clamped to [0, {@link #MAX_PRIORITY}], a flow's weight is its priority plus one
+     */
+    public Flow getFlow(String name, int priority) {
+        final int clamped = Math.max(0, Math.min(MAX_PRIORITY, priority));
+        return new Flow(this, name + "/" + clamped, clamped + 1);
+    }
+
+    /**
+     * gives the calling thread's slot to a waiting unit if the slot has been held for longer than the quantum,
+     * then waits for the slot to come back. does nothing if the thread does not hold a slot.
+     */
+    public static void checkpoint() {
+        final Slot slot = currentSlot.get();
+        if (slot == null) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (now - slot.startNanos < slot.scheduler.quantumNanos) {
+            return;
+        }
+        slot.scheduler.yield(slot, now);
+    }
+
+    /**
+     * @return the flow the calling thread holds a slot for, or null if it does not hold one
+     */
+    public static Flow currentFlow() {
+        final Slot slot = currentSlot.get();
+        if (slot == null) {
+            return null;
+        }
+        return new Flow(slot.scheduler, slot.flow.key, slot.flow.weight);
+    }
+
+    public synchronized int getFreeSlots() {
+        return freeSlots;
+    }
+
+    public int getNumWaiting() {
+        return numWaiting;
+    }
+
+    private void yield(Slot slot, long now) {
+        synchronized (this) {
+            charge(slot, now);
+            if (numWaiting == 0) {
+                return;
+            }
+            release(slot.flow);
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                acquire(slot.flow.key, slot.flow.weight);
+                break;
+            } catch (InterruptedException e) {
+                // the caller still expects to own a slot, so keep waiting and let it see the interrupt later
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acquire(String key, double weight) throws InterruptedException {
+        final FlowState flow;
+        synchronized (this) {
+            flow = activate(key, weight);
+            if (freeSlots > 0 && numWaiting == 0) {
+                grant(flow);
+            } else {
+                final Waiter waiter = new Waiter();
+                flow.waiting.add(waiter);
+                numWaiting++;
+                grantFreeSlots();
+                while (!waiter.granted) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        if (waiter.granted) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                        flow.waiting.remove(waiter);
+                        numWaiting--;
+                        deactivateIfIdle(flow);
+                        throw e;
+                    }
+                }
+            }
+        }
+        currentSlot.set(new Slot(this, flow, System.nanoTime()));
+    }
+
+    private void release() {
+        final Slot slot = currentSlot.get();
+        if (slot == null) {
+            throw new IllegalStateException("calling thread does not hold a slot");
+        }
+        currentSlot.remove();
+        synchronized (this) {
+            charge(slot, System.nanoTime());
+            release(slot.flow);
+        }
+    }
+
+    private void release(FlowState flow) {
+        flow.running--;
+        freeSlots++;
+        deactivateIfIdle(flow);
+        grantFreeSlots();
+    }
+
+    private void charge(Slot slot, long now) {
+        slot.flow.charge += (now - slot.startNanos) / slot.flow.weight;
+        slot.startNanos = now;
+    }
+
+    private FlowState activate(String key, double weight) {
+        FlowState flow = flows.get(key);
+        if (flow == null) {
+            flow = new FlowState(key, weight, virtualTime);
+            flows.put(key, flow);
+        } else if (flow.isIdle()) {
+            flow.charge = Math.max(flow.charge, virtualTime);
+        }
+        return flow;
+    }
+
+    private void deactivateIfIdle(FlowState flow) {
+        // flows still in debt are remembered so that going idle for a moment does not clear their charge
+        if (flow.isIdle() && flow.charge <= virtualTime) {
+            flows.remove(flow.key);
+        }
+    }
+
+    private void grant(FlowState flow) {
+        flow.running++;
+        freeSlots--;
+        virtualTime = Math.max(virtualTime, flow.charge);
+    }
+
+    private void grantFreeSlots() {
+        boolean granted = false;
+        while (freeSlots > 0 && numWaiting > 0) {
+            FlowState next = null;
+            for (final FlowState flow : flows.values()) {
+                if (!flow.waiting.isEmpty() && (next == null || flow.charge < next.charge)) {
+                    next = flow;
+                }
+            }
+            next.waiting.poll().granted = true;
+            numWaiting--;
+            grant(next);
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * units of work done on behalf of one user at one priority
+     */
+    public static final class Flow {
+        private final WeightedFairScheduler scheduler;
+        private final String key;
+        private final double weight;
+
+        private Flow(WeightedFairScheduler scheduler, String key, double weight) {
+            this.scheduler = scheduler;
+            this.key = key;
+            this.weight = weight;
+        }
+
+        /**
+         * blocks until a slot is available to this flow and binds it to the calling thread.
+         * @return false without waiting if the calling thread already holds a slot, in which case {@link #release}
+         *         must not be called
+         */
+        public boolean acquire() throws InterruptedException {
+            if (currentSlot.get() != null) {
+                return false;
+            }
+            scheduler.acquire(key, weight);
+            return true;
+        }
+
+        /**
+         * gives back the slot bound to the calling thread by {@link #acquire}
+         */
+        public void release() {
+            scheduler.release();
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+
+    private static final class FlowState {
+        final String key;
+        final double weight;
+        final ArrayDeque<Waiter> waiting = new ArrayDeque<Waiter>();
+        double charge;
+        int running = 0;
+
+        FlowState(String key, double weight, double charge) {
+            this.key = key;
+            this.weight = weight;
+            this.charge = charge;
+        }
+
+        boolean isIdle() {
+            return running == 0 && waiting.isEmpty();
+        }
+    }
+
+    private static final class Waiter {
+        boolean granted = false;
+    }
+
+    private static final class Slot {
+        final WeightedFairScheduler scheduler;
+        final FlowState flow;
+        long startNanos;
+
+        Slot(WeightedFairScheduler scheduler, FlowState flow, long startNanos) {
+            this.scheduler = scheduler;
+            this.flow = flow;
+            this.startNanos = startNanos;
+        }
+    }
+}
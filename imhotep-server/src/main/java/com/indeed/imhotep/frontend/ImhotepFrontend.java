@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.frontend;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.ImhotepStatusDump;
+import com.indeed.imhotep.client.ImhotepClient;
+import com.indeed.imhotep.frontend.protobuf.ImhotepFrontendRequest;
+import com.indeed.imhotep.frontend.protobuf.ImhotepFrontendResponse;
+import com.indeed.imhotep.io.ImhotepProtobufShipping;
+import com.indeed.imhotep.io.Streams;
+import org.apache.log4j.Logger;
+import org.apache.log4j.NDC;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves {@link ImhotepFrontendRequest}s over {@link ImhotepClient} sessions.
+ *
+ * TOP_TERMS waits for the whole request to finish. START_TOP_TERMS returns as soon as the shards are submitted and
+ * POLL_TOP_TERMS with the same request id returns the top terms of the shards finished so far, until a poll returns
+ * the final result. Jobs that nobody polls for the job timeout are cancelled and dropped.
+ */
+public class ImhotepFrontend {
+    private static final Logger log = Logger.getLogger(ImhotepFrontend.class);
+
+    public static final int DEFAULT_SHARD_THREADS = 16;
+    public static final long DEFAULT_JOB_TIMEOUT_MINUTES = 10;
+
+    private final ServerSocket ss;
+    private final ImhotepClient client;
+    private final long jobTimeoutMillis;
+
+    private final ExecutorService executor;
+    private final ExecutorService shardExecutor;
+    private final ScheduledExecutorService expirer;
+
+    private final ConcurrentMap<String, TopTermsJob> jobs = new ConcurrentHashMap<String, TopTermsJob>();
+
+    private final AtomicBoolean isShutdown = new AtomicBoolean(false);
+
+    public ImhotepFrontend(ServerSocket ss, ImhotepClient client, int shardThreads, long jobTimeout, TimeUnit unit) {
+        this.ss = ss;
+        this.client = client;
+        this.jobTimeoutMillis = unit.toMillis(jobTimeout);
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("ImhotepFrontendWorker-%d").build());
+        shardExecutor = Executors.newFixedThreadPool(shardThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ImhotepFrontend-ShardWorker-%d").build());
+        expirer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ImhotepFrontend-JobExpirer").build());
+        expirer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expireJobs();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void run() {
+        NDC.push("main");
+
+        try {
+            log.info("starting up frontend");
+            while (!ss.isClosed()) {
+                try {
+                    final Socket socket = ss.accept();
+                    socket.setSoTimeout(60000);
+                    socket.setTcpNoDelay(true);
+                    executor.execute(new FrontendWorker(socket));
+                } catch (IOException e) {
+                    log.warn("server socket error", e);
+                }
+            }
+        } finally {
+            NDC.pop();
+        }
+    }
+
+    private class FrontendWorker implements Runnable {
+        private final Socket socket;
+
+        private FrontendWorker(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            NDC.push("FrontendWorker(" + socket.getRemoteSocketAddress() + ")");
+            try {
+                final InputStream is = Streams.newBufferedInputStream(socket.getInputStream());
+                final OutputStream os = Streams.newBufferedOutputStream(socket.getOutputStream());
+                try {
+                    final ImhotepFrontendRequest request = ImhotepProtobufShipping.readFrontendRequest(is);
+                    ImhotepFrontendResponse response;
+                    try {
+                        response = handle(request);
+                    } catch (IllegalArgumentException e) {
+                        log.warn("invalid request", e);
+                        response = errorResponse(request, ImhotepFrontendResponse.ResponseCode.INVALID_REQUEST, e);
+                    } catch (RuntimeException e) {
+                        log.error("exception while servicing request", e);
+                        response = errorResponse(request, ImhotepFrontendResponse.ResponseCode.UNSPECIFIED_ERROR, e);
+                    }
+                    ImhotepProtobufShipping.sendProtobuf(response, os);
+                    if (request.getRequestType() == ImhotepFrontendRequest.RequestType.SHUTDOWN) {
+                        shutdown();
+                    }
+                } finally {
+                    close(socket);
+                }
+            } catch (IOException e) {
+                log.warn("IOException while servicing request", e);
+            } finally {
+                NDC.pop();
+            }
+        }
+    }
+
+    ImhotepFrontendResponse handle(ImhotepFrontendRequest request) {
+        final ImhotepFrontendResponse.Builder builder = ImhotepFrontendResponse.newBuilder();
+        if (request.hasRequestId()) {
+            builder.setRequestId(request.getRequestId());
+        }
+        switch (request.getRequestType()) {
+            case TOP_TERMS: {
+                final TopTermsJob job = new TopTermsJob(newRequestId(request), request);
+                job.start(client, shardExecutor);
+                try {
+                    job.await();
+                } catch (InterruptedException e) {
+                    job.cancel();
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("interrupted while waiting for top terms", e);
+                }
+                return job.toResponse();
+            }
+            case START_TOP_TERMS: {
+                final TopTermsJob job = new TopTermsJob(newRequestId(request), request);
+                if (jobs.putIfAbsent(job.getRequestId(), job) != null) {
+                    throw new IllegalArgumentException("request id already in use: " + job.getRequestId());
+                }
+                try {
+                    job.start(client, shardExecutor);
+                } catch (RuntimeException e) {
+                    jobs.remove(job.getRequestId(), job);
+                    throw e;
+                }
+                return job.toResponse();
+            }
+            case POLL_TOP_TERMS: {
+                final TopTermsJob job = request.hasRequestId() ? jobs.get(request.getRequestId()) : null;
+                if (job == null) {
+                    throw new IllegalArgumentException("no running top terms request with id " + request.getRequestId());
+                }
+                job.touch();
+                final ImhotepFrontendResponse response = job.toResponse();
+                if (response.getResponseCode() != ImhotepFrontendResponse.ResponseCode.STILL_RUNNING) {
+                    // the final result has been handed out
+                    jobs.remove(job.getRequestId(), job);
+                }
+                return response;
+            }
+            case GET_STATUS_DUMPS:
+                for (final ImhotepStatusDump statusDump : client.getStatusDumps().values()) {
+                    builder.addStatusDump(statusDump.toProto());
+                }
+                return builder.build();
+            case GET_SHARD_LIST:
+                for (final DatasetInfo datasetInfo : client.getDatasetToShardList().values()) {
+                    builder.addDatasetInfo(datasetInfo.toProto());
+                }
+                return builder.build();
+            case SHUTDOWN:
+                log.info("shutdown request received");
+                return builder.build();
+            default:
+                throw new IllegalArgumentException("unsupported request type: " + request.getRequestType());
+        }
+    }
+
+    private static String newRequestId(ImhotepFrontendRequest request) {
+        return request.hasRequestId() ? request.getRequestId() : UUID.randomUUID().toString();
+    }
+
+    private static ImhotepFrontendResponse errorResponse(ImhotepFrontendRequest request,
+                                                         ImhotepFrontendResponse.ResponseCode code,
+                                                         Exception e) {
+        final ImhotepFrontendResponse.Builder builder = ImhotepFrontendResponse.newBuilder()
+                .setResponseCode(code)
+                .setErrorMessage(e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+        if (request.hasRequestId()) {
+            builder.setRequestId(request.getRequestId());
+        }
+        return builder.build();
+    }
+
+    private void expireJobs() {
+        final long now = System.currentTimeMillis();
+        final Iterator<TopTermsJob> it = jobs.values().iterator();
+        while (it.hasNext()) {
+            final TopTermsJob job = it.next();
+            if (now - job.getLastAccessMillis() > jobTimeoutMillis) {
+                log.info("dropping top terms request " + job.getRequestId() + " that has not been polled in " + jobTimeoutMillis + " ms");
+                it.remove();
+                job.cancel();
+            }
+        }
+    }
+
+    public void shutdown() {
+        if (!isShutdown.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ss.close();
+        } catch (IOException e) {
+            log.error("error closing server socket", e);
+        }
+        expirer.shutdownNow();
+        for (final TopTermsJob job : jobs.values()) {
+            job.cancel();
+        }
+        jobs.clear();
+        shardExecutor.shutdownNow();
+        executor.shutdown();
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.error("error closing imhotep client", e);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.warn("error closing Socket", e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 9010;
+        String hostsFile = null;
+        String zkNodes = null;
+        String zkPath = null;
+        int shardThreads = DEFAULT_SHARD_THREADS;
+        long jobTimeoutMinutes = DEFAULT_JOB_TIMEOUT_MINUTES;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--hosts")) {
+                hostsFile = args[++i];
+            } else if (args[i].equals("--zknodes")) {
+                zkNodes = args[++i];
+            } else if (args[i].equals("--zkpath")) {
+                zkPath = args[++i];
+            } else if (args[i].equals("--threads")) {
+                shardThreads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--jobTimeoutMinutes")) {
+                jobTimeoutMinutes = Long.parseLong(args[++i]);
+            } else {
+                throw new RuntimeException("unrecognized arg: " + args[i]);
+            }
+        }
+        if ((hostsFile == null) == (zkNodes == null)) {
+            System.err.println("ARGS: (--hosts hostsFile | --zknodes zknodes [--zkpath zkpath]) [--port port] "
+                    + "[--threads shardThreads] [--jobTimeoutMinutes minutes]");
+            System.exit(1);
+        }
+
+        final ImhotepClient client = hostsFile != null
+                ? new ImhotepClient(hostsFile)
+                : zkPath != null ? new ImhotepClient(zkNodes, zkPath, true) : new ImhotepClient(zkNodes, true);
+        final ImhotepFrontend frontend = new ImhotepFrontend(new ServerSocket(port), client, shardThreads,
+                                                             jobTimeoutMinutes, TimeUnit.MINUTES);
+        try {
+            frontend.run();
+        } finally {
+            frontend.shutdown();
+        }
+    }
+}
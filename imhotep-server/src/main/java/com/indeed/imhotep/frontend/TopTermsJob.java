@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.frontend;
+
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
+import com.indeed.flamdex.query.BooleanOp;
+import com.indeed.flamdex.query.Query;
+import com.indeed.flamdex.query.Term;
+import com.indeed.imhotep.QueryRemapRule;
+import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import com.indeed.imhotep.api.ImhotepSession;
+import com.indeed.imhotep.client.ImhotepClient;
+import com.indeed.imhotep.client.ShardIdWithVersion;
+import com.indeed.imhotep.frontend.protobuf.ImhotepFrontendRequest;
+import com.indeed.imhotep.frontend.protobuf.ImhotepFrontendResponse;
+import com.indeed.imhotep.frontend.protobuf.TermStatsMessage;
+import com.indeed.imhotep.frontend.protobuf.TimingMessage;
+import com.indeed.imhotep.marshal.ImhotepClientMarshaller;
+import com.indeed.imhotep.marshal.ImhotepDaemonMarshaller;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A top terms request running over the shards of a dataset with one session per shard.
+ *
+ * The stats of each shard are merged into the job as soon as the shard finishes, so {@link #toResponse} gives the top
+ * terms of the shards done so far while the slower ones are still running. Start and end times are in milliseconds.
+ */
+final class TopTermsJob {
+    private static final Logger log = Logger.getLogger(TopTermsJob.class);
+
+    private static final String DEFAULT_METRIC = "count()";
+
+    private final String requestId;
+    private final ImhotepFrontendRequest request;
+    private final List<String> metrics;
+    private final String[] intFields;
+    private final String[] stringFields;
+    private final Query query;
+    private final Comparator<Map.Entry<Term, long[]>> rankOrder;
+    private final Comparator<Map.Entry<Term, long[]>> resultOrder;
+    private final long startMillis;
+
+    // guarded by this
+    private final Map<Term, long[]> termStats = Maps.newHashMap();
+    private final long[] totalStats;
+    private final Map<String, Long> shardMillis = Maps.newLinkedHashMap();
+    private final List<Future<?>> futures = Lists.newArrayList();
+    private int numShards = 0;
+    private int shardsRemaining = 0;
+    private Throwable error = null;
+    private long finishMillis = -1;
+
+    private volatile long lastAccessMillis;
+
+    /**
+     * @throws IllegalArgumentException if the request is not a valid top terms request
+     */
+    TopTermsJob(String requestId, ImhotepFrontendRequest request) {
+        if (!request.hasDataset()) {
+            throw new IllegalArgumentException("no dataset");
+        }
+        if (request.hasSecondaryDataset()) {
+            throw new IllegalArgumentException("top terms joined with a secondary dataset are not supported");
+        }
+        if (request.getIntFieldCount() + request.getStrFieldCount() == 0) {
+            throw new IllegalArgumentException("no fields");
+        }
+        if (request.getSubstringFilterMatchCount() > request.getSubstringFilterCount()) {
+            throw new IllegalArgumentException("more substring filter matches than substring filters");
+        }
+        this.requestId = requestId;
+        this.request = request;
+        metrics = request.getMetricCount() > 0 ? request.getMetricList() : Collections.singletonList(DEFAULT_METRIC);
+        intFields = request.getIntFieldList().toArray(new String[request.getIntFieldCount()]);
+        stringFields = request.getStrFieldList().toArray(new String[request.getStrFieldCount()]);
+        query = buildQuery(request);
+        rankOrder = statOrder(request.hasSortStatIndex() ? request.getSortStatIndex() : 0,
+                              request.hasSortDivideStatIndex() ? request.getSortDivideStatIndex() : -1,
+                              request.getReverseSort());
+        resultOrder = request.hasResultsSortStatIndex()
+                ? statOrder(request.getResultsSortStatIndex(),
+                            request.hasResultsSortDivideStatIndex() ? request.getResultsSortDivideStatIndex() : -1,
+                            request.getResultsReverseSort())
+                : rankOrder;
+        totalStats = new long[metrics.size()];
+        startMillis = System.currentTimeMillis();
+        lastAccessMillis = startMillis;
+    }
+
+    private static Query buildQuery(ImhotepFrontendRequest request) {
+        final List<Query> clauses = Lists.newArrayList();
+        if (request.hasQuery()) {
+            clauses.add(ImhotepDaemonMarshaller.marshal(request.getQuery()));
+        }
+        if (request.getAddTimeToQuery()) {
+            clauses.add(Query.newRangeQuery(request.getTimeFieldName(),
+                                            request.getStartTime() / 1000,
+                                            request.getEndTime() / 1000,
+                                            false));
+        }
+        if (clauses.isEmpty()) {
+            return null;
+        }
+        return clauses.size() == 1 ? clauses.get(0) : Query.newBooleanQuery(BooleanOp.AND, clauses);
+    }
+
+    // the largest values come first unless reversed
+    private Comparator<Map.Entry<Term, long[]>> statOrder(final int statIndex, final int divideIndex, final boolean reverse) {
+        checkStatIndex(statIndex);
+        if (divideIndex >= 0) {
+            checkStatIndex(divideIndex);
+        }
+        return new Comparator<Map.Entry<Term, long[]>>() {
+            @Override
+            public int compare(Map.Entry<Term, long[]> o1, Map.Entry<Term, long[]> o2) {
+                final long[] s1 = o1.getValue();
+                final long[] s2 = o2.getValue();
+                int cmp = divideIndex >= 0
+                        ? Doubles.compare(ratio(s2, statIndex, divideIndex), ratio(s1, statIndex, divideIndex))
+                        : Longs.compare(s2[statIndex], s1[statIndex]);
+                if (reverse) {
+                    cmp = -cmp;
+                }
+                return cmp != 0 ? cmp : compareTerms(o1.getKey(), o2.getKey());
+            }
+        };
+    }
+
+    private void checkStatIndex(int statIndex) {
+        if (statIndex < 0 || statIndex >= (request.getMetricCount() > 0 ? request.getMetricCount() : 1)) {
+            throw new IllegalArgumentException("stat index out of range: " + statIndex);
+        }
+    }
+
+    private static double ratio(long[] stats, int statIndex, int divideIndex) {
+        return stats[divideIndex] != 0 ? (double) stats[statIndex] / stats[divideIndex] : 0;
+    }
+
+    private static int compareTerms(Term t1, Term t2) {
+        return ComparisonChain.start()
+                .compare(t1.getFieldName(), t2.getFieldName())
+                .compare(t1.getTermIntVal(), t2.getTermIntVal())
+                .compare(t1.getTermStringVal(), t2.getTermStringVal(), Ordering.natural().nullsFirst())
+                .result();
+    }
+
+    String getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * submits a task per shard of the requested time range
+     */
+    void start(final ImhotepClient client, ExecutorService executor) {
+        final DateTime start = new DateTime(request.getStartTime());
+        final DateTime end = new DateTime(request.getEndTime());
+        final List<ShardIdWithVersion> shards = client.findShardsForTimeRange(request.getDataset(), start, end);
+        synchronized (this) {
+            setNumShards(shards.size());
+            for (final ShardIdWithVersion shard : shards) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        runShard(client, shard.getShardId(), start, end);
+                    }
+                }));
+            }
+        }
+        log.info("started top terms request " + requestId + " on " + shards.size() + " shards of " + request.getDataset());
+    }
+
+    synchronized void setNumShards(int numShards) {
+        this.numShards = numShards;
+        shardsRemaining = numShards;
+        if (numShards == 0) {
+            finishMillis = System.currentTimeMillis();
+        }
+    }
+
+    private void runShard(ImhotepClient client, String shardId, DateTime start, DateTime end) {
+        if (isDone()) {
+            return;
+        }
+        final long shardStart = System.currentTimeMillis();
+        try {
+            final ImhotepClient.SessionBuilder builder = client.sessionBuilder(request.getDataset(), start, end)
+                    .shardsOverride(Collections.singletonList(shardId));
+            if (request.getMergeThreadLimit() > 0) {
+                builder.mergeThreadLimit(request.getMergeThreadLimit());
+            }
+            if (request.hasUsername()) {
+                builder.username(request.getUsername());
+            }
+            final ImhotepSession session = builder.build();
+            final ShardResult result;
+            try {
+                result = evaluate(session);
+            } finally {
+                session.close();
+            }
+            addShardResult(shardId, result, System.currentTimeMillis() - shardStart);
+        } catch (ImhotepOutOfMemoryException e) {
+            fail(shardId, e);
+        } catch (RuntimeException e) {
+            fail(shardId, e);
+        }
+    }
+
+    ShardResult evaluate(ImhotepSession session) throws ImhotepOutOfMemoryException {
+        if (query != null) {
+            session.regroup(new QueryRemapRule(1, query, 0, 1));
+        }
+        session.pushStats(metrics);
+
+        final ShardResult result = new ShardResult(metrics.size());
+        for (int i = 0; i < metrics.size(); ++i) {
+            final long[] groupStats = session.getGroupStats(i);
+            result.totalStats[i] = groupStats.length > 1 ? groupStats[1] : 0;
+        }
+
+        final FTGSIterator iterator = session.getFTGSIterator(intFields, stringFields);
+        try {
+            while (iterator.nextField()) {
+                final String field = iterator.fieldName();
+                final boolean isIntField = iterator.fieldIsIntType();
+                while (iterator.nextTerm()) {
+                    final Term term = isIntField
+                            ? Term.intTerm(field, iterator.termIntVal())
+                            : Term.stringTerm(field, iterator.termStringVal());
+                    if (!matchesSubstringFilters(isIntField ? Long.toString(term.getTermIntVal()) : term.getTermStringVal())) {
+                        continue;
+                    }
+                    while (iterator.nextGroup()) {
+                        if (iterator.group() == 1) {
+                            final long[] stats = new long[metrics.size()];
+                            iterator.groupStats(stats);
+                            result.termStats.put(term, stats);
+                        }
+                    }
+                }
+            }
+        } finally {
+            iterator.close();
+        }
+        return result;
+    }
+
+    private boolean matchesSubstringFilters(String term) {
+        for (int i = 0; i < request.getSubstringFilterCount(); ++i) {
+            final boolean match = i < request.getSubstringFilterMatchCount() ? request.getSubstringFilterMatch(i) : true;
+            if (term.contains(request.getSubstringFilter(i)) != match) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized void addShardResult(String shardId, ShardResult result, long millis) {
+        if (error != null) {
+            return;
+        }
+        for (final Map.Entry<Term, long[]> entry : result.termStats.entrySet()) {
+            final long[] stats = termStats.get(entry.getKey());
+            if (stats == null) {
+                termStats.put(entry.getKey(), entry.getValue());
+            } else {
+                add(stats, entry.getValue());
+            }
+        }
+        add(totalStats, result.totalStats);
+        shardMillis.put(shardId, millis);
+        if (--shardsRemaining == 0) {
+            finishMillis = System.currentTimeMillis();
+            log.info("finished top terms request " + requestId + " in " + (finishMillis - startMillis) + " ms");
+        }
+        notifyAll();
+    }
+
+    private static void add(long[] to, long[] from) {
+        for (int i = 0; i < to.length; ++i) {
+            to[i] += from[i];
+        }
+    }
+
+    void fail(String shardId, Throwable t) {
+        synchronized (this) {
+            if (error != null) {
+                return;
+            }
+            log.warn("top terms request " + requestId + " failed on shard " + shardId, t);
+            error = t;
+            finishMillis = System.currentTimeMillis();
+            notifyAll();
+        }
+        cancel();
+    }
+
+    void cancel() {
+        final List<Future<?>> toCancel;
+        synchronized (this) {
+            toCancel = new ArrayList<Future<?>>(futures);
+        }
+        for (final Future<?> future : toCancel) {
+            future.cancel(true);
+        }
+    }
+
+    synchronized boolean isDone() {
+        return error != null || finishMillis >= 0;
+    }
+
+    synchronized void await() throws InterruptedException {
+        while (!isDone()) {
+            wait();
+        }
+    }
+
+    void touch() {
+        lastAccessMillis = System.currentTimeMillis();
+    }
+
+    long getLastAccessMillis() {
+        return lastAccessMillis;
+    }
+
+    /**
+     * @return the top terms of the shards finished so far, STILL_RUNNING until every shard is done
+     */
+    synchronized ImhotepFrontendResponse toResponse() {
+        final ImhotepFrontendResponse.Builder builder = ImhotepFrontendResponse.newBuilder().setRequestId(requestId);
+        if (error != null) {
+            final ImhotepFrontendResponse.ResponseCode code = error instanceof ImhotepOutOfMemoryException
+                    ? ImhotepFrontendResponse.ResponseCode.OUT_OF_MEMORY
+                    : ImhotepFrontendResponse.ResponseCode.UNSPECIFIED_ERROR;
+            return builder.setResponseCode(code)
+                    .setErrorMessage(String.valueOf(error.getMessage()))
+                    .build();
+        }
+
+        builder.setResponseCode(isDone() ? ImhotepFrontendResponse.ResponseCode.OK : ImhotepFrontendResponse.ResponseCode.STILL_RUNNING)
+               .setProgress(numShards > 0 ? (double) (numShards - shardsRemaining) / numShards : 1.0)
+               .setTermCount(termStats.size())
+               .addAllTotalStat(Longs.asList(totalStats));
+        for (final Map.Entry<Term, long[]> entry : topTerms()) {
+            builder.addTopTerm(TermStatsMessage.newBuilder()
+                                               .setTerm(ImhotepClientMarshaller.marshal(entry.getKey()))
+                                               .addAllStat(Longs.asList(entry.getValue())));
+        }
+
+        final TimingMessage.Builder timing = TimingMessage.newBuilder()
+                .setName("top terms")
+                .setTimeMillis((finishMillis >= 0 ? finishMillis : System.currentTimeMillis()) - startMillis);
+        for (final Map.Entry<String, Long> entry : shardMillis.entrySet()) {
+            timing.addChild(TimingMessage.newBuilder().setName(entry.getKey()).setTimeMillis(entry.getValue()));
+        }
+        return builder.setTiming(timing).build();
+    }
+
+    // keeps the k best terms in a heap whose head is the worst of them
+    private List<Map.Entry<Term, long[]>> topTerms() {
+        final int k = request.getK() > 0 ? request.getK() : Integer.MAX_VALUE;
+        final PriorityQueue<Map.Entry<Term, long[]>> heap =
+                new PriorityQueue<Map.Entry<Term, long[]>>(Math.max(1, Math.min(k, termStats.size())), Collections.reverseOrder(rankOrder));
+        for (final Map.Entry<Term, long[]> entry : termStats.entrySet()) {
+            if (heap.size() < k) {
+                heap.add(entry);
+            } else if (rankOrder.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        final List<Map.Entry<Term, long[]>> ret = new ArrayList<Map.Entry<Term, long[]>>(heap);
+        Collections.sort(ret, resultOrder);
+        return ret;
+    }
+
+    static final class ShardResult {
+        final Map<Term, long[]> termStats = Maps.newHashMap();
+        final long[] totalStats;
+
+        ShardResult(int numStats) {
+            totalStats = new long[numStats];
+        }
+    }
+}
@@ -36,7 +36,7 @@ public class Shard implements Closeable {
     private static final Logger log = Logger.getLogger(Shard.class);
 
     private final ReloadableSharedReference<CachedFlamdexReader, IOException> ref;
-    private final SharedReference<ReadLock> readLock;
+    private final @Nullable SharedReference<ReadLock> readLock;
     private final ShardId shardId;
     private final int numDocs;
     private final Collection<String> intFields;
@@ -45,7 +45,7 @@ public class Shard implements Closeable {
     private boolean closed = false;
 
     public Shard(final ReloadableSharedReference<CachedFlamdexReader, IOException> ref,
-                  final SharedReference<ReadLock> readLock,
+                  final @Nullable SharedReference<ReadLock> readLock,
                   final long shardVersion,
                   final String indexDir,
                   final String dataset,
@@ -128,7 +128,10 @@ public class Shard implements Closeable {
     public synchronized void close() throws IOException {
         if (!closed) {
             closed = true;
-            readLock.close();
+            // live shards are not backed by a directory and have no lock
+            if (readLock != null) {
+                readLock.close();
+            }
         }
     }
 }
@@ -28,31 +28,40 @@ import com.indeed.imhotep.io.caching.RemoteFileSystem.RemoteFileInfo;
 public class CachedFile {
     public static final String DELIMITER = "/";
     public static final int CHAR_DELIMITER = '/';
-    private static RemoteFileSystemMounter mounter = null;
+    private static volatile RemoteFileSystemMounter mounter = null;
     
     protected String fullPath;
     protected RemoteFileInfo info;
     protected RemoteFileSystem topFS;
     
 
-    public static final synchronized CachedFile create(String path) {
-        CachedFile ret;
-        
-        if (mounter == null) {
-            try {
-                mounter = new RemoteFileSystemMounter(null, "/", true);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+    public static final CachedFile create(String path) {
+        final CachedFile ret;
         
         ret = new CachedFile();
         ret.info = null;
         ret.fullPath = path;
-        ret.topFS = mounter.getTopFileSystem();
+        ret.topFS = getMounter().getTopFileSystem();
         
         return ret;
     }
+
+    private static RemoteFileSystemMounter getMounter() {
+        final RemoteFileSystemMounter current = mounter;
+        if (current != null) {
+            return current;
+        }
+        synchronized (CachedFile.class) {
+            if (mounter == null) {
+                try {
+                    mounter = new RemoteFileSystemMounter(null, "/", true);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return mounter;
+        }
+    }
     
     public static final synchronized void initWithFile(String filename, 
                                                        String root) throws IOException {
@@ -149,6 +158,13 @@ public class CachedFile {
     public File loadFile() throws IOException {
         return topFS.loadFile(fullPath);
     }
+
+    /*
+     * Returns null if the file has to be loaded whole with loadFile
+     */
+    public PagedFile loadFilePaged() throws IOException {
+        return topFS.loadFilePaged(fullPath);
+    }
     
     public File loadDirectory() throws IOException {
         final Map<String,File> data;
@@ -166,14 +182,12 @@ public class CachedFile {
     }
 
     public long length() {
-        File f;
         try {
-            f = topFS.loadFile(fullPath);
+            return topFS.getFileLength(fullPath);
         } catch (IOException e) {
             e.printStackTrace();
             return 0L;
         }
-        return f.length();
     }
 
     public static String buildPath(String directory, String filename) {
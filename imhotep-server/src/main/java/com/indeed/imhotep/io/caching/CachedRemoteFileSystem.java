@@ -20,9 +20,11 @@ import java.io.InputStream;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.FileFilterUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 
 import com.google.common.cache.CacheBuilder;
@@ -34,11 +36,27 @@ import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
 
 public class CachedRemoteFileSystem extends RemoteFileSystem {
+    /* sparse copies of files read a page at a time, under the cache dir */
+    private static final String PAGED_DIR = ".paged";
+
     private RemoteFileSystem parentFS;
     private String mountPoint;
     private RemoteFileSystemMounter mounter;
     private File localCacheDir;
     private LoadingCache<String, File> cache;
+    private File pagedDir;
+    /*
+     * paged copies by cache key, each also has a cache entry weighed by the
+     * pages it holds. The map is read by the weigher, so it must not need
+     * pagedFilesLock.
+     */
+    private final Map<String, PagedFile> pagedFiles = new ConcurrentHashMap<String, PagedFile>();
+    private final Object pagedFilesLock = new Object();
+    private final PagedFile.Listener pagedFileListener = new PagedFile.Listener() {
+        public void pagesFetched(PagedFile pagedFile) {
+            reweigh(pagedFile);
+        }
+    };
 
     public CachedRemoteFileSystem(Map<String,Object> settings, 
                                   RemoteFileSystem parentFS,
@@ -61,6 +79,7 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
         /* create directory if it does not already exist */
         localCacheDir = new File(cacheDir);
         localCacheDir.mkdir();
+        pagedDir = new File(localCacheDir, PAGED_DIR);
         
         cacheSize = (Integer)settings.get("cacheSizeMB");
 
@@ -70,8 +89,14 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
                             .maximumWeight(cacheSize * 1024)
                             .weigher(new Weigher<String, File>() {
                                 public int weigh(String path, File cachedFile) {
+                                    final PagedFile pagedFile = pagedFiles.get(path);
                                     int kb;
-                                    kb = (int)(cachedFile.length() / 1024);
+                                    if (pagedFile != null && pagedFile.getFile() == cachedFile) {
+                                        /* sparse, only the fetched pages take space */
+                                        kb = (int)(pagedFile.loadedBytes() / 1024);
+                                    } else {
+                                        kb = (int)(cachedFile.length() / 1024);
+                                    }
                                     /* don't return weights of 0 */
                                     if (kb == 0) {
                                         kb = 1;
@@ -85,6 +110,10 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
                                         /* don't delete replaced files */
                                         return;
                                     }
+                                    if (rn.getKey().startsWith(PAGED_DIR)) {
+                                        evictPagedFile(rn.getKey(), rn.getValue());
+                                        return;
+                                    }
                                     removeFile(rn.getValue());
                                 }
                             })
@@ -104,7 +133,8 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
         prefixLen = localCacheDir.getCanonicalPath().length() + DELIMITER.length();
         filesInCache = FileUtils.iterateFiles(localCacheDir, 
                                               TrueFileFilter.INSTANCE, 
-                                              TrueFileFilter.INSTANCE);
+                                              FileFilterUtils.notFileFilter(
+                                                      FileFilterUtils.nameFileFilter(PAGED_DIR)));
         while (filesInCache.hasNext()) {
             final File cachedFile = filesInCache.next();
             final String path = cachedFile.getCanonicalPath();
@@ -139,6 +169,66 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
         }
     }
 
+    @Override
+    public long getFileLength(String fullPath) throws IOException {
+        final File cachedFile;
+
+        cachedFile = cache.getIfPresent(fullPath);
+        if (cachedFile != null) {
+            return cachedFile.length();
+        }
+        return parentFS.getFileLength(fullPath);
+    }
+
+    /*
+     * Files already downloaded whole are read from the cache. Paged
+     * copies share the cache size with them, weighed by the pages they
+     * hold, and are deleted once evicted and no longer used.
+     */
+    @Override
+    public PagedFile loadFilePaged(String fullPath) throws IOException {
+        if (cache.getIfPresent(fullPath) != null) {
+            return null;
+        }
+        final String key = PAGED_DIR + fullPath;
+        synchronized (pagedFilesLock) {
+            PagedFile pagedFile = pagedFiles.get(key);
+            if (pagedFile == null || !pagedFile.acquire()) {
+                final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
+                pagedFile = new PagedFile(parentFS,
+                                          fullPath,
+                                          new File(pagedDir, relativePath),
+                                          parentFS.getFileLength(fullPath),
+                                          pagedFileListener);
+                pagedFile.acquire();
+                pagedFiles.put(key, pagedFile);
+                cache.put(key, pagedFile.getFile());
+            }
+            return pagedFile;
+        }
+    }
+
+    /* puts the entry of a paged copy again so that the cache weighs the pages just fetched */
+    private void reweigh(PagedFile pagedFile) {
+        final String key = PAGED_DIR + pagedFile.getFullPath();
+        synchronized (pagedFilesLock) {
+            if (pagedFiles.get(key) == pagedFile) {
+                cache.put(key, pagedFile.getFile());
+            }
+        }
+    }
+
+    private void evictPagedFile(String key, File file) {
+        synchronized (pagedFilesLock) {
+            final PagedFile pagedFile = pagedFiles.get(key);
+            /* an older copy's entry must not evict its replacement */
+            if (pagedFile != null && pagedFile.getFile() == file) {
+                pagedFiles.remove(key);
+                pagedFile.evict();
+            }
+        }
+    }
+
     @Override
     public String getMountPoint() {
         return this.mountPoint;
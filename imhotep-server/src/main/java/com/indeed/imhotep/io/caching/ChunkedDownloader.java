@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io.caching;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.util.varexport.Export;
+import com.indeed.util.varexport.VarExporter;
+
+/*
+ * Downloads a byte range of a remote file into a local file as chunks
+ * that are range read concurrently and written in place into the
+ * preallocated local file. A chunk whose stream fails is retried from
+ * where it stopped, up to a fixed number of attempts.
+ *
+ * Ranges no larger than a chunk are read on the calling thread.
+ */
+public final class ChunkedDownloader {
+    private static final Logger log = Logger.getLogger(ChunkedDownloader.class);
+
+    public static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    private static ChunkedDownloader defaultDownloader = null;
+
+    private final long chunkSize;
+    private final int maxAttempts;
+    private final ExecutorService executor;
+
+    private final AtomicLong filesDownloaded = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong chunksDownloaded = new AtomicLong();
+    private final AtomicLong chunkRetries = new AtomicLong();
+    private final AtomicLong downloadNanos = new AtomicLong();
+
+    public ChunkedDownloader(long chunkSize, int threads, int maxAttempts) {
+        if (chunkSize <= 0 || threads <= 0 || maxAttempts <= 0) {
+            throw new IllegalArgumentException("chunk size, threads and attempts must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.maxAttempts = maxAttempts;
+        this.executor = Executors.newFixedThreadPool(threads,
+                                                     new ThreadFactoryBuilder().setDaemon(true)
+                                                                               .setNameFormat("ChunkedDownloader-%d")
+                                                                               .build());
+    }
+
+    /*
+     * The downloader shared by the remote file systems, configured with
+     * the imhotep.download.chunk.bytes, imhotep.download.threads and
+     * imhotep.download.attempts system properties
+     */
+    public static synchronized ChunkedDownloader getDefault() {
+        if (defaultDownloader == null) {
+            defaultDownloader = new ChunkedDownloader(Long.getLong("imhotep.download.chunk.bytes", DEFAULT_CHUNK_SIZE),
+                                                      Integer.getInteger("imhotep.download.threads", DEFAULT_THREADS),
+                                                      Integer.getInteger("imhotep.download.attempts", DEFAULT_MAX_ATTEMPTS));
+            VarExporter.forNamespace(ChunkedDownloader.class.getSimpleName()).includeInGlobal().export(defaultDownloader, "");
+        }
+        return defaultDownloader;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /*
+     * Copies [offset, offset + length) of fullPath in source into
+     * localFile, which ends up exactly length bytes long
+     */
+    public void download(final RemoteFileSystem source,
+                         final String fullPath,
+                         final long offset,
+                         final long length,
+                         File localFile) throws IOException {
+        final long start = System.nanoTime();
+        final int numChunks = (int)Math.max(1, (length + chunkSize - 1) / chunkSize);
+        final RandomAccessFile raf = new RandomAccessFile(localFile, "rw");
+        try {
+            raf.setLength(length);
+            final FileChannel channel = raf.getChannel();
+            if (numChunks == 1) {
+                downloadChunk(source, fullPath, offset, 0, length, channel);
+            } else {
+                final List<Future<Void>> futures = new ArrayList<Future<Void>>(numChunks);
+                for (int i = 0; i < numChunks; i++) {
+                    final long chunkStart = i * chunkSize;
+                    final long chunkLength = Math.min(chunkSize, length - chunkStart);
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            downloadChunk(source, fullPath, offset, chunkStart, chunkLength, channel);
+                            return null;
+                        }
+                    }));
+                }
+                waitFor(futures, fullPath);
+            }
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+
+        final long elapsed = System.nanoTime() - start;
+        filesDownloaded.incrementAndGet();
+        bytesDownloaded.addAndGet(length);
+        downloadNanos.addAndGet(elapsed);
+        if (log.isDebugEnabled()) {
+            log.debug("downloaded " + length + " bytes of " + fullPath + " in " + numChunks + " chunks at " +
+                      megabytesPerSecond(length, elapsed) + " MB/s");
+        }
+    }
+
+    private void waitFor(List<Future<Void>> futures, String fullPath) throws IOException {
+        try {
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            cancel(futures);
+            throw new InterruptedIOException("interrupted while downloading " + fullPath);
+        } catch (ExecutionException e) {
+            cancel(futures);
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException("unable to download " + fullPath, e.getCause());
+        }
+    }
+
+    private static void cancel(List<Future<Void>> futures) {
+        for (final Future<Void> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private void downloadChunk(RemoteFileSystem source,
+                               String fullPath,
+                               long offset,
+                               long chunkStart,
+                               long chunkLength,
+                               FileChannel channel) throws IOException {
+        final byte[] buf = new byte[(int)Math.min(BUFFER_SIZE, Math.max(1, chunkLength))];
+        final long end = chunkStart + chunkLength;
+        long position = chunkStart;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                final InputStream is = source.getInputStreamForFile(fullPath, offset + position, end - position);
+                try {
+                    while (position < end) {
+                        final int n = is.read(buf, 0, (int)Math.min(buf.length, end - position));
+                        if (n < 0) {
+                            throw new EOFException("unexpected end of " + fullPath + " at offset " + (offset + position));
+                        }
+                        final ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                        while (bb.hasRemaining()) {
+                            position += channel.write(bb, position);
+                        }
+                    }
+                } finally {
+                    is.close();
+                }
+                chunksDownloaded.incrementAndGet();
+                return;
+            } catch (IOException e) {
+                if (attempt >= maxAttempts || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                chunkRetries.incrementAndGet();
+                log.warn("retrying " + fullPath + " from offset " + (offset + position) + " after attempt " + attempt, e);
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while downloading " + fullPath);
+                }
+            }
+        }
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        if (nanos <= 0) {
+            return 0;
+        }
+        return (bytes / (1024.0 * 1024.0)) / (nanos / (double)TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Export(name = "files-downloaded", doc = "number of files downloaded")
+    public long getFilesDownloaded() {
+        return filesDownloaded.get();
+    }
+
+    @Export(name = "bytes-downloaded", doc = "number of bytes downloaded")
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    @Export(name = "chunks-downloaded", doc = "number of chunks downloaded")
+    public long getChunksDownloaded() {
+        return chunksDownloaded.get();
+    }
+
+    @Export(name = "chunk-retries", doc = "number of chunk reads that failed and were retried")
+    public long getChunkRetries() {
+        return chunkRetries.get();
+    }
+
+    @Export(name = "download-mb-per-second", doc = "average download throughput per file in MB/s")
+    public double getMegabytesPerSecond() {
+        return megabytesPerSecond(bytesDownloaded.get(), downloadNanos.get());
+    }
+}
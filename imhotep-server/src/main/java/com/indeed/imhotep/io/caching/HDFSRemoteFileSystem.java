@@ -22,6 +22,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.log4j.Logger;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -30,6 +31,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 public class HDFSRemoteFileSystem extends RemoteFileSystem {
     private static final Logger log = Logger.getLogger(HDFSRemoteFileSystem.class);
@@ -66,6 +68,14 @@ public class HDFSRemoteFileSystem extends RemoteFileSystem {
     public void copyFileInto(String fullPath, File localFile) throws IOException {
         final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
         final Path hdfsPath = new Path(hdfsBasePath, relativePath);
+        final ChunkedDownloader downloader = ChunkedDownloader.getDefault();
+        final long length = fs.getFileStatus(hdfsPath).getLen();
+
+        /* large files are read from several datanodes at once */
+        if (length > downloader.getChunkSize()) {
+            downloader.download(this, fullPath, 0, length, localFile);
+            return;
+        }
         fs.copyToLocalFile(hdfsPath, new Path(localFile.getPath()));
     }
 
@@ -76,47 +86,82 @@ public class HDFSRemoteFileSystem extends RemoteFileSystem {
         return file;
     }
 
+    /*
+     * Returns null if file not found, answered from the metadata cache
+     * of the mounter when possible
+     */
     @Override
-    public RemoteFileInfo stat(String fullPath) {
+    public RemoteFileInfo stat(final String fullPath) {
+        final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
+        return mounter.getMetadataCache().stat(fullPath, relativePath, new Callable<RemoteFileInfo>() {
+            @Override
+            public RemoteFileInfo call() throws IOException {
+                return statRemote(fullPath);
+            }
+        });
+    }
+
+    /*
+     * null only if the file does not exist, other errors are thrown so that
+     * they are not cached as a missing file
+     */
+    private RemoteFileInfo statRemote(String fullPath) throws IOException {
         final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
         final Path hdfsPath = new Path(hdfsBasePath, relativePath);
+        final FileStatus status;
         try {
-            final FileStatus status = fs.getFileStatus(hdfsPath);
-            if (status.isDirectory()) {
-                return new RemoteFileInfo(relativePath, RemoteFileInfo.TYPE_DIR);
-            } else {
-                return new RemoteFileInfo(relativePath, RemoteFileInfo.TYPE_FILE);
-            }
-        } catch (final IOException e) {
-            log.error(e);
+            status = fs.getFileStatus(hdfsPath);
+        } catch (final FileNotFoundException e) {
             return null;
         }
+        if (status.isDirectory()) {
+            return new RemoteFileInfo(relativePath, RemoteFileInfo.TYPE_DIR);
+        } else {
+            return new RemoteFileInfo(relativePath, RemoteFileInfo.TYPE_FILE);
+        }
     }
 
     @Override
-    public List<RemoteFileInfo> readDir(String fullPath) {
+    public List<RemoteFileInfo> readDir(final String fullPath) {
+        return mounter.getMetadataCache().readDir(fullPath, new Callable<List<RemoteFileInfo>>() {
+            @Override
+            public List<RemoteFileInfo> call() throws IOException {
+                return readDirRemote(fullPath);
+            }
+        });
+    }
+
+    /*
+     * null only if the directory does not exist or is a file, other errors
+     * are thrown so that they are not cached as a missing directory
+     */
+    private List<RemoteFileInfo> readDirRemote(String fullPath) throws IOException {
         final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
         final Path hdfsPath = new Path(hdfsBasePath, relativePath);
 
+        final FileStatus[] contents;
         try {
-            final FileStatus[] contents = fs.listStatus(hdfsPath);
+            contents = fs.listStatus(hdfsPath);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        if (contents == null) {
+            return null;
+        }
 
-            final List<RemoteFileInfo> results = new ArrayList<>();
-            for (FileStatus status : contents) {
-                if (status.getPath().equals(hdfsPath) && !status.isDirectory()) {
-                    throw new IOException("Not a directory: " + fullPath);
-                }
-                if (status.isDirectory()) {
-                    results.add(new RemoteFileInfo(status.getPath().getName(), RemoteFileInfo.TYPE_DIR));
-                } else {
-                    results.add(new RemoteFileInfo(status.getPath().getName(), RemoteFileInfo.TYPE_FILE));
-                }
+        final List<RemoteFileInfo> results = new ArrayList<>();
+        for (FileStatus status : contents) {
+            if (status.getPath().equals(hdfsPath) && !status.isDirectory()) {
+                log.error("Not a directory: " + fullPath);
+                return null;
+            }
+            if (status.isDirectory()) {
+                results.add(new RemoteFileInfo(status.getPath().getName(), RemoteFileInfo.TYPE_DIR));
+            } else {
+                results.add(new RemoteFileInfo(status.getPath().getName(), RemoteFileInfo.TYPE_FILE));
             }
-            return results;
-        } catch (IOException e) {
-            log.error(e);
         }
-        return null;
+        return results;
     }
 
     @Override
@@ -154,6 +199,12 @@ public class HDFSRemoteFileSystem extends RemoteFileSystem {
         return results;
     }
 
+    @Override
+    public long getFileLength(String fullPath) throws IOException {
+        final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
+        return fs.getFileStatus(new Path(hdfsBasePath, relativePath)).getLen();
+    }
+
     @Override
     public InputStream getInputStreamForFile(String fullPath, long startOffset, long maxReadLength) throws IOException {
         final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io.caching;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+import org.apache.log4j.Logger;
+
+/*
+ * A sparse local copy of a remote file that is filled in one page at a
+ * time. Pages are fetched with range reads the first time they are
+ * needed, and the set of pages present is persisted in a bitmap file
+ * next to the copy so that it survives restarts.
+ *
+ * Callers must call ensureLoaded on a range before reading it from the
+ * local file, unfetched pages read as zeros. Different pages can be
+ * fetched by different threads at the same time.
+ */
+public final class PagedFile {
+    private static final Logger log = Logger.getLogger(PagedFile.class);
+
+    public static final int PAGE_SIZE = 1024 * 1024;
+    private static final String BITMAP_SUFFIX = ".pages";
+
+    /*
+     * Notified after pages have been fetched, so that the owner can
+     * account for the space the copy takes
+     */
+    public interface Listener {
+        void pagesFetched(PagedFile file);
+    }
+
+    private final RemoteFileSystem source;
+    private final String fullPath;
+    private final File file;
+    private final File bitmapFile;
+    private final long length;
+    private final int numPages;
+    private final Listener listener;
+
+    /*
+     * kept open so that fetches still reach the file mapped by readers
+     * after an evicted copy has been unlinked
+     */
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    /* pages present and pages some thread is fetching, guarded by pages */
+    private final BitSet pages;
+    private final BitSet fetching;
+    /* set once every page is present, so that loaded ranges need no locking */
+    private volatile boolean complete;
+
+    private final Object bitmapLock = new Object();
+
+    /* guarded by this */
+    private int users = 0;
+    private boolean evicted = false;
+
+    public PagedFile(RemoteFileSystem source,
+                     String fullPath,
+                     File file,
+                     long length) throws IOException {
+        this(source, fullPath, file, length, null);
+    }
+
+    public PagedFile(RemoteFileSystem source,
+                     String fullPath,
+                     File file,
+                     long length,
+                     Listener listener) throws IOException {
+        this.source = source;
+        this.fullPath = fullPath;
+        this.file = file;
+        this.bitmapFile = new File(file.getPath() + BITMAP_SUFFIX);
+        this.length = length;
+        this.numPages = (int)((length + PAGE_SIZE - 1) / PAGE_SIZE);
+        this.listener = listener;
+
+        /* create all the directories on the path to the file */
+        file.getParentFile().mkdirs();
+        this.pages = readBitmap();
+        this.fetching = new BitSet(numPages);
+        this.complete = pages.cardinality() == numPages;
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != length) {
+                /* extending leaves a hole, so unfetched pages take no space */
+                raf.setLength(length);
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        channel = raf.getChannel();
+    }
+
+    public String getFullPath() {
+        return fullPath;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /* the number of bytes of the file that have been fetched */
+    public long loadedBytes() {
+        synchronized (pages) {
+            return Math.min(length, (long)pages.cardinality() * PAGE_SIZE);
+        }
+    }
+
+    /*
+     * Fetches any pages overlapping [offset, offset + len) that are not
+     * present yet. Ranges past the end of the file are ignored. Pages
+     * another thread is already fetching are waited for rather than
+     * fetched again.
+     */
+    public void ensureLoaded(long offset, long len) throws IOException {
+        if (complete) {
+            return;
+        }
+        final long end = Math.min(length, offset + len);
+        if (offset < 0 || offset >= end) {
+            return;
+        }
+        final int firstPage = (int)(offset / PAGE_SIZE);
+        final int lastPage = (int)((end - 1) / PAGE_SIZE);
+
+        boolean fetched = false;
+        while (true) {
+            final int runStart;
+            int runEnd;
+            synchronized (pages) {
+                int page = pages.nextClearBit(firstPage);
+                if (page > lastPage) {
+                    break;
+                }
+                while (page <= lastPage && fetching.get(page)) {
+                    page = pages.nextClearBit(page + 1);
+                }
+                if (page > lastPage) {
+                    /* every missing page is being fetched by another thread */
+                    try {
+                        pages.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted waiting for pages of " + fullPath);
+                    }
+                    continue;
+                }
+                runStart = page;
+                runEnd = page + 1;
+                while (runEnd <= lastPage && !pages.get(runEnd) && !fetching.get(runEnd)) {
+                    runEnd++;
+                }
+                fetching.set(runStart, runEnd);
+            }
+            boolean success = false;
+            try {
+                fetch(runStart, runEnd);
+                success = true;
+            } finally {
+                synchronized (pages) {
+                    fetching.clear(runStart, runEnd);
+                    if (success) {
+                        pages.set(runStart, runEnd);
+                        complete = pages.cardinality() == numPages;
+                    }
+                    pages.notifyAll();
+                }
+            }
+            fetched = true;
+        }
+        if (fetched) {
+            writeBitmap();
+            if (listener != null) {
+                listener.pagesFetched(this);
+            }
+        }
+    }
+
+    /* fetches pages [firstPage, endPage) with a single range read */
+    private void fetch(int firstPage, int endPage) throws IOException {
+        final long start = (long)firstPage * PAGE_SIZE;
+        final long end = Math.min((long)endPage * PAGE_SIZE, length);
+        final InputStream is = source.getInputStreamForFile(fullPath, start, end - start);
+        try {
+            final byte[] buf = new byte[65536];
+            long position = start;
+            while (position < end) {
+                final int n = is.read(buf, 0, (int)Math.min(buf.length, end - position));
+                if (n < 0) {
+                    throw new EOFException("unexpected end of " + fullPath + " at offset " + position);
+                }
+                final ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+                while (bb.hasRemaining()) {
+                    position += channel.write(bb, position);
+                }
+            }
+            /* pages must be on disk before the bitmap says they are */
+            channel.force(false);
+        } finally {
+            is.close();
+        }
+    }
+
+    /*
+     * Marks the copy as in use, callers must release it once they no
+     * longer read it. Returns false if the copy has been evicted, in
+     * which case a new copy has to be created.
+     */
+    public synchronized boolean acquire() {
+        if (evicted) {
+            return false;
+        }
+        users++;
+        return true;
+    }
+
+    public void release() {
+        synchronized (this) {
+            users--;
+            if (users > 0 || !evicted) {
+                return;
+            }
+        }
+        closeChannel();
+    }
+
+    /*
+     * Deletes the local copy. Users that still have it mapped keep
+     * reading and fetching into the unlinked file until they release it.
+     */
+    public void evict() {
+        synchronized (this) {
+            if (evicted) {
+                return;
+            }
+            evicted = true;
+        }
+        synchronized (bitmapLock) {
+            bitmapFile.delete();
+            file.delete();
+        }
+        synchronized (this) {
+            if (users > 0) {
+                return;
+            }
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            log.warn("unable to close " + file, e);
+        }
+    }
+
+    private BitSet readBitmap() {
+        if (!bitmapFile.exists() || file.length() != length) {
+            return new BitSet(numPages);
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new FileInputStream(bitmapFile));
+            try {
+                if (in.readLong() != length) {
+                    return new BitSet(numPages);
+                }
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return BitSet.valueOf(bytes);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warn("unable to read page bitmap " + bitmapFile + ", refetching all pages", e);
+            return new BitSet(numPages);
+        }
+    }
+
+    private void writeBitmap() throws IOException {
+        /* writers take turns so that an older bitmap never replaces a newer one */
+        synchronized (bitmapLock) {
+            synchronized (this) {
+                if (evicted) {
+                    return;
+                }
+            }
+            final byte[] bytes;
+            synchronized (pages) {
+                bytes = pages.toByteArray();
+            }
+            final File tmp = new File(bitmapFile.getPath() + ".tmp");
+            final FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                final DataOutputStream out = new DataOutputStream(fos);
+                out.writeLong(length);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(bitmapFile)) {
+                throw new IOException("unable to move " + tmp + " to " + bitmapFile);
+            }
+        }
+    }
+}
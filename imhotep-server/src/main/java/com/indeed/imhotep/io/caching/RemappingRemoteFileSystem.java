@@ -97,4 +97,20 @@ public class RemappingRemoteFileSystem extends RemoteFileSystem {
         return fs.getInputStreamForFile(fullPath, startOffset, maxReadLength);
     }
 
+    @Override
+    public long getFileLength(String fullPath) throws IOException {
+        RemoteFileSystem fs;
+
+        fs = mounter.findMountPoint(fullPath);
+        return fs.getFileLength(fullPath);
+    }
+
+    @Override
+    public PagedFile loadFilePaged(String fullPath) throws IOException {
+        RemoteFileSystem fs;
+
+        fs = mounter.findMountPoint(fullPath);
+        return fs.loadFilePaged(fullPath);
+    }
+
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io.caching;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.indeed.imhotep.io.caching.RemoteFileSystem.RemoteFileInfo;
+
+/**
+ * stat and readDir results of the remote file systems, keyed by full path and kept for a fixed time after they
+ * were loaded, so that checking every shard of a dataset does not go back to the remote store for every file.
+ *
+ * A stat that misses is answered from the listing of the parent directory when that listing is cached, so one
+ * paginated readDir of a dataset also answers the stats of all of its shard directories. Results are copied in and
+ * out since callers rewrite {@link RemoteFileInfo#path}.
+ *
+ * A null from a loader is cached as a missing file. A loader that throws caches nothing, its error is rethrown
+ * unchecked and the next lookup goes back to the remote store.
+ */
+public final class RemoteFileMetadataCache {
+    public static final long DEFAULT_TTL_SECONDS = 60;
+
+    private static final String DELIMITER = RemoteFileSystem.DELIMITER;
+
+    private final Cache<String, Optional<RemoteFileInfo>> stats;
+    private final Cache<String, Optional<List<RemoteFileInfo>>> dirs;
+
+    public RemoteFileMetadataCache(long ttl, TimeUnit unit) {
+        stats = CacheBuilder.newBuilder()
+                            .expireAfterWrite(ttl, unit)
+                            .maximumSize(1 << 20)
+                            .build();
+        dirs = CacheBuilder.newBuilder()
+                           .expireAfterWrite(ttl, unit)
+                           .maximumWeight(1 << 22)
+                           .weigher(new Weigher<String, Optional<List<RemoteFileInfo>>>() {
+                               public int weigh(String path, Optional<List<RemoteFileInfo>> infos) {
+                                   return infos.isPresent() ? infos.get().size() + 1 : 1;
+                               }
+                           })
+                           .build();
+    }
+
+    /**
+     * @param relativePath the path the file system puts in the infos it returns from stat
+     */
+    public RemoteFileInfo stat(String fullPath, String relativePath, final Callable<RemoteFileInfo> loader) {
+        final String key = cleanupKey(fullPath);
+        Optional<RemoteFileInfo> info = stats.getIfPresent(key);
+        if (info == null) {
+            info = statFromParentListing(key, relativePath);
+            if (info != null) {
+                stats.put(key, info);
+            } else {
+                info = get(stats, key, new Callable<Optional<RemoteFileInfo>>() {
+                    @Override
+                    public Optional<RemoteFileInfo> call() throws Exception {
+                        return Optional.fromNullable(copy(loader.call()));
+                    }
+                });
+            }
+        }
+        return info.isPresent() ? copy(info.get()) : null;
+    }
+
+    public List<RemoteFileInfo> readDir(String fullPath, final Callable<List<RemoteFileInfo>> loader) {
+        final Optional<List<RemoteFileInfo>> infos = get(dirs, cleanupKey(fullPath), new Callable<Optional<List<RemoteFileInfo>>>() {
+            @Override
+            public Optional<List<RemoteFileInfo>> call() throws Exception {
+                final List<RemoteFileInfo> loaded = loader.call();
+                return loaded != null ? Optional.of(copy(loaded)) : Optional.<List<RemoteFileInfo>>absent();
+            }
+        });
+        return infos.isPresent() ? copy(infos.get()) : null;
+    }
+
+    public void invalidateAll() {
+        stats.invalidateAll();
+        dirs.invalidateAll();
+    }
+
+    /*
+     * null if the parent directory has not been listed, absent if it has
+     * been listed without this file
+     */
+    private Optional<RemoteFileInfo> statFromParentListing(String key, String relativePath) {
+        final int slash = key.lastIndexOf(DELIMITER);
+        if (slash < 0) {
+            return null;
+        }
+        final Optional<List<RemoteFileInfo>> parent = dirs.getIfPresent(key.substring(0, slash));
+        if (parent == null || !parent.isPresent()) {
+            return null;
+        }
+        final String name = key.substring(slash + DELIMITER.length());
+        for (final RemoteFileInfo info : parent.get()) {
+            if (info.path.equals(name)) {
+                return Optional.of(new RemoteFileInfo(relativePath, info.type));
+            }
+        }
+        return Optional.absent();
+    }
+
+    private static String cleanupKey(String fullPath) {
+        if (fullPath.length() > DELIMITER.length() && fullPath.endsWith(DELIMITER)) {
+            return fullPath.substring(0, fullPath.length() - DELIMITER.length());
+        }
+        return fullPath;
+    }
+
+    private static <V> V get(Cache<String, V> cache, String key, Callable<V> loader) {
+        try {
+            return cache.get(key, loader);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static RemoteFileInfo copy(RemoteFileInfo info) {
+        return info != null ? new RemoteFileInfo(info.path, info.type) : null;
+    }
+
+    private static List<RemoteFileInfo> copy(List<RemoteFileInfo> infos) {
+        final List<RemoteFileInfo> ret = new ArrayList<RemoteFileInfo>(infos.size());
+        for (final RemoteFileInfo info : infos) {
+            ret.add(copy(info));
+        }
+        return ret;
+    }
+}
@@ -75,4 +75,21 @@ public abstract class RemoteFileSystem {
                                                       long startOffset, 
                                                       long maxReadLength) throws IOException;
 
+    /*
+     * File systems that can find the length without copying the file
+     * locally should override this
+     */
+    public long getFileLength(String fullPath) throws IOException {
+        return loadFile(fullPath).length();
+    }
+
+    /*
+     * Returns a local copy of the file that is filled in as pages are
+     * needed, or null if the file should be loaded whole with loadFile.
+     * The copy is acquired for the caller, who must release it.
+     */
+    public PagedFile loadFilePaged(String fullPath) throws IOException {
+        return null;
+    }
+
 }
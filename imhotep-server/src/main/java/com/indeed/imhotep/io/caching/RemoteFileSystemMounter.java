@@ -23,16 +23,22 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.yaml.snakeyaml.Yaml;
 
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableListMultimap;
 
 public class RemoteFileSystemMounter {
     public final String DELIMITER = "/";
     private String rootMountPoint;
-    private ArrayListMultimap<String,RemoteFileSystem> pathToFS = ArrayListMultimap.create();
+    /* replaced whole when a file system is added so lookups never lock */
+    private volatile ImmutableListMultimap<String,RemoteFileSystem> pathToFS = ImmutableListMultimap.of();
     private RemoteFileSystem topFS = null;
+    private final RemoteFileMetadataCache metadataCache =
+            new RemoteFileMetadataCache(Long.getLong("imhotep.remote.metadata.ttl.seconds",
+                                                     RemoteFileMetadataCache.DEFAULT_TTL_SECONDS),
+                                        TimeUnit.SECONDS);
 
     
     private static final List<Map<String,Object>> loadConfigData(String filename) throws FileNotFoundException {
@@ -142,7 +148,8 @@ public class RemoteFileSystemMounter {
         }
     }
     
-    public synchronized RemoteFileSystem findMountPoint(String path) {
+    public RemoteFileSystem findMountPoint(String path) {
+        final ImmutableListMultimap<String,RemoteFileSystem> pathToFS = this.pathToFS;
         final String[] parts;
         final String mountPointNoDelim;
         String remotePath;
@@ -194,7 +201,10 @@ public class RemoteFileSystemMounter {
     }
     
     public synchronized void addFileSystem(String path, RemoteFileSystem fs) {
-        pathToFS.put(rootMountPoint + path, fs);
+        pathToFS = ImmutableListMultimap.<String,RemoteFileSystem>builder()
+                                        .putAll(pathToFS)
+                                        .put(rootMountPoint + path, fs)
+                                        .build();
     }
 
     /*
@@ -261,4 +271,11 @@ public class RemoteFileSystemMounter {
     public RemoteFileSystem getTopFileSystem() {
         return this.topFS;
     }
+
+    /*
+     * stat and readDir results shared by the remote file systems of this mounter
+     */
+    public RemoteFileMetadataCache getMetadataCache() {
+        return this.metadataCache;
+    }
 }
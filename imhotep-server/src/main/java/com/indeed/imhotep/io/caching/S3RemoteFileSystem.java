@@ -14,6 +14,7 @@
  package com.indeed.imhotep.io.caching;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -21,6 +22,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 
@@ -116,14 +118,23 @@ public class S3RemoteFileSystem extends RemoteFileSystem {
         throw new IllegalArgumentException("File is not located off the \"mount point\".");
     }
 
+    /*
+     * Files larger than a download chunk are fetched as concurrent range
+     * reads, smaller ones with a single get
+     */
     @Override
     public void copyFileInto(String fullPath, File localFile) throws IOException {
         final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
         final String s3path = getS3path(relativePath);
-        final ObjectMetadata metadata;
-        
+        final ChunkedDownloader downloader = ChunkedDownloader.getDefault();
+        final long length = getFileLength(fullPath);
+
+        if (length > downloader.getChunkSize()) {
+            downloader.download(this, fullPath, 0, length, localFile);
+            return;
+        }
         try {
-            metadata = client.getObject(new GetObjectRequest(s3bucket, s3path), localFile);
+            client.getObject(new GetObjectRequest(s3bucket, s3path), localFile);
         } catch(AmazonS3Exception e) {
             throw new IOException(e);
         }
@@ -143,6 +154,15 @@ public class S3RemoteFileSystem extends RemoteFileSystem {
         return metadata;
     }
     
+    @Override
+    public long getFileLength(String fullPath) throws IOException {
+        final ObjectMetadata metadata = getMetadata(fullPath);
+        if (metadata == null) {
+            throw new FileNotFoundException("Could not locate " + fullPath + " in s3.");
+        }
+        return metadata.getContentLength();
+    }
+
     private ObjectListing getListing(String s3path, int maxResults, boolean recursive) {
         final ListObjectsRequest reqParams;
         final ObjectListing listing;
@@ -163,11 +183,21 @@ public class S3RemoteFileSystem extends RemoteFileSystem {
     }
     
     /*
-     * Returns null if file not found
-     * 
+     * Returns null if file not found, answered from the metadata cache
+     * of the mounter when possible
      */
     @Override
-    public RemoteFileInfo stat(String fullPath) {
+    public RemoteFileInfo stat(final String fullPath) {
+        final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
+        return mounter.getMetadataCache().stat(fullPath, relativePath, new Callable<RemoteFileInfo>() {
+            @Override
+            public RemoteFileInfo call() {
+                return statRemote(fullPath);
+            }
+        });
+    }
+
+    private RemoteFileInfo statRemote(String fullPath) {
         final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
         final String s3path = getS3path(relativePath);
         final ObjectListing listing;
@@ -233,7 +263,16 @@ public class S3RemoteFileSystem extends RemoteFileSystem {
     }
 
     @Override
-    public List<RemoteFileInfo> readDir(String fullPath) {
+    public List<RemoteFileInfo> readDir(final String fullPath) {
+        return mounter.getMetadataCache().readDir(fullPath, new Callable<List<RemoteFileInfo>>() {
+            @Override
+            public List<RemoteFileInfo> call() {
+                return readDirRemote(fullPath);
+            }
+        });
+    }
+
+    private List<RemoteFileInfo> readDirRemote(String fullPath) {
         final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
         String s3path = getS3path(relativePath);
         final List<RemoteFileInfo> results = new ArrayList<RemoteFileInfo>(100);
@@ -197,7 +197,42 @@ public class SqarAutomountingRemoteFileSystem extends RemoteFileSystem {
     public InputStream getInputStreamForFile(String fullPath, 
                                              long startOffset, 
                                              long maxReadLength) throws IOException {
-        return parentFS.getInputStreamForFile(fullPath, startOffset, maxReadLength);
+        final String sqarPath;
+        final SqarRemoteFileSystem newFS;
+
+        try {
+            return parentFS.getInputStreamForFile(fullPath, startOffset, maxReadLength);
+        } catch(IOException e) {
+            sqarPath = scanPathForSqar(fullPath);
+            if (sqarPath == null) {
+                /* no sqar archives found */
+                throw e;
+            }
+            newFS = mountNewSqarFS(sqarPath);
+
+            /* now rerun query with new fs */
+            return newFS.getInputStreamForFile(fullPath, startOffset, maxReadLength);
+        }
+    }
+
+    @Override
+    public long getFileLength(String fullPath) throws IOException {
+        final String sqarPath;
+        final SqarRemoteFileSystem newFS;
+
+        try {
+            return parentFS.getFileLength(fullPath);
+        } catch(IOException e) {
+            sqarPath = scanPathForSqar(fullPath);
+            if (sqarPath == null) {
+                /* no sqar archives found */
+                throw e;
+            }
+            newFS = mountNewSqarFS(sqarPath);
+
+            /* now rerun query with new fs */
+            return newFS.getFileLength(fullPath);
+        }
     }
 
 }
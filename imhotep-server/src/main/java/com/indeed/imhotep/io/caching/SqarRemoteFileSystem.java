@@ -26,8 +26,10 @@ import java.util.concurrent.ConcurrentHashMap;
 import com.google.common.base.Charsets;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.indeed.imhotep.archive.ArchiveUtils;
 import com.indeed.imhotep.archive.FileMetadata;
+import com.indeed.imhotep.archive.compression.BlockCompressionOutputStream;
 import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
 
 public class SqarRemoteFileSystem extends RemoteFileSystem {
@@ -71,8 +73,9 @@ public class SqarRemoteFileSystem extends RemoteFileSystem {
         final SquallArchiveCompressor compressor = split.length > 5 ?
                 SquallArchiveCompressor.fromKey(split[5]) : SquallArchiveCompressor.NONE;
         final String archiveFilename = split.length > 6 ? split[6] : "archive.bin";
+        final long[] blockOffsets = split.length > 7 ? ArchiveUtils.parseBlockOffsets(split[7]) : null;
         return new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor,
-                                archiveFilename);
+                                archiveFilename, blockOffsets);
    }
     
     private FileMetadata scanMetadataForFile(String file) throws IOException {
@@ -157,9 +160,7 @@ public class SqarRemoteFileSystem extends RemoteFileSystem {
 
         sqarpath = mountPoint.substring(0, mountPoint.length() - DELIMITER.length()) + SUFFIX;
         archivePath = sqarpath + DELIMITER + archiveFile;
-        is = parentFS.getInputStreamForFile(archivePath, 
-                                            startOffset, 
-                                            originalSize + 2048 /* for safety */);
+        is = openArchiveRange(archivePath, startOffset, metadata);
         try {
             compressor = metadata.getCompressor();
             
@@ -348,12 +349,135 @@ public class SqarRemoteFileSystem extends RemoteFileSystem {
 
 
     /*
-     * Unneeded for now
+     * Offsets are into the uncompressed file. Only the blocks covering the
+     * range are read from block compressed files, other compressed files
+     * have to be decompressed from their start.
      */
     @Override
-    public InputStream getInputStreamForFile(String archivePath,
+    public InputStream getInputStreamForFile(String fullPath,
                                              long startOffset,
-                                             long maxReadLength) {
-        throw new UnsupportedOperationException();
+                                             long maxReadLength) throws IOException {
+        final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
+        final FileMetadata metadata;
+
+        metadata = scanMetadataForFile(relativePath);
+        if (metadata == null) {
+            throw new FileNotFoundException("Could not locate " + relativePath + " in archive.");
+        }
+        if (startOffset < 0 || startOffset > metadata.getSize()) {
+            throw new IOException("offset " + startOffset + " is outside of " + fullPath +
+                                  " of size " + metadata.getSize());
+        }
+
+        final long readLength = maxReadLength < 0 ?
+                metadata.getSize() - startOffset :
+                Math.min(maxReadLength, metadata.getSize() - startOffset);
+        if (readLength == 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        final String sqarpath = mountPoint.substring(0, mountPoint.length() - DELIMITER.length()) + SUFFIX;
+        final String archivePath = sqarpath + DELIMITER + metadata.getArchiveFilename();
+        final SquallArchiveCompressor compressor = metadata.getCompressor();
+        final long[] blockOffsets = metadata.getBlockOffsets();
+
+        if (compressor == SquallArchiveCompressor.NONE) {
+            return openArchiveRange(archivePath, metadata.getStartOffset() + startOffset, readLength);
+        }
+
+        final InputStream is;
+        final long skip;
+        if (blockOffsets != null) {
+            final int blockSize = BlockCompressionOutputStream.BLOCK_SIZE;
+            final int firstBlock = (int)(startOffset / blockSize);
+            final int lastBlock = (int)((startOffset + readLength - 1) / blockSize);
+            final long compressedStart = blockOffsets[firstBlock];
+
+            is = openArchiveRange(archivePath,
+                                  metadata.getStartOffset() + compressedStart,
+                                  blockOffsets[lastBlock + 1] - compressedStart);
+            skip = startOffset - (long)firstBlock * blockSize;
+        } else {
+            is = parentFS.getInputStreamForFile(archivePath,
+                                                metadata.getStartOffset(),
+                                                compressedLengthBound(metadata));
+            skip = startOffset;
+        }
+
+        final InputStream decompressed = compressor.newInputStream(is);
+        try {
+            ByteStreams.skipFully(decompressed, skip);
+        } catch (IOException e) {
+            decompressed.close();
+            throw e;
+        }
+        return ByteStreams.limit(decompressed, readLength);
+    }
+
+    @Override
+    public long getFileLength(String fullPath) throws IOException {
+        final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
+        final FileMetadata metadata;
+
+        metadata = scanMetadataForFile(relativePath);
+        if (metadata == null) {
+            throw new FileNotFoundException("Could not locate " + relativePath + " in archive.");
+        }
+        return metadata.getSize();
+    }
+
+    /*
+     * Opens the compressed bytes of a file, fetched concurrently when
+     * their exact length is known from the metadata
+     */
+    private InputStream openArchiveRange(String archivePath, long startOffset, FileMetadata metadata) throws IOException {
+        final long[] blockOffsets = metadata.getBlockOffsets();
+        if (blockOffsets != null) {
+            return openArchiveRange(archivePath, startOffset, blockOffsets[blockOffsets.length - 1]);
+        }
+        if (metadata.getCompressor() == SquallArchiveCompressor.NONE) {
+            return openArchiveRange(archivePath, startOffset, metadata.getSize());
+        }
+        return parentFS.getInputStreamForFile(archivePath, startOffset, compressedLengthBound(metadata));
+    }
+
+    /*
+     * Ranges larger than a download chunk are fetched concurrently into a
+     * temp file that is deleted when the returned stream is closed
+     */
+    private InputStream openArchiveRange(String archivePath, long startOffset, long length) throws IOException {
+        final ChunkedDownloader downloader = ChunkedDownloader.getDefault();
+        if (length <= downloader.getChunkSize()) {
+            return parentFS.getInputStreamForFile(archivePath, startOffset, length);
+        }
+
+        final File tmp = File.createTempFile("sqar", ".range");
+        try {
+            downloader.download(parentFS, archivePath, startOffset, length, tmp);
+            return new FileInputStream(tmp) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        tmp.delete();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } catch (RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+    }
+
+    private static long compressedLengthBound(FileMetadata metadata) {
+        final long[] blockOffsets = metadata.getBlockOffsets();
+        if (blockOffsets != null) {
+            return blockOffsets[blockOffsets.length - 1];
+        }
+        return metadata.getSize() + 2048 /* for safety */;
     }
 }
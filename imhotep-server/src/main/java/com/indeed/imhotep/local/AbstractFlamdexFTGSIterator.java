@@ -15,7 +15,8 @@
 
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.datastruct.FastBitSet;
-import com.indeed.imhotep.BitTree;
+import com.indeed.imhotep.RequestSpan;
+import com.indeed.imhotep.WeightedFairScheduler;
 import com.indeed.imhotep.api.FTGSIterator;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.reference.SharedReference;
@@ -26,14 +27,14 @@ import org.apache.log4j.Logger;
  */
 public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
     private static final Logger log = Logger.getLogger(AbstractFlamdexFTGSIterator.class);
+    // terms between checks whether the scheduler wants the cpu back, must be a power of two
+    private static final int TERM_BATCH_SIZE = 256;
     /**
      *
      */
     protected final ImhotepLocalSession session;
 
-    protected final int[] groupsSeen;
-    protected final BitTree bitTree;
-    protected final long[][] termGrpStats;
+    protected final InterleavedGroupStats termGrpStats;
 
     protected boolean currentFieldIsIntType;
 
@@ -52,13 +53,23 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
     protected boolean resetGroupStats = false;
     protected FastBitSet fieldZeroDocBitset;
     protected int termIndex;
+    // non-null when few enough docs are outside group zero to intersect them with postings
+    private ActiveDocs activeDocs;
+    private boolean detached = false;
+    private int termsSinceCheckpoint = 0;
+    // work not yet charged to the request span
+    private long unchargedDocs = 0;
+    private long chargedDocsTime = 0;
+    private long chargedLookupsTime = 0;
 
     public AbstractFlamdexFTGSIterator(ImhotepLocalSession imhotepLocalSession, SharedReference<FlamdexReader> flamdexReader) {
         this.session = imhotepLocalSession;
-        this.termGrpStats = new long[session.numStats][session.docIdToGroup.getNumGroups()];
-        this.groupsSeen = new int[session.docIdToGroup.getNumGroups()];
-        this.bitTree = new BitTree(session.docIdToGroup.getNumGroups());
+        this.termGrpStats = new InterleavedGroupStats(session.numStats, session.docIdToGroup.getNumGroups());
         this.flamdexReader = flamdexReader;
+        synchronized (session) {
+            session.iteratorOpened();
+            this.activeDocs = ActiveDocs.create(session);
+        }
     }
 
     @Override
@@ -101,7 +112,7 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
 
     private boolean calculateTermGroupStats() {
         // clear out ram from previous iterations if necessary
-        for (final long[] x : termGrpStats) ImhotepLocalSession.clear(x, groupsSeen, groupsSeenCount);
+        termGrpStats.clear();
         groupsSeenCount = 0;
 
         if (fieldZeroDocBitset != null) {
@@ -111,26 +122,44 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
             if (skip) return false;
         }
 
+        // yield between batches of terms, never while holding the session lock
+        if ((++termsSinceCheckpoint & (TERM_BATCH_SIZE - 1)) == 0) {
+            chargeRequestSpan();
+            WeightedFairScheduler.checkpoint();
+        }
+
         // this is the critical loop of all of imhotep, making this loop faster is very good....
 
         synchronized (session) {
+            if (activeDocs != null) {
+                activeDocs.reset();
+            }
             while (true) {
                 if (ImhotepLocalSession.logTiming) docsTime -= System.nanoTime();
                 final int n = fillDocIdBuffer();
+                unchargedDocs += n;
+                final int numActive = activeDocs != null ? activeDocs.intersect(session.docIdBuf, n) : n;
                 if (ImhotepLocalSession.logTiming) {
                     docsTime += System.nanoTime();
                     lookupsTime -= System.nanoTime();
                 }
-                session.docIdToGroup.nextGroupCallback(n, termGrpStats, bitTree);
+                if (numActive > 0) {
+                    session.docIdToGroup.nextGroupCallback(numActive, termGrpStats);
+                }
                 if (ImhotepLocalSession.logTiming) {
                     lookupsTime += System.nanoTime();
                     timingErrorTime -= System.nanoTime();
                     timingErrorTime += System.nanoTime();
                 }
                 if (n < ImhotepLocalSession.BUFFER_SIZE) break;
+                if (activeDocs != null && activeDocs.exhausted()) {
+                    // no remaining posting of this term can be in a non-zero group
+                    skipRemainingDocs();
+                    break;
+                }
             }
         }
-        groupsSeenCount = bitTree.dump(groupsSeen);
+        groupsSeenCount = termGrpStats.dump();
 
         if (fieldZeroDocBitset != null && groupsSeenCount == 0) {
             fieldZeroDocBitset.set(termIndex - 1);
@@ -143,6 +172,44 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
 
     protected abstract int fillDocIdBuffer();
 
+    /**
+     * Discards the remaining docs of the current term. Iterators that can move to the next term without
+     * reading the rest of the current one should override this to do nothing.
+     */
+    protected void skipRemainingDocs() {
+        while (fillDocIdBuffer() == ImhotepLocalSession.BUFFER_SIZE) {
+            // term doc iterators require the whole doc list to be read before moving to the next term
+        }
+    }
+
+    /**
+     * releases the active docs and lets the session rebuild its index again, must be called once the iterator is closed
+     */
+    protected final void detachFromSession() {
+        chargeRequestSpan();
+        synchronized (session) {
+            if (!detached) {
+                detached = true;
+                session.iteratorClosed();
+            }
+            if (activeDocs != null) {
+                session.memory.releaseMemory(activeDocs.memoryUsed());
+                activeDocs = null;
+            }
+        }
+    }
+
+    private void chargeRequestSpan() {
+        RequestSpan.addDocsScanned(unchargedDocs);
+        unchargedDocs = 0;
+        if (ImhotepLocalSession.logTiming) {
+            RequestSpan.addPhaseNanos(RequestSpan.Phase.POSTINGS, docsTime - chargedDocsTime);
+            RequestSpan.addPhaseNanos(RequestSpan.Phase.GROUP_LOOKUP, lookupsTime - chargedLookupsTime);
+            chargedDocsTime = docsTime;
+            chargedLookupsTime = lookupsTime;
+        }
+    }
+
     private void expandFieldNonZeroDocBitset() {
         synchronized (session) {
             if (fieldZeroDocBitset == null) return;
@@ -164,14 +231,11 @@ public abstract class AbstractFlamdexFTGSIterator implements FTGSIterator {
 
     @Override
     public final int group() {
-        return groupsSeen[groupPointer];
+        return termGrpStats.group(groupPointer);
     }
 
     @Override
     public final void groupStats(long[] stats) {
-        final int group = group();
-        for (int i = 0; i < session.numStats; i++) {
-            stats[i] = termGrpStats[i][group];
-        }
+        termGrpStats.get(groupPointer, stats);
     }
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import javax.annotation.Nullable;
+
+/**
+ * Sorted list of the docs that are not in group zero, used by FTGS to skip over postings
+ * that cannot contribute to any group once a restrictive filter has been applied.
+ *
+ * The list is only built when few enough docs are active for it to be cheaper than looking up
+ * the group of every posting. Intersection gallops through both the postings buffer and the doc
+ * list, so the work per term is bounded by the smaller of the two.
+ */
+final class ActiveDocs {
+    /**
+     * active docs are only tracked when at most 1/ACTIVE_DOC_RATIO of the docs are in a non-zero group
+     */
+    static final int ACTIVE_DOC_RATIO = 16;
+
+    private final int[] docs;
+    private int cursor;
+
+    private ActiveDocs(int[] docs) {
+        this.docs = docs;
+    }
+
+    /**
+     * must be called while holding the session lock
+     * @return the active docs of the session, or null if too many docs are active or there is not enough memory
+     */
+    static @Nullable ActiveDocs create(ImhotepLocalSession session) {
+        final GroupLookup docIdToGroup = session.docIdToGroup;
+        final int numDocs = docIdToGroup.size();
+        final int numActive = numDocs - (session.groupDocCount.length > 0 ? session.groupDocCount[0] : 0);
+        if ((long) numActive * ACTIVE_DOC_RATIO > numDocs) {
+            return null;
+        }
+        if (!session.memory.claimMemory(memoryUsage(numActive))) {
+            ImhotepLocalSession.log.warn("Insufficient memory, not tracking active docs for ftgs");
+            return null;
+        }
+        final int[] docs = new int[numActive];
+        final int[] docGroupBuffer = session.docGroupBuffer;
+        int size = 0;
+        for (int start = 0; start < numDocs; start += docGroupBuffer.length) {
+            final int n = Math.min(docGroupBuffer.length, numDocs - start);
+            docIdToGroup.fillDocGrpBufferSequential(start, docGroupBuffer, n);
+            for (int i = 0; i < n; i++) {
+                if (docGroupBuffer[i] != 0) {
+                    docs[size++] = start + i;
+                }
+            }
+        }
+        return new ActiveDocs(docs);
+    }
+
+    static long memoryUsage(int numActive) {
+        return 4L * numActive;
+    }
+
+    long memoryUsed() {
+        return memoryUsage(docs.length);
+    }
+
+    /**
+     * rewinds to the first active doc, must be called before the first buffer of each term
+     */
+    void reset() {
+        cursor = 0;
+    }
+
+    /**
+     * @return true if no doc at or after the last doc passed to {@link #intersect} is active
+     */
+    boolean exhausted() {
+        return cursor >= docs.length;
+    }
+
+    /**
+     * Removes inactive docs from a sorted buffer of postings, keeping the remaining docs at the start of the buffer.
+     * Buffers for the same term must be passed in increasing doc order.
+     * @return the number of docs kept
+     */
+    int intersect(int[] docIdBuf, int n) {
+        int kept = 0;
+        int i = 0;
+        while (i < n && cursor < docs.length) {
+            final int doc = docs[cursor];
+            i = advance(docIdBuf, i, n, doc);
+            if (i == n) {
+                break;
+            }
+            if (docIdBuf[i] == doc) {
+                docIdBuf[kept++] = doc;
+                i++;
+                cursor++;
+            } else {
+                cursor = advance(docs, cursor, docs.length, docIdBuf[i]);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @return the index of the first element in array[from, to) that is >= target, or to if there is none
+     */
+    private static int advance(int[] array, int from, int to, int target) {
+        if (from >= to || array[from] >= target) {
+            return from;
+        }
+        // gallop to find a range containing the target, then binary search within it
+        int low = from;
+        int step = 1;
+        int high = from + 1;
+        while (high < to && array[high] < target) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        if (high > to) {
+            high = to;
+        }
+        // array[low] < target and (high == to or array[high] >= target)
+        while (high - low > 1) {
+            final int mid = (low + high) >>> 1;
+            if (array[mid] < target) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return high;
+    }
+}
@@ -17,7 +17,6 @@ import java.util.Arrays;
 
 import com.indeed.util.core.threads.ThreadSafeBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
-import com.indeed.imhotep.BitTree;
 import com.indeed.imhotep.GroupRemapRule;
 
 final class ByteGroupLookup extends GroupLookup {
@@ -33,9 +32,9 @@ final class ByteGroupLookup extends GroupLookup {
     }
 
     @Override
-    public void nextGroupCallback(int n, long[][] termGrpStats, BitTree groupsSeen) {
+    public void nextGroupCallback(int n, InterleavedGroupStats termGrpStats) {
         int rewriteHead = 0;
-        // remap groups and filter out useless docids (ones with group = 0), keep track of groups that were found
+        // remap groups and filter out useless docids (ones with group = 0)
         for (int i = 0; i < n; i++) {
             final int docId = session.docIdBuf[i];
             final int group = docIdToGroup[docId] & 0xFF;
@@ -45,12 +44,9 @@ final class ByteGroupLookup extends GroupLookup {
             session.docIdBuf[rewriteHead] = docId;
             rewriteHead++;
         }
-        groupsSeen.set(session.docGroupBuffer, rewriteHead);
 
         if (rewriteHead > 0) {
-            for (int statIndex = 0; statIndex < session.numStats; statIndex++) {
-                ImhotepLocalSession.updateGroupStatsDocIdBuf(session.statLookup[statIndex], termGrpStats[statIndex], session.docGroupBuffer, session.docIdBuf, session.valBuf, rewriteHead);
-            }
+            termGrpStats.add(session.statLookup, session.docIdBuf, session.docGroupBuffer, rewriteHead);
         }
     }
 
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+/**
+ * Decides when a session's shard is worth rewriting without the docs in group zero.
+ *
+ * Compaction costs a pass over every posting of the shard, so it only pays off if most docs have been
+ * filtered out and the session keeps scanning the shard afterwards. Sessions that have already scanned
+ * the shard several times since their last compaction are expected to keep doing so.
+ */
+public final class CompactionPolicy {
+    private final double minGroupZeroFraction;
+    private final int minDocs;
+    private final int minScans;
+
+    /**
+     * @param minGroupZeroFraction the fraction of docs that must be in group zero
+     * @param minDocs shards with fewer docs are never compacted
+     * @param minScans the number of FTGS or doc iterations since the last compaction
+     */
+    public CompactionPolicy(double minGroupZeroFraction, int minDocs, int minScans) {
+        this.minGroupZeroFraction = minGroupZeroFraction;
+        this.minDocs = minDocs;
+        this.minScans = minScans;
+    }
+
+    public boolean shouldCompact(int numDocs, int groupZeroDocs, int scansSinceCompaction) {
+        return numDocs >= minDocs
+                && groupZeroDocs >= minGroupZeroFraction * numDocs
+                && scansSinceCompaction >= minScans;
+    }
+}
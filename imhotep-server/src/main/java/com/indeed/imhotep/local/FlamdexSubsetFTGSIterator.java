@@ -103,6 +103,7 @@ class FlamdexSubsetFTGSIterator extends AbstractFlamdexFTGSIterator {
                 Closeables2.closeQuietly(flamdexReader, ImhotepLocalSession.log);
                 flamdexReader = null;
             }
+            detachFromSession();
         }
     }
 
@@ -166,4 +167,9 @@ class FlamdexSubsetFTGSIterator extends AbstractFlamdexFTGSIterator {
     protected int fillDocIdBuffer() {
         return docIdStream.fillDocIdBuffer(session.docIdBuf);
     }
+
+    @Override
+    protected void skipRemainingDocs() {
+        // the doc id stream is repositioned by the next call to nextTerm
+    }
 }
\ No newline at end of file
@@ -15,14 +15,13 @@
 
 import com.indeed.util.core.threads.ThreadSafeBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
-import com.indeed.imhotep.BitTree;
 import com.indeed.imhotep.GroupRemapRule;
 
 abstract class GroupLookup {
     protected int numGroups;
 
-    // returns new value for groupsSeenCount
-    abstract void nextGroupCallback(int n, long[][] termGrpStats, BitTree groupsSeen);
+    // adds the first n docs of the session's docIdBuf that are not in group zero to termGrpStats
+    abstract void nextGroupCallback(int n, InterleavedGroupStats termGrpStats);
     abstract void applyIntConditionsCallback(int n, ThreadSafeBitSet docRemapped, GroupRemapRule[] remapRules, String intField, long itrTerm);
     abstract void applyStringConditionsCallback(int n, ThreadSafeBitSet docRemapped, GroupRemapRule[] remapRules, String stringField, String itrTerm);
     abstract int get(int doc);
@@ -39,6 +38,12 @@ abstract class GroupLookup {
     abstract ImhotepLocalSession getSession();
     abstract void recalculateNumGroups();
 
+    /**
+     * gives back memory that is not reclaimed by the garbage collector, the lookup must not be used afterwards
+     */
+    void free() {
+    }
+
     final int getNumGroups() {
         return numGroups;
     }
@@ -38,6 +38,8 @@ public class GroupLookupFactory {
                 throw new ImhotepOutOfMemoryException();
             }
             newLookup = new CharGroupLookup(session, size);
+        } else if (session.getArena() != null) {
+            newLookup = new NativeIntGroupLookup(session, session.getArena(), size);
         } else {
             if (!memory.claimMemory(IntGroupLookup.calcMemUsageForSize(size))) {
                 throw new ImhotepOutOfMemoryException();
@@ -72,6 +74,7 @@ public class GroupLookupFactory {
         }
         existingGL.copyInto(newGL);
         memory.releaseMemory(existingGL.memoryUsed());
+        existingGL.free();
         return newGL;
     }
 }
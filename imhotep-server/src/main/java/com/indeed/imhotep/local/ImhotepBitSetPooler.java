@@ -14,6 +14,7 @@
  package com.indeed.imhotep.local;
 
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
+import com.indeed.flamdex.datastruct.CompressedBitSet;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.imhotep.MemoryReserver;
@@ -36,6 +37,14 @@ public class ImhotepBitSetPooler implements FastBitSetPooler {
         return new FastBitSet(size);
     }
 
+    @Override
+    public CompressedBitSet createCompressed(int size, long maxCardinality) throws FlamdexOutOfMemoryException {
+        if (!memory.claimMemory(CompressedBitSet.maxMemoryUsage(size, maxCardinality))) {
+            throw new FlamdexOutOfMemoryException();
+        }
+        return new CompressedBitSet(size);
+    }
+
     @Override
     public void release(long bytes) {
         memory.releaseMemory(bytes);
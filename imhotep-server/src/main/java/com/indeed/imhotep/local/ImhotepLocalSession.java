@@ -44,13 +44,17 @@ import com.indeed.flamdex.search.FlamdexSearcher;
 import com.indeed.flamdex.simple.SimpleFlamdexReader;
 import com.indeed.flamdex.simple.SimpleFlamdexWriter;
 import com.indeed.flamdex.utils.FlamdexUtils;
+import com.indeed.flamdex.utils.IntTermSeeker;
+import com.indeed.flamdex.utils.StringTermSeeker;
 import com.indeed.imhotep.AbstractImhotepSession;
+import com.indeed.imhotep.DistinctCountSketch;
 import com.indeed.imhotep.FTGSSplitter;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
 import com.indeed.imhotep.ImhotepMemoryPool;
 import com.indeed.imhotep.MemoryReservationContext;
 import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.QuantileSketch;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
@@ -105,15 +109,14 @@ import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nonnull;
-import java.io.EOFException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.Serializable;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -145,6 +148,8 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
     }
 
     private static final int MAX_NUMBER_STATS = 64;
+
+    private static final int SNAPSHOT_VERSION = 1;
     static final int BUFFER_SIZE = 2048;
     private final AtomicLong tempFileSizeBytesLeft;
 
@@ -185,8 +190,20 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
     private final File optimizationLog;
 
+    private int openIterators = 0;
+    private int scansSinceCompaction = 0;
+
     private FTGSSplitter ftgsIteratorSplits;
 
+    private SharedScans sharedScans;
+    private Object sharedScanKey;
+
+    // null unless large structures are allocated off heap
+    private SessionArena arena;
+
+    // claimed for the sketches last returned, kept until their response is built
+    private long sketchMemory = 0;
+
     public ImhotepLocalSession(final FlamdexReader flamdexReader) throws ImhotepOutOfMemoryException {
         this(flamdexReader, null,
                 new MemoryReservationContext(new ImhotepMemoryPool(Long.MAX_VALUE)), false, null);
@@ -236,6 +253,29 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         return this.flamdexReader;
     }
 
+    /**
+     * Allocates the session's int group lookups outside of the java heap from now on. Their memory is given back as
+     * soon as they are replaced, and at the latest when the session is closed.
+     */
+    public synchronized void useSessionArena() {
+        if (arena == null) {
+            arena = new SessionArena(memory);
+        }
+    }
+
+    SessionArena getArena() {
+        return arena;
+    }
+
+    /**
+     * Lets the session's FTGS iterators share their term and posting walks with those of other sessions on the shard
+     * identified by shardKey. Sessions iterating over a rebuilt index never share.
+     */
+    public synchronized void setSharedScans(SharedScans sharedScans, Object shardKey) {
+        this.sharedScans = sharedScans;
+        this.sharedScanKey = shardKey;
+    }
+
     public Map<String, DynamicMetric> getDynamicMetrics() {
         return dynamicMetrics;
     }
@@ -248,8 +288,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
      * record structure to store the info necessary to rebuild the
      * DynamicMetrics after one or more optimizes and a reset
      */
-    public static class OptimizationRecord implements Serializable {
-        private static final long serialVersionUID = 1L;
+    public static class OptimizationRecord {
         public long time;
         List<String> intFieldsMerged;
         List<String> stringFieldsMerged;
@@ -257,8 +296,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         List<ShardMergeInfo> mergedShards;
     }
 
-    public static class ShardMergeInfo implements Serializable {
-        private static final long serialVersionUID = 1L;
+    public static class ShardMergeInfo {
         int numDocs;
         Map<String, DynamicMetric> dynamicMetrics;
         int[] newDocIdToOldDocId;
@@ -318,26 +356,10 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
     }
 
-    /* Tweak to ObjectOutputStream which allows it to append to an existing file */
-    public static class AppendingObjectOutputStream extends ObjectOutputStream {
-
-        public AppendingObjectOutputStream(OutputStream out) throws IOException {
-            super(out);
-        }
-
-        @Override
-        protected void writeStreamHeader() throws IOException {
-            // do not write a header, but reset:
-            reset();
-        }
-
-    }
-
     @Override
     public synchronized void rebuildAndFilterIndexes(@Nonnull final List<String> intFields,
                                                      @Nonnull final List<String> stringFields) throws ImhotepOutOfMemoryException {
         final IndexReWriter rewriter;
-        final ObjectOutputStream oos;
         final SimpleFlamdexWriter w;
         final ArrayList<String> statsCopy;
 
@@ -361,15 +383,6 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
              * save a record of the merge, so it can be unwound later if the
              * shards are reset
              */
-            if (this.optimizationLog.exists()) {
-                /* plain ObjectOutputStream does not append correctly */
-                oos =
-                        new AppendingObjectOutputStream(new FileOutputStream(this.optimizationLog,
-                                                                             true));
-            } else {
-                oos = new ObjectOutputStream(new FileOutputStream(this.optimizationLog, true));
-            }
-
             OptimizationRecord record = new OptimizationRecord();
 
             record.time = time;
@@ -384,11 +397,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             info.newDocIdToOldDocId = rewriter.getPerSessionMappings().get(0);
             record.mergedShards.add(info);
 
-            oos.writeObject(record);
-            oos.close();
+            OptimizationLog.append(this.optimizationLog, record);
 
             /* use rebuilt structures */
             memory.releaseMemory(this.docIdToGroup.memoryUsed());
+            this.docIdToGroup.free();
             rewriterMemory.hoist(rewriter.getNewGroupLookup().memoryUsed());
             this.docIdToGroup = rewriter.getNewGroupLookup();
 
@@ -433,6 +446,10 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             /* alter tracking fields to reflect the removal of group 0 docs */
             this.numDocs = this.flamdexReader.getNumDocs();
             this.groupDocCount[0] = 0;
+            this.scansSinceCompaction = 0;
+
+            /* cached term bitsets refer to the terms of the old index */
+            clearZeroDocBitsets();
 
             /* push the stats back on */
             for (String stat : statsCopy) {
@@ -458,8 +475,6 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
      * a constant value as a result of a reset() call
      */
     private synchronized void resetOptimizedReaders() throws ImhotepOutOfMemoryException {
-        ObjectInputStream ois = null;
-        ArrayList<OptimizationRecord> records = new ArrayList<OptimizationRecord>();
         final long memoryUse;
         final ArrayList<String> statsCopy;
 
@@ -482,28 +497,9 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         this.statCommands.clear();
 
         /* read in all the optimization records */
+        final List<OptimizationRecord> records;
         try {
-            ois = new ObjectInputStream(new FileInputStream(this.optimizationLog));
-            while (true) {
-                /*
-                 * adds the records so the last written record is first in the
-                 * list
-                 */
-                records.add(0, (OptimizationRecord) ois.readObject());
-            }
-        } catch (EOFException e) {
-            // read all the records
-            try {
-                if (ois != null) {
-                    ois.close();
-                    this.optimizationLog.delete();
-                }
-            } catch (IOException e1) {
-                /* do nothing */
-                e.printStackTrace();
-            }
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
+            records = readOptimizationRecords();
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
@@ -512,34 +508,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
 
         /* reconstruct the dynamic metrics */
-        Map<String, DynamicMetric> newMetrics;
-        Map<String, DynamicMetric> oldMetrics;
-        int numNewDocs;
-        int numOldDocs;
-        newMetrics = this.dynamicMetrics;
-        numNewDocs = this.flamdexReader.getNumDocs();
-        for (OptimizationRecord opRec : records) {
-            int[] newToOldIdMapping = opRec.mergedShards.get(0).newDocIdToOldDocId;
-            oldMetrics = opRec.mergedShards.get(0).dynamicMetrics;
-            numOldDocs = opRec.mergedShards.get(0).numDocs;
-
-            for (Map.Entry<String, DynamicMetric> e : newMetrics.entrySet()) {
-                DynamicMetric oldMetric = oldMetrics.get(e.getKey());
-                DynamicMetric newMetric = e.getValue();
-                if (oldMetric == null) {
-                    oldMetric = new DynamicMetric(numOldDocs);
-                }
-                for (int i = 0; i < numNewDocs; i++) {
-                    int oldId = newToOldIdMapping[i];
-                    int value = newMetric.lookupSingleVal(i);
-                    oldMetric.set(oldId, value);
-                }
-
-                oldMetrics.put(e.getKey(), oldMetric);
-            }
-            numNewDocs = numOldDocs;
-            newMetrics = oldMetrics;
-        }
+        final Map<String, DynamicMetric> newMetrics = reconstructOriginalDynamicMetrics(records);
 
         /* adjust the memory tracking */
         for (DynamicMetric dm : this.dynamicMetrics.values()) {
@@ -579,6 +548,138 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
     }
 
+    /*
+     * reads the optimization log, the last written record is first in the
+     * returned list
+     */
+    private List<OptimizationRecord> readOptimizationRecords() throws IOException {
+        return OptimizationLog.read(this.optimizationLog);
+    }
+
+    /**
+     * @return true if the session iterates over a rebuilt copy of the shard rather than the shard itself, in which
+     *         case fields may be missing terms that the shard has
+     */
+    public synchronized boolean isIndexRebuilt() {
+        return originalReaderRef != null;
+    }
+
+    /*
+     * Regroups that move docs out of group zero need the docs a rebuild filtered out, so a rebuilt
+     * session goes back to the original shard first, with its groups mapped to the original doc ids.
+     */
+    private void restoreGroupZeroDocs() throws ImhotepOutOfMemoryException {
+        clearZeroDocBitsets();
+        if (this.originalReader == null) {
+            return;
+        }
+        final long mappingMemory = 4L * numDocs;
+        if (!memory.claimMemory(mappingMemory)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        try {
+            final int[] optimizedToOriginal;
+            try {
+                optimizedToOriginal = optimizedToOriginalDocIds(readOptimizationRecords());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            /* docs filtered out by the rebuild were in group 0 */
+            final int maxGroup = Math.max(docIdToGroup.maxGroup(), docIdToGroup.getNumGroups() - 1);
+            final GroupLookup restored = GroupLookupFactory.create(maxGroup,
+                                                                   this.originalReader.getNumDocs(),
+                                                                   this, memory);
+            try {
+                for (int i = 0; i < numDocs; i++) {
+                    restored.set(optimizedToOriginal[i], docIdToGroup.get(i));
+                }
+                resetOptimizedReaders();
+            } catch (ImhotepOutOfMemoryException e) {
+                memory.releaseMemory(restored.memoryUsed());
+                restored.free();
+                throw e;
+            }
+            final GroupLookup oldLookup = docIdToGroup;
+            docIdToGroup = restored;
+            memory.releaseMemory(oldLookup.memoryUsed());
+            oldLookup.free();
+        } finally {
+            memory.releaseMemory(mappingMemory);
+        }
+        docIdToGroup.recalculateNumGroups();
+        recalcGroupCounts(docIdToGroup.getNumGroups());
+        recalcGroupStats(docIdToGroup.getNumGroups());
+        log.info("restored rebuilt session to the original " + numDocs + " docs for a regroup of group 0");
+    }
+
+    /**
+     * Rebuilds the shard without its group zero docs, keeping every field, if the policy considers it
+     * worthwhile. Does nothing while an iterator over the current index is open, since rebuilding
+     * renumbers the docs. A later regroup that moves docs out of group zero switches the session back
+     * to the original shard.
+     * @return true if the shard was rebuilt
+     */
+    public synchronized boolean compactIfWorthwhile(CompactionPolicy policy) throws ImhotepOutOfMemoryException {
+        if (closed || optimizedIndexesDir == null || openIterators > 0) {
+            return false;
+        }
+        if (!policy.shouldCompact(numDocs, groupDocCount[0], scansSinceCompaction)) {
+            return false;
+        }
+        final long start = System.currentTimeMillis();
+        final int oldNumDocs = numDocs;
+        rebuildAndFilterIndexes(Lists.newArrayList(flamdexReader.getIntFields()),
+                                Lists.newArrayList(flamdexReader.getStringFields()));
+        log.info("compacted session from " + oldNumDocs + " to " + numDocs + " docs in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /*
+     * tracks iterators that read the current index with the current doc ids,
+     * compaction has to wait for them to be closed
+     */
+    synchronized void iteratorOpened() {
+        openIterators++;
+        scansSinceCompaction++;
+    }
+
+    synchronized void iteratorClosed() {
+        openIterators--;
+    }
+
+    /*
+     * unwinds the optimization records to get the dynamic metrics as they
+     * would be if no optimization had taken place
+     */
+    private Map<String, DynamicMetric> reconstructOriginalDynamicMetrics(List<OptimizationRecord> records) {
+        Map<String, DynamicMetric> newMetrics = this.dynamicMetrics;
+        int numNewDocs = this.flamdexReader.getNumDocs();
+        for (OptimizationRecord opRec : records) {
+            final int[] newToOldIdMapping = opRec.mergedShards.get(0).newDocIdToOldDocId;
+            final Map<String, DynamicMetric> oldMetrics = opRec.mergedShards.get(0).dynamicMetrics;
+            final int numOldDocs = opRec.mergedShards.get(0).numDocs;
+
+            for (Map.Entry<String, DynamicMetric> e : newMetrics.entrySet()) {
+                DynamicMetric oldMetric = oldMetrics.get(e.getKey());
+                final DynamicMetric newMetric = e.getValue();
+                if (oldMetric == null) {
+                    oldMetric = new DynamicMetric(numOldDocs);
+                }
+                for (int i = 0; i < numNewDocs; i++) {
+                    final int oldId = newToOldIdMapping[i];
+                    final int value = newMetric.lookupSingleVal(i);
+                    oldMetric.set(oldId, value);
+                }
+
+                oldMetrics.put(e.getKey(), oldMetric);
+            }
+            numNewDocs = numOldDocs;
+            newMetrics = oldMetrics;
+        }
+        return newMetrics;
+    }
+
     /**
      * export the current docId -> group lookup into an array
      *
@@ -594,16 +695,162 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
     }
 
+    /**
+     * Writes the groups, dynamic metrics and pushed stats of this session to a stream so that
+     * {@link #restoreSnapshot(InputStream)} can rebuild them on a new session over the same shard.
+     * Groups and dynamic metrics are written in terms of the original shard's doc ids, so sessions
+     * that have been rebuilt with {@link #rebuildAndFilterIndexes} can be snapshotted too.
+     */
+    public synchronized void writeSnapshot(OutputStream os) throws IOException, ImhotepOutOfMemoryException {
+        final long snapshotMemory;
+        if (this.originalReader == null) {
+            snapshotMemory = 4L * numDocs;
+        } else {
+            // the doc id mapping, the groups and every dynamic metric in terms of the original shard
+            snapshotMemory = 4L * numDocs + 4L * this.originalReader.getNumDocs() * (1 + dynamicMetrics.size());
+        }
+        if (!memory.claimMemory(snapshotMemory)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        try {
+            writeSnapshotClaimed(os);
+        } finally {
+            memory.releaseMemory(snapshotMemory);
+        }
+    }
+
+    private void writeSnapshotClaimed(OutputStream os) throws IOException {
+        final int[] groups;
+        final Map<String, DynamicMetric> metrics;
+        if (this.originalReader == null) {
+            groups = new int[numDocs];
+            exportDocIdToGroupId(groups);
+            metrics = this.dynamicMetrics;
+        } else {
+            final List<OptimizationRecord> records = readOptimizationRecords();
+            final int[] optimizedToOriginal = optimizedToOriginalDocIds(records);
+            /* docs filtered out by the rebuild were in group 0 */
+            groups = new int[this.originalReader.getNumDocs()];
+            for (int i = 0; i < numDocs; i++) {
+                groups[optimizedToOriginal[i]] = docIdToGroup.get(i);
+            }
+            metrics = reconstructOriginalDynamicMetrics(records);
+        }
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeInt(groups.length);
+        final int numGroups = docIdToGroup.getNumGroups();
+        out.writeInt(numGroups);
+        for (final int group : groups) {
+            if (numGroups <= 256) {
+                out.writeByte(group);
+            } else if (numGroups <= 65536) {
+                out.writeChar(group);
+            } else {
+                out.writeInt(group);
+            }
+        }
+        out.writeInt(metrics.size());
+        for (final Map.Entry<String, DynamicMetric> entry : metrics.entrySet()) {
+            out.writeUTF(entry.getKey());
+            final DynamicMetric metric = entry.getValue();
+            for (int doc = 0; doc < groups.length; doc++) {
+                out.writeInt(metric.lookupSingleVal(doc));
+            }
+        }
+        out.writeInt(statCommands.size());
+        for (final String statCommand : statCommands) {
+            out.writeUTF(statCommand);
+        }
+        out.flush();
+    }
+
+    // maps the doc ids of the rebuilt index to the doc ids of the original shard
+    private int[] optimizedToOriginalDocIds(List<OptimizationRecord> records) {
+        final int[] optimizedToOriginal = new int[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            optimizedToOriginal[i] = i;
+        }
+        for (final OptimizationRecord record : records) {
+            final int[] newDocIdToOldDocId = record.mergedShards.get(0).newDocIdToOldDocId;
+            for (int i = 0; i < numDocs; i++) {
+                optimizedToOriginal[i] = newDocIdToOldDocId[optimizedToOriginal[i]];
+            }
+        }
+        return optimizedToOriginal;
+    }
+
+    /**
+     * Restores the state written by {@link #writeSnapshot(OutputStream)} into this session, which must be
+     * freshly opened on the same shard.
+     */
+    public synchronized void restoreSnapshot(InputStream is) throws IOException, ImhotepOutOfMemoryException {
+        if (numStats > 0 || !statCommands.isEmpty() || !dynamicMetrics.isEmpty() || originalReader != null) {
+            throw new IllegalStateException("snapshots can only be restored into a newly opened session");
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        final int version = in.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+        final int snapshotNumDocs = in.readInt();
+        if (snapshotNumDocs != numDocs) {
+            throw new IllegalArgumentException("snapshot has " + snapshotNumDocs + " docs but the shard has " + numDocs);
+        }
+        final int numGroups = in.readInt();
+
+        clearZeroDocBitsets();
+        docIdToGroup = GroupLookupFactory.resize(docIdToGroup, numGroups - 1, memory);
+        for (int start = 0; start < numDocs; start += BUFFER_SIZE) {
+            final int n = Math.min(BUFFER_SIZE, numDocs - start);
+            for (int i = 0; i < n; i++) {
+                docIdBuf[i] = start + i;
+                if (numGroups <= 256) {
+                    docGroupBuffer[i] = in.readUnsignedByte();
+                } else if (numGroups <= 65536) {
+                    docGroupBuffer[i] = in.readChar();
+                } else {
+                    docGroupBuffer[i] = in.readInt();
+                }
+            }
+            docIdToGroup.batchSet(docIdBuf, docGroupBuffer, n);
+        }
+        finalizeRegroup();
+
+        final int numMetrics = in.readInt();
+        for (int i = 0; i < numMetrics; i++) {
+            final String name = in.readUTF();
+            createDynamicMetric(name);
+            final DynamicMetric metric = dynamicMetrics.get(name);
+            for (int doc = 0; doc < numDocs; doc++) {
+                metric.set(doc, in.readInt());
+            }
+        }
+
+        final int numStatCommands = in.readInt();
+        for (int i = 0; i < numStatCommands; i++) {
+            final String statCommand = in.readUTF();
+            if ("pop".equals(statCommand)) {
+                popStat();
+            } else {
+                pushStat(statCommand);
+            }
+        }
+    }
+
     @Override
     public synchronized long getTotalDocFreq(String[] intFields, String[] stringFields) {
         long ret = 0L;
 
+        /* a compacted index only holds the docs outside group 0, answer for the whole shard */
+        final FlamdexReader reader = originalReader != null ? originalReader : flamdexReader;
         for (final String intField : intFields) {
-            ret += flamdexReader.getIntTotalDocFreq(intField);
+            ret += reader.getIntTotalDocFreq(intField);
         }
 
         for (final String stringField : stringFields) {
-            ret += flamdexReader.getStringTotalDocFreq(stringField);
+            ret += reader.getStringTotalDocFreq(stringField);
         }
 
         return ret;
@@ -633,6 +880,10 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 }
             }
         }
+        if (sharedScans != null && !isIndexRebuilt()) {
+            return new SharedScanFTGSIterator(this, flamdexReaderRef.copy(), intFields, stringFields,
+                                              sharedScans, sharedScanKey);
+        }
         if (flamdexReader instanceof RawFlamdexReader) {
             return new RawFlamdexFTGSIterator(this, flamdexReaderRef.copy(), intFields,
                                               stringFields);
@@ -683,9 +934,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             }
             throw new ImhotepOutOfMemoryException();
         }
+        iteratorOpened();
         return new DocIterator() {
 
             int[] groups = new int[1024];
+            boolean closed = false;
             int n = groups.length;
             int bufferStart = -groups.length;
             int docId = -1;
@@ -741,6 +994,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             }
 
             public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                iteratorClosed();
                 for (IntValueLookup lookup : intValueLookups) {
                     if (lookup != null) {
                         lookup.close();
@@ -801,7 +1059,8 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                                              final int numSplits) {
         if (ftgsIteratorSplits == null || ftgsIteratorSplits.isClosed()) {
             try {
-                ftgsIteratorSplits = new FTGSSplitter(getFTGSIterator(intFields, stringFields), numSplits, numStats, "getIteratorSplitsLocalSession", 969168349, tempFileSizeBytesLeft);
+                // the splitter thread does the scanning, so it waits for a slot of the caller's flow
+                ftgsIteratorSplits = new FTGSSplitter(ScheduledFTGSIterator.wrap(getFTGSIterator(intFields, stringFields)), numSplits, numStats, "getIteratorSplitsLocalSession", 969168349, tempFileSizeBytesLeft);
             } catch (IOException e) {
                 throw Throwables.propagate(e);
             }
@@ -825,7 +1084,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
     public synchronized RawFTGSIterator getSubsetFTGSIteratorSplit(Map<String, long[]> intFields, Map<String, String[]> stringFields, int splitIndex, int numSplits) {
         if (ftgsIteratorSplits == null || ftgsIteratorSplits.isClosed()) {
             try {
-                ftgsIteratorSplits = new FTGSSplitter(getSubsetFTGSIterator(intFields, stringFields), numSplits, numStats, "getIteratorSplitsLocalSession", 969168349, tempFileSizeBytesLeft);
+                ftgsIteratorSplits = new FTGSSplitter(ScheduledFTGSIterator.wrap(getSubsetFTGSIterator(intFields, stringFields)), numSplits, numStats, "getIteratorSplitsLocalSession", 969168349, tempFileSizeBytesLeft);
             } catch (IOException e) {
                 throw Throwables.propagate(e);
             }
@@ -873,60 +1132,36 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 GroupLookupFactory.resize(docIdToGroup,
                                           Math.max(maxIntermediateGroup, maxNewGroup),
                                           memory);
-        MultiRegroupInternals.moveUntargeted(docIdToGroup, maxIntermediateGroup, rules);
-
-        final int maxConditionIndex = MultiRegroupInternals.findMaxIntermediateGroup(rules);
-        final int placeholderGroup = maxConditionIndex + 1;
-
-        final int parallelArrayBytes = 3 * 4 * numConditions + 8 * numConditions;
-        // int[highestTarget+1], int[highestTarget+1][], <int or
-        // string>[highestTarget+1][]
-        // The last two are jagged arrays, and the cardinality of the subarrays
-        // sums to numConditions at most
-        final int maxInequalityBytes = (highestTarget + 1) * (4 + 8 + 8) + numConditions * (4 + 8);
-        final int maxBarrierIndexBytes = numConditions * 4;
-        final int remappingBytes = (maxIntermediateGroup + 1) * 4;
-        final int totalInternalRegroupBytes =
-                parallelArrayBytes + maxInequalityBytes + maxBarrierIndexBytes + remappingBytes;
-        final GroupLookup newDocIdToGroup;
-        newDocIdToGroup = newGroupLookupWithPlaceholders(placeholderGroup);
 
+        final long planBytes = MultiRegroupPlan.estimateMemoryUsage(numConditions, highestTarget, maxIntermediateGroup);
+        if (!memory.claimMemory(planBytes)) {
+            throw new ImhotepOutOfMemoryException();
+        }
         try {
-            if (!memory.claimMemory(totalInternalRegroupBytes)) {
-                throw new ImhotepOutOfMemoryException();
-            }
-            try {
-                MultiRegroupInternals.internalMultiRegroup(docIdToGroup,
-                                                           newDocIdToGroup,
-                                                           docIdBuf,
-                                                           flamdexReader,
-                                                           rules,
-                                                           highestTarget,
-                                                           numConditions,
-                                                           placeholderGroup,
-                                                           maxIntermediateGroup,
-                                                           errorOnCollisions);
-            } finally {
-                memory.releaseMemory(totalInternalRegroupBytes);
-            }
-
-            final int targetGroupToRuleBytes =
-                    Math.max(highestTarget + 1, docIdToGroup.getNumGroups()) * 8;
-            if (!memory.claimMemory(targetGroupToRuleBytes)) {
-                throw new ImhotepOutOfMemoryException();
-            }
-            try {
-                MultiRegroupInternals.internalMultiRegroupCleanup(docIdToGroup,
-                                                                  docIdToGroup.getNumGroups(),
-                                                                  rules,
-                                                                  highestTarget,
-                                                                  newDocIdToGroup,
-                                                                  placeholderGroup);
-            } finally {
-                memory.releaseMemory(targetGroupToRuleBytes);
+            final MultiRegroupPlan plan = MultiRegroupPlan.compile(rules, numConditions, highestTarget, maxIntermediateGroup, errorOnCollisions, docIdBuf);
+            if (plan.isInPlace()) {
+                // every doc is moved at most once, so a bit per doc is all the intermediate state needed
+                final long remappedBytes = FastBitSet.calculateMemoryUsage(docIdToGroup.size());
+                if (!memory.claimMemory(remappedBytes)) {
+                    throw new ImhotepOutOfMemoryException();
+                }
+                try {
+                    plan.applyInPlace(flamdexReader, docIdToGroup, new FastBitSet(docIdToGroup.size()));
+                } finally {
+                    memory.releaseMemory(remappedBytes);
+                }
+            } else {
+                final GroupLookup matches = GroupLookupFactory.create(plan.getMaxMatch(), docIdToGroup.size(), this, memory);
+                try {
+                    plan.apply(flamdexReader, docIdToGroup, matches, errorOnCollisions);
+                    plan.finish(docIdToGroup, matches);
+                } finally {
+                    memory.releaseMemory(matches.memoryUsed());
+                    matches.free();
+                }
             }
         } finally {
-            memory.releaseMemory(newDocIdToGroup.memoryUsed());
+            memory.releaseMemory(planBytes);
         }
 
         finalizeRegroup();
@@ -934,27 +1169,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         return docIdToGroup.getNumGroups();
     }
 
-    // Makes a new GroupLookup with all documents having a nonzero group in the
-    // current docIdToGroup
-    // having a group of placeholderGroup.
-    private synchronized GroupLookup newGroupLookupWithPlaceholders(int placeholderGroup) throws ImhotepOutOfMemoryException {
-        final GroupLookup newLookup;
-
-        newLookup = GroupLookupFactory.create(placeholderGroup, docIdToGroup.size(), this, memory);
-
-        for (int i = 0; i < newLookup.size(); i++) {
-            if (docIdToGroup.get(i) != 0) {
-                newLookup.set(i, placeholderGroup);
-            }
-        }
-        return newLookup;
-    }
-
     @Override
     public synchronized int regroup(final GroupRemapRule[] rawRules) throws ImhotepOutOfMemoryException {
         for (GroupRemapRule rule : rawRules) {
             if (rule.targetGroup == 0) {
-                clearZeroDocBitsets();
+                restoreGroupZeroDocs();
             }
         }
         final int requiredMemory = numDocs / 8 + 1;
@@ -1037,7 +1256,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
     @Override
     public int regroup(QueryRemapRule rule) throws ImhotepOutOfMemoryException {
         if (rule.getTargetGroup() == 0) {
-            clearZeroDocBitsets();
+            restoreGroupZeroDocs();
         }
         docIdToGroup =
                 GroupLookupFactory.resize(docIdToGroup, Math.max(rule.getNegativeGroup(),
@@ -1077,7 +1296,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                           int negativeGroup,
                                           int positiveGroup) throws ImhotepOutOfMemoryException {
         if (targetGroup == 0) {
-            clearZeroDocBitsets();
+            restoreGroupZeroDocs();
         }
         docIdToGroup =
                 GroupLookupFactory.resize(docIdToGroup,
@@ -1097,22 +1316,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 final IntTermIterator iter = flamdexReader.getIntTermIterator(field);
                 final DocIdStream docIdStream = flamdexReader.getDocIdStream()
             ) {
-
-                int termsIndex = 0;
-                while (iter.next()) {
-                    final long term = iter.term();
-                    while (termsIndex < terms.length && terms[termsIndex] < term) {
-                        ++termsIndex;
-                    }
-
-                    if (termsIndex < terms.length && term == terms[termsIndex]) {
+                final IntTermSeeker seeker = new IntTermSeeker(iter);
+                for (final long term : terms) {
+                    if (seeker.seek(term)) {
                         docIdStream.reset(iter);
                         remapPositiveDocs(docIdStream, docRemapped, targetGroup, positiveGroup);
-                        ++termsIndex;
-                    }
-
-                    if (termsIndex == terms.length) {
-                        break;
                     }
                 }
             }
@@ -1131,7 +1339,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                              int negativeGroup,
                                              int positiveGroup) throws ImhotepOutOfMemoryException {
         if (targetGroup == 0) {
-            clearZeroDocBitsets();
+            restoreGroupZeroDocs();
         }
         docIdToGroup =
                 GroupLookupFactory.resize(docIdToGroup,
@@ -1150,21 +1358,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 final StringTermIterator iter = flamdexReader.getStringTermIterator(field);
                 final DocIdStream docIdStream = flamdexReader.getDocIdStream()
             ) {
-                int termsIndex = 0;
-                while (iter.next()) {
-                    final String term = iter.term();
-                    while (termsIndex < terms.length && terms[termsIndex].compareTo(term) < 0) {
-                        ++termsIndex;
-                    }
-
-                    if (termsIndex < terms.length && terms[termsIndex].equals(term)) {
+                final StringTermSeeker seeker = new StringTermSeeker(iter);
+                for (final String term : terms) {
+                    if (seeker.seek(term)) {
                         docIdStream.reset(iter);
                         remapPositiveDocs(docIdStream, docRemapped, targetGroup, positiveGroup);
-                        ++termsIndex;
-                    }
-
-                    if (termsIndex == terms.length) {
-                        break;
                     }
                 }
             }
@@ -1182,7 +1380,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             throw new IllegalStateException("regexRegroup should be applied as a filter when you have only one group");
         }
         if (targetGroup == 0) {
-            clearZeroDocBitsets();
+            restoreGroupZeroDocs();
         }
         docIdToGroup =
                 GroupLookupFactory.resize(docIdToGroup,
@@ -1256,7 +1454,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                            int negativeGroup,
                                            int positiveGroup) throws ImhotepOutOfMemoryException {
         if (targetGroup == 0) {
-            clearZeroDocBitsets();
+            restoreGroupZeroDocs();
         }
         docIdToGroup =
                 GroupLookupFactory.resize(docIdToGroup,
@@ -1322,7 +1520,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                                 double[] percentages,
                                                 int[] resultGroups) throws ImhotepOutOfMemoryException {
         if (targetGroup == 0) {
-            clearZeroDocBitsets();
+            restoreGroupZeroDocs();
         }
         ensureValidMultiRegroupArrays(percentages, resultGroups);
         docIdToGroup = GroupLookupFactory.resize(docIdToGroup, Ints.max(resultGroups), memory);
@@ -1448,6 +1646,179 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
     }
 
+    @Override
+    public synchronized DistinctCountSketch[] getGroupDistinctSketches(String field,
+                                                                      boolean isIntField,
+                                                                      int precision) throws ImhotepOutOfMemoryException {
+        if (precision < DistinctCountSketch.MIN_PRECISION || precision > DistinctCountSketch.MAX_PRECISION) {
+            throw new IllegalArgumentException("precision must be between " + DistinctCountSketch.MIN_PRECISION
+                    + " and " + DistinctCountSketch.MAX_PRECISION + ", was " + precision);
+        }
+        releaseSketchMemory();
+        final int numGroups = docIdToGroup.getNumGroups();
+        final long groupsSeenMemory = FastBitSet.calculateMemoryUsage(numGroups) + 4L * numGroups;
+        if (!memory.claimMemory(groupsSeenMemory)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        boolean success = false;
+        try {
+            claimSketchMemory(8L * numGroups);
+            final DistinctCountSketch[] sketches = new DistinctCountSketch[numGroups];
+            final FastBitSet groupsSeen = new FastBitSet(numGroups);
+            final int[] groupsSeenList = new int[numGroups];
+            final DocIdStream docIdStream = flamdexReader.getDocIdStream();
+            try {
+                if (isIntField) {
+                    final IntTermIterator iter = flamdexReader.getIntTermIterator(field);
+                    try {
+                        while (iter.next()) {
+                            docIdStream.reset(iter);
+                            final int groupsSeenCount = fillGroupsWithTerm(docIdStream, groupsSeen, groupsSeenList);
+                            if (groupsSeenCount > 0) {
+                                addTermHashToGroups(DistinctCountSketch.hashInt(iter.term()), sketches, precision, groupsSeen, groupsSeenList, groupsSeenCount);
+                            }
+                        }
+                    } finally {
+                        iter.close();
+                    }
+                } else {
+                    final StringTermIterator iter = flamdexReader.getStringTermIterator(field);
+                    try {
+                        while (iter.next()) {
+                            docIdStream.reset(iter);
+                            final int groupsSeenCount = fillGroupsWithTerm(docIdStream, groupsSeen, groupsSeenList);
+                            if (groupsSeenCount > 0) {
+                                addTermHashToGroups(DistinctCountSketch.hashString(iter.term()), sketches, precision, groupsSeen, groupsSeenList, groupsSeenCount);
+                            }
+                        }
+                    } finally {
+                        iter.close();
+                    }
+                }
+            } finally {
+                docIdStream.close();
+            }
+            success = true;
+            return sketches;
+        } finally {
+            memory.releaseMemory(groupsSeenMemory);
+            if (!success) {
+                releaseSketchMemory();
+            }
+        }
+    }
+
+    private void claimSketchMemory(long bytes) throws ImhotepOutOfMemoryException {
+        if (!memory.claimMemory(bytes)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        sketchMemory += bytes;
+    }
+
+    /**
+     * gives back the memory claimed for the sketches last returned, once they are no longer needed
+     */
+    public synchronized void releaseSketchMemory() {
+        memory.releaseMemory(sketchMemory);
+        sketchMemory = 0;
+    }
+
+    @Override
+    public synchronized QuantileSketch[] getGroupQuantiles(int stat, double accuracy) throws ImhotepOutOfMemoryException {
+        if (stat < 0 || stat >= numStats) {
+            throw new IllegalArgumentException("invalid stat index: " + stat + ", must be between 0 and " + (numStats - 1));
+        }
+        if (!(accuracy > 0 && accuracy < 1)) {
+            throw new IllegalArgumentException("accuracy must be between 0 and 1 exclusive, was " + accuracy);
+        }
+        releaseSketchMemory();
+        final int numGroups = docIdToGroup.getNumGroups();
+        boolean success = false;
+        try {
+            claimSketchMemory(8L * numGroups);
+            final QuantileSketch[] sketches = new QuantileSketch[numGroups];
+            final IntValueLookup lookup = statLookup[stat];
+            for (int start = 0; start < numDocs; start += BUFFER_SIZE) {
+                final int n = Math.min(BUFFER_SIZE, numDocs - start);
+                docIdToGroup.fillDocGrpBufferSequential(start, docGroupBuffer, n);
+                // only the stat values of docs outside of group 0 are looked up
+                int numNonZero = 0;
+                for (int i = 0; i < n; i++) {
+                    if (docGroupBuffer[i] != 0) {
+                        docGroupBuffer[numNonZero] = docGroupBuffer[i];
+                        docIdBuf[numNonZero++] = start + i;
+                    }
+                }
+                if (numNonZero == 0) {
+                    continue;
+                }
+                lookup.lookup(docIdBuf, valBuf, numNonZero);
+                // buckets are added as values are seen, what they grew by is claimed once per batch
+                long grown = 0;
+                for (int i = 0; i < numNonZero; i++) {
+                    final int group = docGroupBuffer[i];
+                    QuantileSketch sketch = sketches[group];
+                    if (sketch == null) {
+                        sketch = new QuantileSketch(accuracy);
+                        sketches[group] = sketch;
+                        grown += sketch.memoryUsage();
+                    }
+                    final long before = sketch.memoryUsage();
+                    sketch.add(valBuf[i]);
+                    grown += sketch.memoryUsage() - before;
+                }
+                claimSketchMemory(grown);
+            }
+            success = true;
+            return sketches;
+        } finally {
+            if (!success) {
+                releaseSketchMemory();
+            }
+        }
+    }
+
+    /**
+     * marks every non-zero group containing a document of the stream in groupsSeen
+     * @return the number of groups marked, which are listed in groupsSeenList
+     */
+    private int fillGroupsWithTerm(DocIdStream docIdStream, FastBitSet groupsSeen, int[] groupsSeenList) {
+        int groupsSeenCount = 0;
+        while (true) {
+            final int n = docIdStream.fillDocIdBuffer(docIdBuf);
+            docIdToGroup.fillDocGrpBuffer(docIdBuf, docGroupBuffer, n);
+            for (int i = 0; i < n; i++) {
+                final int group = docGroupBuffer[i];
+                if (group != 0 && !groupsSeen.get(group)) {
+                    groupsSeen.set(group);
+                    groupsSeenList[groupsSeenCount++] = group;
+                }
+            }
+            if (n < docIdBuf.length) {
+                break;
+            }
+        }
+        return groupsSeenCount;
+    }
+
+    private void addTermHashToGroups(long hash,
+                                     DistinctCountSketch[] sketches,
+                                     int precision,
+                                     FastBitSet groupsSeen,
+                                     int[] groupsSeenList,
+                                     int groupsSeenCount) throws ImhotepOutOfMemoryException {
+        for (int i = 0; i < groupsSeenCount; i++) {
+            final int group = groupsSeenList[i];
+            if (sketches[group] == null) {
+                // only groups that have a term get a sketch, accounted at its largest size
+                claimSketchMemory(DistinctCountSketch.maxMemoryUsage(precision));
+                sketches[group] = new DistinctCountSketch(precision);
+            }
+            sketches[group].addHash(hash);
+            groupsSeen.clear(group);
+        }
+    }
+
     private static final Comparator<IntTermWithFreq> INT_FREQ_COMPARATOR =
             new Comparator<IntTermWithFreq>() {
                 @Override
@@ -2087,8 +2458,8 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         needToReCalcGroupStats[numStats] = true;
         numStats++;
 
-        // FlamdexFTGSIterator.termGrpStats
-        if (!memory.claimMemory(8L * docIdToGroup.getNumGroups())) {
+        // InterleavedGroupStats of the FTGS iterator, the term's stats and a batch of looked up values
+        if (!memory.claimMemory(8L * docIdToGroup.getNumGroups() + 8L * BUFFER_SIZE)) {
             throw new ImhotepOutOfMemoryException();
         }
 
@@ -2124,7 +2495,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
         final IntValueLookup ret = statLookup[numStats];
         statLookup[numStats] = null;
-        final long memFreed = groupStats[numStats].length * 8 + 8L * docIdToGroup.getNumGroups();
+        final long memFreed = groupStats[numStats].length * 8 + 8L * docIdToGroup.getNumGroups() + 8L * BUFFER_SIZE;
         groupStats[numStats] = null;
 
         memory.releaseMemory(memFreed);
@@ -2427,6 +2798,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 final long memFreed =
                         docIdToGroup.memoryUsed() + groupDocCount.length * 4L + BUFFER_SIZE
                                 * (4 + 4 + 4) + 12L * docIdToGroup.getNumGroups();
+                docIdToGroup.free();
                 docIdToGroup = null;
                 groupDocCount = null;
                 memory.releaseMemory(memFreed);
@@ -2440,6 +2812,10 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             if (dynamicMetricUsage > 0) {
                 memory.releaseMemory(dynamicMetricUsage);
             }
+            releaseSketchMemory();
+            if (arena != null) {
+                arena.close();
+            }
             if (memory.usedMemory() > 0) {
                 log.error("ImhotepLocalSession is leaking! memory reserved after all memory has been freed: "
                         + memory.usedMemory());
@@ -2480,7 +2856,8 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
     }
 
     private void resetGroupsTo(int group) throws ImhotepOutOfMemoryException {
-        final long bytesToFree = docIdToGroup.memoryUsed();
+        final GroupLookup oldLookup = docIdToGroup;
+        final long bytesToFree = oldLookup.memoryUsed();
         final int newNumGroups = group + 1;
 
         clearZeroDocBitsets();
@@ -2489,6 +2866,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         recalcGroupCounts(newNumGroups);
         recalcGroupStats(newNumGroups);
         memory.releaseMemory(bytesToFree);
+        oldLookup.free();
     }
 
     void clearZeroDocBitsets() {
@@ -2563,12 +2941,6 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
     }
 
-    static void clear(long[] array, int[] groupsSeen, int groupsSeenCount) {
-        for (int i = 0; i < groupsSeenCount; i++) {
-            array[groupsSeen[i]] = 0;
-        }
-    }
-
     private static class IntFieldConditionSummary {
         long maxInequalityTerm = Long.MIN_VALUE;
         Set<Long> otherTerms = new HashSet<Long>();
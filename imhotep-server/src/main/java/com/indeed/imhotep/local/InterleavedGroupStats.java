@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.imhotep.BitTree;
+
+import java.util.Arrays;
+
+/**
+ * Per group stats of the current FTGS term and the groups it was seen in.
+ *
+ * Stats are stored in rows of numStats adjacent longs. Adding a batch of docs looks up every stat first and then
+ * updates each doc's row in one pass, so a doc touches one run of adjacent longs instead of one array per stat. The
+ * common stat counts have unrolled update loops.
+ *
+ * With few groups the rows are indexed by group. With many groups, where most terms only occur in a handful of them,
+ * rows are handed out on demand through an open addressing map from group to row, and the accumulator switches to
+ * rows indexed by group once a term has been seen in more than 1/{@link #DENSE_RATIO} of the groups.
+ */
+final class InterleavedGroupStats {
+    /**
+     * sessions with fewer groups than this always use rows indexed by group
+     */
+    static final int SPARSE_MIN_GROUPS = 1 << 16;
+    static final int DENSE_RATIO = 16;
+
+    private static final int INITIAL_ROWS = 256;
+
+    private final int numStats;
+    private final int numGroups;
+    // looked up values of the current batch, by stat
+    private final long[][] values;
+
+    private boolean dense;
+    private long[] stats;
+
+    // rows indexed by group
+    private BitTree bitTree;
+    private int[] dumpedGroups;
+
+    // rows handed out on demand
+    private int maxSparseRows;
+    private int[] table;
+    private int tableMask;
+    // 32 - log2(table.length), the home slot of a group is the top bits of its hash
+    private int tableShift;
+    private int[] rowGroup;
+    private int[] rowSlot;
+    private int numRows;
+    private int[] rowBuf;
+    private long[] sortBuf;
+    private int[] dumpedRows;
+
+    private int numDumped;
+
+    InterleavedGroupStats(int numStats, int numGroups) {
+        this.numStats = numStats;
+        this.numGroups = numGroups;
+        values = new long[numStats][ImhotepLocalSession.BUFFER_SIZE];
+        if (numGroups < SPARSE_MIN_GROUPS) {
+            makeDense();
+        } else {
+            // stays sparse if a dense row per group can't be allocated at all
+            maxSparseRows = (long) numStats * numGroups < Integer.MAX_VALUE ? numGroups / DENSE_RATIO : Integer.MAX_VALUE;
+            table = new int[INITIAL_ROWS * 2];
+            tableMask = table.length - 1;
+            tableShift = Integer.numberOfLeadingZeros(table.length) + 1;
+            rowGroup = new int[INITIAL_ROWS];
+            rowSlot = new int[INITIAL_ROWS];
+            stats = new long[INITIAL_ROWS * numStats];
+            rowBuf = new int[ImhotepLocalSession.BUFFER_SIZE];
+            sortBuf = new long[INITIAL_ROWS];
+            dumpedGroups = new int[INITIAL_ROWS];
+            dumpedRows = new int[INITIAL_ROWS];
+        }
+    }
+
+    boolean isDense() {
+        return dense;
+    }
+
+    /**
+     * adds the stats of the first n docs of docIdBuf to the groups at the same positions of docGroupBuffer, which must
+     * not contain group zero
+     */
+    void add(IntValueLookup[] statLookups, int[] docIdBuf, int[] docGroupBuffer, int n) {
+        final int[] rows;
+        if (dense || !mapRows(docGroupBuffer, n)) {
+            bitTree.set(docGroupBuffer, n);
+            rows = docGroupBuffer;
+        } else {
+            rows = rowBuf;
+        }
+        for (int statIndex = 0; statIndex < numStats; statIndex++) {
+            statLookups[statIndex].lookup(docIdBuf, values[statIndex], n);
+        }
+        switch (numStats) {
+            case 0:
+                break;
+            case 1:
+                add1(rows, n);
+                break;
+            case 2:
+                add2(rows, n);
+                break;
+            case 3:
+                add3(rows, n);
+                break;
+            case 4:
+                add4(rows, n);
+                break;
+            case 5:
+                add5(rows, n);
+                break;
+            case 6:
+                add6(rows, n);
+                break;
+            case 7:
+                add7(rows, n);
+                break;
+            case 8:
+                add8(rows, n);
+                break;
+            default:
+                addGeneric(rows, n);
+        }
+    }
+
+    /**
+     * sorts the groups seen since the last clear
+     * @return the number of groups seen
+     */
+    int dump() {
+        if (dense) {
+            numDumped = bitTree.dump(dumpedGroups);
+            return numDumped;
+        }
+        if (sortBuf.length < numRows) {
+            sortBuf = new long[rowGroup.length];
+            dumpedGroups = new int[rowGroup.length];
+            dumpedRows = new int[rowGroup.length];
+        }
+        for (int row = 0; row < numRows; row++) {
+            sortBuf[row] = ((long) rowGroup[row] << 32) | row;
+        }
+        Arrays.sort(sortBuf, 0, numRows);
+        for (int i = 0; i < numRows; i++) {
+            dumpedGroups[i] = (int) (sortBuf[i] >>> 32);
+            dumpedRows[i] = (int) sortBuf[i];
+        }
+        numDumped = numRows;
+        return numDumped;
+    }
+
+    /**
+     * @return the index-th group returned by the last dump
+     */
+    int group(int index) {
+        return dumpedGroups[index];
+    }
+
+    /**
+     * copies the stats of the index-th group returned by the last dump
+     */
+    void get(int index, long[] dest) {
+        final int row = dense ? dumpedGroups[index] : dumpedRows[index];
+        System.arraycopy(stats, row * numStats, dest, 0, numStats);
+    }
+
+    /**
+     * resets the stats and groups of the current term
+     */
+    void clear() {
+        if (dense) {
+            for (int i = 0; i < numDumped; i++) {
+                final int base = dumpedGroups[i] * numStats;
+                for (int statIndex = 0; statIndex < numStats; statIndex++) {
+                    stats[base + statIndex] = 0;
+                }
+            }
+        } else {
+            Arrays.fill(stats, 0, numRows * numStats, 0);
+            for (int row = 0; row < numRows; row++) {
+                table[rowSlot[row]] = 0;
+            }
+            numRows = 0;
+        }
+        numDumped = 0;
+    }
+
+    // fills rowBuf with the rows of the groups, returns false after switching to dense rows if there are too many
+    private boolean mapRows(int[] docGroupBuffer, int n) {
+        for (int i = 0; i < n; i++) {
+            final int group = docGroupBuffer[i];
+            int slot = homeSlot(group, tableShift);
+            int row;
+            while (true) {
+                final int entry = table[slot];
+                if (entry == 0) {
+                    if (numRows == maxSparseRows) {
+                        makeDense();
+                        return false;
+                    }
+                    row = newRow(group, slot);
+                    break;
+                }
+                if (rowGroup[entry - 1] == group) {
+                    row = entry - 1;
+                    break;
+                }
+                slot = (slot + 1) & tableMask;
+            }
+            rowBuf[i] = row;
+        }
+        return true;
+    }
+
+    private int newRow(int group, int slot) {
+        if (numRows == rowGroup.length) {
+            final int newLength = rowGroup.length * 2;
+            rowGroup = Arrays.copyOf(rowGroup, newLength);
+            rowSlot = Arrays.copyOf(rowSlot, newLength);
+            stats = Arrays.copyOf(stats, newLength * numStats);
+        }
+        final int row = numRows++;
+        rowGroup[row] = group;
+        rowSlot[row] = slot;
+        table[slot] = row + 1;
+        // keep the table at most half full
+        if (numRows * 2 > table.length) {
+            rehash();
+        }
+        return row;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        tableMask = table.length - 1;
+        tableShift--;
+        for (int row = 0; row < numRows; row++) {
+            int slot = homeSlot(rowGroup[row], tableShift);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & tableMask;
+            }
+            table[slot] = row + 1;
+            rowSlot[row] = slot;
+        }
+    }
+
+    /*
+     * fibonacci hashing: the multiply mixes every bit of the group into the high bits, while the low bits only
+     * depend on the low bits of the group, so groups with a power of two stride would share a slot
+     */
+    static int homeSlot(int group, int tableShift) {
+        return (group * 0x9E3779B9) >>> tableShift;
+    }
+
+    // moves the rows handed out so far to their groups' positions for the rest of the iteration
+    private void makeDense() {
+        final long[] denseStats = new long[numStats * numGroups];
+        bitTree = new BitTree(numGroups);
+        dumpedGroups = new int[numGroups];
+        for (int row = 0; row < numRows; row++) {
+            System.arraycopy(stats, row * numStats, denseStats, rowGroup[row] * numStats, numStats);
+            bitTree.set(rowGroup[row]);
+        }
+        stats = denseStats;
+        dense = true;
+        table = null;
+        rowGroup = null;
+        rowSlot = null;
+        rowBuf = null;
+        sortBuf = null;
+        dumpedRows = null;
+        numRows = 0;
+    }
+
+    private void add1(int[] rows, int n) {
+        final long[] stats = this.stats;
+        final long[] v0 = values[0];
+        for (int i = 0; i < n; i++) {
+            stats[rows[i]] += v0[i];
+        }
+    }
+
+    private void add2(int[] rows, int n) {
+        final long[] stats = this.stats;
+        final long[] v0 = values[0], v1 = values[1];
+        for (int i = 0; i < n; i++) {
+            final int base = rows[i] * 2;
+            stats[base] += v0[i];
+            stats[base + 1] += v1[i];
+        }
+    }
+
+    private void add3(int[] rows, int n) {
+        final long[] stats = this.stats;
+        final long[] v0 = values[0], v1 = values[1], v2 = values[2];
+        for (int i = 0; i < n; i++) {
+            final int base = rows[i] * 3;
+            stats[base] += v0[i];
+            stats[base + 1] += v1[i];
+            stats[base + 2] += v2[i];
+        }
+    }
+
+    private void add4(int[] rows, int n) {
+        final long[] stats = this.stats;
+        final long[] v0 = values[0], v1 = values[1], v2 = values[2], v3 = values[3];
+        for (int i = 0; i < n; i++) {
+            final int base = rows[i] * 4;
+            stats[base] += v0[i];
+            stats[base + 1] += v1[i];
+            stats[base + 2] += v2[i];
+            stats[base + 3] += v3[i];
+        }
+    }
+
+    private void add5(int[] rows, int n) {
+        final long[] stats = this.stats;
+        final long[] v0 = values[0], v1 = values[1], v2 = values[2], v3 = values[3], v4 = values[4];
+        for (int i = 0; i < n; i++) {
+            final int base = rows[i] * 5;
+            stats[base] += v0[i];
+            stats[base + 1] += v1[i];
+            stats[base + 2] += v2[i];
+            stats[base + 3] += v3[i];
+            stats[base + 4] += v4[i];
+        }
+    }
+
+    private void add6(int[] rows, int n) {
+        final long[] stats = this.stats;
+        final long[] v0 = values[0], v1 = values[1], v2 = values[2], v3 = values[3], v4 = values[4], v5 = values[5];
+        for (int i = 0; i < n; i++) {
+            final int base = rows[i] * 6;
+            stats[base] += v0[i];
+            stats[base + 1] += v1[i];
+            stats[base + 2] += v2[i];
+            stats[base + 3] += v3[i];
+            stats[base + 4] += v4[i];
+            stats[base + 5] += v5[i];
+        }
+    }
+
+    private void add7(int[] rows, int n) {
+        final long[] stats = this.stats;
+        final long[] v0 = values[0], v1 = values[1], v2 = values[2], v3 = values[3], v4 = values[4], v5 = values[5], v6 = values[6];
+        for (int i = 0; i < n; i++) {
+            final int base = rows[i] * 7;
+            stats[base] += v0[i];
+            stats[base + 1] += v1[i];
+            stats[base + 2] += v2[i];
+            stats[base + 3] += v3[i];
+            stats[base + 4] += v4[i];
+            stats[base + 5] += v5[i];
+            stats[base + 6] += v6[i];
+        }
+    }
+
+    private void add8(int[] rows, int n) {
+        final long[] stats = this.stats;
+        final long[] v0 = values[0], v1 = values[1], v2 = values[2], v3 = values[3], v4 = values[4], v5 = values[5], v6 = values[6], v7 = values[7];
+        for (int i = 0; i < n; i++) {
+            final int base = rows[i] * 8;
+            stats[base] += v0[i];
+            stats[base + 1] += v1[i];
+            stats[base + 2] += v2[i];
+            stats[base + 3] += v3[i];
+            stats[base + 4] += v4[i];
+            stats[base + 5] += v5[i];
+            stats[base + 6] += v6[i];
+            stats[base + 7] += v7[i];
+        }
+    }
+
+    private void addGeneric(int[] rows, int n) {
+        final long[] stats = this.stats;
+        for (int i = 0; i < n; i++) {
+            final int base = rows[i] * numStats;
+            for (int statIndex = 0; statIndex < numStats; statIndex++) {
+                stats[base + statIndex] += values[statIndex][i];
+            }
+        }
+    }
+}
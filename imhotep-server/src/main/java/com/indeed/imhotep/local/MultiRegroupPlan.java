@@ -0,0 +1,649 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.google.common.collect.ComparisonChain;
+import com.indeed.util.core.sort.Quicksortable;
+import com.indeed.util.core.sort.Quicksortables;
+import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.datastruct.FastBitSet;
+import com.indeed.flamdex.utils.IntTermSeeker;
+import com.indeed.flamdex.utils.StringTermSeeker;
+import com.indeed.imhotep.GroupMultiRemapRule;
+import com.indeed.imhotep.RegroupCondition;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of {@link GroupMultiRemapRule}s compiled into one plan per field, so that each field is read once no
+ * matter how many rules have conditions on it.
+ *
+ * Each field plan holds a table of the equality terms of the field in term order, listing for every term the
+ * target groups with a condition on it and the index of that condition within its rule, and for every target group
+ * its inequality barriers. Docs are matched to the lowest condition index of their rule, stored as index + 1 in a
+ * matches lookup where 0 means no match, and {@link #finish} then moves every doc to its positive or negative group
+ * and untargeted docs to group 0 in one pass.
+ *
+ * When every condition is an equality split on a single field, and collisions are not errors, the table is ordered by
+ * condition index instead, so the first condition that matches a doc is its lowest one and it can be moved to its new
+ * group in place.
+ */
+final class MultiRegroupPlan {
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private final GroupMultiRemapRule[] targetGroupToRule;
+    private final List<FieldPlan> fieldPlans = new ArrayList<FieldPlan>();
+    private final int maxMatch;
+    private final boolean inPlace;
+
+    // condition index + 1 of the term being streamed for each group, NO_MATCH for groups without a condition on it
+    private final int[] remappings;
+    private final int[] docIdBuf;
+    private final int[] groupBuf = new int[ImhotepLocalSession.BUFFER_SIZE];
+    private final int[] matchBuf = new int[ImhotepLocalSession.BUFFER_SIZE];
+
+    private MultiRegroupPlan(GroupMultiRemapRule[] targetGroupToRule, int maxMatch, boolean inPlace, int[] docIdBuf) {
+        this.targetGroupToRule = targetGroupToRule;
+        this.maxMatch = maxMatch;
+        this.inPlace = inPlace;
+        this.docIdBuf = docIdBuf;
+        remappings = new int[targetGroupToRule.length];
+        for (int i = 0; i < remappings.length; i++) {
+            remappings[i] = NO_MATCH;
+        }
+    }
+
+    /*
+     * An upper bound on what compile and apply allocate, to be claimed before compiling
+     */
+    static long estimateMemoryUsage(int numConditions, int highestTarget, int maxIntermediateGroup) {
+        // the sorted parallel arrays and the term tables built from them
+        final long conditionBytes = (long) numConditions * ((8 + 4 + 4 + 4) + (8 + 4 + 4 + 4));
+        // int[highestTarget+1] twice, int[highestTarget+1][], <int or string>[highestTarget+1][]
+        // The last two are jagged arrays, and the cardinality of the subarrays
+        // sums to numConditions at most
+        final long inequalityBytes = (long) (highestTarget + 1) * (4 + 4 + 8 + 8) + (long) numConditions * (4 + 8);
+        final long groupBytes = (long) (maxIntermediateGroup + 1) * (4 + 8);
+        final long bufferBytes = 2 * 4 * ImhotepLocalSession.BUFFER_SIZE;
+        return conditionBytes + inequalityBytes + groupBytes + bufferBytes;
+    }
+
+    /*
+     * rules must have been checked with MultiRegroupInternals.validateTargets and validateEqualitySplits
+     * @throws IllegalArgumentException if a rule has inequality conditions that can never be met
+     */
+    static MultiRegroupPlan compile(GroupMultiRemapRule[] rules, int numConditions, int highestTarget, int maxIntermediateGroup, boolean errorOnCollisions, int[] docIdBuf) {
+        final GroupMultiRemapRule[] targetGroupToRule = new GroupMultiRemapRule[Math.max(highestTarget, maxIntermediateGroup) + 1];
+        for (final GroupMultiRemapRule rule : rules) {
+            targetGroupToRule[rule.targetGroup] = rule;
+        }
+
+        final RegroupCondition[] sortedConditions = new RegroupCondition[numConditions];
+        final int[] sortedPositiveGroups = new int[numConditions];
+        final int[] sortedInternalIndices = new int[numConditions];
+        final int[] sortedRuleIndices = new int[numConditions];
+        {
+            int i = 0;
+            for (int ruleIndex = 0; ruleIndex < rules.length; ruleIndex++) {
+                final GroupMultiRemapRule rule = rules[ruleIndex];
+                for (int conditionIndex = 0; conditionIndex < rule.conditions.length; conditionIndex++) {
+                    sortedConditions[i] = rule.conditions[conditionIndex];
+                    sortedPositiveGroups[i] = rule.positiveGroups[conditionIndex];
+                    sortedInternalIndices[i] = conditionIndex;
+                    sortedRuleIndices[i] = ruleIndex;
+                    i++;
+                }
+            }
+        }
+        // by field, type, inequality, target group and condition index
+        MultiRegroupInternals.reorderRegroupConditions(rules, numConditions, sortedConditions, sortedPositiveGroups, sortedInternalIndices, sortedRuleIndices);
+
+        // docs are not checked for collisions in place
+        final boolean inPlace = !errorOnCollisions
+                && numConditions > 0
+                && !sortedConditions[numConditions - 1].inequality
+                && sortedConditions[0].intType == sortedConditions[numConditions - 1].intType
+                && sortedConditions[0].field.equals(sortedConditions[numConditions - 1].field);
+
+        final MultiRegroupPlan plan = new MultiRegroupPlan(targetGroupToRule,
+                MultiRegroupInternals.findMaxIntermediateGroup(rules), inPlace, docIdBuf);
+        int fieldStartIndex = 0;
+        while (fieldStartIndex < numConditions) {
+            final String field = sortedConditions[fieldStartIndex].field;
+            final boolean intType = sortedConditions[fieldStartIndex].intType;
+            int inequalityStartIndex = fieldStartIndex;
+            while (inequalityStartIndex < numConditions
+                    && isSameField(sortedConditions[inequalityStartIndex], field, intType)
+                    && !sortedConditions[inequalityStartIndex].inequality) {
+                inequalityStartIndex++;
+            }
+            int fieldEndIndex = inequalityStartIndex;
+            while (fieldEndIndex < numConditions && isSameField(sortedConditions[fieldEndIndex], field, intType)) {
+                fieldEndIndex++;
+            }
+
+            if (inPlace) {
+                reorderOnConditionIndex(fieldStartIndex, inequalityStartIndex, intType, sortedConditions, sortedPositiveGroups, sortedInternalIndices, sortedRuleIndices);
+            } else {
+                MultiRegroupInternals.reorderOnTerm(fieldStartIndex, inequalityStartIndex, intType, sortedConditions, sortedPositiveGroups, sortedInternalIndices, sortedRuleIndices);
+            }
+
+            final FieldPlan fieldPlan = intType ? plan.new IntFieldPlan(field) : plan.new StringFieldPlan(field);
+            fieldPlan.buildTable(rules, sortedConditions, sortedInternalIndices, sortedRuleIndices, fieldStartIndex, inequalityStartIndex);
+            if (inequalityStartIndex < fieldEndIndex) {
+                fieldPlan.buildBarriers(rules, sortedConditions, sortedInternalIndices, sortedRuleIndices, inequalityStartIndex, fieldEndIndex, highestTarget);
+            }
+            plan.fieldPlans.add(fieldPlan);
+            fieldStartIndex = fieldEndIndex;
+        }
+        return plan;
+    }
+
+    private static boolean isSameField(RegroupCondition condition, String field, boolean intType) {
+        return condition.intType == intType && condition.field.equals(field);
+    }
+
+    private static void reorderOnConditionIndex(final int start, int end, final boolean intType, final RegroupCondition[] sortedConditions, final int[] sortedPositiveGroups, final int[] sortedInternalIndices, final int[] sortedRuleIndices) {
+        Quicksortables.sort(new Quicksortable() {
+            @Override
+            public void swap(int i, int j) {
+                Quicksortables.swap(sortedConditions, start + i, start + j);
+                Quicksortables.swap(sortedPositiveGroups, start + i, start + j);
+                Quicksortables.swap(sortedInternalIndices, start + i, start + j);
+                Quicksortables.swap(sortedRuleIndices, start + i, start + j);
+            }
+
+            @Override
+            public int compare(int i, int j) {
+                final ComparisonChain chain = ComparisonChain.start()
+                        .compare(sortedInternalIndices[start + i], sortedInternalIndices[start + j]);
+                if (intType) {
+                    return chain.compare(sortedConditions[start + i].intTerm, sortedConditions[start + j].intTerm).result();
+                } else {
+                    return chain.compare(sortedConditions[start + i].stringTerm, sortedConditions[start + j].stringTerm).result();
+                }
+            }
+        }, end - start);
+    }
+
+    /**
+     * @return true if every condition is an equality split on the same field and collisions are not errors, in which
+     * case {@link #applyInPlace} must be used instead of {@link #apply}
+     */
+    boolean isInPlace() {
+        return inPlace;
+    }
+
+    /**
+     * @return the highest value apply stores in the matches lookup
+     */
+    int getMaxMatch() {
+        return maxMatch;
+    }
+
+    /**
+     * Matches every doc in a targeted group against the conditions of its rule, reading each field once.
+     * @param matches must be all 0
+     */
+    void apply(FlamdexReader flamdexReader, GroupLookup docIdToGroup, GroupLookup matches, boolean errorOnCollisions) {
+        final DocIdStream docIdStream = flamdexReader.getDocIdStream();
+        try {
+            for (final FieldPlan fieldPlan : fieldPlans) {
+                fieldPlan.apply(flamdexReader, docIdStream, docIdToGroup, matches, errorOnCollisions);
+            }
+        } finally {
+            docIdStream.close();
+        }
+    }
+
+    /**
+     * Moves every targeted doc to the positive group of the condition it matched or to the negative group of its
+     * rule, and every other doc to group 0.
+     */
+    void finish(GroupLookup docIdToGroup, GroupLookup matches) {
+        for (int start = 0; start < docIdToGroup.size(); start += docIdBuf.length) {
+            final int n = Math.min(docIdBuf.length, docIdToGroup.size() - start);
+            docIdToGroup.fillDocGrpBufferSequential(start, groupBuf, n);
+            matches.fillDocGrpBufferSequential(start, matchBuf, n);
+            for (int i = 0; i < n; i++) {
+                docIdBuf[i] = start + i;
+                final GroupMultiRemapRule rule = targetGroupToRule[groupBuf[i]];
+                if (rule == null) {
+                    groupBuf[i] = 0;
+                } else if (matchBuf[i] == 0) {
+                    groupBuf[i] = rule.negativeGroup;
+                } else {
+                    groupBuf[i] = rule.positiveGroups[matchBuf[i] - 1];
+                }
+            }
+            docIdToGroup.batchSet(docIdBuf, groupBuf, n);
+        }
+    }
+
+    /**
+     * Moves matched docs straight to their positive groups, one condition index at a time so that the first match of
+     * a doc is its lowest, and then everything else as {@link #finish} does.
+     * @param remapped must be empty, tracks which docs were already moved
+     */
+    void applyInPlace(FlamdexReader flamdexReader, GroupLookup docIdToGroup, FastBitSet remapped) {
+        final DocIdStream docIdStream = flamdexReader.getDocIdStream();
+        try {
+            fieldPlans.get(0).applyInPlace(flamdexReader, docIdStream, docIdToGroup, remapped);
+        } finally {
+            docIdStream.close();
+        }
+
+        for (int start = 0; start < docIdToGroup.size(); start += docIdBuf.length) {
+            final int n = Math.min(docIdBuf.length, docIdToGroup.size() - start);
+            docIdToGroup.fillDocGrpBufferSequential(start, groupBuf, n);
+            for (int i = 0; i < n; i++) {
+                docIdBuf[i] = start + i;
+                if (!remapped.get(start + i)) {
+                    final GroupMultiRemapRule rule = targetGroupToRule[groupBuf[i]];
+                    groupBuf[i] = rule == null ? 0 : rule.negativeGroup;
+                }
+            }
+            docIdToGroup.batchSet(docIdBuf, groupBuf, n);
+        }
+    }
+
+    private abstract class FieldPlan {
+        final String field;
+
+        // the equality table: entries slotStarts[slot] until slotStarts[slot+1] all have the term of the slot
+        int numSlots;
+        int[] slotStarts;
+        int[] targetGroups;
+        int[] conditionIndices;
+
+        // per target group, null for groups without inequalities on this field
+        int[] barrierLengths;
+        int[][] resultingIndex;
+        private int[] barrierPositions;
+
+        FieldPlan(String field) {
+            this.field = field;
+        }
+
+        final void buildTable(GroupMultiRemapRule[] rules, RegroupCondition[] sortedConditions, int[] sortedInternalIndices, int[] sortedRuleIndices, int start, int end) {
+            slotStarts = new int[end - start + 1];
+            targetGroups = new int[end - start];
+            conditionIndices = new int[end - start];
+            initTerms(end - start);
+            numSlots = 0;
+            for (int ix = start; ix < end; ix++) {
+                // in condition index order a term starts a new slot whenever the index changes
+                if (ix == start
+                        || (inPlace && sortedInternalIndices[ix] != sortedInternalIndices[ix - 1])
+                        || !sameTerm(sortedConditions[ix], sortedConditions[ix - 1])) {
+                    slotStarts[numSlots] = ix - start;
+                    setTerm(numSlots, sortedConditions[ix]);
+                    numSlots++;
+                }
+                targetGroups[ix - start] = rules[sortedRuleIndices[ix]].targetGroup;
+                conditionIndices[ix - start] = sortedInternalIndices[ix];
+            }
+            slotStarts[numSlots] = end - start;
+        }
+
+        final void initBarriers(int highestTarget) {
+            barrierLengths = new int[highestTarget + 1];
+            resultingIndex = new int[highestTarget + 1][];
+            barrierPositions = new int[highestTarget + 1];
+        }
+
+        abstract void initTerms(int size);
+
+        abstract void setTerm(int slot, RegroupCondition condition);
+
+        abstract boolean sameTerm(RegroupCondition a, RegroupCondition b);
+
+        abstract void buildBarriers(GroupMultiRemapRule[] rules, RegroupCondition[] sortedConditions, int[] sortedInternalIndices, int[] sortedRuleIndices, int start, int end, int highestTarget);
+
+        abstract void apply(FlamdexReader flamdexReader, DocIdStream docIdStream, GroupLookup docIdToGroup, GroupLookup matches, boolean errorOnCollisions);
+
+        abstract void applyInPlace(FlamdexReader flamdexReader, DocIdStream docIdStream, GroupLookup docIdToGroup, FastBitSet remapped);
+
+        /*
+         * @return true if the term at the current barrier position of the group sorts before the current term
+         */
+        abstract boolean pastBarrier(int group, int position);
+
+        final void setRemappings(int slot) {
+            for (int i = slotStarts[slot]; i < slotStarts[slot + 1]; i++) {
+                remappings[targetGroups[i]] = conditionIndices[i] + 1;
+            }
+        }
+
+        final void clearRemappings(int slot) {
+            for (int i = slotStarts[slot]; i < slotStarts[slot + 1]; i++) {
+                remappings[targetGroups[i]] = NO_MATCH;
+            }
+        }
+
+        final void resetBarrierPositions() {
+            for (int i = 0; i < barrierPositions.length; i++) {
+                barrierPositions[i] = 0;
+            }
+        }
+
+        /*
+         * Barriers of a group are sorted and terms are streamed in order, so the position of each group only ever
+         * moves forward while a field is walked.
+         */
+        private int inequalityMatch(int group) {
+            if (group >= barrierLengths.length || resultingIndex[group] == null) {
+                return NO_MATCH;
+            }
+            int position = barrierPositions[group];
+            while (position < barrierLengths[group] && pastBarrier(group, position)) {
+                position++;
+            }
+            barrierPositions[group] = position;
+            return position < barrierLengths[group] ? resultingIndex[group][position] + 1 : NO_MATCH;
+        }
+
+        /*
+         * Applies the remappings of the current slot if equality is set and the barriers of the current term if
+         * inequality is set to the docs of the term.
+         */
+        final void remapDocs(DocIdStream docIdStream, GroupLookup docIdToGroup, GroupLookup matches, boolean equality, boolean inequality, boolean errorOnCollisions) {
+            while (true) {
+                final int n = docIdStream.fillDocIdBuffer(docIdBuf);
+                docIdToGroup.fillDocGrpBuffer(docIdBuf, groupBuf, n);
+                matches.fillDocGrpBuffer(docIdBuf, matchBuf, n);
+                for (int i = 0; i < n; i++) {
+                    final int group = groupBuf[i];
+                    if (targetGroupToRule[group] == null) {
+                        continue;
+                    }
+                    if (equality && errorOnCollisions && matchBuf[i] != 0) {
+                        throw new IllegalArgumentException("Regrouping on a multi-valued field doesn't work correctly so the operation is rejected.");
+                    }
+                    int match = remappings[group];
+                    if (inequality) {
+                        match = Math.min(match, inequalityMatch(group));
+                    }
+                    if (match != NO_MATCH && (matchBuf[i] == 0 || match < matchBuf[i])) {
+                        matchBuf[i] = match;
+                    }
+                }
+                matches.batchSet(docIdBuf, matchBuf, n);
+                if (n < docIdBuf.length) break;
+            }
+        }
+
+        final void remapDocsInPlace(DocIdStream docIdStream, GroupLookup docIdToGroup, FastBitSet remapped) {
+            while (true) {
+                final int n = docIdStream.fillDocIdBuffer(docIdBuf);
+                docIdToGroup.fillDocGrpBuffer(docIdBuf, groupBuf, n);
+                for (int i = 0; i < n; i++) {
+                    final int docId = docIdBuf[i];
+                    if (remapped.get(docId)) {
+                        continue;
+                    }
+                    final int group = groupBuf[i];
+                    final int match = remappings[group];
+                    if (match != NO_MATCH) {
+                        groupBuf[i] = targetGroupToRule[group].positiveGroups[match - 1];
+                        remapped.set(docId);
+                    }
+                }
+                docIdToGroup.batchSet(docIdBuf, groupBuf, n);
+                if (n < docIdBuf.length) break;
+            }
+        }
+    }
+
+    private final class IntFieldPlan extends FieldPlan {
+        long[] terms;
+        long[][] barriers;
+        private long currentTerm;
+
+        IntFieldPlan(String field) {
+            super(field);
+        }
+
+        @Override
+        void initTerms(int size) {
+            terms = new long[size];
+        }
+
+        @Override
+        void setTerm(int slot, RegroupCondition condition) {
+            terms[slot] = condition.intTerm;
+        }
+
+        @Override
+        boolean sameTerm(RegroupCondition a, RegroupCondition b) {
+            return a.intTerm == b.intTerm;
+        }
+
+        @Override
+        void buildBarriers(GroupMultiRemapRule[] rules, RegroupCondition[] sortedConditions, int[] sortedInternalIndices, int[] sortedRuleIndices, int start, int end, int highestTarget) {
+            initBarriers(highestTarget);
+            barriers = new long[highestTarget + 1][];
+            MultiRegroupInternals.formIntDividers(rules, sortedConditions, sortedInternalIndices, sortedRuleIndices, start, end, barrierLengths, barriers, resultingIndex);
+        }
+
+        @Override
+        boolean pastBarrier(int group, int position) {
+            return currentTerm > barriers[group][position];
+        }
+
+        @Override
+        void apply(FlamdexReader flamdexReader, DocIdStream docIdStream, GroupLookup docIdToGroup, GroupLookup matches, boolean errorOnCollisions) {
+            // equalities are matched separately when collisions are errors so that an inequality on an earlier
+            // term does not count as a collision
+            final boolean fused = barriers != null && !errorOnCollisions;
+            if (!fused && numSlots > 0) {
+                final IntTermIterator termIterator = flamdexReader.getIntTermIterator(field);
+                try {
+                    final IntTermSeeker termSeeker = new IntTermSeeker(termIterator);
+                    for (int slot = 0; slot < numSlots; slot++) {
+                        if (termSeeker.seek(terms[slot])) {
+                            setRemappings(slot);
+                            docIdStream.reset(termIterator);
+                            remapDocs(docIdStream, docIdToGroup, matches, true, false, errorOnCollisions);
+                            clearRemappings(slot);
+                        }
+                    }
+                } finally {
+                    termIterator.close();
+                }
+            }
+            if (barriers != null) {
+                long maxBarrier = Long.MIN_VALUE;
+                for (int group = 0; group < barriers.length; group++) {
+                    if (barriers[group] != null) {
+                        maxBarrier = Math.max(maxBarrier, barriers[group][barrierLengths[group] - 1]);
+                    }
+                }
+                resetBarrierPositions();
+                final IntTermIterator termIterator = flamdexReader.getIntTermIterator(field);
+                try {
+                    int slot = fused ? 0 : numSlots;
+                    while (termIterator.next()) {
+                        currentTerm = termIterator.term();
+                        while (slot < numSlots && terms[slot] < currentTerm) {
+                            slot++;
+                        }
+                        final boolean equality = slot < numSlots && terms[slot] == currentTerm;
+                        final boolean inequality = currentTerm <= maxBarrier;
+                        if (!equality && !inequality) {
+                            if (slot == numSlots) break;
+                            continue;
+                        }
+                        if (equality) {
+                            setRemappings(slot);
+                        }
+                        docIdStream.reset(termIterator);
+                        remapDocs(docIdStream, docIdToGroup, matches, equality, inequality, errorOnCollisions);
+                        if (equality) {
+                            clearRemappings(slot);
+                        }
+                    }
+                } finally {
+                    termIterator.close();
+                }
+            }
+        }
+
+        @Override
+        void applyInPlace(FlamdexReader flamdexReader, DocIdStream docIdStream, GroupLookup docIdToGroup, FastBitSet remapped) {
+            final IntTermIterator termIterator = flamdexReader.getIntTermIterator(field);
+            try {
+                IntTermSeeker termSeeker = null;
+                for (int slot = 0; slot < numSlots; slot++) {
+                    // terms are only in order within a condition index
+                    if (slot == 0 || conditionIndices[slotStarts[slot]] != conditionIndices[slotStarts[slot - 1]]) {
+                        termSeeker = new IntTermSeeker(termIterator);
+                    }
+                    if (termSeeker.seek(terms[slot])) {
+                        setRemappings(slot);
+                        docIdStream.reset(termIterator);
+                        remapDocsInPlace(docIdStream, docIdToGroup, remapped);
+                        clearRemappings(slot);
+                    }
+                }
+            } finally {
+                termIterator.close();
+            }
+        }
+    }
+
+    private final class StringFieldPlan extends FieldPlan {
+        String[] terms;
+        String[][] barriers;
+        private String currentTerm;
+
+        StringFieldPlan(String field) {
+            super(field);
+        }
+
+        @Override
+        void initTerms(int size) {
+            terms = new String[size];
+        }
+
+        @Override
+        void setTerm(int slot, RegroupCondition condition) {
+            terms[slot] = condition.stringTerm;
+        }
+
+        @Override
+        boolean sameTerm(RegroupCondition a, RegroupCondition b) {
+            return a.stringTerm.equals(b.stringTerm);
+        }
+
+        @Override
+        void buildBarriers(GroupMultiRemapRule[] rules, RegroupCondition[] sortedConditions, int[] sortedInternalIndices, int[] sortedRuleIndices, int start, int end, int highestTarget) {
+            initBarriers(highestTarget);
+            barriers = new String[highestTarget + 1][];
+            MultiRegroupInternals.formStringDividers(rules, sortedConditions, sortedInternalIndices, sortedRuleIndices, start, end, barrierLengths, barriers, resultingIndex);
+        }
+
+        @Override
+        boolean pastBarrier(int group, int position) {
+            return currentTerm.compareTo(barriers[group][position]) > 0;
+        }
+
+        @Override
+        void apply(FlamdexReader flamdexReader, DocIdStream docIdStream, GroupLookup docIdToGroup, GroupLookup matches, boolean errorOnCollisions) {
+            // equalities are matched separately when collisions are errors so that an inequality on an earlier
+            // term does not count as a collision
+            final boolean fused = barriers != null && !errorOnCollisions;
+            if (!fused && numSlots > 0) {
+                final StringTermIterator termIterator = flamdexReader.getStringTermIterator(field);
+                try {
+                    final StringTermSeeker termSeeker = new StringTermSeeker(termIterator);
+                    for (int slot = 0; slot < numSlots; slot++) {
+                        if (termSeeker.seek(terms[slot])) {
+                            setRemappings(slot);
+                            docIdStream.reset(termIterator);
+                            remapDocs(docIdStream, docIdToGroup, matches, true, false, errorOnCollisions);
+                            clearRemappings(slot);
+                        }
+                    }
+                } finally {
+                    termIterator.close();
+                }
+            }
+            if (barriers != null) {
+                String maxBarrier = null;
+                for (int group = 0; group < barriers.length; group++) {
+                    if (barriers[group] != null) {
+                        final String last = barriers[group][barrierLengths[group] - 1];
+                        if (maxBarrier == null || last.compareTo(maxBarrier) > 0) {
+                            maxBarrier = last;
+                        }
+                    }
+                }
+                resetBarrierPositions();
+                final StringTermIterator termIterator = flamdexReader.getStringTermIterator(field);
+                try {
+                    int slot = fused ? 0 : numSlots;
+                    while (termIterator.next()) {
+                        currentTerm = termIterator.term();
+                        while (slot < numSlots && terms[slot].compareTo(currentTerm) < 0) {
+                            slot++;
+                        }
+                        final boolean equality = slot < numSlots && terms[slot].equals(currentTerm);
+                        final boolean inequality = currentTerm.compareTo(maxBarrier) <= 0;
+                        if (!equality && !inequality) {
+                            if (slot == numSlots) break;
+                            continue;
+                        }
+                        if (equality) {
+                            setRemappings(slot);
+                        }
+                        docIdStream.reset(termIterator);
+                        remapDocs(docIdStream, docIdToGroup, matches, equality, inequality, errorOnCollisions);
+                        if (equality) {
+                            clearRemappings(slot);
+                        }
+                    }
+                } finally {
+                    termIterator.close();
+                }
+            }
+        }
+
+        @Override
+        void applyInPlace(FlamdexReader flamdexReader, DocIdStream docIdStream, GroupLookup docIdToGroup, FastBitSet remapped) {
+            final StringTermIterator termIterator = flamdexReader.getStringTermIterator(field);
+            try {
+                StringTermSeeker termSeeker = null;
+                for (int slot = 0; slot < numSlots; slot++) {
+                    // terms are only in order within a condition index
+                    if (slot == 0 || conditionIndices[slotStarts[slot]] != conditionIndices[slotStarts[slot - 1]]) {
+                        termSeeker = new StringTermSeeker(termIterator);
+                    }
+                    if (termSeeker.seek(terms[slot])) {
+                        setRemappings(slot);
+                        docIdStream.reset(termIterator);
+                        remapDocsInPlace(docIdStream, docIdToGroup, remapped);
+                        clearRemappings(slot);
+                    }
+                }
+            } finally {
+                termIterator.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.util.core.threads.ThreadSafeBitSet;
+import com.indeed.flamdex.datastruct.FastBitSet;
+import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import com.indeed.util.mmap.IntArray;
+
+/**
+ * {@link IntGroupLookup} kept outside of the java heap in the session's {@link SessionArena}. Its memory is reserved
+ * by the arena rather than through {@link #memoryUsed()}, and given back by {@link #free()}.
+ */
+final class NativeIntGroupLookup extends GroupLookup {
+    private final ImhotepLocalSession session;
+    private final SessionArena arena;
+    private final IntArray docIdToGroup;
+    private final int size;
+
+    NativeIntGroupLookup(ImhotepLocalSession imhotepLocalSession, SessionArena arena, int size) throws ImhotepOutOfMemoryException {
+        session = imhotepLocalSession;
+        this.arena = arena;
+        docIdToGroup = arena.allocateInts(size);
+        this.size = size;
+    }
+
+    @Override
+    public void nextGroupCallback(int n, InterleavedGroupStats termGrpStats) {
+        int rewriteHead = 0;
+        // remap groups and filter out useless docids (ones with group = 0)
+        for (int i = 0; i < n; i++) {
+            final int docId = session.docIdBuf[i];
+            final int group = docIdToGroup.get(docId);
+            if (group == 0) continue;
+
+            session.docGroupBuffer[rewriteHead] = group;
+            session.docIdBuf[rewriteHead] = docId;
+            rewriteHead++;
+        }
+
+        if (rewriteHead > 0) {
+            termGrpStats.add(session.statLookup, session.docIdBuf, session.docGroupBuffer, rewriteHead);
+        }
+    }
+
+    @Override
+    public void applyIntConditionsCallback(int n, ThreadSafeBitSet docRemapped, GroupRemapRule[] remapRules, String intField, long itrTerm) {
+        for (int i = 0; i < n; i++) {
+            final int docId = session.docIdBuf[i];
+            if (docRemapped.get(docId)) continue;
+            final int group = docIdToGroup.get(docId);
+            if (remapRules[group] == null) continue;
+            if (ImhotepLocalSession.checkIntCondition(remapRules[group].condition, intField, itrTerm)) continue;
+            docIdToGroup.set(docId, remapRules[group].positiveGroup);
+            docRemapped.set(docId);
+        }
+    }
+
+    @Override
+    public void applyStringConditionsCallback(int n, ThreadSafeBitSet docRemapped, GroupRemapRule[] remapRules, String stringField, String itrTerm) {
+        for (int i = 0; i < n; i++) {
+            final int docId = session.docIdBuf[i];
+            if (docRemapped.get(docId)) continue;
+            final int group = docIdToGroup.get(docId);
+            if (remapRules[group] == null) continue;
+            if (ImhotepLocalSession.checkStringCondition(remapRules[group].condition, stringField, itrTerm)) continue;
+            docIdToGroup.set(docId, remapRules[group].positiveGroup);
+            docRemapped.set(docId);
+        }
+    }
+
+    @Override
+    public int get(int doc) {
+        return docIdToGroup.get(doc);
+    }
+
+    @Override
+    public void set(int doc, int group) {
+        docIdToGroup.set(doc, group);
+    }
+
+    @Override
+    public void batchSet(int[] docIdBuf, int[] docGrpBuffer, int n) {
+        for (int i = 0; i < n; ++i) {
+            docIdToGroup.set(docIdBuf[i], docGrpBuffer[i]);
+        }
+    }
+
+    @Override
+    public void fill(int group) {
+        for (int i = 0; i < size; ++i) {
+            docIdToGroup.set(i, group);
+        }
+    }
+
+    @Override
+    public void copyInto(GroupLookup other) {
+        if (size != other.size()) {
+            throw new IllegalArgumentException("size != other.size: size="+size+", other.size="+other.size());
+        }
+
+        for (int i = 0; i < size; ++i) {
+            other.set(i, docIdToGroup.get(i));
+        }
+        other.numGroups = this.numGroups;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int maxGroup() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public long memoryUsed() {
+        return 0;
+    }
+
+    @Override
+    void free() {
+        arena.free(docIdToGroup);
+    }
+
+    @Override
+    public void fillDocGrpBuffer(int[] docIdBuf, int[] docGrpBuffer, int n) {
+        for (int i = 0; i < n; ++i) {
+            docGrpBuffer[i] = docIdToGroup.get(docIdBuf[i]);
+        }
+    }
+
+    @Override
+    public void fillDocGrpBufferSequential(final int start, final int[] docGrpBuffer, final int n) {
+        for (int i = 0; i < n; i++) {
+            docGrpBuffer[i] = docIdToGroup.get(start+i);
+        }
+    }
+
+    @Override
+    public void bitSetRegroup(FastBitSet bitSet, int targetGroup, int negativeGroup, int positiveGroup) {
+        for (int i = 0; i < size; ++i) {
+            if (docIdToGroup.get(i) == targetGroup) {
+                docIdToGroup.set(i, bitSet.get(i) ? positiveGroup : negativeGroup);
+            }
+        }
+    }
+
+    @Override
+    protected void recalculateNumGroups() {
+        int max = 0;
+        for (int i = 0; i < size; ++i) {
+            max = Math.max(max, docIdToGroup.get(i) + 1);
+        }
+        this.numGroups = max;
+        return;
+    }
+
+    @Override
+    public ImhotepLocalSession getSession() {
+        return this.session;
+    }
+}
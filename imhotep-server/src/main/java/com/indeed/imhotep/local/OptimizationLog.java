@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.google.common.collect.Maps;
+import com.indeed.flamdex.utils.FlamdexUtils;
+import com.indeed.imhotep.local.ImhotepLocalSession.OptimizationRecord;
+import com.indeed.imhotep.local.ImhotepLocalSession.ShardMergeInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary format for the optimization records of a session, appended to a file each time the session is rebuilt.
+ *
+ * Doc id mappings are strictly increasing since the rebuild keeps docs in order, so they are stored as
+ * variable length gaps, usually a byte per doc. Dynamic metric values are stored as zigzag variable length ints.
+ */
+final class OptimizationLog {
+    private static final int RECORD_MAGIC = 0x4f505452;
+
+    private OptimizationLog() {
+    }
+
+    static void append(File log, OptimizationRecord record) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, true), 65536));
+        try {
+            out.writeInt(RECORD_MAGIC);
+            out.writeLong(record.time);
+            writeStrings(out, record.intFieldsMerged);
+            writeStrings(out, record.stringFieldsMerged);
+            out.writeUTF(record.shardLocation);
+            out.writeInt(record.mergedShards.size());
+            for (final ShardMergeInfo info : record.mergedShards) {
+                out.writeInt(info.numDocs);
+                writeMapping(out, info.newDocIdToOldDocId);
+                out.writeInt(info.dynamicMetrics.size());
+                for (final Map.Entry<String, DynamicMetric> e : info.dynamicMetrics.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    final DynamicMetric metric = e.getValue();
+                    for (int doc = 0; doc < info.numDocs; doc++) {
+                        final int value = metric.lookupSingleVal(doc);
+                        FlamdexUtils.writeVLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL, out);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the records in the log, the last written record first
+     */
+    static List<OptimizationRecord> read(File log) throws IOException {
+        final List<OptimizationRecord> records = new ArrayList<OptimizationRecord>();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log), 65536));
+        try {
+            while (true) {
+                final int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (magic != RECORD_MAGIC) {
+                    throw new IOException("corrupt optimization log " + log);
+                }
+                final OptimizationRecord record = new OptimizationRecord();
+                record.time = in.readLong();
+                record.intFieldsMerged = readStrings(in);
+                record.stringFieldsMerged = readStrings(in);
+                record.shardLocation = in.readUTF();
+                final int numShards = in.readInt();
+                record.mergedShards = new ArrayList<ShardMergeInfo>(numShards);
+                for (int i = 0; i < numShards; i++) {
+                    final ShardMergeInfo info = new ShardMergeInfo();
+                    info.numDocs = in.readInt();
+                    info.newDocIdToOldDocId = readMapping(in);
+                    final int numMetrics = in.readInt();
+                    info.dynamicMetrics = Maps.newHashMap();
+                    for (int j = 0; j < numMetrics; j++) {
+                        final String name = in.readUTF();
+                        final DynamicMetric metric = new DynamicMetric(info.numDocs);
+                        for (int doc = 0; doc < info.numDocs; doc++) {
+                            final int zigzag = (int) FlamdexUtils.readVLong(in);
+                            metric.set(doc, (zigzag >>> 1) ^ -(zigzag & 1));
+                        }
+                        info.dynamicMetrics.put(name, metric);
+                    }
+                    record.mergedShards.add(info);
+                }
+                records.add(0, record);
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    private static void writeMapping(DataOutputStream out, int[] newDocIdToOldDocId) throws IOException {
+        out.writeInt(newDocIdToOldDocId.length);
+        int prev = -1;
+        for (final int oldDocId : newDocIdToOldDocId) {
+            if (oldDocId <= prev) {
+                throw new IllegalArgumentException("doc id mapping is not increasing");
+            }
+            FlamdexUtils.writeVLong(oldDocId - prev - 1, out);
+            prev = oldDocId;
+        }
+    }
+
+    private static int[] readMapping(DataInputStream in) throws IOException {
+        final int[] mapping = new int[in.readInt()];
+        int prev = -1;
+        for (int i = 0; i < mapping.length; i++) {
+            prev += (int) FlamdexUtils.readVLong(in) + 1;
+            mapping[i] = prev;
+        }
+        return mapping;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (final String s : strings) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        final List<String> strings = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.google.common.base.Throwables;
+import com.indeed.imhotep.WeightedFairScheduler;
+import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.RawFTGSIterator;
+
+/**
+ * Holds a scheduler slot on whichever thread consumes the iterator, such as the thread of an FTGSSplitter,
+ * so that the checkpoints of the wrapped iterator can yield it. The slot is taken on the first call to
+ * {@link #nextField} and given back once the fields run out or the iterator is closed.
+ */
+class ScheduledFTGSIterator implements FTGSIterator {
+    private final FTGSIterator delegate;
+    private final WeightedFairScheduler.Flow flow;
+
+    // the thread holding a slot for this iterator, only read and written by the consuming thread
+    private Thread slotOwner;
+
+    private ScheduledFTGSIterator(FTGSIterator delegate, WeightedFairScheduler.Flow flow) {
+        this.delegate = delegate;
+        this.flow = flow;
+    }
+
+    /**
+     * wraps the iterator to run under the flow the calling thread holds a slot for, if any
+     */
+    static FTGSIterator wrap(FTGSIterator iterator) {
+        final WeightedFairScheduler.Flow flow = WeightedFairScheduler.currentFlow();
+        if (flow == null) {
+            return iterator;
+        }
+        if (iterator instanceof RawFTGSIterator) {
+            return new Raw((RawFTGSIterator)iterator, flow);
+        }
+        return new ScheduledFTGSIterator(iterator, flow);
+    }
+
+    private void acquireSlot() {
+        if (slotOwner != null) {
+            return;
+        }
+        try {
+            if (flow.acquire()) {
+                slotOwner = Thread.currentThread();
+            }
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void releaseSlot() {
+        if (slotOwner == Thread.currentThread()) {
+            slotOwner = null;
+            flow.release();
+        }
+    }
+
+    @Override
+    public boolean nextField() {
+        acquireSlot();
+        final boolean ret = delegate.nextField();
+        if (!ret) {
+            releaseSlot();
+        }
+        return ret;
+    }
+
+    @Override
+    public String fieldName() {
+        return delegate.fieldName();
+    }
+
+    @Override
+    public boolean fieldIsIntType() {
+        return delegate.fieldIsIntType();
+    }
+
+    @Override
+    public boolean nextTerm() {
+        return delegate.nextTerm();
+    }
+
+    @Override
+    public long termDocFreq() {
+        return delegate.termDocFreq();
+    }
+
+    @Override
+    public long termIntVal() {
+        return delegate.termIntVal();
+    }
+
+    @Override
+    public String termStringVal() {
+        return delegate.termStringVal();
+    }
+
+    @Override
+    public boolean nextGroup() {
+        return delegate.nextGroup();
+    }
+
+    @Override
+    public int group() {
+        return delegate.group();
+    }
+
+    @Override
+    public void groupStats(long[] stats) {
+        delegate.groupStats(stats);
+    }
+
+    @Override
+    public void close() {
+        try {
+            delegate.close();
+        } finally {
+            releaseSlot();
+        }
+    }
+
+    private static final class Raw extends ScheduledFTGSIterator implements RawFTGSIterator {
+        private final RawFTGSIterator rawDelegate;
+
+        Raw(RawFTGSIterator delegate, WeightedFairScheduler.Flow flow) {
+            super(delegate, flow);
+            this.rawDelegate = delegate;
+        }
+
+        @Override
+        public byte[] termStringBytes() {
+            return rawDelegate.termStringBytes();
+        }
+
+        @Override
+        public int termStringLength() {
+            return rawDelegate.termStringLength();
+        }
+    }
+}
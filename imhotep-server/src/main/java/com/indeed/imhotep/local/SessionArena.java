@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.google.common.collect.Maps;
+import com.indeed.imhotep.MemoryReservationContext;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.mmap.IntArray;
+import com.indeed.util.mmap.NativeBuffer;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.nio.ByteOrder;
+import java.util.Map;
+
+/**
+ * Allocates a session's large primitive arrays outside of the java heap, so that they never have to be traced or
+ * copied by the garbage collector. Every allocation is reserved from the session's memory and given back when it is
+ * freed. Closing the arena frees whatever is still allocated, which makes a session's memory available again as soon
+ * as the session is closed.
+ */
+public final class SessionArena implements Closeable {
+    private static final Logger log = Logger.getLogger(SessionArena.class);
+
+    private final MemoryReservationContext memory;
+
+    // allocated arrays and the buffers backing them, guarded by this
+    private final Map<Object, Allocation> allocations = Maps.newIdentityHashMap();
+    private long allocatedBytes = 0;
+    private boolean closed = false;
+
+    public SessionArena(MemoryReservationContext memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * @return a zeroed array of length ints
+     */
+    public synchronized IntArray allocateInts(int length) throws ImhotepOutOfMemoryException {
+        final Allocation allocation = allocate(4L * length);
+        final IntArray array = allocation.buffer.memory().intArray(0, length);
+        for (int i = 0; i < length; i++) {
+            array.set(i, 0);
+        }
+        allocations.put(array, allocation);
+        return array;
+    }
+
+    private Allocation allocate(long bytes) throws ImhotepOutOfMemoryException {
+        if (closed) {
+            throw new IllegalStateException("arena is closed");
+        }
+        if (!memory.claimMemory(bytes)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        try {
+            final Allocation allocation = new Allocation(new NativeBuffer(bytes, ByteOrder.nativeOrder()), bytes);
+            allocatedBytes += bytes;
+            return allocation;
+        } catch (RuntimeException e) {
+            memory.releaseMemory(bytes);
+            throw e;
+        }
+    }
+
+    /**
+     * frees an array allocated by this arena, which must not be used afterwards
+     */
+    public synchronized void free(Object array) {
+        final Allocation allocation = allocations.remove(array);
+        if (allocation != null) {
+            release(allocation);
+        }
+    }
+
+    private void release(Allocation allocation) {
+        Closeables2.closeQuietly(allocation.buffer, log);
+        allocatedBytes -= allocation.bytes;
+        memory.releaseMemory(allocation.bytes);
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (final Allocation allocation : allocations.values()) {
+            release(allocation);
+        }
+        allocations.clear();
+    }
+
+    private static final class Allocation {
+        final NativeBuffer buffer;
+        final long bytes;
+
+        Allocation(NativeBuffer buffer, long bytes) {
+            this.buffer = buffer;
+            this.bytes = bytes;
+        }
+    }
+}
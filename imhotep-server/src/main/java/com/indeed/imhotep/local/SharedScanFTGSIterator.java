@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.imhotep.api.RawFTGSIterator;
+import com.indeed.util.core.Pair;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.reference.SharedReference;
+
+/**
+ * FTGS iterator that reads the terms and postings of each field through a {@link SharedTermScan}, applying the
+ * session's own groups and stats to the shared doc id batches. String terms are always available as utf-8 bytes.
+ */
+final class SharedScanFTGSIterator extends AbstractFlamdexFTGSIterator implements RawFTGSIterator {
+    private final String[] intFields;
+    private final String[] stringFields;
+    private final SharedScans scans;
+    private final Object shardKey;
+
+    private int intFieldPtr = 0;
+    private int stringFieldPtr = 0;
+
+    private SharedTermScan.Cursor cursor;
+
+    public SharedScanFTGSIterator(ImhotepLocalSession imhotepLocalSession, SharedReference<FlamdexReader> flamdexReader,
+                                  String[] intFields, String[] stringFields, SharedScans scans, Object shardKey) {
+        super(imhotepLocalSession, flamdexReader);
+        this.intFields = intFields;
+        this.stringFields = stringFields;
+        this.scans = scans;
+        this.shardKey = shardKey;
+    }
+
+    @Override
+    public boolean nextField() {
+        synchronized (session) {
+            closeCursor();
+            if (intFieldPtr < intFields.length) {
+                currentField = intFields[intFieldPtr++];
+                currentFieldIsIntType = true;
+            } else if (stringFieldPtr < stringFields.length) {
+                currentField = stringFields[stringFieldPtr++];
+                currentFieldIsIntType = false;
+            } else {
+                currentField = null;
+                close();
+                return false;
+            }
+            cursor = scans.open(shardKey, flamdexReader, currentField, currentFieldIsIntType);
+            if (session.fieldZeroDocBitsets != null) {
+                fieldZeroDocBitset = session.fieldZeroDocBitsets.get(Pair.of(currentField, currentFieldIsIntType));
+            }
+            termIndex = 0;
+            return true;
+        }
+    }
+
+    private void closeCursor() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (session) {
+            closeCursor();
+            if (flamdexReader != null) {
+                Closeables2.closeQuietly(flamdexReader, ImhotepLocalSession.log);
+                flamdexReader = null;
+            }
+            detachFromSession();
+        }
+    }
+
+    @Override
+    public boolean nextTerm() {
+        if (currentField == null) return false;
+        resetGroupStats = true;
+        return cursor.nextTerm();
+    }
+
+    @Override
+    public long termDocFreq() {
+        return cursor.termDocFreq();
+    }
+
+    @Override
+    public long termIntVal() {
+        return cursor.termIntVal();
+    }
+
+    @Override
+    public String termStringVal() {
+        return cursor.termStringVal();
+    }
+
+    @Override
+    public byte[] termStringBytes() {
+        return cursor.termStringBytes();
+    }
+
+    @Override
+    public int termStringLength() {
+        return cursor.termStringLength();
+    }
+
+    @Override
+    protected int fillDocIdBuffer() {
+        return cursor.fillDocIdBuffer(session.docIdBuf);
+    }
+
+    @Override
+    protected void skipRemainingDocs() {
+        // the cursor skips the rest of the term when it moves to the next one
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.google.common.collect.Maps;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.util.core.Pair;
+import com.indeed.util.core.reference.SharedReference;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The shared term scans running on a service's shards. FTGS iterators of different sessions that start on the same
+ * field of the same shard within the join window read the field's postings from one {@link SharedTermScan} instead of
+ * decoding them once per session.
+ *
+ * Shards are identified by a key object given to each session by the service, which must be the same for every
+ * session reading the same version of a shard.
+ */
+public final class SharedScans {
+    private final long joinWindowMillis;
+    private final int maxBatches;
+
+    // guarded by this
+    private final Map<Pair<Object, Pair<String, Boolean>>, SharedTermScan> scans = Maps.newHashMap();
+
+    private final AtomicLong scansStarted = new AtomicLong();
+    private final AtomicLong cursorsAttached = new AtomicLong();
+    private final AtomicLong cursorsDetached = new AtomicLong();
+
+    /**
+     * @param joinWindowMillis how long after a scan starts other iterators may join it
+     * @param maxBufferedDocs how many decoded doc ids a scan keeps for the iterators behind the one furthest ahead
+     */
+    public SharedScans(long joinWindowMillis, int maxBufferedDocs) {
+        this.joinWindowMillis = joinWindowMillis;
+        this.maxBatches = Math.max(2, maxBufferedDocs / ImhotepLocalSession.BUFFER_SIZE);
+    }
+
+    /**
+     * @param readerRef reference to the reader of the opening iterator, copied if a new scan has to be started
+     */
+    synchronized SharedTermScan.Cursor open(Object shardKey, SharedReference<FlamdexReader> readerRef, String field, boolean isIntField) {
+        final Pair<Object, Pair<String, Boolean>> key = Pair.of(shardKey, Pair.of(field, isIntField));
+        final SharedTermScan existing = scans.get(key);
+        if (existing != null) {
+            final SharedTermScan.Cursor cursor = existing.join(readerRef.get());
+            if (cursor != null) {
+                cursorsAttached.incrementAndGet();
+                return cursor;
+            }
+        }
+        final SharedTermScan scan = new SharedTermScan(this, key, readerRef.copy(), field, isIntField, maxBatches,
+                                                       System.currentTimeMillis() + joinWindowMillis);
+        scans.put(key, scan);
+        scansStarted.incrementAndGet();
+        return scan.start(readerRef.get());
+    }
+
+    synchronized void remove(Object key, SharedTermScan scan) {
+        if (scans.get(key) == scan) {
+            scans.remove(key);
+        }
+    }
+
+    void cursorDetached() {
+        cursorsDetached.incrementAndGet();
+    }
+
+    public synchronized int getRunningScans() {
+        return scans.size();
+    }
+
+    public long getScansStarted() {
+        return scansStarted.get();
+    }
+
+    /**
+     * @return the number of iterators that joined a scan started by another one
+     */
+    public long getCursorsAttached() {
+        return cursorsAttached.get();
+    }
+
+    /**
+     * @return the number of iterators that fell too far behind a scan and continued on their own
+     */
+    public long getCursorsDetached() {
+        return cursorsDetached.get();
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.google.common.base.Charsets;
+import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.RawStringTermIterator;
+import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.api.TermIterator;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.reference.SharedReference;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One walk over the terms and postings of a field of a shard, read by the cursors of several FTGS iterators at once.
+ *
+ * The postings are decoded once, in batches of {@link ImhotepLocalSession#BUFFER_SIZE} doc ids, by whichever cursor
+ * is furthest ahead, and kept in a ring until every cursor has moved past them. New cursors can attach until the join
+ * deadline as long as the first batch is still in the ring. A cursor that falls a whole ring behind is detached and
+ * continues on its own term iterator from where it stopped, so a slow consumer never holds up the others.
+ */
+final class SharedTermScan {
+    private static final Logger log = Logger.getLogger(SharedTermScan.class);
+
+    private static final int BUFFER_SIZE = ImhotepLocalSession.BUFFER_SIZE;
+
+    // marks the end of the field
+    private static final Batch END = new Batch(null, new int[0]);
+
+    private final SharedScans scans;
+    private final Object key;
+    private final String field;
+    private final boolean isIntField;
+    private final long joinDeadline;
+
+    // guarded by this
+    private SharedReference<FlamdexReader> readerRef;
+    private TermIterator termIterator;
+    private DocIdStream docIdStream;
+    private final Batch[] ring;
+    private long firstBatch = 0;
+    private long endBatch = 0;
+    // term whose postings are being decoded, null between terms
+    private ScannedTerm decodingTerm = null;
+    private final int[] decodeBuf = new int[BUFFER_SIZE];
+    private final List<Cursor> cursors = new ArrayList<Cursor>();
+    private boolean closed = false;
+
+    SharedTermScan(SharedScans scans, Object key, SharedReference<FlamdexReader> readerRef, String field,
+                   boolean isIntField, int maxBatches, long joinDeadline) {
+        this.scans = scans;
+        this.key = key;
+        this.readerRef = readerRef;
+        this.field = field;
+        this.isIntField = isIntField;
+        this.joinDeadline = joinDeadline;
+        ring = new Batch[Math.max(2, maxBatches)];
+    }
+
+    /**
+     * @param reader the reader of the joining iterator, used to continue on its own if it falls behind
+     * @return a cursor positioned before the first term, or null if the scan has moved on too far to be joined
+     */
+    synchronized Cursor join(FlamdexReader reader) {
+        if (closed || firstBatch > 0 || System.currentTimeMillis() > joinDeadline) {
+            return null;
+        }
+        return start(reader);
+    }
+
+    /**
+     * @return the cursor of the iterator that started the scan
+     */
+    synchronized Cursor start(FlamdexReader reader) {
+        if (termIterator == null) {
+            final FlamdexReader sharedReader = readerRef.get();
+            termIterator = isIntField ? sharedReader.getIntTermIterator(field) : sharedReader.getStringTermIterator(field);
+            docIdStream = sharedReader.getDocIdStream();
+        }
+        final Cursor cursor = new Cursor(reader);
+        cursors.add(cursor);
+        return cursor;
+    }
+
+    private Batch batchAt(long index) {
+        while (index >= endBatch) {
+            decodeNextBatch();
+        }
+        return ring[(int) (index % ring.length)];
+    }
+
+    private void decodeNextBatch() {
+        evict();
+        if (endBatch - firstBatch == ring.length) {
+            detachSlowestCursors();
+            evict();
+        }
+        if (decodingTerm == null) {
+            if (!termIterator.next()) {
+                append(END);
+                return;
+            }
+            decodingTerm = ScannedTerm.current(termIterator, isIntField);
+            docIdStream.reset(termIterator);
+        }
+        final int n = docIdStream.fillDocIdBuffer(decodeBuf);
+        append(new Batch(decodingTerm, Arrays.copyOf(decodeBuf, n)));
+        if (n < BUFFER_SIZE) {
+            decodingTerm = null;
+        }
+    }
+
+    private void append(Batch batch) {
+        ring[(int) (endBatch % ring.length)] = batch;
+        ++endBatch;
+    }
+
+    // drops the batches every cursor has moved past, once the scan can no longer be joined
+    private void evict() {
+        if (firstBatch == 0 && System.currentTimeMillis() <= joinDeadline) {
+            return;
+        }
+        long min = endBatch;
+        for (final Cursor cursor : cursors) {
+            min = Math.min(min, cursor.position);
+        }
+        while (firstBatch < min) {
+            ring[(int) (firstBatch % ring.length)] = null;
+            ++firstBatch;
+        }
+    }
+
+    private void detachSlowestCursors() {
+        for (int i = cursors.size() - 1; i >= 0; --i) {
+            final Cursor cursor = cursors.get(i);
+            if (cursor.position == firstBatch) {
+                cursor.detached = true;
+                cursors.remove(i);
+                scans.cursorDetached();
+            }
+        }
+        // nobody can join a scan that lost its first batch
+        if (firstBatch == 0) {
+            ring[0] = null;
+            firstBatch = 1;
+        }
+    }
+
+    private void remove(Cursor cursor) {
+        final boolean lastCursor;
+        synchronized (this) {
+            if (!cursor.detached) {
+                cursor.detached = true;
+                cursors.remove(cursor);
+            }
+            lastCursor = cursors.isEmpty() && !closed;
+            if (lastCursor) {
+                closed = true;
+                Arrays.fill(ring, null);
+                Closeables2.closeQuietly(termIterator, log);
+                Closeables2.closeQuietly(docIdStream, log);
+                Closeables2.closeQuietly(readerRef, log);
+                termIterator = null;
+                docIdStream = null;
+                readerRef = null;
+            }
+        }
+        if (lastCursor) {
+            // outside of the scan lock since the registry locks itself before the scans
+            scans.remove(key, this);
+        }
+    }
+
+    private static final class Batch {
+        // null for END
+        final ScannedTerm term;
+        final int[] docs;
+
+        Batch(ScannedTerm term, int[] docs) {
+            this.term = term;
+            this.docs = docs;
+        }
+    }
+
+    static final class ScannedTerm {
+        final long intTerm;
+        final byte[] stringBytes;
+        final int docFreq;
+        private String stringTerm;
+
+        private ScannedTerm(long intTerm, byte[] stringBytes, String stringTerm, int docFreq) {
+            this.intTerm = intTerm;
+            this.stringBytes = stringBytes;
+            this.stringTerm = stringTerm;
+            this.docFreq = docFreq;
+        }
+
+        static ScannedTerm current(TermIterator iterator, boolean isIntField) {
+            if (isIntField) {
+                return new ScannedTerm(((IntTermIterator) iterator).term(), null, null, iterator.docFreq());
+            }
+            if (iterator instanceof RawStringTermIterator) {
+                final RawStringTermIterator raw = (RawStringTermIterator) iterator;
+                return new ScannedTerm(0, Arrays.copyOf(raw.termStringBytes(), raw.termStringLength()), null, iterator.docFreq());
+            }
+            final String term = ((StringTermIterator) iterator).term();
+            return new ScannedTerm(0, term.getBytes(Charsets.UTF_8), term, iterator.docFreq());
+        }
+
+        String stringTerm() {
+            if (stringTerm == null) {
+                stringTerm = new String(stringBytes, Charsets.UTF_8);
+            }
+            return stringTerm;
+        }
+
+        // positions a fresh term iterator on this term
+        boolean seek(TermIterator iterator, boolean isIntField) {
+            if (isIntField) {
+                ((IntTermIterator) iterator).reset(intTerm);
+                return iterator.next() && ((IntTermIterator) iterator).term() == intTerm;
+            }
+            ((StringTermIterator) iterator).reset(stringTerm());
+            return iterator.next() && ((StringTermIterator) iterator).term().equals(stringTerm());
+        }
+    }
+
+    /**
+     * An FTGS iterator's position in the scan. Not thread safe, each cursor is read by a single iterator.
+     */
+    final class Cursor {
+        private final FlamdexReader reader;
+        // next batch to read, guarded by the scan
+        private long position = 0;
+        // set by the scan when the cursor falls behind, guarded by the scan
+        private boolean detached = false;
+        private ScannedTerm term = null;
+        private int docsRead = 0;
+
+        // the cursor's own walk once it has been detached
+        private TermIterator privateTerms;
+        private DocIdStream privateDocs;
+
+        private Cursor(FlamdexReader reader) {
+            this.reader = reader;
+        }
+
+        boolean nextTerm() {
+            if (privateTerms == null) {
+                synchronized (SharedTermScan.this) {
+                    if (!detached) {
+                        while (true) {
+                            final Batch batch = batchAt(position);
+                            if (batch == END) {
+                                term = null;
+                                return false;
+                            }
+                            if (batch.term != term) {
+                                term = batch.term;
+                                docsRead = 0;
+                                return true;
+                            }
+                            // rest of a term the iterator did not need
+                            ++position;
+                        }
+                    }
+                }
+                continueAlone();
+            }
+            if (!privateTerms.next()) {
+                term = null;
+                return false;
+            }
+            term = ScannedTerm.current(privateTerms, isIntField);
+            privateDocs.reset(privateTerms);
+            return true;
+        }
+
+        int fillDocIdBuffer(int[] docIdBuf) {
+            if (privateTerms == null) {
+                synchronized (SharedTermScan.this) {
+                    if (!detached) {
+                        final Batch batch = batchAt(position);
+                        if (batch.term != term || term == null) {
+                            return 0;
+                        }
+                        System.arraycopy(batch.docs, 0, docIdBuf, 0, batch.docs.length);
+                        ++position;
+                        docsRead += batch.docs.length;
+                        return batch.docs.length;
+                    }
+                }
+                continueAlone();
+            }
+            return term != null ? privateDocs.fillDocIdBuffer(docIdBuf) : 0;
+        }
+
+        // picks up on the cursor's own iterators at the doc it stopped at
+        private void continueAlone() {
+            privateTerms = isIntField ? reader.getIntTermIterator(field) : reader.getStringTermIterator(field);
+            privateDocs = reader.getDocIdStream();
+            if (term == null) {
+                return;
+            }
+            if (!term.seek(privateTerms, isIntField)) {
+                throw new IllegalStateException("the terms of " + field + " differ between readers of the same shard");
+            }
+            privateDocs.reset(privateTerms);
+            final int[] skipBuf = new int[BUFFER_SIZE];
+            int skipped = 0;
+            while (skipped < docsRead) {
+                final int n = privateDocs.fillDocIdBuffer(skipBuf);
+                if (n <= 0) {
+                    break;
+                }
+                skipped += n;
+            }
+        }
+
+        long termIntVal() {
+            return term.intTerm;
+        }
+
+        String termStringVal() {
+            return term.stringTerm();
+        }
+
+        byte[] termStringBytes() {
+            return term.stringBytes;
+        }
+
+        int termStringLength() {
+            return term.stringBytes.length;
+        }
+
+        int termDocFreq() {
+            return term.docFreq;
+        }
+
+        void close() {
+            if (privateTerms != null) {
+                Closeables2.closeQuietly(privateTerms, log);
+                Closeables2.closeQuietly(privateDocs, log);
+                privateTerms = null;
+                privateDocs = null;
+            }
+            remove(this);
+        }
+    }
+}
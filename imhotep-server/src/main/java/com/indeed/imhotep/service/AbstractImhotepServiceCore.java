@@ -15,15 +15,20 @@
 
 import com.google.common.base.Function;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.imhotep.protobuf.ImhotepResponse;
+import com.indeed.util.core.Pair;
 import com.indeed.util.core.Throwables2;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.core.reference.SharedReference;
 import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.DistinctCountSketch;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
 import com.indeed.imhotep.ImhotepStatusDump;
+import com.indeed.imhotep.QuantileSketch;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.ShardInfo;
@@ -36,10 +41,15 @@ import com.indeed.imhotep.api.ImhotepSession;
 
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -51,6 +61,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * @author jplaisance
@@ -61,8 +72,16 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
 
     private final ExecutorService ftgsExecutor;
 
+    private static final Pattern SNAPSHOT_ID_PATTERN = Pattern.compile("[A-Za-z0-9_.-]+");
+
     protected abstract SessionManager getSessionManager();
 
+    /**
+     * @return the directory snapshots are written to, or null if this service cannot store snapshots
+     */
+    @Nullable
+    protected abstract File getSnapshotDirectory();
+
     protected AbstractImhotepServiceCore() {
         ftgsExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LocalImhotepServiceCore-FTGSWorker-%d").build());
     }
@@ -402,6 +421,40 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
         });
     }
 
+    @Override
+    public DistinctCountSketch[] handleGetGroupDistinctSketches(String sessionId, final String field, final boolean isIntField, final int precision) throws ImhotepOutOfMemoryException {
+        return doWithSession(sessionId, new ThrowingFunction<ImhotepSession, DistinctCountSketch[], ImhotepOutOfMemoryException>() {
+            public DistinctCountSketch[] apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.getGroupDistinctSketches(field, isIntField, precision);
+            }
+        });
+    }
+
+    @Override
+    public QuantileSketch[] handleGetGroupQuantiles(String sessionId, final int stat, final double accuracy) throws ImhotepOutOfMemoryException {
+        return doWithSession(sessionId, new ThrowingFunction<ImhotepSession, QuantileSketch[], ImhotepOutOfMemoryException>() {
+            public QuantileSketch[] apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.getGroupQuantiles(stat, accuracy);
+            }
+        });
+    }
+
+    @Override
+    public void handleReleaseGroupSketches(final String sessionId) {
+        // a closed session has given back everything already
+        if (!sessionIsValid(sessionId)) {
+            return;
+        }
+        doWithSession(sessionId, new Function<ImhotepSession, Void>() {
+            public Void apply(final ImhotepSession session) {
+                if (session instanceof MTImhotepMultiSession) {
+                    ((MTImhotepMultiSession) session).releaseGroupSketches();
+                }
+                return null;
+            }
+        });
+    }
+
     @Override
     public int handlePushStat(final String sessionId, final String metric) throws ImhotepOutOfMemoryException {
         return doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Integer, ImhotepOutOfMemoryException>() {
@@ -497,7 +550,7 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
     public abstract List<String> getShardIdsForSession(String sessionId);
 
     @Override
-    public abstract String handleOpenSession(
+    public String handleOpenSession(
             String dataset,
             List<String> shardRequestList,
             String username,
@@ -507,8 +560,164 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
             boolean optimizeGroupZeroLookups,
             String sessionId,
             AtomicLong tempFileSizeBytesLeft
+    ) throws ImhotepOutOfMemoryException {
+        return handleOpenSession(dataset, shardRequestList, username, ipAddress, clientVersion, mergeThreadLimit,
+                                 optimizeGroupZeroLookups, sessionId, tempFileSizeBytesLeft, 0);
+    }
+
+    @Override
+    public abstract String handleOpenSession(
+            String dataset,
+            List<String> shardRequestList,
+            String username,
+            String ipAddress,
+            int clientVersion,
+            int mergeThreadLimit,
+            boolean optimizeGroupZeroLookups,
+            String sessionId,
+            AtomicLong tempFileSizeBytesLeft,
+            int priority
     ) throws ImhotepOutOfMemoryException;
 
+    @Override
+    public List<String> handleExportSnapshot(final String sessionId, final String snapshotId) throws IOException, ImhotepOutOfMemoryException {
+        final File snapshotDir = getSnapshotDirectory(snapshotId);
+        try {
+            return doWithSession(sessionId, new ThrowingFunction<ImhotepSession, List<String>, Exception>() {
+                public List<String> apply(final ImhotepSession session) throws Exception {
+                    if (!(session instanceof MTImhotepMultiSession)) {
+                        throw new UnsupportedOperationException("session " + sessionId + " does not support snapshots");
+                    }
+                    return ((MTImhotepMultiSession) session).exportSnapshot(snapshotDir);
+                }
+            });
+        } catch (Exception e) {
+            Throwables.propagateIfInstanceOf(e, ImhotepOutOfMemoryException.class);
+            throw Throwables2.propagate(e, IOException.class);
+        }
+    }
+
+    @Override
+    public String handleOpenSessionFromSnapshot(
+            String dataset,
+            List<String> shardRequestList,
+            String username,
+            String ipAddress,
+            int clientVersion,
+            int mergeThreadLimit,
+            boolean optimizeGroupZeroLookups,
+            String sessionId,
+            AtomicLong tempFileSizeBytesLeft,
+            String snapshotId,
+            int priority
+    ) throws ImhotepOutOfMemoryException, IOException {
+        final File snapshotDir = getSnapshotDirectory(snapshotId);
+        if (!snapshotDir.isDirectory()) {
+            throw new FileNotFoundException("no snapshot with id " + snapshotId);
+        }
+        final String newSessionId = handleOpenSession(dataset, shardRequestList, username, ipAddress, clientVersion,
+                mergeThreadLimit, optimizeGroupZeroLookups, sessionId, tempFileSizeBytesLeft, priority);
+        try {
+            doWithSession(newSessionId, new ThrowingFunction<ImhotepSession, Void, Exception>() {
+                public Void apply(final ImhotepSession session) throws Exception {
+                    if (!(session instanceof MTImhotepMultiSession)) {
+                        throw new UnsupportedOperationException("session " + newSessionId + " does not support snapshots");
+                    }
+                    final MTImhotepMultiSession multiSession = (MTImhotepMultiSession) session;
+                    multiSession.restoreSnapshot(snapshotDir);
+                    getSessionManager().setNumStats(newSessionId, multiSession.getNumStats());
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            handleCloseSession(newSessionId, e);
+            Throwables.propagateIfInstanceOf(e, ImhotepOutOfMemoryException.class);
+            throw Throwables2.propagate(e, IOException.class);
+        }
+        return newSessionId;
+    }
+
+    private File getSnapshotDirectory(String snapshotId) {
+        if (snapshotId == null || !SNAPSHOT_ID_PATTERN.matcher(snapshotId).matches() || snapshotId.equals(".") || snapshotId.equals("..")) {
+            throw new IllegalArgumentException("invalid snapshot id: " + snapshotId);
+        }
+        final File snapshotRoot = getSnapshotDirectory();
+        if (snapshotRoot == null) {
+            throw new UnsupportedOperationException("this service is not configured to store snapshots");
+        }
+        return new File(snapshotRoot, snapshotId);
+    }
+
+    /**
+     * deletes the snapshots last written to before now - maxAgeMillis, then the oldest ones until the rest take at most
+     * maxBytes. maxBytes 0 leaves the size of the snapshots unbounded
+     */
+    void cleanUpSnapshots(long now, long maxAgeMillis, long maxBytes) {
+        final File snapshotRoot = getSnapshotDirectory();
+        final File[] snapshots = snapshotRoot == null ? null : snapshotRoot.listFiles();
+        if (snapshots == null) {
+            return;
+        }
+        final List<Pair<Long, File>> remaining = Lists.newArrayList();
+        long totalBytes = 0;
+        for (final File snapshot : snapshots) {
+            final long modified = snapshot.lastModified();
+            if (modified < now - maxAgeMillis) {
+                log.info("deleting expired snapshot " + snapshot.getName());
+                MTImhotepMultiSession.deleteSnapshot(snapshot);
+                continue;
+            }
+            remaining.add(Pair.of(modified, snapshot));
+            final File[] files = snapshot.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    totalBytes += file.length();
+                }
+            }
+        }
+        if (maxBytes <= 0 || totalBytes <= maxBytes) {
+            return;
+        }
+        Collections.sort(remaining, new Comparator<Pair<Long, File>>() {
+            @Override
+            public int compare(Pair<Long, File> o1, Pair<Long, File> o2) {
+                return Longs.compare(o1.getFirst(), o2.getFirst());
+            }
+        });
+        for (final Pair<Long, File> snapshot : remaining) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            final File[] files = snapshot.getSecond().listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    totalBytes -= file.length();
+                }
+            }
+            log.info("deleting snapshot " + snapshot.getSecond().getName() + " to stay within " + maxBytes + " bytes");
+            MTImhotepMultiSession.deleteSnapshot(snapshot.getSecond());
+        }
+    }
+
+    protected final class SnapshotCleaner implements Runnable {
+        private final long maxAgeMillis;
+        private final long maxBytes;
+
+        public SnapshotCleaner(long maxAgeMillis, long maxBytes) {
+            this.maxAgeMillis = maxAgeMillis;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void run() {
+            try {
+                cleanUpSnapshots(System.currentTimeMillis(), maxAgeMillis, maxBytes);
+            } catch (RuntimeException e) {
+                log.error("error cleaning up snapshots", e);
+            }
+        }
+    }
+
     @Override
     public boolean sessionIsValid(String sessionId) {
         return getSessionManager().sessionIsValid(sessionId);
@@ -21,7 +21,9 @@ import com.indeed.imhotep.api.ImhotepSession;
 
 import org.apache.log4j.Logger;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -106,6 +108,19 @@ public abstract class AbstractSessionManager<E> implements SessionManager<E> {
         return ret;
     }
 
+    /**
+     * does not count as an action on the sessions, the caller must close the returned references
+     */
+    List<SharedReference<ImhotepSession>> copySessionReferences() {
+        final List<SharedReference<ImhotepSession>> ret = new ArrayList<SharedReference<ImhotepSession>>();
+        synchronized (sessionMap) {
+            for (final Session<E> session : sessionMap.values()) {
+                ret.add(session.imhotepSession.copy());
+            }
+        }
+        return ret;
+    }
+
     protected Map<String, Session<E>> cloneSessionMap() {
         final Map<String, Session<E>> clone;
         synchronized (sessionMap) {
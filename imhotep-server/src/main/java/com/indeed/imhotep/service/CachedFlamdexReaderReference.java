@@ -51,6 +51,13 @@ public class CachedFlamdexReaderReference implements FlamdexReader, MetricCache
         this.reader = reference.get();
     }
 
+    /**
+     * @return the referenced reader, which is the same for every reference to a loaded shard
+     */
+    public CachedFlamdexReader getReader() {
+        return reader;
+    }
+
     @Override
     public Collection<String> getIntFields() {
         return reader.getIntFields();
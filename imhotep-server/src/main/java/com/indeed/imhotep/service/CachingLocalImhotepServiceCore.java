@@ -21,7 +21,6 @@ import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.shell.PosixFileOperations;
-import com.indeed.util.core.Throwables2;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.core.reference.AtomicSharedReference;
 import com.indeed.util.core.reference.ReloadableSharedReference;
@@ -31,6 +30,7 @@ import com.indeed.util.varexport.VarExporter;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.RawFlamdexReader;
+import com.indeed.flamdex.writer.FlamdexDocument;
 import com.indeed.imhotep.CachedMemoryReserver;
 import com.indeed.imhotep.DatasetInfo;
 import com.indeed.imhotep.ImhotepMemoryCache;
@@ -40,6 +40,7 @@ import com.indeed.imhotep.MemoryReservationContext;
 import com.indeed.imhotep.MemoryReserver;
 import com.indeed.imhotep.MetricKey;
 import com.indeed.imhotep.ShardInfo;
+import com.indeed.imhotep.WeightedFairScheduler;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepSession;
 import com.indeed.imhotep.io.Shard;
@@ -65,8 +66,6 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * @author jsgroth
@@ -74,13 +73,13 @@ import java.util.regex.Pattern;
 public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
     private static final Logger log = Logger.getLogger(CachingLocalImhotepServiceCore.class);
 
-    private static final Pattern VERSION_PATTERN = Pattern.compile("^(.+)\\.(\\d{14})$");
-
     private static final long SESSION_EXPIRATION_TIME_MILLIS = 30L * 60 * 1000;
 
     private final LocalSessionManager sessionManager;
 
     private final ExecutorService executor;
+    // bounds the shard work running at once and shares it between users by session priority
+    private final WeightedFairScheduler scheduler;
 
     private final ScheduledExecutorService shardReload;
     private final ScheduledExecutorService heartBeat;
@@ -98,6 +97,8 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
     private volatile List<ShardInfo> shardList;
     private volatile List<DatasetInfo> datasetList;
 
+    private final IncrementalShardLoader shardLoader;
+
     private static final int DEFAULT_MERGE_THREAD_LIMIT = 8;
 
     /**
@@ -145,12 +146,14 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         if (shardTempDir != null) {
             clearTempDir(shardTempDir);
         }
+        shardLoader = createShardLoader(config.getShardLoadThreads());
         updateShards();
 
         executor =
                 Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
                                                                         .setNameFormat("LocalImhotepServiceCore-Worker-%d")
                                                                         .build());
+        scheduler = new WeightedFairScheduler(config.getCpuSlots(), config.getSchedulingQuantumMillis(), TimeUnit.MILLISECONDS);
 
         shardReload = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
             @Override
@@ -177,6 +180,11 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
                                       config.getHeartBeatCheckFrequencySeconds(),
                                       config.getHeartBeatCheckFrequencySeconds(),
                                       TimeUnit.SECONDS);
+        heartBeat.scheduleAtFixedRate(new SnapshotCleaner(TimeUnit.SECONDS.toMillis(config.getSnapshotMaxAgeSeconds()),
+                                                          config.getMaxSnapshotBytes()),
+                                      config.getHeartBeatCheckFrequencySeconds(),
+                                      config.getHeartBeatCheckFrequencySeconds(),
+                                      TimeUnit.SECONDS);
 
         VarExporter.forNamespace(getClass().getSimpleName()).includeInGlobal().export(this, "");
     }
@@ -217,6 +225,11 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         return sessionManager;
     }
 
+    @Override
+    protected File getSnapshotDirectory() {
+        return shardTempDirectory == null ? null : new File(shardTempDirectory, "snapshots");
+    }
+
     private void clearTempDir(String directory) throws IOException {
         File tmpDir = new File(directory);
 
@@ -241,141 +254,68 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
     }
 
     private void updateShards() throws IOException {
-        final CachedFile shardsDir = CachedFile.create(shardsDirectory);
-        if (! shardsDir.exists()) {
+        if (shards == null) {
             shards = Maps.newHashMap();
-            shardList = Lists.newArrayList();
-            datasetList = Lists.newArrayList();
-            return;
         }
+        shardLoader.reload();
 
-        Map<String, Map<String, AtomicSharedReference<Shard>>> oldShards = shards;
-        if (oldShards == null) {
-            oldShards = Maps.newHashMap();
+        final List<ShardInfo> shardList = buildShardList();
+        final List<ShardInfo> oldShardList = this.shardList;
+        if (oldShardList == null || !oldShardList.equals(shardList)) {
+            this.shardList = shardList;
         }
 
-        final Map<String, Map<String, AtomicSharedReference<Shard>>> newShards = Maps.newHashMap();
-        for (final CachedFile datasetDir : shardsDir.listFiles()) {
-            if (!datasetDir.isDirectory())
-                continue;
+        final List<DatasetInfo> datasetList = buildDatasetList();
+        final List<DatasetInfo> oldDatasetList = this.datasetList;
+        if (oldDatasetList == null || !oldDatasetList.equals(datasetList)) {
+            this.datasetList = datasetList;
+        }
+    }
 
-            final String datasetName = datasetDir.getName();
-            Map<String, AtomicSharedReference<Shard>> oldDatasetShards = oldShards.get(datasetName);
-            if (oldDatasetShards == null) {
-                oldDatasetShards = Maps.newHashMap();
+    private IncrementalShardLoader createShardLoader(int threads) {
+        return new IncrementalShardLoader(threads) {
+            @Override
+            protected String[] listDatasets() {
+                final String[] datasets = CachedFile.create(shardsDirectory).list();
+                return datasets != null ? datasets : new String[0];
             }
 
-            final Map<String, AtomicSharedReference<Shard>> newDatasetShards = Maps.newHashMap();
-
-            for (final CachedFile shardDir : datasetDir.listFiles()) {
-                if (!shardDir.isDirectory())
-                    continue;
-
-                try {
-                    final String shardId;
-                    final long shardVersion;
-                    final Matcher matcher = VERSION_PATTERN.matcher(shardDir.getName());
-                    if (matcher.matches()) {
-                        shardId = matcher.group(1);
-                        shardVersion = Long.parseLong(matcher.group(2));
-                    } else {
-                        shardId = shardDir.getName();
-                        shardVersion = 0L;
-                    }
+            @Override
+            protected String[] listShardDirs(String dataset) {
+                final CachedFile datasetDir = CachedFile.create(CachedFile.buildPath(shardsDirectory, dataset));
+                return datasetDir.isDirectory() ? datasetDir.list() : null;
+            }
 
-                    final String canonicalShardDir = shardDir.getCanonicalPath();
-
-                    try {
-                        final AtomicSharedReference<Shard> shard;
-                        if (newDatasetShards.containsKey(shardId)) {
-                            shard = newDatasetShards.get(shardId);
-                            final SharedReference<Shard> current = shard.get();
-                            try {
-                                if (current == null
-                                        || shardVersion > current.get().getShardVersion()) {
-                                    log.info("loading shard " + shardId + " from "
-                                            + shardDir);
-                                    final Shard newShard;
-                                    newShard =
-                                            createNewShard(datasetName,
-                                                           shardDir.getName(),
-                                                           shardVersion,
-                                                           shardId,
-                                                           canonicalShardDir);
-                                    shard.set(newShard);
-                                }
-                            } finally {
-                                Closeables2.closeQuietly(current, log);
-                            }
-                        } else if (oldDatasetShards.containsKey(shardId)) {
-                            shard = oldDatasetShards.get(shardId);
-                            final SharedReference<Shard> oldShard = shard.get();
-                            try {
-                                if (shouldReloadShard(oldShard, canonicalShardDir, shardVersion)) {
-                                    log.info("loading shard " + shardId + " from "
-                                            + canonicalShardDir);
-                                    final Shard newShard;
-                                    newShard =
-                                            createNewShard(datasetName,
-                                                           shardDir.getName(),
-                                                           shardVersion,
-                                                           shardId,
-                                                           canonicalShardDir);
-                                    shard.set(newShard);
-                                }
-                            } finally {
-                                Closeables2.closeQuietly(oldShard, log);
-                            }
-                        } else {
-                            final Shard newShard;
-                            newShard =
-                                    createNewShard(datasetName,
-                                                   shardDir.getName(),
-                                                   shardVersion,
-                                                   shardId,
-                                                   canonicalShardDir);
-                            shard = AtomicSharedReference.create(newShard);
-                            log.info("loading shard " + shardId + " from " + canonicalShardDir);
-                        }
-                        if (shard != null)
-                            newDatasetShards.put(shardId, shard);
-                    } catch (Throwable t) {
-                        throw Throwables2.propagate(t, IOException.class);
-                    }
+            @Override
+            protected long lastModified(String dataset) {
+                // unknown for remote listings, which are looked at again by every reload
+                return 0;
+            }
 
-                } catch (IOException e) {
-                    log.error("error loading shard at " + shardDir.getCanonicalPath(), e);
-                }
+            @Override
+            protected String getCanonicalShardDir(String dataset, String name) throws IOException {
+                final CachedFile shardDir =
+                        CachedFile.create(CachedFile.buildPath(CachedFile.buildPath(shardsDirectory, dataset), name));
+                return shardDir.isDirectory() ? shardDir.getCanonicalPath() : null;
             }
 
-            if (newDatasetShards.size() > 0) {
-                newShards.put(datasetName, newDatasetShards);
+            @Override
+            protected Shard openShard(String dataset, ShardDir dir) throws IOException {
+                log.info("loading shard " + dir.shardId + " from " + dir.canonicalDir);
+                return createNewShard(dataset, dir.name, dir.version, dir.shardId, dir.canonicalDir);
             }
 
-            for (final String shardId : oldDatasetShards.keySet()) {
-                if (!newDatasetShards.containsKey(shardId)) {
-                    try {
-                        oldDatasetShards.get(shardId).unset();
-                    } catch (IOException e) {
-                        log.error("error closing shard " + shardId, e);
-                    }
+            @Override
+            protected void publish(String dataset, Map<String, AtomicSharedReference<Shard>> datasetShards) {
+                final Map<String, Map<String, AtomicSharedReference<Shard>>> newShards = Maps.newHashMap(shards);
+                if (datasetShards.size() > 0) {
+                    newShards.put(dataset, datasetShards);
+                } else {
+                    newShards.remove(dataset);
                 }
+                shards = newShards;
             }
-        }
-
-        this.shards = newShards;
-
-        final List<ShardInfo> shardList = buildShardList();
-        final List<ShardInfo> oldShardList = this.shardList;
-        if (oldShardList == null || !oldShardList.equals(shardList)) {
-            this.shardList = shardList;
-        }
-
-        final List<DatasetInfo> datasetList = buildDatasetList();
-        final List<DatasetInfo> oldDatasetList = this.datasetList;
-        if (oldDatasetList == null || !oldDatasetList.equals(datasetList)) {
-            this.datasetList = datasetList;
-        }
+        };
     }
     
     private Shard createNewShard(final String datasetName, 
@@ -407,16 +347,6 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         return newShard;
     }
 
-    private static boolean shouldReloadShard(SharedReference<Shard> ref,
-                                             String canonicalShardDir,
-                                             long shardVersion) {
-        if (ref == null)
-            return true;
-        final Shard oldReader = ref.get();
-        return shardVersion > oldReader.getShardVersion()
-                || (shardVersion == oldReader.getShardVersion() && (!canonicalShardDir.equals(oldReader.getIndexDir())));
-    }
-
     private List<ShardInfo> buildShardList() throws IOException {
         final Map<String, Map<String, AtomicSharedReference<Shard>>> localShards = shards;
         final List<ShardInfo> ret = new ArrayList<ShardInfo>();
@@ -523,6 +453,11 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         return new ImhotepStatusDump(usedMemory, totalMemory, openSessions, shards);
     }
 
+    @Override
+    public void handleAppendToLiveShard(String dataset, String shardId, List<FlamdexDocument> documents) {
+        throw new UnsupportedOperationException("live shards are not supported when shards are lazily loaded");
+    }
+
     @Override
     public List<String> getShardIdsForSession(String sessionId) {
         return getSessionManager().getShardIdsForSession(sessionId);
@@ -537,7 +472,8 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
                                     final int mergeThreadLimit,
                                     final boolean optimizeGroupZeroLookups,
                                     String sessionId,
-                                    AtomicLong tempFileSizeBytesLeft) throws ImhotepOutOfMemoryException {
+                                    AtomicLong tempFileSizeBytesLeft,
+                                    int priority) throws ImhotepOutOfMemoryException {
         final Map<String, Map<String, AtomicSharedReference<Shard>>> localShards = this.shards;
         checkDatasetExists(localShards, dataset);
 
@@ -583,6 +519,7 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         final Map<ShardId, CachedFlamdexReaderReference> flamdexes = Maps.newHashMap();
         final ImhotepLocalSession[] localSessions;
         localSessions = new ImhotepLocalSession[shardRequestList.size()];
+        final ShardId[] sessionShardIds = new ShardId[shardRequestList.size()];
         try {
             for (int i = 0; i < shardRequestList.size(); ++i) {
                 final String shardId = shardRequestList.get(i);
@@ -591,6 +528,7 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
                 final CachedFlamdexReaderReference cachedFlamdexReaderReference = pair.getSecond();
                 try {
                     flamdexes.put(pair.getFirst(), cachedFlamdexReaderReference);
+                    sessionShardIds[i] = pair.getFirst();
                     localSessions[i] =
                             new ImhotepLocalSession(cachedFlamdexReaderReference,
                                                     this.shardTempDirectory,
@@ -609,8 +547,10 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
             final int maxSplits =
                     mergeThreadLimit > 0 ? mergeThreadLimit : DEFAULT_MERGE_THREAD_LIMIT;
             final ImhotepSession session =
-                    new MTImhotepMultiSession(localSessions, new MemoryReservationContext(memory),
-                                              executor, tempFileSizeBytesLeft);
+                    new MTImhotepMultiSession(localSessions, sessionShardIds,
+                                              new MemoryReservationContext(memory),
+                                              executor, scheduler.getFlow(username, priority),
+                                              tempFileSizeBytesLeft);
             getSessionManager().addSession(sessionId,
                                            session,
                                            flamdexes,
@@ -650,6 +590,7 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         executor.shutdownNow();
         shardReload.shutdown();
         heartBeat.shutdown();
+        shardLoader.close();
     }
 
     @Export(name = "loaded-shard-count", doc = "number of loaded shards for each dataset", expand = true)
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.RawFTGSMerger;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sorted dictionary of the string terms of a dataset's shards, and for every shard the position of each of its terms
+ * in the dictionary. FTGS over many shards streams these global ordinals instead of the terms, so the shards are merged
+ * by comparing integers and only the merged terms are looked up.
+ *
+ * Ordinals are in the same order as the terms they stand for. The dictionary is built, sorted and searched as UTF-8
+ * bytes with {@link RawFTGSMerger#compareBytes}, the order FTGS merges string terms in.
+ *
+ * The memory of the dictionary is claimed from the daemon's pool when it is built and released when it is closed.
+ *
+ * Ordinals are local to a daemon. A daemon merges its own shards by ordinal both for a whole FTGS and for each of
+ * its FTGS splits, while the splits of different daemons are still merged by comparing term bytes.
+ */
+final class GlobalStringOrdinals implements Closeable {
+    private static final Logger log = Logger.getLogger(GlobalStringOrdinals.class);
+
+    private static final Comparator<byte[]> TERM_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return RawFTGSMerger.compareBytes(a, a.length, b, b.length);
+        }
+    };
+
+    private final Set<ShardId> shards;
+    // UTF-8 bytes of the terms of each field, sorted
+    private final Map<String, byte[][]> fieldTerms;
+    // for each field and shard, the global ordinal of each of the shard's terms in term order
+    private final Map<String, Map<ShardId, int[]>> shardOrdinals;
+
+    private final MemoryReserver memory;
+    private final long memoryClaimed;
+
+    private GlobalStringOrdinals(Set<ShardId> shards,
+                                 Map<String, byte[][]> fieldTerms,
+                                 Map<String, Map<ShardId, int[]>> shardOrdinals,
+                                 MemoryReserver memory,
+                                 long memoryClaimed) {
+        this.shards = shards;
+        this.fieldTerms = fieldTerms;
+        this.shardOrdinals = shardOrdinals;
+        this.memory = memory;
+        this.memoryClaimed = memoryClaimed;
+    }
+
+    Set<ShardId> getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the sorted UTF-8 terms of the field, or null if the field has no global ordinals
+     */
+    @Nullable byte[][] getTerms(String field) {
+        return fieldTerms.get(field);
+    }
+
+    /**
+     * @return the global ordinal of each of the shard's terms, empty if the shard does not have the field,
+     *         or null if the shard or the field is not in the dictionary
+     */
+    @Nullable int[] getShardOrdinals(String field, ShardId shard) {
+        final Map<ShardId, int[]> ordinals = shardOrdinals.get(field);
+        return ordinals == null ? null : ordinals.get(shard);
+    }
+
+    /**
+     * @return the ordinal of the term, or a negative value if the field does not have it. the search starts at
+     *         fromOrdinal, which lets an ascending sequence of terms be looked up in about one comparison each
+     */
+    static int findOrdinal(byte[][] terms, int fromOrdinal, byte[] term, int termLength) {
+        int lo = Math.max(fromOrdinal, 0);
+        int step = 1;
+        int hi = lo;
+        // gallop past the term, then binary search the last step
+        while (hi < terms.length && RawFTGSMerger.compareBytes(terms[hi], terms[hi].length, term, termLength) < 0) {
+            lo = hi + 1;
+            hi += step;
+            step *= 2;
+        }
+        hi = Math.min(hi, terms.length - 1);
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int c = RawFTGSMerger.compareBytes(terms[mid], terms[mid].length, term, termLength);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * builds ordinals for the string fields of the shards, skipping fields with more than maxTermsPerField
+     * distinct terms and fields whose dictionary does not fit in memory
+     */
+    static GlobalStringOrdinals build(Map<ShardId, ? extends FlamdexReader> readers,
+                                      long maxTermsPerField,
+                                      MemoryReserver memory) {
+        final Set<String> fields = Sets.newTreeSet();
+        for (final FlamdexReader reader : readers.values()) {
+            fields.addAll(reader.getStringFields());
+        }
+        final Map<String, byte[][]> fieldTerms = Maps.newHashMap();
+        final Map<String, Map<ShardId, int[]>> shardOrdinals = Maps.newHashMap();
+        long memoryClaimed = 0;
+        for (final String field : fields) {
+            final byte[][] terms = collectTerms(readers, field, maxTermsPerField);
+            if (terms == null) {
+                log.info("not building global ordinals for field " + field + ", more than " + maxTermsPerField + " terms");
+                continue;
+            }
+            final Map<ShardId, int[]> ordinals = Maps.newHashMap();
+            for (final Map.Entry<ShardId, ? extends FlamdexReader> entry : readers.entrySet()) {
+                ordinals.put(entry.getKey(), mapTerms(entry.getValue(), field, terms));
+            }
+            final long fieldMemory = memoryUsed(terms, ordinals);
+            if (!memory.claimMemory(fieldMemory)) {
+                log.warn("not building global ordinals for field " + field + ", unable to claim " + fieldMemory + " bytes");
+                continue;
+            }
+            memoryClaimed += fieldMemory;
+            fieldTerms.put(field, terms);
+            shardOrdinals.put(field, ordinals);
+        }
+        return new GlobalStringOrdinals(Collections.unmodifiableSet(Sets.newHashSet(readers.keySet())),
+                                        fieldTerms, shardOrdinals, memory, memoryClaimed);
+    }
+
+    long memoryUsed() {
+        return memoryClaimed;
+    }
+
+    @Override
+    public void close() {
+        memory.releaseMemory(memoryClaimed);
+    }
+
+    private static long memoryUsed(byte[][] terms, Map<ShardId, int[]> ordinals) {
+        long bytes = 16 + 8L * terms.length;
+        for (final byte[] term : terms) {
+            bytes += 16 + term.length;
+        }
+        for (final int[] shardOrdinals : ordinals.values()) {
+            bytes += 16 + 4L * shardOrdinals.length;
+        }
+        return bytes;
+    }
+
+    private static @Nullable byte[][] collectTerms(Map<ShardId, ? extends FlamdexReader> readers, String field, long maxTerms) {
+        final Set<byte[]> terms = Sets.newTreeSet(TERM_ORDER);
+        for (final FlamdexReader reader : readers.values()) {
+            if (!reader.getStringFields().contains(field)) {
+                continue;
+            }
+            final StringTermIterator iterator = reader.getStringTermIterator(field);
+            try {
+                while (iterator.next()) {
+                    terms.add(iterator.term().getBytes(Charsets.UTF_8));
+                    if (terms.size() > maxTerms) {
+                        return null;
+                    }
+                }
+            } finally {
+                iterator.close();
+            }
+        }
+        return terms.toArray(new byte[terms.size()][]);
+    }
+
+    private static int[] mapTerms(FlamdexReader reader, String field, byte[][] terms) {
+        if (!reader.getStringFields().contains(field)) {
+            return new int[0];
+        }
+        int[] ordinals = new int[1024];
+        int numTerms = 0;
+        final StringTermIterator iterator = reader.getStringTermIterator(field);
+        try {
+            while (iterator.next()) {
+                if (numTerms == ordinals.length) {
+                    ordinals = Arrays.copyOf(ordinals, numTerms * 2);
+                }
+                ordinals[numTerms++] = Arrays.binarySearch(terms, iterator.term().getBytes(Charsets.UTF_8), TERM_ORDER);
+            }
+        } finally {
+            iterator.close();
+        }
+        return Arrays.copyOf(ordinals, numTerms);
+    }
+}
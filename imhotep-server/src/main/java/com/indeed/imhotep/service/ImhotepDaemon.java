@@ -18,13 +18,18 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.UnmodifiableIterator;
+import com.google.common.io.CountingInputStream;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
 import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.DistinctCountSketch;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
 import com.indeed.imhotep.ImhotepStatusDump;
+import com.indeed.imhotep.QuantileSketch;
+import com.indeed.imhotep.RequestSpan;
 import com.indeed.imhotep.ShardInfo;
 import com.indeed.imhotep.TermCount;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
@@ -36,6 +41,7 @@ import com.indeed.imhotep.protobuf.HostAndPort;
 import com.indeed.imhotep.protobuf.ImhotepRequest;
 import com.indeed.imhotep.protobuf.ImhotepResponse;
 import com.indeed.imhotep.io.ImhotepProtobufShipping;
+import com.indeed.imhotep.io.MeteredOutputStream;
 import com.indeed.imhotep.io.Streams;
 import com.indeed.imhotep.io.caching.CachedFile;
 
@@ -72,6 +78,8 @@ public class ImhotepDaemon {
 
     private final AtomicLong requestIdCounter = new AtomicLong(0);
 
+    private final RequestTracer tracer = new RequestTracer();
+
     private volatile boolean isStarted = false;
 
     public ImhotepDaemon(ServerSocket ss, ImhotepServiceCore service, String zkNodes, String zkPath, String hostname, int port) {
@@ -159,9 +167,13 @@ public class ImhotepDaemon {
 
         private void internalRun() {
             ImhotepRequest protoRequest = null;
+            RequestSpan span = null;
+            boolean succeeded = false;
             try {
-                final InputStream is = Streams.newBufferedInputStream(socket.getInputStream());
-                final OutputStream os = Streams.newBufferedOutputStream(socket.getOutputStream());
+                final CountingInputStream socketIn = new CountingInputStream(socket.getInputStream());
+                final MeteredOutputStream socketOut = new MeteredOutputStream(socket.getOutputStream());
+                final InputStream is = Streams.newBufferedInputStream(socketIn);
+                final OutputStream os = Streams.newBufferedOutputStream(socketOut);
 
                 final int ndcDepth = NDC.getDepth();
 
@@ -172,6 +184,7 @@ public class ImhotepDaemon {
                     log.info("getting request");
                     // TODO TODO TODO validate request
                     protoRequest = ImhotepProtobufShipping.readRequest(is);
+                    span = tracer.start(protoRequest);
 
                     if (protoRequest.hasSessionId()) {
                         NDC.push(protoRequest.getSessionId());
@@ -204,7 +217,29 @@ public class ImhotepDaemon {
                                     protoRequest.getMergeThreadLimit(),
                                     protoRequest.getOptimizeGroupZeroLookups(),
                                     protoRequest.getSessionId(),
-                                    tempFileSizeBytesLeft
+                                    tempFileSizeBytesLeft,
+                                    protoRequest.getSessionPriority()
+                            );
+                            NDC.push(sessionId);
+                            responseBuilder.setSessionId(sessionId);
+                            sendResponse(responseBuilder.build(), os);
+                            break;
+                        case OPEN_SESSION_FROM_SNAPSHOT:
+                            inetAddress = socket.getInetAddress();
+                            final AtomicLong snapshotTempFileSizeBytesLeft = protoRequest.getTempFileSizeLimit() > 0 ?
+                                    new AtomicLong(protoRequest.getTempFileSizeLimit()) : null;
+                            sessionId = service.handleOpenSessionFromSnapshot(
+                                    protoRequest.getDataset(),
+                                    protoRequest.getShardRequestList(),
+                                    protoRequest.getUsername(),
+                                    inetAddress.getHostAddress(),
+                                    protoRequest.getClientVersion(),
+                                    protoRequest.getMergeThreadLimit(),
+                                    protoRequest.getOptimizeGroupZeroLookups(),
+                                    protoRequest.getSessionId(),
+                                    snapshotTempFileSizeBytesLeft,
+                                    protoRequest.getSnapshotId(),
+                                    protoRequest.getSessionPriority()
                             );
                             NDC.push(sessionId);
                             responseBuilder.setSessionId(sessionId);
@@ -288,9 +323,7 @@ public class ImhotepDaemon {
                             break;
                         case GET_GROUP_STATS:
                             groupStats = service.handleGetGroupStats(protoRequest.getSessionId(), protoRequest.getStat());
-                            for (final long groupStat : groupStats) {
-                                responseBuilder.addGroupStat(groupStat);
-                            }
+                            addGroupStats(responseBuilder, groupStats, protoRequest.getSparseGroupStats());
                             sendResponse(responseBuilder.build(), os);
                             break;
                         case GET_FTGS_ITERATOR:
@@ -508,6 +541,55 @@ public class ImhotepDaemon {
                             );
                             sendResponse(responseBuilder.addAllTopTerms(ImhotepDaemonMarshaller.marshalTermCountList(topTerms)).build(), os);
                             break;
+                        case GET_GROUP_DISTINCT:
+                            try {
+                                final DistinctCountSketch[] groupSketches = service.handleGetGroupDistinctSketches(
+                                        protoRequest.getSessionId(),
+                                        protoRequest.getField(),
+                                        protoRequest.getIsIntField(),
+                                        protoRequest.getSketchPrecision()
+                                );
+                                for (final DistinctCountSketch sketch : groupSketches) {
+                                    responseBuilder.addGroupSketch(sketch == null ? ByteString.EMPTY : ByteString.copyFrom(sketch.toBytes()));
+                                }
+                            } finally {
+                                service.handleReleaseGroupSketches(protoRequest.getSessionId());
+                            }
+                            sendResponse(responseBuilder.build(), os);
+                            break;
+                        case GET_GROUP_QUANTILES:
+                            try {
+                                final QuantileSketch[] groupQuantiles = service.handleGetGroupQuantiles(
+                                        protoRequest.getSessionId(),
+                                        protoRequest.getStat(),
+                                        protoRequest.getAccuracy()
+                                );
+                                for (final QuantileSketch sketch : groupQuantiles) {
+                                    responseBuilder.addGroupSketch(sketch == null ? ByteString.EMPTY : ByteString.copyFrom(sketch.toBytes()));
+                                }
+                            } finally {
+                                service.handleReleaseGroupSketches(protoRequest.getSessionId());
+                            }
+                            sendResponse(responseBuilder.build(), os);
+                            break;
+                        case APPEND_TO_LIVE_SHARD:
+                            if (protoRequest.getShardRequestCount() != 1) {
+                                throw new IllegalArgumentException("appendToLiveShard requires exactly one shard, got " + protoRequest.getShardRequestCount());
+                            }
+                            service.handleAppendToLiveShard(
+                                    protoRequest.getDataset(),
+                                    protoRequest.getShardRequest(0),
+                                    ImhotepDaemonMarshaller.marshalDocumentList(protoRequest.getDocumentList())
+                            );
+                            sendResponse(responseBuilder.build(), os);
+                            break;
+                        case EXPORT_SNAPSHOT:
+                            responseBuilder.addAllShardId(service.handleExportSnapshot(
+                                    protoRequest.getSessionId(),
+                                    protoRequest.getSnapshotId()
+                            ));
+                            sendResponse(responseBuilder.build(), os);
+                            break;
                         case SHUTDOWN:
                             if (protoRequest.hasSessionId() && "magicshutdownid".equals(protoRequest.getSessionId())) {
                                 log.info("shutdown signal received, shutting down the JVM");
@@ -515,9 +597,15 @@ public class ImhotepDaemon {
                                 shutdown(true);
                             }
                             break;
+                        case GET_PERFORMANCE_STATS:
+                            responseBuilder.setPerformanceStats(tracer.getStats(
+                                    protoRequest.hasSessionId() ? protoRequest.getSessionId() : null).toProto());
+                            sendResponse(responseBuilder.build(), os);
+                            break;
                         default:
                             throw new IllegalArgumentException("unsupported request type: "+protoRequest.getRequestType());
                     }
+                    succeeded = true;
                 } catch (ImhotepOutOfMemoryException e) {
                     expireSession(protoRequest, e);
                     sendResponse(ImhotepResponse.newBuilder().setResponseCode(ImhotepResponse.ResponseCode.OUT_OF_MEMORY).build(), os);
@@ -532,6 +620,10 @@ public class ImhotepDaemon {
                 } finally {
                     NDC.setMaxDepth(ndcDepth);
                     close(socket, is, os);
+                    if (span != null) {
+                        tracer.finish(protoRequest.getRequestType(), span, socketIn.getCount(), socketOut.getCount(),
+                                socketOut.getNanos(), !succeeded);
+                    }
                 }
             } catch (IOException e) {
                 expireSession(protoRequest,e );
@@ -566,6 +658,10 @@ public class ImhotepDaemon {
         }
     }
 
+    public RequestTracer getTracer() {
+        return tracer;
+    }
+
     public void shutdown(boolean sysExit) throws IOException {
         if (zkWrapper != null) {
             zkWrapper.close();
@@ -584,6 +680,31 @@ public class ImhotepDaemon {
         }
     }
 
+    private static void addGroupStats(ImhotepResponse.Builder responseBuilder, long[] groupStats, boolean allowSparse) {
+        int nonZero = 0;
+        for (final long groupStat : groupStats) {
+            if (groupStat != 0) {
+                nonZero++;
+            }
+        }
+        // a sparse group costs a delta on top of the stat
+        if (!allowSparse || nonZero * 2 >= groupStats.length) {
+            for (final long groupStat : groupStats) {
+                responseBuilder.addGroupStat(groupStat);
+            }
+            return;
+        }
+        responseBuilder.setGroupStatNumGroups(groupStats.length);
+        int previousGroup = 0;
+        for (int group = 0; group < groupStats.length; group++) {
+            if (groupStats[group] != 0) {
+                responseBuilder.addGroupStatGroupDelta(group - previousGroup);
+                responseBuilder.addGroupStat(groupStats[group]);
+                previousGroup = group;
+            }
+        }
+    }
+
     private static String[] getStringFields(ImhotepRequest protoRequest) {
         return protoRequest.getStringFieldsList().toArray(new String[protoRequest.getStringFieldsCount()]);
     }
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.indeed.imhotep.io.Shard;
+import com.indeed.util.core.Pair;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.reference.AtomicSharedReference;
+import com.indeed.util.core.reference.SharedReference;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the shards of a shards directory up to date. A reload lists the dataset directories and only looks at the
+ * shards of the datasets whose listing or modification time changed since the previous reload, or whose modification
+ * time is unknown. Every shard directory of those datasets is resolved again, so that a symlink pointing somewhere
+ * else is picked up. The shard versions they gained or that moved are opened in parallel on a bounded pool, and each
+ * dataset is published as soon as all of its new shards are open, so that new shards don't wait for the rest of the
+ * directory.
+ *
+ * Reloads are not thread safe and have to be serialized by the caller.
+ */
+abstract class IncrementalShardLoader implements Closeable {
+    private static final Logger log = Logger.getLogger(IncrementalShardLoader.class);
+
+    private static final Pattern VERSION_PATTERN = Pattern.compile("^(.+)\\.(\\d{14})$");
+
+    private final ExecutorService pool;
+
+    // by dataset, what the last reload found in its directory
+    private final Map<String, DatasetState> datasets = Maps.newHashMap();
+
+    private final AtomicLong datasetsReloaded = new AtomicLong();
+    private final AtomicLong shardsOpened = new AtomicLong();
+
+    IncrementalShardLoader(int threads) {
+        pool = Executors.newFixedThreadPool(Math.max(1, threads),
+                                            new ThreadFactoryBuilder().setDaemon(true)
+                                                                      .setNameFormat("ShardLoaderThread-%d")
+                                                                      .build());
+    }
+
+    /**
+     * @return the names of the dataset directories, empty if the shards directory does not exist
+     */
+    protected abstract String[] listDatasets() throws IOException;
+
+    /**
+     * @return the names of the entries of a dataset directory, null if it is not a directory
+     */
+    protected abstract @Nullable String[] listShardDirs(String dataset) throws IOException;
+
+    /**
+     * @return when the dataset directory was last modified, 0 if unknown
+     */
+    protected abstract long lastModified(String dataset);
+
+    /**
+     * @return the canonical path of an entry of a dataset directory, null if it is not a directory
+     */
+    protected abstract @Nullable String getCanonicalShardDir(String dataset, String name) throws IOException;
+
+    /**
+     * opens a shard directory, called on the loader's pool
+     * @return the shard, or null if the directory can't be loaded right now
+     */
+    protected abstract @Nullable Shard openShard(String dataset, ShardDir dir) throws IOException;
+
+    /**
+     * makes the shards loaded from a dataset's directory visible, called on the reloading thread. the map is empty if
+     * the directory has no shards anymore and must not be modified
+     */
+    protected abstract void publish(String dataset, Map<String, AtomicSharedReference<Shard>> datasetShards);
+
+    final void reload() throws IOException {
+        final List<PendingDataset> pending = Lists.newArrayList();
+        final Set<String> listed = Sets.newHashSet();
+        for (final String dataset : listDatasets()) {
+            final String[] names = listShardDirs(dataset);
+            if (names == null) {
+                continue;
+            }
+            listed.add(dataset);
+            Arrays.sort(names);
+            final long modified = lastModified(dataset);
+            final DatasetState old = datasets.get(dataset);
+            // without a modification time, the names alone would miss a symlink pointed somewhere else
+            if (old != null && modified != 0 && old.modified == modified && Arrays.equals(old.names, names)) {
+                continue;
+            }
+            pending.add(plan(dataset, names, modified, old));
+        }
+        // the pool keeps opening the shards of later datasets while earlier ones are published
+        for (final PendingDataset dataset : pending) {
+            finish(dataset);
+        }
+        for (final String dataset : Lists.newArrayList(datasets.keySet())) {
+            if (!listed.contains(dataset)) {
+                final DatasetState old = datasets.remove(dataset);
+                final Map<String, AtomicSharedReference<Shard>> none = Collections.emptyMap();
+                publish(dataset, none);
+                unsetDropped(old.shards, none);
+            }
+        }
+    }
+
+    private PendingDataset plan(final String dataset, String[] names, long modified, @Nullable DatasetState old) {
+        final Map<String, AtomicSharedReference<Shard>> oldShards;
+        if (old != null) {
+            oldShards = old.shards;
+        } else {
+            oldShards = Collections.emptyMap();
+        }
+        final PendingDataset ret = new PendingDataset(dataset, names, modified, oldShards);
+
+        // the newest version of every shard in the directory
+        final Map<String, ShardDir> newest = Maps.newHashMap();
+        for (final String name : names) {
+            final String canonicalDir;
+            try {
+                canonicalDir = getCanonicalShardDir(dataset, name);
+            } catch (IOException e) {
+                log.error("error reading shard directory " + name + " in dataset " + dataset, e);
+                ret.complete = false;
+                continue;
+            }
+            if (canonicalDir == null) {
+                continue;
+            }
+            final ShardDir dir = ShardDir.parse(name, canonicalDir);
+            final ShardDir current = newest.get(dir.shardId);
+            if (current == null || dir.version > current.version) {
+                newest.put(dir.shardId, dir);
+            }
+        }
+
+        for (final ShardDir dir : newest.values()) {
+            final AtomicSharedReference<Shard> existing = oldShards.get(dir.shardId);
+            if (existing != null && !shouldReloadShard(existing, dir)) {
+                ret.shards.put(dir.shardId, existing);
+                continue;
+            }
+            final Future<Shard> future = pool.submit(new Callable<Shard>() {
+                @Override
+                public Shard call() throws IOException {
+                    return openShard(dataset, dir);
+                }
+            });
+            ret.loads.add(Pair.of(dir, future));
+        }
+        return ret;
+    }
+
+    private static boolean shouldReloadShard(AtomicSharedReference<Shard> reference, ShardDir dir) {
+        final SharedReference<Shard> ref = reference.getCopy();
+        if (ref == null) {
+            return true;
+        }
+        try {
+            final Shard oldShard = ref.get();
+            return dir.version > oldShard.getShardVersion()
+                    || (dir.version == oldShard.getShardVersion() && !dir.canonicalDir.equals(oldShard.getIndexDir()));
+        } finally {
+            Closeables2.closeQuietly(ref, log);
+        }
+    }
+
+    private void finish(PendingDataset dataset) {
+        for (final Pair<ShardDir, Future<Shard>> load : dataset.loads) {
+            final ShardDir dir = load.getFirst();
+            Shard shard = null;
+            try {
+                shard = Uninterruptibles.getUninterruptibly(load.getSecond());
+            } catch (ExecutionException e) {
+                log.error("error loading shard at " + dir.canonicalDir, e.getCause());
+            }
+            final AtomicSharedReference<Shard> existing = dataset.oldShards.get(dir.shardId);
+            if (shard == null) {
+                // keep what was loaded before and try again with the next reload
+                dataset.complete = false;
+                if (existing != null) {
+                    dataset.shards.put(dir.shardId, existing);
+                }
+                continue;
+            }
+            shardsOpened.incrementAndGet();
+            log.debug("loading shard " + dir.shardId + " from " + dir.canonicalDir);
+            if (existing != null) {
+                try {
+                    existing.set(shard);
+                } catch (IOException e) {
+                    log.error("error closing shard " + dir.shardId, e);
+                }
+                dataset.shards.put(dir.shardId, existing);
+            } else {
+                dataset.shards.put(dir.shardId, AtomicSharedReference.create(shard));
+            }
+        }
+        datasets.put(dataset.name, new DatasetState(dataset.complete ? dataset.names : null, dataset.modified,
+                                                    dataset.shards));
+        publish(dataset.name, dataset.shards);
+        unsetDropped(dataset.oldShards, dataset.shards);
+        datasetsReloaded.incrementAndGet();
+    }
+
+    private static void unsetDropped(Map<String, AtomicSharedReference<Shard>> oldShards,
+                                     Map<String, AtomicSharedReference<Shard>> newShards) {
+        for (final Map.Entry<String, AtomicSharedReference<Shard>> entry : oldShards.entrySet()) {
+            if (!newShards.containsKey(entry.getKey())) {
+                try {
+                    entry.getValue().unset();
+                } catch (IOException e) {
+                    log.error("error closing shard " + entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of datasets whose directory changed and was looked at again
+     */
+    long getDatasetsReloaded() {
+        return datasetsReloaded.get();
+    }
+
+    long getShardsOpened() {
+        return shardsOpened.get();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    static final class ShardDir {
+        final String name;
+        final String shardId;
+        final long version;
+        final String canonicalDir;
+
+        private ShardDir(String name, String shardId, long version, String canonicalDir) {
+            this.name = name;
+            this.shardId = shardId;
+            this.version = version;
+            this.canonicalDir = canonicalDir;
+        }
+
+        static ShardDir parse(String name, String canonicalDir) {
+            final Matcher matcher = VERSION_PATTERN.matcher(name);
+            if (matcher.matches()) {
+                return new ShardDir(name, matcher.group(1), Long.parseLong(matcher.group(2)), canonicalDir);
+            }
+            return new ShardDir(name, name, 0L, canonicalDir);
+        }
+    }
+
+    private static final class DatasetState {
+        // sorted, null if some shards could not be loaded and the dataset has to be looked at again
+        final String[] names;
+        final long modified;
+        // by shard id, the shards loaded from the directory
+        final Map<String, AtomicSharedReference<Shard>> shards;
+
+        DatasetState(@Nullable String[] names, long modified, Map<String, AtomicSharedReference<Shard>> shards) {
+            this.names = names;
+            this.modified = modified;
+            this.shards = shards;
+        }
+    }
+
+    private static final class PendingDataset {
+        final String name;
+        final String[] names;
+        final long modified;
+        final Map<String, AtomicSharedReference<Shard>> oldShards;
+        final Map<String, AtomicSharedReference<Shard>> shards = Maps.newHashMap();
+        final List<Pair<ShardDir, Future<Shard>>> loads = Lists.newArrayList();
+        boolean complete = true;
+
+        PendingDataset(String name, String[] names, long modified, Map<String, AtomicSharedReference<Shard>> oldShards) {
+            this.name = name;
+            this.names = names;
+            this.modified = modified;
+            this.oldShards = oldShards;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.indeed.flamdex.MemoryFlamdex;
+import com.indeed.flamdex.simple.SimpleFlamdexWriter;
+import com.indeed.flamdex.writer.FlamdexDocument;
+import com.indeed.imhotep.MemoryReservationContext;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import com.indeed.imhotep.io.Shard;
+import com.indeed.util.core.reference.AtomicSharedReference;
+import com.indeed.util.core.reference.ReloadableSharedReference;
+import com.indeed.util.core.shell.PosixFileOperations;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A shard that accepts appended documents and is held in memory until it is rolled over to disk.
+ *
+ * Sessions see the shard as of the last append before they were opened. Once sealed no more documents
+ * are accepted, the shard is written out as a simple flamdex and is replaced by the on-disk copy the
+ * next time shards are reloaded.
+ */
+final class LiveShard {
+    private static final Logger log = Logger.getLogger(LiveShard.class);
+
+    private final String dataset;
+    private final String shardId;
+    private final long createdMillis;
+    private final MemoryFlamdex flamdex = new MemoryFlamdex();
+
+    // holds the latest published snapshot, shared with the service's shard map
+    private final AtomicSharedReference<Shard> reference = AtomicSharedReference.create();
+
+    private long version;
+    private boolean sealed = false;
+    // claimed from the service's memory for the flamdex and its latest snapshot
+    private long reservedMemory = 0;
+
+    LiveShard(String dataset, String shardId, long createdMillis) {
+        this.dataset = dataset;
+        this.shardId = shardId;
+        this.createdMillis = createdMillis;
+        this.version = toVersion(createdMillis);
+    }
+
+    String getDataset() {
+        return dataset;
+    }
+
+    String getShardId() {
+        return shardId;
+    }
+
+    AtomicSharedReference<Shard> getReference() {
+        return reference;
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    synchronized boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * adds the documents and publishes a new snapshot of the shard
+     * @throws ImhotepOutOfMemoryException if there is not enough memory for the documents, none of them are added
+     */
+    synchronized void append(List<FlamdexDocument> documents, MemoryReserver memory, long nowMillis)
+            throws IOException, ImhotepOutOfMemoryException {
+        if (sealed) {
+            throw new IllegalStateException("live shard " + shardId + " in dataset " + dataset
+                    + " has been rolled over and no longer accepts documents");
+        }
+        long estimate = 0;
+        for (final FlamdexDocument document : documents) {
+            estimate += MemoryFlamdex.estimateMemoryUsage(document);
+        }
+        if (!memory.claimMemory(estimate)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        reservedMemory += estimate;
+        for (final FlamdexDocument document : documents) {
+            flamdex.addDocument(document);
+        }
+        // versions must increase with every snapshot so that shard list consumers see the change,
+        // stepping a second past the previous one keeps them valid timestamps
+        version = Math.max(toVersion(fromVersion(version) + 1000), toVersion(nowMillis));
+        publish(memory);
+        updateReservedMemory(memory);
+    }
+
+    // replaces the estimate claimed before an append with what the flamdex and its snapshot actually use
+    private void updateReservedMemory(MemoryReserver memory) {
+        final long required = flamdex.getMemoryUsageEstimate() + flamdex.getSnapshotMemoryUsageEstimate();
+        if (required < reservedMemory) {
+            memory.releaseMemory(reservedMemory - required);
+            reservedMemory = required;
+        } else if (required > reservedMemory) {
+            if (memory.claimMemory(required - reservedMemory)) {
+                reservedMemory = required;
+            } else {
+                // the documents are already visible, roll the shard over so that its memory is freed
+                log.warn("live shard " + shardId + " in dataset " + dataset + " uses more memory than is available, sealing it");
+                sealed = true;
+            }
+        }
+    }
+
+    /**
+     * releases the memory claimed for the shard, called once the shard has been replaced by its copy on disk
+     */
+    synchronized void releaseMemory(MemoryReserver memory) {
+        memory.releaseMemory(reservedMemory);
+        reservedMemory = 0;
+    }
+
+    /**
+     * @return true if the shard should be rolled over, either because it is too large or too old
+     */
+    synchronized boolean shouldRollOver(long maxMemoryBytes, long maxAgeMillis, long nowMillis) {
+        return flamdex.getNumDocs() > 0
+                && (flamdex.getMemoryUsageEstimate() >= maxMemoryBytes || nowMillis - createdMillis >= maxAgeMillis);
+    }
+
+    synchronized void seal() {
+        sealed = true;
+    }
+
+    /**
+     * Writes the sealed shard to {@code datasetDir/shardId.version}, building it in tempDir first so that
+     * a partially written shard is never picked up.
+     * @return the new shard directory
+     */
+    File writeTo(File datasetDir, File tempDir) throws IOException {
+        final MemoryFlamdex snapshot;
+        final long snapshotVersion;
+        synchronized (this) {
+            if (!sealed) {
+                throw new IllegalStateException("live shard " + shardId + " must be sealed before it is written");
+            }
+            snapshot = flamdex.snapshot();
+            snapshotVersion = version;
+        }
+        final String name = shardId + "." + snapshotVersion;
+        final File tmp = new File(tempDir, ".tmp-live-" + dataset + "-" + name);
+        final File dest = new File(datasetDir, name);
+        if (dest.exists()) {
+            // written by an earlier flush that failed to reload shards afterwards
+            return dest;
+        }
+        if (tmp.exists()) {
+            PosixFileOperations.rmrf(tmp);
+        }
+        try {
+            // closes the writer
+            SimpleFlamdexWriter.writeFlamdex(snapshot, new SimpleFlamdexWriter(tmp.getPath(), snapshot.getNumDocs()));
+            if (!datasetDir.exists() && !datasetDir.mkdirs()) {
+                throw new IOException("unable to create " + datasetDir);
+            }
+            if (!tmp.renameTo(dest)) {
+                throw new IOException("unable to move " + tmp + " to " + dest);
+            }
+        } catch (IOException e) {
+            PosixFileOperations.rmrf(tmp);
+            throw e;
+        }
+        return dest;
+    }
+
+    private void publish(final MemoryReserver memory) throws IOException {
+        final MemoryFlamdex snapshot = flamdex.snapshot();
+        final ReloadableSharedReference.Loader<CachedFlamdexReader, IOException> loader =
+                new ReloadableSharedReference.Loader<CachedFlamdexReader, IOException>() {
+                    @Override
+                    public CachedFlamdexReader load() throws IOException {
+                        // no free cache, cached metrics from an older snapshot would have the wrong number of docs
+                        return new CachedFlamdexReader(new MemoryReservationContext(memory), snapshot,
+                                                       null, dataset, shardId, null);
+                    }
+                };
+        reference.set(new Shard(ReloadableSharedReference.create(loader), null, version, null, dataset, shardId));
+    }
+
+    static long toVersion(long millis) {
+        return Long.parseLong(new SimpleDateFormat("yyyyMMddHHmmss").format(new Date(millis)));
+    }
+
+    static long fromVersion(long version) {
+        try {
+            return new SimpleDateFormat("yyyyMMddHHmmss").parse(Long.toString(version)).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("invalid shard version " + version, e);
+        }
+    }
+}
@@ -21,6 +21,22 @@
 public final class LocalImhotepServiceConfig {
     private int updateShardsFrequencySeconds = 120;
     private int heartBeatCheckFrequencySeconds = 60;
+    private long maxLiveShardBytes = 256L * 1024 * 1024;
+    private int maxLiveShardAgeSeconds = 3600;
+    private int liveShardCheckFrequencySeconds = 10;
+    private int compactionCheckFrequencySeconds = 0;
+    private double compactionMinGroupZeroFraction = 0.9;
+    private int compactionMinDocs = 100000;
+    private int compactionMinScans = 2;
+    private int cpuSlots = Runtime.getRuntime().availableProcessors();
+    private int schedulingQuantumMillis = 100;
+    private long globalOrdinalMaxTerms = 0;
+    private long sharedScanJoinWindowMillis = 0;
+    private int sharedScanMaxBufferedDocs = 256 * 1024;
+    private boolean offHeapGroupLookups = false;
+    private int shardLoadThreads = Runtime.getRuntime().availableProcessors();
+    private int snapshotMaxAgeSeconds = 24 * 3600;
+    private long maxSnapshotBytes = 0;
 
     public int getUpdateShardsFrequencySeconds() {
         return updateShardsFrequencySeconds;
@@ -30,6 +46,70 @@ public final class LocalImhotepServiceConfig {
         return heartBeatCheckFrequencySeconds;
     }
 
+    public long getMaxLiveShardBytes() {
+        return maxLiveShardBytes;
+    }
+
+    public int getMaxLiveShardAgeSeconds() {
+        return maxLiveShardAgeSeconds;
+    }
+
+    public int getLiveShardCheckFrequencySeconds() {
+        return liveShardCheckFrequencySeconds;
+    }
+
+    public int getCompactionCheckFrequencySeconds() {
+        return compactionCheckFrequencySeconds;
+    }
+
+    public double getCompactionMinGroupZeroFraction() {
+        return compactionMinGroupZeroFraction;
+    }
+
+    public int getCompactionMinDocs() {
+        return compactionMinDocs;
+    }
+
+    public int getCompactionMinScans() {
+        return compactionMinScans;
+    }
+
+    public int getCpuSlots() {
+        return cpuSlots;
+    }
+
+    public int getSchedulingQuantumMillis() {
+        return schedulingQuantumMillis;
+    }
+
+    public long getGlobalOrdinalMaxTerms() {
+        return globalOrdinalMaxTerms;
+    }
+
+    public long getSharedScanJoinWindowMillis() {
+        return sharedScanJoinWindowMillis;
+    }
+
+    public int getSharedScanMaxBufferedDocs() {
+        return sharedScanMaxBufferedDocs;
+    }
+
+    public boolean isOffHeapGroupLookups() {
+        return offHeapGroupLookups;
+    }
+
+    public int getShardLoadThreads() {
+        return shardLoadThreads;
+    }
+
+    public int getSnapshotMaxAgeSeconds() {
+        return snapshotMaxAgeSeconds;
+    }
+
+    public long getMaxSnapshotBytes() {
+        return maxSnapshotBytes;
+    }
+
     public LocalImhotepServiceConfig setUpdateShardsFrequencySeconds(int updateShardsFrequencySeconds) {
         this.updateShardsFrequencySeconds = updateShardsFrequencySeconds;
         return this;
@@ -39,4 +119,134 @@ public final class LocalImhotepServiceConfig {
         this.heartBeatCheckFrequencySeconds = heartBeatCheckFrequencySeconds;
         return this;
     }
+
+    /**
+     * live shards whose estimated size reaches this many bytes are rolled over to disk.
+     * live shards are only held in memory until they roll over or the service is closed, so
+     * documents appended since then are lost if the daemon dies without closing the service
+     */
+    public LocalImhotepServiceConfig setMaxLiveShardBytes(long maxLiveShardBytes) {
+        this.maxLiveShardBytes = maxLiveShardBytes;
+        return this;
+    }
+
+    /**
+     * live shards older than this are rolled over to disk
+     */
+    public LocalImhotepServiceConfig setMaxLiveShardAgeSeconds(int maxLiveShardAgeSeconds) {
+        this.maxLiveShardAgeSeconds = maxLiveShardAgeSeconds;
+        return this;
+    }
+
+    public LocalImhotepServiceConfig setLiveShardCheckFrequencySeconds(int liveShardCheckFrequencySeconds) {
+        this.liveShardCheckFrequencySeconds = liveShardCheckFrequencySeconds;
+        return this;
+    }
+
+    /**
+     * how often sessions are checked for shards worth compacting, 0 (the default) disables automatic compaction
+     */
+    public LocalImhotepServiceConfig setCompactionCheckFrequencySeconds(int compactionCheckFrequencySeconds) {
+        this.compactionCheckFrequencySeconds = compactionCheckFrequencySeconds;
+        return this;
+    }
+
+    /**
+     * sessions are rebuilt without group zero once at least this fraction of a shard's docs is in group zero,
+     * values above 1 disable automatic compaction
+     */
+    public LocalImhotepServiceConfig setCompactionMinGroupZeroFraction(double compactionMinGroupZeroFraction) {
+        this.compactionMinGroupZeroFraction = compactionMinGroupZeroFraction;
+        return this;
+    }
+
+    public LocalImhotepServiceConfig setCompactionMinDocs(int compactionMinDocs) {
+        this.compactionMinDocs = compactionMinDocs;
+        return this;
+    }
+
+    /**
+     * the number of FTGS or doc iterations a session must have done since its last compaction
+     */
+    public LocalImhotepServiceConfig setCompactionMinScans(int compactionMinScans) {
+        this.compactionMinScans = compactionMinScans;
+        return this;
+    }
+
+    /**
+     * the number of shard operations that may run at once across all sessions
+     */
+    public LocalImhotepServiceConfig setCpuSlots(int cpuSlots) {
+        this.cpuSlots = cpuSlots;
+        return this;
+    }
+
+    /**
+     * how long an FTGS iteration may keep running while work from other sessions is waiting
+     */
+    public LocalImhotepServiceConfig setSchedulingQuantumMillis(int schedulingQuantumMillis) {
+        this.schedulingQuantumMillis = schedulingQuantumMillis;
+        return this;
+    }
+
+    /**
+     * string fields with at most this many distinct terms across a dataset's shards get global ordinals, which lets
+     * FTGS merge the shards' terms as ints. 0 disables global ordinals
+     */
+    public LocalImhotepServiceConfig setGlobalOrdinalMaxTerms(long globalOrdinalMaxTerms) {
+        this.globalOrdinalMaxTerms = globalOrdinalMaxTerms;
+        return this;
+    }
+
+    /**
+     * FTGS iterators that start on the same field of the same shard within this many millis of each other share one
+     * walk over its terms and postings. 0 disables shared scans
+     */
+    public LocalImhotepServiceConfig setSharedScanJoinWindowMillis(long sharedScanJoinWindowMillis) {
+        this.sharedScanJoinWindowMillis = sharedScanJoinWindowMillis;
+        return this;
+    }
+
+    /**
+     * how many decoded doc ids a shared scan keeps for its slower iterators, which continue on their own once they
+     * fall further behind
+     */
+    public LocalImhotepServiceConfig setSharedScanMaxBufferedDocs(int sharedScanMaxBufferedDocs) {
+        this.sharedScanMaxBufferedDocs = sharedScanMaxBufferedDocs;
+        return this;
+    }
+
+    /**
+     * allocate the int group lookups of sessions outside of the java heap, freed as soon as they are replaced or the
+     * session is closed instead of at the next collection
+     */
+    public LocalImhotepServiceConfig setOffHeapGroupLookups(boolean offHeapGroupLookups) {
+        this.offHeapGroupLookups = offHeapGroupLookups;
+        return this;
+    }
+
+    /**
+     * how many new shard versions are opened at once when reloading shards
+     */
+    public LocalImhotepServiceConfig setShardLoadThreads(int shardLoadThreads) {
+        this.shardLoadThreads = shardLoadThreads;
+        return this;
+    }
+
+    /**
+     * session snapshots not written to for this long are deleted
+     */
+    public LocalImhotepServiceConfig setSnapshotMaxAgeSeconds(int snapshotMaxAgeSeconds) {
+        this.snapshotMaxAgeSeconds = snapshotMaxAgeSeconds;
+        return this;
+    }
+
+    /**
+     * the oldest session snapshots are deleted while all of them take more than this many bytes, 0 (the default)
+     * only deletes them by age
+     */
+    public LocalImhotepServiceConfig setMaxSnapshotBytes(long maxSnapshotBytes) {
+        this.maxSnapshotBytes = maxSnapshotBytes;
+        return this;
+    }
 }
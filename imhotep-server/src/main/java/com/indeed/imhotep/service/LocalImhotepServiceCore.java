@@ -18,6 +18,7 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.Closer;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.shell.PosixFileOperations;
@@ -32,6 +33,7 @@ import com.indeed.util.varexport.VarExporter;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.RawFlamdexReader;
+import com.indeed.flamdex.writer.FlamdexDocument;
 import com.indeed.imhotep.CachedMemoryReserver;
 import com.indeed.imhotep.DatasetInfo;
 import com.indeed.imhotep.ImhotepMemoryCache;
@@ -41,11 +43,14 @@ import com.indeed.imhotep.MemoryReservationContext;
 import com.indeed.imhotep.MemoryReserver;
 import com.indeed.imhotep.MetricKey;
 import com.indeed.imhotep.ShardInfo;
+import com.indeed.imhotep.WeightedFairScheduler;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepSession;
 import com.indeed.imhotep.io.ReadLock;
 import com.indeed.imhotep.io.Shard;
+import com.indeed.imhotep.local.CompactionPolicy;
 import com.indeed.imhotep.local.ImhotepLocalSession;
+import com.indeed.imhotep.local.SharedScans;
 
 import org.apache.log4j.Logger;
 
@@ -54,22 +59,24 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * @author jsgroth
@@ -77,16 +84,17 @@ import java.util.regex.Pattern;
 public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
     private static final Logger log = Logger.getLogger(LocalImhotepServiceCore.class);
 
-    private static final Pattern VERSION_PATTERN = Pattern.compile("^(.+)\\.(\\d{14})$");
-
     private static final long SESSION_EXPIRATION_TIME_MILLIS = 30L * 60 * 1000;
 
     private final LocalSessionManager sessionManager;
 
     private final ExecutorService executor;
+    // bounds the shard work running at once and shares it between users by session priority
+    private final WeightedFairScheduler scheduler;
 
     private final ScheduledExecutorService shardReload;
     private final ScheduledExecutorService heartBeat;
+    private final ScheduledExecutorService sessionCompactor;
     private final String shardsDirectory;
     private final String shardTempDirectory;
 
@@ -103,6 +111,30 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
 
     private final Map<File, RandomAccessFile> lockFileMap = Maps.newHashMap();
 
+    private final IncrementalShardLoader shardLoader;
+    // by dataset, the infos the shard and dataset lists are built from, guarded by shardUpdateLock
+    private final Map<String, DatasetInfo> datasetInfos = Maps.newTreeMap();
+
+    // guards liveShards and every replacement of the shard map
+    private final Object shardUpdateLock = new Object();
+    private final Map<String, Map<String, LiveShard>> liveShards = Maps.newHashMap();
+    private final long maxLiveShardBytes;
+    private final long maxLiveShardAgeMillis;
+
+    private final CompactionPolicy compactionPolicy;
+
+    private final long globalOrdinalMaxTerms;
+    // by dataset, only modified by the ordinal builder thread
+    private final Map<String, AtomicSharedReference<GlobalStringOrdinals>> globalOrdinals =
+            new ConcurrentHashMap<String, AtomicSharedReference<GlobalStringOrdinals>>();
+    // rebuilds global ordinals after shard reloads so that reloads do not wait for them
+    private final ExecutorService ordinalBuilder;
+    private final AtomicBoolean ordinalUpdatePending = new AtomicBoolean(false);
+
+    // null if shared scans are disabled
+    private final SharedScans sharedScans;
+    private final boolean offHeapGroupLookups;
+
     /**
      * @param shardsDirectory
      *            root directory from which to read shards
@@ -123,6 +155,15 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                                    FlamdexReaderSource flamdexReaderFactory,
                                    LocalImhotepServiceConfig config) throws IOException {
         this.shardsDirectory = shardsDirectory;
+        this.maxLiveShardBytes = config.getMaxLiveShardBytes();
+        this.maxLiveShardAgeMillis = TimeUnit.SECONDS.toMillis(config.getMaxLiveShardAgeSeconds());
+        this.compactionPolicy = new CompactionPolicy(config.getCompactionMinGroupZeroFraction(),
+                                                     config.getCompactionMinDocs(),
+                                                     config.getCompactionMinScans());
+        this.globalOrdinalMaxTerms = config.getGlobalOrdinalMaxTerms();
+        this.sharedScans = config.getSharedScanJoinWindowMillis() > 0 ?
+                new SharedScans(config.getSharedScanJoinWindowMillis(), config.getSharedScanMaxBufferedDocs()) : null;
+        this.offHeapGroupLookups = config.isOffHeapGroupLookups();
 
         /* check if the temp dir exists, try to create it if it does not */
         final File tempDir = new File(shardTempDir);
@@ -148,12 +189,22 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         if (shardTempDir != null) {
             clearTempDir(shardTempDir);
         }
+        ordinalBuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "GlobalOrdinalBuilderThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        shardLoader = createShardLoader(config.getShardLoadThreads());
         updateShards();
 
         executor =
                 Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
                                                                         .setNameFormat("LocalImhotepServiceCore-Worker-%d")
                                                                         .build());
+        scheduler = new WeightedFairScheduler(config.getCpuSlots(), config.getSchedulingQuantumMillis(), TimeUnit.MILLISECONDS);
 
         shardReload = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
             @Override
@@ -172,14 +223,37 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                 return thread;
             }
         });
+        sessionCompactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "SessionCompactorThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         shardReload.scheduleAtFixedRate(new ShardReloader(),
                                         config.getUpdateShardsFrequencySeconds(),
                                         config.getUpdateShardsFrequencySeconds(),
                                         TimeUnit.SECONDS);
+        shardReload.scheduleAtFixedRate(new LiveShardFlusher(),
+                                        config.getLiveShardCheckFrequencySeconds(),
+                                        config.getLiveShardCheckFrequencySeconds(),
+                                        TimeUnit.SECONDS);
         heartBeat.scheduleAtFixedRate(new HeartBeatChecker(),
                                       config.getHeartBeatCheckFrequencySeconds(),
                                       config.getHeartBeatCheckFrequencySeconds(),
                                       TimeUnit.SECONDS);
+        heartBeat.scheduleAtFixedRate(new SnapshotCleaner(TimeUnit.SECONDS.toMillis(config.getSnapshotMaxAgeSeconds()),
+                                                          config.getMaxSnapshotBytes()),
+                                      config.getHeartBeatCheckFrequencySeconds(),
+                                      config.getHeartBeatCheckFrequencySeconds(),
+                                      TimeUnit.SECONDS);
+        if (config.getCompactionCheckFrequencySeconds() > 0) {
+            sessionCompactor.scheduleWithFixedDelay(new SessionCompactor(),
+                                                    config.getCompactionCheckFrequencySeconds(),
+                                                    config.getCompactionCheckFrequencySeconds(),
+                                                    TimeUnit.SECONDS);
+        }
 
         VarExporter.forNamespace(getClass().getSimpleName()).includeInGlobal().export(this, "");
     }
@@ -197,6 +271,19 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         }
     }
 
+    private class LiveShardFlusher implements Runnable {
+        @Override
+        public void run() {
+            try {
+                flushLiveShards(false);
+            } catch (RuntimeException e) {
+                log.error("error flushing live shards", e);
+            } catch (IOException e) {
+                log.error("error flushing live shards", e);
+            }
+        }
+    }
+
     private class HeartBeatChecker implements Runnable {
         @Override
         public void run() {
@@ -216,11 +303,37 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         }
     }
 
+    /**
+     * rebuilds the shards of sessions that have filtered out most of their docs, see {@link CompactionPolicy}
+     */
+    private class SessionCompactor implements Runnable {
+        @Override
+        public void run() {
+            for (final SharedReference<ImhotepSession> ref : getSessionManager().copySessionReferences()) {
+                try {
+                    final ImhotepSession session = ref.get();
+                    if (session instanceof MTImhotepMultiSession) {
+                        ((MTImhotepMultiSession) session).compactShards(compactionPolicy);
+                    }
+                } catch (RuntimeException e) {
+                    log.error("error compacting session", e);
+                } finally {
+                    Closeables2.closeQuietly(ref, log);
+                }
+            }
+        }
+    }
+
     @Override
     protected LocalSessionManager getSessionManager() {
         return sessionManager;
     }
 
+    @Override
+    protected File getSnapshotDirectory() {
+        return shardTempDirectory == null ? null : new File(shardTempDirectory, "snapshots");
+    }
+
     private void clearTempDir(String directory) throws IOException {
         final File tmpDir = new File(directory);
 
@@ -244,261 +357,402 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
 
     }
 
-    private void updateShards() throws IOException {
-        final String canonicalShardsDirectory = Files.getCanonicalPath(shardsDirectory);
-        if (canonicalShardsDirectory == null) {
-            shards = Maps.newHashMap();
-            shardList = Lists.newArrayList();
-            datasetList = Lists.newArrayList();
-            return;
+    void updateShards() throws IOException {
+        synchronized (shardUpdateLock) {
+            updateShardsLocked();
         }
+    }
 
-        Map<String, Map<String, AtomicSharedReference<Shard>>> oldShards = shards;
-        if (oldShards == null) {
-            oldShards = Maps.newHashMap();
+    private void updateShardsLocked() throws IOException {
+        if (shards == null) {
+            shards = Maps.newHashMap();
         }
+        shardLoader.reload();
+        // rebuilt from scratch once per reload to pick up the metrics loaded since the previous one
+        updateShardAndDatasetLists();
+        scheduleGlobalOrdinalsUpdate();
+    }
 
-        final Map<String, Map<String, AtomicSharedReference<Shard>>> newShards = Maps.newHashMap();
-        for (final File datasetDir : new File(canonicalShardsDirectory).listFiles()) {
-            if (!datasetDir.isDirectory()) {
-                continue;
+    private IncrementalShardLoader createShardLoader(int threads) {
+        return new IncrementalShardLoader(threads) {
+            @Override
+            protected String[] listDatasets() throws IOException {
+                final String canonicalShardsDirectory = Files.getCanonicalPath(shardsDirectory);
+                if (canonicalShardsDirectory == null) {
+                    return new String[0];
+                }
+                final String[] datasets = new File(canonicalShardsDirectory).list();
+                return datasets != null ? datasets : new String[0];
             }
 
-            final String dataset = datasetDir.getName();
-            Map<String, AtomicSharedReference<Shard>> oldDatasetShards = oldShards.get(dataset);
-            if (oldDatasetShards == null) {
-                oldDatasetShards = Maps.newHashMap();
+            @Override
+            protected String[] listShardDirs(String dataset) {
+                return new File(shardsDirectory, dataset).list();
             }
 
-            final Map<String, AtomicSharedReference<Shard>> newDatasetShards = Maps.newHashMap();
+            @Override
+            protected long lastModified(String dataset) {
+                return new File(shardsDirectory, dataset).lastModified();
+            }
 
-            for (final File shardDir : datasetDir.listFiles()) {
-                if (!shardDir.isDirectory()) {
-                    continue;
-                }
+            @Override
+            protected String getCanonicalShardDir(String dataset, String name) throws IOException {
+                final File shardDir = new File(new File(shardsDirectory, dataset), name);
+                return shardDir.isDirectory() ? shardDir.getCanonicalPath() : null;
+            }
 
-                try {
-                    final String shardId;
-                    final long shardVersion;
-                    final Matcher matcher = VERSION_PATTERN.matcher(shardDir.getName());
-                    if (matcher.matches()) {
-                        shardId = matcher.group(1);
-                        shardVersion = Long.parseLong(matcher.group(2));
-                    } else {
-                        shardId = shardDir.getName();
-                        shardVersion = 0L;
-                    }
+            @Override
+            protected Shard openShard(String dataset, ShardDir dir) throws IOException {
+                return openLocalShard(dataset, dir);
+            }
 
-                    final String canonicalShardDir = shardDir.getCanonicalPath();
-                    final ReadLock readLock;
-                    try {
-                        readLock = ReadLock.lock(lockFileMap, new File(canonicalShardDir));
-                    } catch (ReadLock.AlreadyOpenException e) {
-                        // already loaded
-                        if (!newDatasetShards.containsKey(shardId)) {
-                            if (!oldDatasetShards.containsKey(shardId)) {
-                                log.error("shard " + shardId
-                                        + " claims to be open but isn't referenced");
+            @Override
+            protected void publish(String dataset, Map<String, AtomicSharedReference<Shard>> datasetShards) {
+                publishDataset(dataset, datasetShards);
+            }
+        };
+    }
+
+    private Shard openLocalShard(final String dataset, final IncrementalShardLoader.ShardDir dir) throws IOException {
+        final ReadLock readLock;
+        try {
+            readLock = ReadLock.lock(lockFileMap, new File(dir.canonicalDir));
+        } catch (ReadLock.AlreadyOpenException e) {
+            log.error("shard " + dir.shardId + " in dataset " + dataset + " claims to be open but isn't referenced");
+            return null;
+        } catch (ReadLock.ShardDeletedException e) {
+            log.info("shard " + dir.name + " in dataset " + dataset
+                    + " was deleted before read lock could be acquired");
+            return null;
+        } catch (ReadLock.LockAquisitionException e) {
+            log.error("could not lock directory " + dir.canonicalDir, e);
+            return null;
+        }
+
+        final SharedReference<ReadLock> readLockRef = SharedReference.create(readLock);
+        try {
+            final ReloadableSharedReference.Loader<CachedFlamdexReader, IOException> loader =
+                    new ReloadableSharedReference.Loader<CachedFlamdexReader, IOException>() {
+                        @Override
+                        public CachedFlamdexReader load() throws IOException {
+                            final FlamdexReader flamdex =
+                                    flamdexReaderFactory.openReader(dir.canonicalDir);
+                            final SharedReference<ReadLock> copy = readLockRef.copy();
+                            if (flamdex instanceof RawFlamdexReader) {
+                                return new RawCachedFlamdexReader(
+                                                                  new MemoryReservationContext(
+                                                                                               memory),
+                                                                  (RawFlamdexReader) flamdex,
+                                                                  copy, dataset,
+                                                                  dir.name,
+                                                                  freeCache);
                             } else {
-                                newDatasetShards.put(shardId, oldDatasetShards.get(shardId));
+                                return new CachedFlamdexReader(
+                                                               new MemoryReservationContext(
+                                                                                            memory),
+                                                               flamdex, copy, dataset,
+                                                               dir.name,
+                                                               freeCache);
                             }
                         }
-                        continue;
-                    } catch (ReadLock.ShardDeletedException e) {
-                        log.info("shard " + shardDir.getName() + " in dataset " + dataset
-                                + " was deleted before read lock could be acquired");
-                        continue;
-                    } catch (ReadLock.LockAquisitionException e) {
-                        log.error("could not lock directory " + canonicalShardDir, e);
-                        continue;
-                    }
+                    };
+            return new Shard(ReloadableSharedReference.create(loader), readLockRef,
+                             dir.version, dir.canonicalDir, dataset, dir.shardId);
+        } catch (Throwable t) {
+            Closeables2.closeQuietly(readLockRef, log);
+            throw Throwables2.propagate(t, IOException.class);
+        }
+    }
 
-                    final SharedReference<ReadLock> readLockRef = SharedReference.create(readLock);
-                    final Shard newShard;
+    /**
+     * replaces the shards of a dataset with the ones just loaded from its directory and its live shards. called by
+     * the shard loader while holding shardUpdateLock
+     */
+    private void publishDataset(String dataset, Map<String, AtomicSharedReference<Shard>> diskShards) {
+        final Map<String, AtomicSharedReference<Shard>> newDatasetShards = Maps.newHashMap(diskShards);
+        addLiveShards(dataset, newDatasetShards);
 
-                    try {
-                        final ReloadableSharedReference.Loader<CachedFlamdexReader, IOException> loader =
-                                new ReloadableSharedReference.Loader<CachedFlamdexReader, IOException>() {
-                                    @Override
-                                    public CachedFlamdexReader load() throws IOException {
-                                        final FlamdexReader flamdex =
-                                                flamdexReaderFactory.openReader(canonicalShardDir);
-                                        final SharedReference<ReadLock> copy = readLockRef.copy();
-                                        if (flamdex instanceof RawFlamdexReader) {
-                                            return new RawCachedFlamdexReader(
-                                                                              new MemoryReservationContext(
-                                                                                                           memory),
-                                                                              (RawFlamdexReader) flamdex,
-                                                                              copy, dataset,
-                                                                              shardDir.getName(),
-                                                                              freeCache);
-                                        } else {
-                                            return new CachedFlamdexReader(
-                                                                           new MemoryReservationContext(
-                                                                                                        memory),
-                                                                           flamdex, copy, dataset,
-                                                                           shardDir.getName(),
-                                                                           freeCache);
-                                        }
-                                    }
-                                };
-                        newShard =
-                                new Shard(ReloadableSharedReference.create(loader), readLockRef,
-                                          shardVersion, canonicalShardDir, dataset, shardId);
-                    } catch (Throwable t) {
-                        Closeables2.closeQuietly(readLockRef, log);
-                        throw Throwables2.propagate(t, IOException.class);
-                    }
+        final Map<String, Map<String, AtomicSharedReference<Shard>>> newShards = Maps.newHashMap(shards);
+        if (newDatasetShards.size() > 0) {
+            newShards.put(dataset, newDatasetShards);
+        } else {
+            newShards.remove(dataset);
+        }
+        shards = newShards;
 
+        // the lists are built once all datasets are loaded when starting up
+        if (shardList != null) {
+            try {
+                updateDatasetInfo(dataset);
+            } catch (IOException e) {
+                log.error("error updating the shard list of dataset " + dataset, e);
+            }
+        }
+    }
+
+    private void scheduleGlobalOrdinalsUpdate() {
+        if (globalOrdinalMaxTerms <= 0) {
+            return;
+        }
+        // a reload during a rebuild schedules one more rebuild, further reloads are picked up by that one
+        if (ordinalUpdatePending.compareAndSet(false, true)) {
+            ordinalBuilder.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ordinalUpdatePending.set(false);
                     try {
-                        final AtomicSharedReference<Shard> shard;
-                        if (newDatasetShards.containsKey(shardId)) {
-                            shard = newDatasetShards.get(shardId);
-                            final SharedReference<Shard> current = shard.getCopy();
-                            try {
-                                if (current == null
-                                        || shardVersion > current.get().getShardVersion()) {
-                                    log.debug("loading shard " + shardId + " from "
-                                            + canonicalShardDir);
-                                    shard.set(newShard);
-                                } else {
-                                    Closeables2.closeQuietly(newShard, log);
-                                }
-                            } finally {
-                                Closeables2.closeQuietly(current, log);
-                            }
-                        } else if (oldDatasetShards.containsKey(shardId)) {
-                            shard = oldDatasetShards.get(shardId);
-                            final SharedReference<Shard> oldShard = shard.getCopy();
-                            try {
-                                if (shouldReloadShard(oldShard, canonicalShardDir, shardVersion)) {
-                                    log.debug("loading shard " + shardId + " from "
-                                            + canonicalShardDir);
-                                    shard.set(newShard);
-                                } else {
-                                    Closeables2.closeQuietly(newShard, log);
-                                }
-                            } finally {
-                                Closeables2.closeQuietly(oldShard, log);
-                            }
-                        } else {
-                            shard = AtomicSharedReference.create(newShard);
-                            log.debug("loading shard " + shardId + " from " + canonicalShardDir);
-                        }
-                        if (shard != null) {
-                            newDatasetShards.put(shardId, shard);
-                        }
-                    } catch (Throwable t) {
-                        Closeables2.closeQuietly(newShard, log);
-                        throw Throwables2.propagate(t, IOException.class);
+                        updateGlobalOrdinals(shards);
+                    } catch (RuntimeException e) {
+                        log.error("error updating global ordinals", e);
                     }
-
-                } catch (IOException e) {
-                    log.error("error loading shard at " + shardDir.getAbsolutePath(), e);
                 }
-            }
-
-            if (newDatasetShards.size() > 0) {
-                newShards.put(dataset, newDatasetShards);
-            }
+            });
+        }
+    }
 
-            for (final String shardId : oldDatasetShards.keySet()) {
-                if (!newDatasetShards.containsKey(shardId)) {
-                    try {
-                        oldDatasetShards.get(shardId).unset();
-                    } catch (IOException e) {
-                        log.error("error closing shard " + shardId, e);
+    /**
+     * rebuilds the global ordinals of every dataset whose shards on disk have changed. live shards change with
+     * every append so they are left out, and sessions that include one merge their terms as strings. sessions
+     * keep the ordinals they were opened with until they close, replaced ordinals release their memory then
+     */
+    private void updateGlobalOrdinals(Map<String, Map<String, AtomicSharedReference<Shard>>> newShards) {
+        for (final Map.Entry<String, Map<String, AtomicSharedReference<Shard>>> entry : newShards.entrySet()) {
+            final String dataset = entry.getKey();
+            final AtomicSharedReference<GlobalStringOrdinals> existing = globalOrdinals.get(dataset);
+            final Closer closer = Closer.create();
+            try {
+                final Map<ShardId, Shard> datasetShards = Maps.newHashMap();
+                for (final AtomicSharedReference<Shard> shardRef : entry.getValue().values()) {
+                    final SharedReference<Shard> ref = closer.register(shardRef.getCopy());
+                    if (ref != null && ref.get().getIndexDir() != null) {
+                        datasetShards.put(ref.get().getShardId(), ref.get());
+                    }
+                }
+                final SharedReference<GlobalStringOrdinals> old =
+                        existing == null ? null : closer.register(existing.getCopy());
+                if (old != null && old.get().getShards().equals(datasetShards.keySet())) {
+                    continue;
+                }
+                if (datasetShards.size() < 2) {
+                    if (existing != null) {
+                        existing.unset();
+                    }
+                    continue;
+                }
+                final Map<ShardId, FlamdexReader> readers = Maps.newHashMap();
+                for (final Map.Entry<ShardId, Shard> shard : datasetShards.entrySet()) {
+                    final SharedReference<CachedFlamdexReader> reader = closer.register(shard.getValue().getRef());
+                    if (reader == null) {
+                        throw new IOException("shard " + shard.getKey().getId() + " was closed");
                     }
+                    readers.put(shard.getKey(), reader.get());
                 }
+                final long start = System.currentTimeMillis();
+                final GlobalStringOrdinals ordinals = GlobalStringOrdinals.build(readers, globalOrdinalMaxTerms, memory);
+                if (existing != null) {
+                    existing.set(ordinals);
+                } else {
+                    globalOrdinals.put(dataset, AtomicSharedReference.create(ordinals));
+                }
+                log.info("built global ordinals for dataset " + dataset + " in "
+                        + (System.currentTimeMillis() - start) + " ms, " + ordinals.memoryUsed() + " bytes");
+            } catch (Throwable t) {
+                log.error("error building global ordinals for dataset " + dataset, t);
+            } finally {
+                Closeables2.closeQuietly(closer, log);
             }
         }
+        for (final Iterator<Map.Entry<String, AtomicSharedReference<GlobalStringOrdinals>>> it = globalOrdinals.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<String, AtomicSharedReference<GlobalStringOrdinals>> entry = it.next();
+            if (!newShards.containsKey(entry.getKey())) {
+                it.remove();
+                try {
+                    entry.getValue().unset();
+                } catch (IOException e) {
+                    log.error("error closing global ordinals of dataset " + entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    private void updateShardAndDatasetLists() throws IOException {
+        datasetInfos.clear();
+        for (final Map.Entry<String, Map<String, AtomicSharedReference<Shard>>> e : shards.entrySet()) {
+            datasetInfos.put(e.getKey(), buildDatasetInfo(e.getKey(), e.getValue()));
+        }
+        publishShardAndDatasetLists();
+    }
 
-        this.shards = newShards;
+    private void updateDatasetInfo(String dataset) throws IOException {
+        final Map<String, AtomicSharedReference<Shard>> datasetShards = shards.get(dataset);
+        if (datasetShards != null) {
+            datasetInfos.put(dataset, buildDatasetInfo(dataset, datasetShards));
+        } else {
+            datasetInfos.remove(dataset);
+        }
+        publishShardAndDatasetLists();
+    }
 
-        final List<ShardInfo> shardList = buildShardList();
+    private void publishShardAndDatasetLists() {
+        final List<ShardInfo> shardList = Lists.newArrayList();
+        for (final DatasetInfo datasetInfo : datasetInfos.values()) {
+            shardList.addAll(datasetInfo.getShardList());
+        }
         final List<ShardInfo> oldShardList = this.shardList;
         if (oldShardList == null || !oldShardList.equals(shardList)) {
             this.shardList = shardList;
         }
 
-        final List<DatasetInfo> datasetList = buildDatasetList();
+        final List<DatasetInfo> datasetList = Lists.newArrayList(datasetInfos.values());
         final List<DatasetInfo> oldDatasetList = this.datasetList;
         if (oldDatasetList == null || !oldDatasetList.equals(datasetList)) {
             this.datasetList = datasetList;
         }
     }
 
-    private static boolean shouldReloadShard(SharedReference<Shard> ref,
-                                             String canonicalShardDir,
-                                             long shardVersion) {
-        if (ref == null) {
-            return true;
+    /**
+     * Adds the live shards of a dataset to the shards loaded from disk. A sealed live shard is dropped once
+     * a copy on disk at least as new as it has been loaded, otherwise the live shard takes precedence.
+     */
+    private void addLiveShards(String dataset, Map<String, AtomicSharedReference<Shard>> datasetShards) {
+        final Map<String, LiveShard> datasetLiveShards = liveShards.get(dataset);
+        if (datasetLiveShards == null) {
+            return;
         }
-        final Shard oldReader = ref.get();
-        return shardVersion > oldReader.getShardVersion()
-                || (shardVersion == oldReader.getShardVersion() && (!canonicalShardDir.equals(oldReader.getIndexDir())));
-    }
-
-    private List<ShardInfo> buildShardList() throws IOException {
-        final Map<String, Map<String, AtomicSharedReference<Shard>>> localShards = shards;
-        final List<ShardInfo> ret = new ArrayList<ShardInfo>();
-        for (final Map<String, AtomicSharedReference<Shard>> map : localShards.values()) {
-            for (final String shardName : map.keySet()) {
-                final SharedReference<Shard> ref = map.get(shardName).getCopy();
+        for (final Iterator<LiveShard> it = datasetLiveShards.values().iterator(); it.hasNext(); ) {
+            final LiveShard live = it.next();
+            final AtomicSharedReference<Shard> liveReference = live.getReference();
+            final AtomicSharedReference<Shard> existing = datasetShards.get(live.getShardId());
+            if (existing != null && live.isSealed()) {
+                final SharedReference<Shard> current = existing.getCopy();
                 try {
-                    if (ref != null) {
-                        final Shard shard = ref.get();
-                        ret.add(new ShardInfo(shard.getDataset(), shardName,
-                                              shard.getLoadedMetrics(), shard.getNumDocs(),
-                                              shard.getShardVersion()));
+                    if (current != null && current.get().getIndexDir() != null
+                            && current.get().getShardVersion() >= live.getVersion()) {
+                        log.info("live shard " + live.getShardId() + " in dataset " + dataset
+                                + " replaced by " + current.get().getIndexDir());
+                        it.remove();
+                        live.releaseMemory(memory);
+                        if (existing != liveReference) {
+                            liveReference.unset();
+                        }
+                        continue;
                     }
+                } catch (IOException e) {
+                    log.error("error closing live shard " + live.getShardId(), e);
+                    continue;
                 } finally {
-                    Closeables2.closeQuietly(ref, log);
+                    Closeables2.closeQuietly(current, log);
                 }
             }
+            if (existing != null && existing != liveReference) {
+                try {
+                    existing.unset();
+                } catch (IOException e) {
+                    log.error("error closing shard " + live.getShardId(), e);
+                }
+            }
+            datasetShards.put(live.getShardId(), liveReference);
         }
-        Collections.sort(ret, new Comparator<ShardInfo>() {
+        if (datasetLiveShards.isEmpty()) {
+            liveShards.remove(dataset);
+        }
+    }
+
+    private static DatasetInfo buildDatasetInfo(String dataset, Map<String, AtomicSharedReference<Shard>> datasetShards)
+            throws IOException {
+        final List<ShardInfo> shardList = Lists.newArrayList();
+        final Set<String> intFields = Sets.newHashSet();
+        final Set<String> stringFields = Sets.newHashSet();
+        final Set<String> metrics = Sets.newHashSet();
+        for (final String shardName : datasetShards.keySet()) {
+            final SharedReference<Shard> ref = datasetShards.get(shardName).getCopy();
+            try {
+                if (ref != null) {
+                    final Shard shard = ref.get();
+                    shardList.add(new ShardInfo(shard.getDataset(), shardName,
+                                                shard.getLoadedMetrics(), shard.getNumDocs(),
+                                                shard.getShardVersion()));
+                    intFields.addAll(shard.getIntFields());
+                    stringFields.addAll(shard.getStringFields());
+                    metrics.addAll(shard.getAvailableMetrics());
+                }
+            } finally {
+                Closeables2.closeQuietly(ref, log);
+            }
+        }
+        Collections.sort(shardList, new Comparator<ShardInfo>() {
             @Override
             public int compare(ShardInfo o1, ShardInfo o2) {
-                final int c = o1.dataset.compareTo(o2.dataset);
-                if (c != 0) {
-                    return c;
-                }
                 return o1.shardId.compareTo(o2.shardId);
             }
         });
-        return ret;
+        return new DatasetInfo(dataset, shardList, intFields, stringFields, metrics);
     }
 
-    private List<DatasetInfo> buildDatasetList() throws IOException {
-        final Map<String, Map<String, AtomicSharedReference<Shard>>> localShards = shards;
-        final List<DatasetInfo> ret = Lists.newArrayList();
-        for (final Map.Entry<String, Map<String, AtomicSharedReference<Shard>>> e : localShards.entrySet()) {
-            final String dataset = e.getKey();
-            final Map<String, AtomicSharedReference<Shard>> map = e.getValue();
-            final List<ShardInfo> shardList = Lists.newArrayList();
-            final Set<String> intFields = Sets.newHashSet();
-            final Set<String> stringFields = Sets.newHashSet();
-            final Set<String> metrics = Sets.newHashSet();
-            for (final String shardName : map.keySet()) {
-                final SharedReference<Shard> ref = map.get(shardName).getCopy();
-                try {
-                    if (ref != null) {
-                        final Shard shard = ref.get();
-                        shardList.add(new ShardInfo(shard.getDataset(), shardName,
-                                                    shard.getLoadedMetrics(), shard.getNumDocs(),
-                                                    shard.getShardVersion()));
-                        intFields.addAll(shard.getIntFields());
-                        stringFields.addAll(shard.getStringFields());
-                        metrics.addAll(shard.getAvailableMetrics());
+    @Override
+    public void handleAppendToLiveShard(String dataset, String shardId, List<FlamdexDocument> documents)
+            throws IOException, ImhotepOutOfMemoryException {
+        final long now = System.currentTimeMillis();
+        synchronized (shardUpdateLock) {
+            Map<String, LiveShard> datasetLiveShards = liveShards.get(dataset);
+            if (datasetLiveShards == null) {
+                datasetLiveShards = Maps.newHashMap();
+                liveShards.put(dataset, datasetLiveShards);
+            }
+            LiveShard live = datasetLiveShards.get(shardId);
+            if (live == null) {
+                final Map<String, AtomicSharedReference<Shard>> datasetShards = shards.get(dataset);
+                if (datasetShards != null && datasetShards.containsKey(shardId)) {
+                    throw new IllegalArgumentException("shard " + shardId + " in dataset " + dataset
+                            + " is not a live shard");
+                }
+                live = new LiveShard(dataset, shardId, now);
+                live.append(documents, memory, now);
+                datasetLiveShards.put(shardId, live);
+
+                final Map<String, Map<String, AtomicSharedReference<Shard>>> newShards = Maps.newHashMap(shards);
+                final Map<String, AtomicSharedReference<Shard>> newDatasetShards = Maps.newHashMap();
+                if (datasetShards != null) {
+                    newDatasetShards.putAll(datasetShards);
+                }
+                newDatasetShards.put(shardId, live.getReference());
+                newShards.put(dataset, newDatasetShards);
+                shards = newShards;
+            } else {
+                live.append(documents, memory, now);
+            }
+            updateDatasetInfo(dataset);
+        }
+    }
+
+    /**
+     * Seals live shards that are too large or too old, writes every sealed live shard to the shards
+     * directory and reloads shards so that the copies on disk replace them.
+     * @param force seal every live shard regardless of its size and age
+     */
+    void flushLiveShards(boolean force) throws IOException {
+        final long now = System.currentTimeMillis();
+        final List<LiveShard> sealed = Lists.newArrayList();
+        synchronized (shardUpdateLock) {
+            for (final Map<String, LiveShard> datasetLiveShards : liveShards.values()) {
+                for (final LiveShard live : datasetLiveShards.values()) {
+                    if (force || live.shouldRollOver(maxLiveShardBytes, maxLiveShardAgeMillis, now)) {
+                        live.seal();
+                    }
+                    if (live.isSealed()) {
+                        sealed.add(live);
                     }
-                } finally {
-                    Closeables2.closeQuietly(ref, log);
                 }
             }
-            ret.add(new DatasetInfo(dataset, shardList, intFields, stringFields, metrics));
         }
-        return ret;
+        if (sealed.isEmpty()) {
+            return;
+        }
+        for (final LiveShard live : sealed) {
+            final File dir = live.writeTo(new File(shardsDirectory, live.getDataset()), new File(shardTempDirectory));
+            log.info("rolled over live shard " + live.getShardId() + " in dataset " + live.getDataset() + " to " + dir);
+        }
+        updateShards();
     }
 
     @Override
@@ -560,7 +814,8 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                                     final int mergeThreadLimit,
                                     final boolean optimizeGroupZeroLookups,
                                     String sessionId,
-                                    AtomicLong tempFileSizeBytesLeft) throws ImhotepOutOfMemoryException {
+                                    AtomicLong tempFileSizeBytesLeft,
+                                    int priority) throws ImhotepOutOfMemoryException {
         final Map<String, Map<String, AtomicSharedReference<Shard>>> localShards = this.shards;
         checkDatasetExists(localShards, dataset);
 
@@ -607,6 +862,7 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         final Map<ShardId, CachedFlamdexReaderReference> flamdexes = Maps.newHashMap();
         final ImhotepLocalSession[] localSessions;
         localSessions = new ImhotepLocalSession[shardRequestList.size()];
+        final ShardId[] sessionShardIds = new ShardId[shardRequestList.size()];
         try {
             for (int i = 0; i < shardRequestList.size(); ++i) {
                 final String shardId = shardRequestList.get(i);
@@ -615,12 +871,19 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                 final CachedFlamdexReaderReference cachedFlamdexReaderReference = pair.getSecond();
                 try {
                     flamdexes.put(pair.getFirst(), cachedFlamdexReaderReference);
+                    sessionShardIds[i] = pair.getFirst();
                     localSessions[i] =
                             new ImhotepLocalSession(cachedFlamdexReaderReference,
                                                     this.shardTempDirectory,
                                                     new MemoryReservationContext(memory),
                                                     optimizeGroupZeroLookups,
                                                     tempFileSizeBytesLeft);
+                    if (sharedScans != null) {
+                        localSessions[i].setSharedScans(sharedScans, cachedFlamdexReaderReference.getReader());
+                    }
+                    if (offHeapGroupLookups) {
+                        localSessions[i].useSessionArena();
+                    }
                 } catch (RuntimeException e) {
                     Closeables2.closeQuietly(cachedFlamdexReaderReference, log);
                     localSessions[i] = null;
@@ -631,8 +894,18 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                     throw e;
                 }
             }
-            final ImhotepSession session =
-                    new MTImhotepMultiSession(localSessions, new MemoryReservationContext(memory), executor, tempFileSizeBytesLeft);
+            final MTImhotepMultiSession session =
+                    new MTImhotepMultiSession(localSessions, sessionShardIds, new MemoryReservationContext(memory), executor,
+                                              scheduler.getFlow(username, priority), tempFileSizeBytesLeft);
+            final AtomicSharedReference<GlobalStringOrdinals> ordinalsRef = globalOrdinals.get(dataset);
+            final SharedReference<GlobalStringOrdinals> ordinals = ordinalsRef == null ? null : ordinalsRef.getCopy();
+            if (ordinals != null) {
+                if (ordinals.get().getShards().containsAll(Arrays.asList(sessionShardIds))) {
+                    session.setGlobalOrdinals(ordinals, sessionShardIds);
+                } else {
+                    Closeables2.closeQuietly(ordinals, log);
+                }
+            }
             getSessionManager().addSession(sessionId,
                                            session,
                                            flamdexes,
@@ -668,10 +941,19 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
 
     @Override
     public void close() {
+        // live shards only exist in memory, so write them out before going away
+        try {
+            flushLiveShards(true);
+        } catch (IOException e) {
+            log.error("unable to flush live shards on close, their documents are lost", e);
+        }
         super.close();
         executor.shutdownNow();
         shardReload.shutdown();
         heartBeat.shutdown();
+        sessionCompactor.shutdown();
+        ordinalBuilder.shutdownNow();
+        shardLoader.close();
     }
 
     @Export(name = "loaded-shard-count", doc = "number of loaded shards for each dataset", expand = true)
@@ -684,6 +966,36 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         return ret;
     }
 
+    @Export(name = "shard-reload-datasets", doc = "number of times the shards of a dataset were reloaded because its directory changed")
+    public long getShardReloadDatasets() {
+        return shardLoader.getDatasetsReloaded();
+    }
+
+    @Export(name = "shard-reload-opened-shards", doc = "number of shard directories opened by shard reloads")
+    public long getShardReloadOpenedShards() {
+        return shardLoader.getShardsOpened();
+    }
+
+    @Export(name = "shared-scans-running", doc = "number of shared term scans currently running")
+    public int getSharedScansRunning() {
+        return sharedScans != null ? sharedScans.getRunningScans() : 0;
+    }
+
+    @Export(name = "shared-scans-started", doc = "number of shared term scans started")
+    public long getSharedScansStarted() {
+        return sharedScans != null ? sharedScans.getScansStarted() : 0;
+    }
+
+    @Export(name = "shared-scan-cursors-attached", doc = "number of FTGS iterators that joined a shared term scan started by another session")
+    public long getSharedScanCursorsAttached() {
+        return sharedScans != null ? sharedScans.getCursorsAttached() : 0;
+    }
+
+    @Export(name = "shared-scan-cursors-detached", doc = "number of FTGS iterators that fell behind a shared term scan and continued on their own")
+    public long getSharedScanCursorsDetached() {
+        return sharedScans != null ? sharedScans.getCursorsDetached() : 0;
+    }
+
     private final AtomicInteger counter = new AtomicInteger(new Random().nextInt());
 
     private String generateSessionId() {
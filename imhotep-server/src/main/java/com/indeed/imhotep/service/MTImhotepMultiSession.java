@@ -15,21 +15,49 @@
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.indeed.util.core.Throwables2;
 import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.reference.SharedReference;
 import com.indeed.imhotep.AbstractImhotepMultiSession;
+import com.indeed.imhotep.FTGSSplitter;
 import com.indeed.imhotep.MemoryReservationContext;
+import com.indeed.imhotep.WeightedFairScheduler;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import com.indeed.imhotep.RawFTGSMerger;
+import com.indeed.imhotep.RequestSpan;
+import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.ImhotepSession;
+import com.indeed.imhotep.api.RawFTGSIterator;
+import com.indeed.imhotep.local.CompactionPolicy;
 import com.indeed.imhotep.local.ImhotepLocalSession;
 
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * @author jsgroth
@@ -38,28 +66,321 @@ class MTImhotepMultiSession extends AbstractImhotepMultiSession {
 
     private static final Logger log = Logger.getLogger(MTImhotepMultiSession.class);
 
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
     private final MemoryReservationContext memory;
 
     private final ExecutorService executor;
 
+    // schedules the per shard work of this session, or null to run it as soon as a thread is free
+    private final WeightedFairScheduler.Flow flow;
+
     private final Object closeLock = new Object();
     private boolean closed = false;
 
     private final long memoryClaimed;
-    
+
+    private final ImhotepLocalSession[] localSessions;
+
+    // shard id and version of each local session, or null if unknown
+    private final String[] shardIds;
+    private final long[] shardVersions;
+
+    // global ordinals of the dataset and the shard each local session is on, null if not every shard has them
+    private GlobalStringOrdinals globalOrdinals;
+    private SharedReference<GlobalStringOrdinals> globalOrdinalsRef;
+    private ShardId[] ordinalShardIds;
+    // splits of the FTGS merged by ordinal, shared by the getFTGSIteratorSplit calls of every daemon
+    private FTGSSplitter ftgsIteratorSplits;
+
+    MTImhotepMultiSession(final ImhotepLocalSession[] sessions,
+                          final MemoryReservationContext memory,
+                          final ExecutorService executor,
+                          final AtomicLong tempFileSizeBytesLeft) throws ImhotepOutOfMemoryException {
+        this(sessions, null, memory, executor, null, tempFileSizeBytesLeft);
+    }
 
     MTImhotepMultiSession(final ImhotepLocalSession[] sessions,
+                          @Nullable final ShardId[] shards,
                           final MemoryReservationContext memory,
                           final ExecutorService executor,
+                          @Nullable final WeightedFairScheduler.Flow flow,
                           final AtomicLong tempFileSizeBytesLeft) throws ImhotepOutOfMemoryException {
         super(sessions, tempFileSizeBytesLeft);
 
+        if (shards != null && shards.length != sessions.length) {
+            throw new IllegalArgumentException("expected " + sessions.length + " shard ids, got " + shards.length);
+        }
+        this.localSessions = sessions;
+        if (shards == null) {
+            shardIds = null;
+            shardVersions = null;
+        } else {
+            shardIds = new String[shards.length];
+            shardVersions = new long[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                shardIds[i] = shards[i].getId();
+                shardVersions[i] = shards[i].getShardVersion();
+            }
+        }
         this.memory = memory;
         this.executor = executor;
+        this.flow = flow;
         memoryClaimed = 0;
 
         if (!memory.claimMemory(memoryClaimed)) throw new ImhotepOutOfMemoryException();
     }
+
+    /**
+     * lets FTGS over string fields that have global ordinals merge the shards by ordinal, every session's shard must be
+     * in the ordinals. the session closes the reference when it closes
+     */
+    void setGlobalOrdinals(final SharedReference<GlobalStringOrdinals> globalOrdinals, final ShardId[] shards) {
+        if (shards.length != localSessions.length) {
+            Closeables2.closeQuietly(globalOrdinals, log);
+            throw new IllegalArgumentException("expected " + localSessions.length + " shards, got " + shards.length);
+        }
+        this.globalOrdinalsRef = globalOrdinals;
+        this.globalOrdinals = globalOrdinals.get();
+        this.ordinalShardIds = shards.clone();
+    }
+
+    /**
+     * the global terms of the requested string fields that can be merged by ordinal
+     */
+    private Map<String, byte[][]> getOrdinalFieldTerms(final String[] intFields, final String[] stringFields) {
+        final Map<String, byte[][]> fieldTerms = Maps.newHashMap();
+        if (globalOrdinals != null && localSessions.length > 1) {
+            final Set<String> intFieldSet = Sets.newHashSet(intFields);
+            for (final String field : stringFields) {
+                final byte[][] terms = globalOrdinals.getTerms(field);
+                // a field requested as both types would be ambiguous once merged as ints
+                if (terms != null && !intFieldSet.contains(field)) {
+                    fieldTerms.put(field, terms);
+                }
+            }
+        }
+        return fieldTerms;
+    }
+
+    @Override
+    public FTGSIterator getFTGSIterator(final String[] intFields, final String[] stringFields) {
+        final Map<String, byte[][]> fieldTerms = getOrdinalFieldTerms(intFields, stringFields);
+        if (fieldTerms.isEmpty()) {
+            return super.getFTGSIterator(intFields, stringFields);
+        }
+        return getOrdinalFTGSIterator(intFields, stringFields, fieldTerms);
+    }
+
+    /**
+     * splits the FTGS that the shards were merged into by ordinal, the way the local sessions split theirs, so that
+     * the daemon merges its shards by ordinal before the splits of all daemons are merged by term
+     */
+    @Override
+    public RawFTGSIterator getFTGSIteratorSplit(final String[] intFields, final String[] stringFields,
+                                                final int splitIndex, final int numSplits) {
+        final Map<String, byte[][]> fieldTerms = getOrdinalFieldTerms(intFields, stringFields);
+        if (fieldTerms.isEmpty()) {
+            return super.getFTGSIteratorSplit(intFields, stringFields, splitIndex, numSplits);
+        }
+        synchronized (this) {
+            if (ftgsIteratorSplits == null || ftgsIteratorSplits.isClosed()) {
+                try {
+                    // same prime as the local sessions so that every daemon sends a term to the same split
+                    ftgsIteratorSplits = new FTGSSplitter(getOrdinalFTGSIterator(intFields, stringFields, fieldTerms),
+                                                          numSplits, numStats, "getIteratorSplitsMultiSession",
+                                                          969168349, tempFileSizeBytesLeft);
+                } catch (IOException e) {
+                    throw Throwables.propagate(e);
+                }
+            }
+            return ftgsIteratorSplits.getFtgsIterators()[splitIndex];
+        }
+    }
+
+    private RawFTGSIterator getOrdinalFTGSIterator(final String[] intFields, final String[] stringFields,
+                                                   final Map<String, byte[][]> fieldTerms) {
+        final RawFTGSIterator[] iterators = new RawFTGSIterator[localSessions.length];
+        try {
+            execute(iterators, shardIndexes(), scheduled(new ThrowingFunction<Integer, RawFTGSIterator>() {
+                @Override
+                public RawFTGSIterator apply(Integer i) throws Exception {
+                    final ImhotepLocalSession session = localSessions[i];
+                    final FTGSIterator iterator;
+                    final Map<String, int[]> shardOrdinals;
+                    synchronized (session) {
+                        iterator = session.getFTGSIterator(intFields, stringFields);
+                        if (session.isIndexRebuilt()) {
+                            shardOrdinals = null;
+                        } else {
+                            shardOrdinals = Maps.newHashMap();
+                            for (final String field : fieldTerms.keySet()) {
+                                shardOrdinals.put(field, globalOrdinals.getShardOrdinals(field, ordinalShardIds[i]));
+                            }
+                        }
+                    }
+                    return persist(new StringToOrdinalFTGSIterator(iterator, fieldTerms, shardOrdinals));
+                }
+            }));
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        return new OrdinalToStringFTGSIterator(new RawFTGSMerger(Arrays.asList(iterators), numStats, null), fieldTerms);
+    }
+
+    /**
+     * gives back the memory the shards claimed for the sketches last returned, once their response has been built
+     */
+    void releaseGroupSketches() {
+        for (final ImhotepLocalSession session : localSessions) {
+            session.releaseSketchMemory();
+        }
+    }
+
+    /**
+     * writes a compressed snapshot of every shard's session state and the version of the shard into snapshotDir,
+     * which must not exist yet. nothing is left behind if the export fails
+     * @return the ids of the shards in the snapshot
+     */
+    List<String> exportSnapshot(final File snapshotDir) throws IOException, ImhotepOutOfMemoryException {
+        checkShardIds();
+        final File snapshotRoot = snapshotDir.getParentFile();
+        if (!snapshotRoot.isDirectory() && !snapshotRoot.mkdirs()) {
+            throw new IOException("unable to create snapshot directory " + snapshotRoot);
+        }
+        // creating the directory claims the snapshot id, so that concurrent exports can't overwrite each other
+        if (!snapshotDir.mkdir()) {
+            if (snapshotDir.exists()) {
+                throw new IllegalArgumentException("snapshot " + snapshotDir.getName() + " already exists");
+            }
+            throw new IOException("unable to create snapshot directory " + snapshotDir);
+        }
+        final Object[] nulls = new Object[localSessions.length];
+        boolean success = false;
+        try {
+            execute(nulls, shardIndexes(), scheduled(new ThrowingFunction<Integer, Object>() {
+                @Override
+                public Object apply(Integer i) throws Exception {
+                    final File tempFile = new File(snapshotDir, shardIds[i] + SNAPSHOT_SUFFIX + ".tmp");
+                    final OutputStream os = new DeflaterOutputStream(
+                            new FileOutputStream(tempFile), new Deflater(Deflater.BEST_SPEED), 65536);
+                    try {
+                        new DataOutputStream(os).writeLong(shardVersions[i]);
+                        localSessions[i].writeSnapshot(os);
+                    } finally {
+                        os.close();
+                    }
+                    if (!tempFile.renameTo(snapshotFile(snapshotDir, shardIds[i]))) {
+                        throw new IOException("unable to move " + tempFile + " into place");
+                    }
+                    return null;
+                }
+            }));
+            success = true;
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), ImhotepOutOfMemoryException.class);
+            throw Throwables2.propagate(e.getCause(), IOException.class);
+        } finally {
+            if (!success) {
+                deleteSnapshot(snapshotDir);
+            }
+        }
+        return Arrays.asList(shardIds);
+    }
+
+    static void deleteSnapshot(File snapshotDir) {
+        final File[] files = snapshotDir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (!file.delete()) {
+                    log.warn("unable to delete snapshot file " + file);
+                }
+            }
+        }
+        if (!snapshotDir.delete()) {
+            log.warn("unable to delete snapshot directory " + snapshotDir);
+        }
+    }
+
+    /**
+     * restores every shard's session state from a snapshot written by {@link #exportSnapshot}, which must have been
+     * taken of the same versions of the shards
+     */
+    void restoreSnapshot(final File snapshotDir) throws IOException, ImhotepOutOfMemoryException {
+        checkShardIds();
+        for (final String shardId : shardIds) {
+            if (!snapshotFile(snapshotDir, shardId).exists()) {
+                throw new FileNotFoundException("snapshot " + snapshotDir.getName() + " does not contain shard " + shardId);
+            }
+        }
+        final Object[] nulls = new Object[localSessions.length];
+        try {
+            execute(nulls, shardIndexes(), scheduled(new ThrowingFunction<Integer, Object>() {
+                @Override
+                public Object apply(Integer i) throws Exception {
+                    final InputStream is = new InflaterInputStream(
+                            new FileInputStream(snapshotFile(snapshotDir, shardIds[i])), new Inflater(), 65536);
+                    try {
+                        final long snapshotVersion = new DataInputStream(is).readLong();
+                        if (snapshotVersion != shardVersions[i]) {
+                            throw new IllegalArgumentException("snapshot " + snapshotDir.getName() + " was taken of version "
+                                    + snapshotVersion + " of shard " + shardIds[i] + ", not " + shardVersions[i]);
+                        }
+                        localSessions[i].restoreSnapshot(is);
+                    } finally {
+                        is.close();
+                    }
+                    return null;
+                }
+            }));
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            Throwables.propagateIfInstanceOf(cause, ImhotepOutOfMemoryException.class);
+            throw Throwables2.propagate(cause, IOException.class);
+        }
+        numStats = localSessions[0].getNumStats();
+    }
+
+    /**
+     * rebuilds the shards that the policy considers worth compacting, one at a time to bound the extra disk and memory used
+     * @return the number of shards rebuilt
+     */
+    int compactShards(final CompactionPolicy policy) {
+        int compacted = 0;
+        for (final ImhotepLocalSession session : localSessions) {
+            synchronized (closeLock) {
+                if (closed) {
+                    break;
+                }
+            }
+            try {
+                if (session.compactIfWorthwhile(policy)) {
+                    compacted++;
+                }
+            } catch (ImhotepOutOfMemoryException e) {
+                log.warn("not enough memory to compact session, skipping shard");
+            }
+        }
+        return compacted;
+    }
+
+    private void checkShardIds() {
+        if (shardIds == null) {
+            throw new UnsupportedOperationException("this session does not know its shard ids");
+        }
+    }
+
+    private Integer[] shardIndexes() {
+        final Integer[] indexes = new Integer[localSessions.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        return indexes;
+    }
+
+    private static File snapshotFile(File snapshotDir, String shardId) {
+        return new File(snapshotDir, shardId + SNAPSHOT_SUFFIX);
+    }
     
     @Override
     protected void preClose() {
@@ -71,6 +392,9 @@ class MTImhotepMultiSession extends AbstractImhotepMultiSession {
                     super.preClose();
                 } finally {
                     memory.releaseMemory(memoryClaimed);
+                    if (globalOrdinalsRef != null) {
+                        Closeables2.closeQuietly(globalOrdinalsRef, log);
+                    }
                     // don't want to shut down the executor since it is re-used
                 }
             }
@@ -85,14 +409,46 @@ class MTImhotepMultiSession extends AbstractImhotepMultiSession {
         Closeables2.closeQuietly(memory, log);
     }
 
+    @Override
+    protected <T> void executeSessions(final T[] ret, final ThrowingFunction<? super ImhotepSession, ? extends T> function) throws ExecutionException {
+        super.executeSessions(ret, this.<ImhotepSession, T>scheduled(function));
+    }
+
+    /**
+     * work on a single shard waits for a slot from the scheduler, other tasks such as merging splits from
+     * other daemons mostly wait on the network and run unscheduled
+     */
+    private <E, T> ThrowingFunction<E, T> scheduled(final ThrowingFunction<? super E, ? extends T> function) {
+        return new ThrowingFunction<E, T>() {
+            @Override
+            public T apply(E e) throws Exception {
+                final boolean acquired = flow != null && flow.acquire();
+                try {
+                    return function.apply(e);
+                } finally {
+                    if (acquired) {
+                        flow.release();
+                    }
+                }
+            }
+        };
+    }
+
     @Override
     protected <E, T> void execute(final T[] ret, E[] things, final ThrowingFunction<? super E, ? extends T> function) throws ExecutionException {
         final List<Future<T>> futures = Lists.newArrayListWithCapacity(things.length);
+        // the work is charged to the request that started it
+        final RequestSpan span = RequestSpan.current();
         for (final E thing : things) {
             futures.add(executor.submit(new Callable<T>() {
                 @Override
                 public T call() throws Exception {
-                    return function.apply(thing);
+                    final RequestSpan previous = RequestSpan.attach(span);
+                    try {
+                        return function.apply(thing);
+                    } finally {
+                        RequestSpan.attach(previous);
+                    }
                 }
             }));
         }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.base.Charsets;
+import com.indeed.imhotep.api.RawFTGSIterator;
+
+import java.util.Map;
+
+/**
+ * Turns the global ordinals streamed by {@link StringToOrdinalFTGSIterator} back into string terms.
+ */
+final class OrdinalToStringFTGSIterator implements RawFTGSIterator {
+    private final RawFTGSIterator iterator;
+    private final Map<String, byte[][]> fieldTerms;
+
+    private byte[][] currentTerms;
+    private byte[] currentTerm;
+    private String termStringVal;
+
+    OrdinalToStringFTGSIterator(RawFTGSIterator iterator, Map<String, byte[][]> fieldTerms) {
+        this.iterator = iterator;
+        this.fieldTerms = fieldTerms;
+    }
+
+    @Override
+    public boolean nextField() {
+        if (!iterator.nextField()) {
+            currentTerms = null;
+            return false;
+        }
+        currentTerms = iterator.fieldIsIntType() ? fieldTerms.get(iterator.fieldName()) : null;
+        return true;
+    }
+
+    @Override
+    public String fieldName() {
+        return iterator.fieldName();
+    }
+
+    @Override
+    public boolean fieldIsIntType() {
+        return currentTerms == null && iterator.fieldIsIntType();
+    }
+
+    @Override
+    public boolean nextTerm() {
+        if (!iterator.nextTerm()) {
+            return false;
+        }
+        if (currentTerms != null) {
+            currentTerm = currentTerms[(int) iterator.termIntVal()];
+            termStringVal = null;
+        }
+        return true;
+    }
+
+    @Override
+    public long termDocFreq() {
+        return iterator.termDocFreq();
+    }
+
+    @Override
+    public long termIntVal() {
+        return iterator.termIntVal();
+    }
+
+    @Override
+    public String termStringVal() {
+        if (currentTerms == null) {
+            return iterator.termStringVal();
+        }
+        if (termStringVal == null) {
+            termStringVal = new String(currentTerm, Charsets.UTF_8);
+        }
+        return termStringVal;
+    }
+
+    @Override
+    public byte[] termStringBytes() {
+        return currentTerms != null ? currentTerm : iterator.termStringBytes();
+    }
+
+    @Override
+    public int termStringLength() {
+        return currentTerms != null ? currentTerm.length : iterator.termStringLength();
+    }
+
+    @Override
+    public boolean nextGroup() {
+        return iterator.nextGroup();
+    }
+
+    @Override
+    public int group() {
+        return iterator.group();
+    }
+
+    @Override
+    public void groupStats(long[] stats) {
+        iterator.groupStats(stats);
+    }
+
+    @Override
+    public void close() {
+        iterator.close();
+    }
+}
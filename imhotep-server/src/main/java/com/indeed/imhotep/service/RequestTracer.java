@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.util.varexport.Export;
+import com.indeed.util.varexport.VarExporter;
+import com.indeed.imhotep.ImhotepPerformanceStats;
+import com.indeed.imhotep.LatencyHistogram;
+import com.indeed.imhotep.RequestSpan;
+import com.indeed.imhotep.protobuf.ImhotepRequest;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps latency histograms and totals for every request type served by an {@link ImhotepDaemon}, and the spans of the
+ * most recent requests of each session.
+ */
+public final class RequestTracer {
+    private static final Logger log = Logger.getLogger(RequestTracer.class);
+
+    private static final int SPANS_PER_SESSION = 64;
+    private static final int MAX_TRACED_SESSIONS = 256;
+    private static final int RECENT_SPANS = 256;
+
+    /**
+     * lets a metrics registry record every request as it finishes, called on the thread that served the request
+     */
+    public interface Listener {
+        void requestFinished(RequestSpan span);
+    }
+
+    private final Map<ImhotepRequest.RequestType, Operation> operations;
+
+    // guarded by itself
+    private final ArrayDeque<RequestSpan> recentSpans = new ArrayDeque<RequestSpan>();
+    // guarded by recentSpans, the least recently used session is forgotten first
+    private final Map<String, ArrayDeque<RequestSpan>> sessionSpans =
+            new LinkedHashMap<String, ArrayDeque<RequestSpan>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ArrayDeque<RequestSpan>> eldest) {
+                    return size() > MAX_TRACED_SESSIONS;
+                }
+            };
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    public RequestTracer() {
+        // every type is added up front so that recording never has to lock the map
+        final Map<ImhotepRequest.RequestType, Operation> operations =
+                new EnumMap<ImhotepRequest.RequestType, Operation>(ImhotepRequest.RequestType.class);
+        for (final ImhotepRequest.RequestType type : ImhotepRequest.RequestType.values()) {
+            operations.put(type, new Operation());
+        }
+        this.operations = operations;
+        VarExporter.forNamespace(getClass().getSimpleName()).includeInGlobal().export(this, "");
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * starts the span of a request and attaches it to the calling thread
+     */
+    RequestSpan start(ImhotepRequest request) {
+        final RequestSpan span = new RequestSpan(request.getRequestType().name(),
+                request.hasSessionId() ? request.getSessionId() : null);
+        RequestSpan.attach(span);
+        return span;
+    }
+
+    /**
+     * finishes the span of a request and detaches it from the calling thread
+     */
+    void finish(ImhotepRequest.RequestType type, RequestSpan span, long bytesIn, long bytesOut, long networkNanos, boolean error) {
+        RequestSpan.attach(null);
+        span.finish(bytesIn, bytesOut, networkNanos, error);
+        operations.get(type).record(span);
+        synchronized (recentSpans) {
+            add(recentSpans, span, RECENT_SPANS);
+            if (span.getSessionId() != null) {
+                ArrayDeque<RequestSpan> spans = sessionSpans.get(span.getSessionId());
+                if (spans == null) {
+                    spans = new ArrayDeque<RequestSpan>();
+                    sessionSpans.put(span.getSessionId(), spans);
+                }
+                add(spans, span, SPANS_PER_SESSION);
+            }
+        }
+        for (final Listener listener : listeners) {
+            try {
+                listener.requestFinished(span);
+            } catch (RuntimeException e) {
+                log.error("error in request listener " + listener, e);
+            }
+        }
+    }
+
+    private static void add(ArrayDeque<RequestSpan> spans, RequestSpan span, int limit) {
+        if (spans.size() >= limit) {
+            spans.removeFirst();
+        }
+        spans.addLast(span);
+    }
+
+    /**
+     * @param sessionId if not null only the spans of this session are included
+     */
+    public ImhotepPerformanceStats getStats(@Nullable String sessionId) {
+        final List<ImhotepPerformanceStats.OperationStats> operationStats = Lists.newArrayList();
+        for (final Map.Entry<ImhotepRequest.RequestType, Operation> entry : operations.entrySet()) {
+            if (entry.getValue().latency.getCount() > 0) {
+                operationStats.add(entry.getValue().toStats(entry.getKey().name()));
+            }
+        }
+        final List<RequestSpan> spans;
+        synchronized (recentSpans) {
+            if (sessionId == null) {
+                spans = Lists.newArrayList(recentSpans);
+            } else {
+                final ArrayDeque<RequestSpan> session = sessionSpans.get(sessionId);
+                spans = session == null ? Lists.<RequestSpan>newArrayList() : Lists.newArrayList(session);
+            }
+        }
+        return new ImhotepPerformanceStats(operationStats, spans);
+    }
+
+    @Export(name = "request-count", doc = "requests served by type")
+    public Map<String, Long> getRequestCounts() {
+        final Map<String, Long> ret = Maps.newTreeMap();
+        for (final Map.Entry<ImhotepRequest.RequestType, Operation> entry : operations.entrySet()) {
+            final long count = entry.getValue().latency.getCount();
+            if (count > 0) {
+                ret.put(entry.getKey().name(), count);
+            }
+        }
+        return ret;
+    }
+
+    @Export(name = "request-latency-p50-micros", doc = "median request latency by type in microseconds")
+    public Map<String, Long> getMedianLatencies() {
+        return getLatencies(50);
+    }
+
+    @Export(name = "request-latency-p99-micros", doc = "99th percentile request latency by type in microseconds")
+    public Map<String, Long> getP99Latencies() {
+        return getLatencies(99);
+    }
+
+    private Map<String, Long> getLatencies(double percentile) {
+        final Map<String, Long> ret = Maps.newTreeMap();
+        for (final Map.Entry<ImhotepRequest.RequestType, Operation> entry : operations.entrySet()) {
+            final LatencyHistogram latency = entry.getValue().latency;
+            if (latency.getCount() > 0) {
+                ret.put(entry.getKey().name(), latency.getPercentileMicros(percentile));
+            }
+        }
+        return ret;
+    }
+
+    private static final class Operation {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final AtomicLong docsScanned = new AtomicLong();
+        final AtomicLong spillBytes = new AtomicLong();
+
+        void record(RequestSpan span) {
+            if (span.isError()) {
+                errors.incrementAndGet();
+            }
+            bytesIn.addAndGet(span.getBytesIn());
+            bytesOut.addAndGet(span.getBytesOut());
+            docsScanned.addAndGet(span.getDocsScanned());
+            spillBytes.addAndGet(span.getSpillBytes());
+            latency.record(span.getDurationMicros());
+        }
+
+        ImhotepPerformanceStats.OperationStats toStats(String requestType) {
+            final LatencyHistogram copy = new LatencyHistogram();
+            copy.add(latency);
+            return new ImhotepPerformanceStats.OperationStats(requestType, copy.getCount(), errors.get(), bytesIn.get(),
+                    bytesOut.get(), docsScanned.get(), spillBytes.get(), copy);
+        }
+    }
+}
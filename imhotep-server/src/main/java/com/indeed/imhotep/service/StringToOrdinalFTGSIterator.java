@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.base.Charsets;
+import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.RawFTGSIterator;
+
+import java.util.Map;
+
+/**
+ * Presents the string fields of a shard's FTGS that have global ordinals as int fields whose terms are the
+ * ordinals, so that the FTGS of many shards can be merged by comparing ints.
+ *
+ * When the shard's ordinals are known the ordinal of each term is looked up by its position in the shard's
+ * term dictionary, which relies on the wrapped iterator visiting every term of the field. Otherwise each term
+ * is searched for in the field's global terms.
+ */
+final class StringToOrdinalFTGSIterator implements FTGSIterator {
+    private final FTGSIterator iterator;
+    private final Map<String, byte[][]> fieldTerms;
+    // ordinal of each of the shard's terms by field, or null to search the global terms
+    private final Map<String, int[]> shardOrdinals;
+
+    private byte[][] currentTerms;
+    private int[] currentOrdinals;
+    private int termIndex;
+    private int ordinal;
+
+    StringToOrdinalFTGSIterator(FTGSIterator iterator, Map<String, byte[][]> fieldTerms, Map<String, int[]> shardOrdinals) {
+        this.iterator = iterator;
+        this.fieldTerms = fieldTerms;
+        this.shardOrdinals = shardOrdinals;
+    }
+
+    @Override
+    public boolean nextField() {
+        if (!iterator.nextField()) {
+            currentTerms = null;
+            return false;
+        }
+        currentTerms = iterator.fieldIsIntType() ? null : fieldTerms.get(iterator.fieldName());
+        currentOrdinals = currentTerms == null || shardOrdinals == null ? null : shardOrdinals.get(iterator.fieldName());
+        termIndex = 0;
+        ordinal = -1;
+        return true;
+    }
+
+    @Override
+    public String fieldName() {
+        return iterator.fieldName();
+    }
+
+    @Override
+    public boolean fieldIsIntType() {
+        return currentTerms != null || iterator.fieldIsIntType();
+    }
+
+    @Override
+    public boolean nextTerm() {
+        if (!iterator.nextTerm()) {
+            return false;
+        }
+        if (currentTerms != null) {
+            if (currentOrdinals != null) {
+                if (termIndex >= currentOrdinals.length) {
+                    throw new IllegalStateException("field " + iterator.fieldName() + " has more terms than its global ordinals");
+                }
+                ordinal = currentOrdinals[termIndex++];
+            } else {
+                ordinal = findOrdinal();
+            }
+        }
+        return true;
+    }
+
+    private int findOrdinal() {
+        final byte[] term;
+        final int termLength;
+        if (iterator instanceof RawFTGSIterator) {
+            term = ((RawFTGSIterator) iterator).termStringBytes();
+            termLength = ((RawFTGSIterator) iterator).termStringLength();
+        } else {
+            term = iterator.termStringVal().getBytes(Charsets.UTF_8);
+            termLength = term.length;
+        }
+        final int found = GlobalStringOrdinals.findOrdinal(currentTerms, ordinal + 1, term, termLength);
+        if (found < 0) {
+            throw new IllegalStateException("term of field " + iterator.fieldName() + " is missing from its global ordinals");
+        }
+        return found;
+    }
+
+    @Override
+    public long termDocFreq() {
+        return iterator.termDocFreq();
+    }
+
+    @Override
+    public long termIntVal() {
+        return currentTerms != null ? ordinal : iterator.termIntVal();
+    }
+
+    @Override
+    public String termStringVal() {
+        return iterator.termStringVal();
+    }
+
+    @Override
+    public boolean nextGroup() {
+        return iterator.nextGroup();
+    }
+
+    @Override
+    public int group() {
+        return iterator.group();
+    }
+
+    @Override
+    public void groupStats(long[] stats) {
+        iterator.groupStats(stats);
+    }
+
+    @Override
+    public void close() {
+        iterator.close();
+    }
+}
@@ -434,4 +434,87 @@ public class TestMemoryFlamdex {
         assertEquals(1, iter.docFreq());
         assertFalse(iter.next());
     }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        final MemoryFlamdex fdx = new MemoryFlamdex();
+        final FlamdexDocument doc = new FlamdexDocument();
+        doc.setIntField("if1", 1);
+        doc.setStringField("sf1", "a");
+        fdx.addDocument(doc);
+
+        final MemoryFlamdex snapshot = fdx.snapshot();
+        fdx.addDocument(doc);
+        doc.setIntField("if1", 2);
+        doc.setStringField("sf1", "b");
+        fdx.addDocument(doc);
+
+        assertEquals(1, snapshot.getNumDocs());
+        final IntTermIterator intIter = snapshot.getIntTermIterator("if1");
+        assertTrue(intIter.next());
+        assertEquals(1, intIter.term());
+        assertEquals(1, intIter.docFreq());
+        assertFalse(intIter.next());
+        intIter.close();
+        final StringTermIterator stringIter = snapshot.getStringTermIterator("sf1");
+        assertTrue(stringIter.next());
+        assertEquals("a", stringIter.term());
+        assertEquals(1, stringIter.docFreq());
+        assertFalse(stringIter.next());
+        stringIter.close();
+
+        assertEquals(3, fdx.getNumDocs());
+        final IntTermIterator iter = fdx.getIntTermIterator("if1");
+        final DocIdStream dis = fdx.getDocIdStream();
+        final int[] buf = new int[64];
+        assertTrue(iter.next());
+        assertEquals(2, iter.docFreq());
+        dis.reset(iter);
+        assertEquals(2, dis.fillDocIdBuffer(buf));
+        assertArrayEquals(new int[]{0, 1}, Arrays.copyOf(buf, 2));
+        assertTrue(iter.next());
+        assertEquals(2, iter.term());
+        assertFalse(iter.next());
+        dis.close();
+        iter.close();
+    }
+
+    @Test
+    public void testSnapshotSharesUnchangedFields() throws IOException {
+        final MemoryFlamdex fdx = new MemoryFlamdex();
+        final FlamdexDocument doc = new FlamdexDocument();
+        doc.setIntField("if1", 1);
+        doc.setStringField("sf1", "a");
+        fdx.addDocument(doc);
+        final MemoryFlamdex first = fdx.snapshot();
+
+        final FlamdexDocument intOnly = new FlamdexDocument();
+        intOnly.setIntField("if1", 2);
+        fdx.addDocument(intOnly);
+        final MemoryFlamdex second = fdx.snapshot();
+
+        assertEquals(2, second.getNumDocs());
+        final IntTermIterator intIter = second.getIntTermIterator("if1");
+        assertTrue(intIter.next());
+        assertEquals(1, intIter.term());
+        assertTrue(intIter.next());
+        assertEquals(2, intIter.term());
+        assertFalse(intIter.next());
+        intIter.close();
+        final StringTermIterator stringIter = second.getStringTermIterator("sf1");
+        assertTrue(stringIter.next());
+        assertEquals("a", stringIter.term());
+        assertEquals(1, stringIter.docFreq());
+        assertFalse(stringIter.next());
+        stringIter.close();
+
+        final IntTermIterator firstIter = first.getIntTermIterator("if1");
+        assertTrue(firstIter.next());
+        assertEquals(1, firstIter.term());
+        assertFalse(firstIter.next());
+        firstIter.close();
+
+        assertTrue(fdx.getSnapshotMemoryUsageEstimate() > 0);
+        assertTrue(MemoryFlamdex.estimateMemoryUsage(doc) > MemoryFlamdex.estimateMemoryUsage(intOnly));
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.datastruct;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class TestCompressedBitSet extends TestCase {
+    private static final int SIZE = 300000;
+
+    // sparse in even chunks and dense in odd chunks so that both container types are used
+    private static FastBitSet randomBits(Random rand) {
+        final FastBitSet ret = new FastBitSet(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            final int oneIn = ((i >>> 16) & 1) == 0 ? 1000 : 3;
+            if (rand.nextInt(oneIn) == 0) {
+                ret.set(i);
+            }
+        }
+        return ret;
+    }
+
+    private static CompressedBitSet compress(FastBitSet bits) {
+        final CompressedBitSet ret = new CompressedBitSet(bits.size());
+        for (int i = bits.size() - 1; i >= 0; i--) {
+            if (bits.get(i)) {
+                ret.set(i);
+            }
+        }
+        return ret;
+    }
+
+    private static void assertSameBits(FastBitSet expected, CompressedBitSet actual) {
+        assertEquals(expected.cardinality(), actual.cardinality());
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static void assertSameBits(FastBitSet expected, FastBitSet actual) {
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    public void testSetAndGet() {
+        final FastBitSet bits = randomBits(new Random(0));
+        assertSameBits(bits, compress(bits));
+    }
+
+    public void testCompressedOperations() {
+        final Random rand = new Random(1);
+        final FastBitSet a = randomBits(rand);
+        final FastBitSet b = randomBits(rand);
+
+        final CompressedBitSet and = compress(a);
+        and.and(compress(b));
+        final FastBitSet expectedAnd = randomBits(new Random(1));
+        expectedAnd.and(b);
+        assertSameBits(expectedAnd, and);
+
+        final CompressedBitSet or = compress(a);
+        final CompressedBitSet orArg = compress(b);
+        or.or(orArg);
+        final FastBitSet expectedOr = randomBits(new Random(1));
+        expectedOr.or(b);
+        assertSameBits(expectedOr, or);
+        assertSameBits(b, orArg);
+
+        final CompressedBitSet andNot = compress(a);
+        andNot.andNot(compress(b));
+        final FastBitSet expectedAndNot = randomBits(new Random(1));
+        expectedAndNot.and(b);
+        expectedAndNot.xor(a);
+        assertSameBits(expectedAndNot, andNot);
+
+        final CompressedBitSet inverted = compress(a);
+        inverted.invertAll();
+        assertEquals(SIZE - a.cardinality(), inverted.cardinality());
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals(!a.get(i), inverted.get(i));
+        }
+    }
+
+    public void testMixedOperations() {
+        final Random rand = new Random(2);
+        final FastBitSet a = randomBits(rand);
+        final FastBitSet b = randomBits(rand);
+        final CompressedBitSet compressedB = compress(b);
+
+        final FastBitSet and = randomBits(new Random(2));
+        and.and(compressedB);
+        final FastBitSet expectedAnd = randomBits(new Random(2));
+        expectedAnd.and(b);
+        assertSameBits(expectedAnd, and);
+
+        final FastBitSet or = randomBits(new Random(2));
+        or.or(compressedB);
+        final FastBitSet expectedOr = randomBits(new Random(2));
+        expectedOr.or(b);
+        assertSameBits(expectedOr, or);
+
+        final FastBitSet andNot = randomBits(new Random(2));
+        andNot.andNot(compressedB);
+        final FastBitSet expectedAndNot = randomBits(new Random(2));
+        expectedAndNot.and(b);
+        expectedAndNot.xor(a);
+        assertSameBits(expectedAndNot, andNot);
+
+        final CompressedBitSet compressedAnd = compress(a);
+        compressedAnd.and(b);
+        assertSameBits(expectedAnd, compressedAnd);
+
+        final CompressedBitSet compressedOr = compress(a);
+        compressedOr.or(b);
+        assertSameBits(expectedOr, compressedOr);
+    }
+
+    public void testMemoryUsage() {
+        final CompressedBitSet bits = new CompressedBitSet(50000000);
+        for (int i = 0; i < 50000000; i += 1000) {
+            bits.set(i);
+        }
+        assertTrue(bits.memoryUsage() <= CompressedBitSet.maxMemoryUsage(50000000, 50000));
+        assertTrue(bits.memoryUsage() * 10 < FastBitSet.calculateMemoryUsage(50000000));
+        assertTrue(CompressedBitSet.isSparse(50000000, 50000));
+        assertFalse(CompressedBitSet.isSparse(50000000, 25000000));
+    }
+}
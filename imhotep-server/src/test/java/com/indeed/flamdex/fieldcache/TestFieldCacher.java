@@ -27,8 +27,10 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -106,11 +108,196 @@ public class TestFieldCacher {
         }
     }
 
+    @Test
+    public void testPackedFieldCacher() throws IOException {
+        final int numDocs = 100;
+        final long base = 1400000000L;
+        MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("f"), Collections.<String>emptyList(), Arrays.asList("f"), numDocs);
+        Map<Long, List<Integer>> termDocs = new TreeMap<Long, List<Integer>>();
+        long[] cache = new long[numDocs];
+        for (int doc = 0; doc < numDocs; ++doc) {
+            // every tenth doc has no term and is cached as 0
+            if (doc % 10 == 0) continue;
+            long term = doc == 1 ? base : doc == 2 ? base + 1000 : base + rand.nextInt(1001);
+            if (!termDocs.containsKey(term)) {
+                termDocs.put(term, new ArrayList<Integer>());
+            }
+            termDocs.get(term).add(doc);
+            cache[doc] = term;
+        }
+        for (Map.Entry<Long, List<Integer>> e : termDocs.entrySet()) {
+            r.addIntTerm("f", e.getKey(), e.getValue());
+        }
+
+        IntFieldCacher intFieldCacher = FieldCacher.getCompactCacherForField("f", r);
+        assertTrue(intFieldCacher instanceof PackedFieldCacher);
+        PackedFieldCacher fieldCacher = (PackedFieldCacher) intFieldCacher;
+        assertEquals(10, fieldCacher.getBitsPerValue());
+        // 1000 bits in 16 longs, instead of 400 bytes as an int[]
+        assertEquals(128, fieldCacher.memoryRequired(numDocs));
+        UnsortedIntTermDocIterator iterator = UnsortedIntTermDocIteratorImpl.create(r, "f");
+        IntValueLookup ivl = fieldCacher.newFieldCache(iterator, numDocs);
+        iterator.close();
+        assertEquals(0, ivl.getMin());
+        assertEquals(base + 1000, ivl.getMax());
+        assertEquals(128, ivl.memoryUsed());
+        verifyCache(cache, ivl);
+
+        String tempDir = Files.getTempDirectory("asdf", "");
+        for (int x = 0; x < 3; ++x) {
+            assertEquals(x > 0, new File(tempDir, fieldCacher.getMMapFileName("f")).exists());
+            iterator = UnsortedIntTermDocIteratorImpl.create(r, "f");
+            IntValueLookup mmivl = fieldCacher.newMMapFieldCache(iterator, numDocs, "f", tempDir);
+            iterator.close();
+            verifyCache(cache, mmivl);
+            mmivl.close();
+        }
+        Files.delete(tempDir);
+    }
+
+    @Test
+    public void testSortedColumnFieldCacher() throws IOException {
+        final int numDocs = 10000;
+        final long base = 1400000000L;
+        MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("f"), Collections.<String>emptyList(), Arrays.asList("f"), numDocs);
+        Map<Long, List<Integer>> termDocs = new TreeMap<Long, List<Integer>>();
+        long[] cache = new long[numDocs];
+        long term = base;
+        for (int doc = 0; doc < numDocs; ++doc) {
+            // a few docs without a term in the middle of the column
+            if (doc >= 5000 && doc < 5005) continue;
+            term += rand.nextInt(3);
+            if (!termDocs.containsKey(term)) {
+                termDocs.put(term, new ArrayList<Integer>());
+            }
+            termDocs.get(term).add(doc);
+            cache[doc] = term;
+        }
+        for (Map.Entry<Long, List<Integer>> e : termDocs.entrySet()) {
+            r.addIntTerm("f", e.getKey(), e.getValue());
+        }
+
+        IntFieldCacher intFieldCacher = FieldCacher.getCompactCacherForField("f", r);
+        assertTrue(intFieldCacher instanceof SortedColumnFieldCacher);
+        SortedColumnFieldCacher fieldCacher = (SortedColumnFieldCacher) intFieldCacher;
+        assertEquals(numDocs + 12L * fieldCacher.getNumRuns(), fieldCacher.memoryRequired(numDocs));
+        UnsortedIntTermDocIterator iterator = UnsortedIntTermDocIteratorImpl.create(r, "f");
+        IntValueLookup ivl = fieldCacher.newFieldCache(iterator, numDocs);
+        iterator.close();
+        assertEquals(0, ivl.getMin());
+        assertEquals(term, ivl.getMax());
+        verifyCache(cache, ivl);
+        verifyShuffled(cache, ivl);
+        verifyStrided(cache, ivl);
+
+        String tempDir = Files.getTempDirectory("asdf", "");
+        for (int x = 0; x < 3; ++x) {
+            assertEquals(x > 0, new File(tempDir, fieldCacher.getMMapFileName("f")).exists());
+            iterator = UnsortedIntTermDocIteratorImpl.create(r, "f");
+            IntValueLookup mmivl = fieldCacher.newMMapFieldCache(iterator, numDocs, "f", tempDir);
+            iterator.close();
+            assertEquals(0, mmivl.getMin());
+            assertEquals(term, mmivl.getMax());
+            verifyCache(cache, mmivl);
+            verifyShuffled(cache, mmivl);
+            verifyStrided(cache, mmivl);
+            mmivl.close();
+        }
+        Files.delete(tempDir);
+
+        // a doc with two terms is not a column
+        r.addIntTerm("f", base - 1, numDocs - 1);
+        assertFalse(FieldCacher.getCompactCacherForField("f", r) instanceof SortedColumnFieldCacher);
+    }
+
+    @Test
+    public void testNearlySortedColumnFieldCacher() throws IOException {
+        final int numDocs = 10000;
+        final long base = 1400000000L;
+        MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("f"), Collections.<String>emptyList(), Arrays.asList("f"), numDocs);
+        Map<Long, List<Integer>> termDocs = new TreeMap<Long, List<Integer>>();
+        long[] cache = new long[numDocs];
+        for (int doc = 0; doc < numDocs; ++doc) {
+            // values wobble around a slowly growing time, with the odd large jump back
+            final long term = doc % 2500 == 1000 ? base : base + doc + rand.nextInt(41) - 20;
+            if (!termDocs.containsKey(term)) {
+                termDocs.put(term, new ArrayList<Integer>());
+            }
+            termDocs.get(term).add(doc);
+            cache[doc] = term;
+        }
+        for (Map.Entry<Long, List<Integer>> e : termDocs.entrySet()) {
+            r.addIntTerm("f", e.getKey(), e.getValue());
+        }
+
+        IntFieldCacher intFieldCacher = FieldCacher.getCompactCacherForField("f", r);
+        assertTrue(intFieldCacher instanceof SortedColumnFieldCacher);
+        SortedColumnFieldCacher fieldCacher = (SortedColumnFieldCacher) intFieldCacher;
+        assertTrue(fieldCacher.getNumRuns() < numDocs / 50);
+        UnsortedIntTermDocIterator iterator = UnsortedIntTermDocIteratorImpl.create(r, "f");
+        IntValueLookup ivl = fieldCacher.newFieldCache(iterator, numDocs);
+        iterator.close();
+        verifyCache(cache, ivl);
+        verifyShuffled(cache, ivl);
+        verifyStrided(cache, ivl);
+
+        String tempDir = Files.getTempDirectory("asdf", "");
+        iterator = UnsortedIntTermDocIteratorImpl.create(r, "f");
+        IntValueLookup mmivl = fieldCacher.newMMapFieldCache(iterator, numDocs, "f", tempDir);
+        iterator.close();
+        verifyCache(cache, mmivl);
+        verifyStrided(cache, mmivl);
+        mmivl.close();
+        Files.delete(tempDir);
+    }
+
+    @Test
+    public void testSortedColumnAdvanceRun() {
+        final int[] runStartDocs = new int[1000];
+        for (int run = 1; run < runStartDocs.length; ++run) {
+            runStartDocs[run] = runStartDocs[run - 1] + 1 + rand.nextInt(5);
+        }
+        final int maxDoc = runStartDocs[runStartDocs.length - 1] + 10;
+        for (int i = 0; i < 10000; ++i) {
+            final int doc = rand.nextInt(maxDoc);
+            final int expected = SortedColumnIntValueLookup.findRun(runStartDocs, doc);
+            final int from = rand.nextInt(expected + 1);
+            assertEquals(expected, SortedColumnIntValueLookup.advanceRun(runStartDocs, from, doc));
+        }
+    }
+
+    // ascending docs that skip many runs at a time
+    private void verifyStrided(long[] cache, IntValueLookup ivl) {
+        for (int stride = 2; stride < cache.length; stride *= 7) {
+            final int n = (cache.length + stride - 1) / stride;
+            final int[] docIds = new int[n];
+            for (int j = 0; j < n; ++j) docIds[j] = j * stride;
+            final long[] values = new long[n];
+            ivl.lookup(docIds, values, n);
+            for (int j = 0; j < n; ++j) {
+                assertEquals(cache[docIds[j]], values[j]);
+            }
+        }
+    }
+
+    private void verifyShuffled(long[] cache, IntValueLookup ivl) {
+        List<Integer> docs = new ArrayList<Integer>();
+        for (int j = 0; j < cache.length; ++j) docs.add(j);
+        Collections.shuffle(docs, rand);
+        int[] docIds = new int[cache.length];
+        for (int j = 0; j < cache.length; ++j) docIds[j] = docs.get(j);
+        long[] values = new long[cache.length];
+        ivl.lookup(docIds, values, cache.length);
+        for (int j = 0; j < cache.length; ++j) {
+            assertEquals(cache[docIds[j]], values[j]);
+        }
+    }
+
     private static void verifyCache(long[] cache, IntValueLookup ivl) {
-        int[] docIds = new int[10];
-        for (int j = 0; j < 10; ++j) docIds[j] = j;
-        long[] values = new long[10];
-        ivl.lookup(docIds, values, 10);
+        int[] docIds = new int[cache.length];
+        for (int j = 0; j < cache.length; ++j) docIds[j] = j;
+        long[] values = new long[cache.length];
+        ivl.lookup(docIds, values, cache.length);
         assertEquals(Longs.asList(cache), Longs.asList(values));
     }
 }
@@ -17,6 +17,7 @@ import com.google.common.collect.Sets;
 import com.indeed.flamdex.MakeAFlamdex;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.datastruct.MockFastBitSetPooler;
@@ -505,4 +506,35 @@ public class TestQueryEvaluator {
         evaluator.and(r, bitSet, pooler);
         assertEquals(0, bitSet.cardinality());
     }
+
+    @Test
+    public void testTermSetCardinalityWalkedOnce() throws FlamdexOutOfMemoryException {
+        final int[] iteratorsOpened = new int[1];
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(), Collections.<String>emptyList(), 20) {
+            @Override
+            public IntTermIterator getIntTermIterator(String field) {
+                iteratorsOpened[0]++;
+                return super.getIntTermIterator(field);
+            }
+        };
+        r.addIntTerm("if1", 1, 0, 5, 9);
+        r.addIntTerm("if1", 2, 1, 10);
+        r.addIntTerm("if1", 3, 2, 11, 18, 19);
+
+        final IntTermSetQueryEvaluator termSet = new IntTermSetQueryEvaluator("if1", new long[]{3, 1, 7});
+        final QueryEvaluator evaluator = new BooleanQueryEvaluator(BooleanOp.AND, Arrays.asList(
+                termSet,
+                new BooleanQueryEvaluator(BooleanOp.OR, Arrays.asList(termSet))
+        ));
+        assertEquals(7, evaluator.maxCardinality(r));
+        assertEquals(7, evaluator.maxCardinality(r));
+        assertEquals(1, iteratorsOpened[0]);
+
+        final IntTermSetQueryEvaluator searched = new IntTermSetQueryEvaluator("if1", new long[]{2, 3});
+        final FastBitSet bitSet = new FastBitSet(r.getNumDocs());
+        searched.or(r, bitSet, pooler);
+        assertEquals(6, bitSet.cardinality());
+        assertEquals(6, searched.maxCardinality(r));
+        assertEquals(2, iteratorsOpened[0]);
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.utils;
+
+import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.StringTermIterator;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestTermSeekers extends TestCase {
+
+    public void testIntSeekerMatchesLookups() {
+        final Random rand = new Random(0);
+        final long[] dictionary = new long[10000];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = i * 3L;
+        }
+        for (final int numRequested : new int[] {1, 10, 1000, 20000}) {
+            final long[] requested = new long[numRequested];
+            for (int i = 0; i < numRequested; i++) {
+                requested[i] = rand.nextInt(dictionary.length * 3 + 10) - 5;
+            }
+            Arrays.sort(requested);
+            final ArrayIntTermIterator iterator = new ArrayIntTermIterator(dictionary);
+            final IntTermSeeker seeker = new IntTermSeeker(iterator);
+            for (final long term : requested) {
+                final boolean expected = term >= 0 && term % 3 == 0 && term / 3 < dictionary.length;
+                assertEquals("term " + term, expected, seeker.seek(term));
+                if (expected) {
+                    assertEquals(term, iterator.term());
+                }
+            }
+            if (numRequested >= dictionary.length) {
+                // dense lookups should stream through the dictionary instead of seeking for every term
+                assertTrue(iterator.resets < numRequested / 10);
+            }
+        }
+    }
+
+    public void testStringSeekerMatchesLookups() {
+        final String[] dictionary = {"a", "ab", "abc", "b", "bb", "c", "d", "zz"};
+        final String[] requested = {"", "a", "aa", "abc", "abc", "b", "ca", "d", "e", "zz", "zzz"};
+        final boolean[] expected = {false, true, false, true, true, true, false, true, false, true, false};
+        final StringTermSeeker seeker = new StringTermSeeker(new ArrayStringTermIterator(dictionary));
+        for (int i = 0; i < requested.length; i++) {
+            assertEquals(requested[i], expected[i], seeker.seek(requested[i]));
+        }
+    }
+
+    private static final class ArrayIntTermIterator implements IntTermIterator {
+        private final long[] terms;
+        private int index = -1;
+        int resets = 0;
+
+        ArrayIntTermIterator(long[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public void reset(long term) {
+            resets++;
+            final int i = Arrays.binarySearch(terms, term);
+            index = (i >= 0 ? i : -i - 1) - 1;
+        }
+
+        @Override
+        public long term() {
+            return terms[index];
+        }
+
+        @Override
+        public boolean next() {
+            index++;
+            return index < terms.length;
+        }
+
+        @Override
+        public int docFreq() {
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class ArrayStringTermIterator implements StringTermIterator {
+        private final String[] terms;
+        private int index = -1;
+
+        ArrayStringTermIterator(String[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public void reset(String term) {
+            final int i = Arrays.binarySearch(terms, term);
+            index = (i >= 0 ? i : -i - 1) - 1;
+        }
+
+        @Override
+        public String term() {
+            return terms[index];
+        }
+
+        @Override
+        public boolean next() {
+            index++;
+            return index < terms.length;
+        }
+
+        @Override
+        public int docFreq() {
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestDistinctCountSketch {
+    @Test
+    public void testExactWhileSmall() {
+        final DistinctCountSketch sketch = new DistinctCountSketch(DistinctCountSketch.DEFAULT_PRECISION);
+        for (int i = 0; i < 1000; i++) {
+            sketch.addInt(i % 500);
+            sketch.addString("term" + (i % 250));
+        }
+        assertTrue(sketch.isExact());
+        assertEquals(750, sketch.cardinality());
+    }
+
+    @Test
+    public void testEstimateWhenLarge() {
+        final DistinctCountSketch sketch = new DistinctCountSketch(DistinctCountSketch.DEFAULT_PRECISION);
+        final int n = 1000000;
+        for (int i = 0; i < n; i++) {
+            sketch.addInt(i);
+        }
+        assertFalse(sketch.isExact());
+        assertEquals(n, sketch.cardinality(), n * 0.03);
+    }
+
+    @Test
+    public void testMerge() {
+        final DistinctCountSketch small1 = new DistinctCountSketch(12);
+        final DistinctCountSketch small2 = new DistinctCountSketch(12);
+        final DistinctCountSketch large = new DistinctCountSketch(12);
+        for (int i = 0; i < 100; i++) {
+            small1.addInt(i);
+            small2.addInt(i + 50);
+        }
+        for (int i = 0; i < 100000; i++) {
+            large.addInt(i + 1000);
+        }
+
+        small1.merge(small2);
+        assertTrue(small1.isExact());
+        assertEquals(150, small1.cardinality());
+
+        small1.merge(large);
+        assertFalse(small1.isExact());
+        assertEquals(100150, small1.cardinality(), 100150 * 0.1);
+    }
+
+    @Test
+    public void testSerialization() {
+        final DistinctCountSketch exact = new DistinctCountSketch(12);
+        for (int i = 0; i < 300; i++) {
+            exact.addString(Integer.toString(i));
+        }
+        final DistinctCountSketch exactCopy = DistinctCountSketch.fromBytes(exact.toBytes());
+        assertTrue(exactCopy.isExact());
+        assertEquals(12, exactCopy.getPrecision());
+        assertEquals(300, exactCopy.cardinality());
+
+        final DistinctCountSketch estimated = new DistinctCountSketch(12);
+        for (int i = 0; i < 50000; i++) {
+            estimated.addString(Integer.toString(i));
+        }
+        final DistinctCountSketch estimatedCopy = DistinctCountSketch.fromBytes(estimated.toBytes());
+        assertFalse(estimatedCopy.isExact());
+        assertEquals(estimated.cardinality(), estimatedCopy.cardinality());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestLatencyHistogram extends TestCase {
+
+    public void testBucketsCoverEveryValue() {
+        long previousUpperBound = -1;
+        for (int i = 0; previousUpperBound < Long.MAX_VALUE; i++) {
+            final long upperBound = LatencyHistogram.bucketUpperBound(i);
+            // buckets are contiguous, and each value falls in its own bucket
+            assertTrue(upperBound > previousUpperBound);
+            assertEquals(i, LatencyHistogram.bucketIndex(previousUpperBound + 1));
+            assertEquals(i, LatencyHistogram.bucketIndex(upperBound));
+            previousUpperBound = upperBound;
+        }
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentileMicros(50));
+    }
+
+    public void testPercentiles() {
+        final Random rand = new Random(0);
+        final long[] values = new long[10000];
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(rand.nextDouble() * 20);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[values.length - 1], histogram.getMaxMicros());
+        for (final double percentile : new double[] {1, 50, 90, 99, 99.9, 100}) {
+            final long expected = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            final long actual = histogram.getPercentileMicros(percentile);
+            assertTrue(percentile + ": " + actual + " < " + expected, actual >= expected);
+            assertTrue(percentile + ": " + actual + " too far above " + expected, actual <= expected + expected / 16);
+        }
+    }
+
+    public void testAdd() {
+        final LatencyHistogram a = new LatencyHistogram();
+        final LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        a.record(1000);
+        b.record(100000);
+        a.add(b);
+        assertEquals(3, a.getCount());
+        assertEquals(101010, a.getTotalMicros());
+        assertEquals(100000, a.getMaxMicros());
+        assertEquals(100000, a.getPercentileMicros(100));
+        assertEquals(0, new LatencyHistogram().getPercentileMicros(50));
+    }
+}
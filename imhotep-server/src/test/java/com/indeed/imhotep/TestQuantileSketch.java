@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestQuantileSketch {
+    @Test
+    public void testRelativeAccuracy() {
+        final double accuracy = 0.01;
+        final Random random = new Random(0);
+        final long[] values = new long[100000];
+        final QuantileSketch left = new QuantileSketch(accuracy);
+        final QuantileSketch right = new QuantileSketch(accuracy);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextGaussian() * 2 + 5) - 20;
+            (i % 2 == 0 ? left : right).add(values[i]);
+        }
+        left.merge(right);
+        final QuantileSketch sketch = QuantileSketch.fromBytes(left.toBytes());
+        Arrays.sort(values);
+
+        assertEquals(values.length, sketch.getCount());
+        assertEquals(values[0], sketch.getMin());
+        assertEquals(values[values.length - 1], sketch.getMax());
+        for (final double q : new double[] {0, 0.1, 0.5, 0.9, 0.95, 0.99, 1}) {
+            final long expected = values[(int) (q * (values.length - 1))];
+            final double actual = sketch.quantile(q);
+            assertTrue(q + ": expected " + expected + " but was " + actual,
+                    Math.abs(actual - expected) <= accuracy * Math.abs(expected) + 1);
+        }
+    }
+
+    @Test
+    public void testZerosAndEmpty() {
+        final QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_ACCURACY);
+        assertTrue(Double.isNaN(sketch.quantile(0.5)));
+        sketch.add(0, 10);
+        sketch.add(5);
+        assertEquals(0, sketch.quantile(0.5), 0);
+        assertEquals(5, sketch.quantile(1), 0);
+    }
+}
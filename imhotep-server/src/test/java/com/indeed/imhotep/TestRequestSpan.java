@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.RawFTGSIterator;
+import junit.framework.TestCase;
+
+public class TestRequestSpan extends TestCase {
+
+    public void testChildIsMergedUntilFinished() {
+        final RequestSpan span = new RequestSpan("GET_FTGS_SPLIT", "session");
+        final RequestSpan child = span.child();
+        final RequestSpan previous = RequestSpan.attach(child);
+        try {
+            RequestSpan.addDocsScanned(5);
+            RequestSpan.addSpillBytes(7);
+            RequestSpan.addPhaseNanos(RequestSpan.Phase.SPILL, 3000);
+        } finally {
+            RequestSpan.attach(previous);
+        }
+        assertEquals(0, span.getDocsScanned());
+
+        assertTrue(span.merge(child));
+        assertEquals(5, span.getDocsScanned());
+        assertEquals(7, span.getSpillBytes());
+        assertEquals(3, span.getPhaseMicros(RequestSpan.Phase.SPILL));
+
+        span.finish(0, 0, 0, false);
+        assertFalse(span.merge(child));
+        assertEquals(5, span.getDocsScanned());
+        assertEquals(7, span.getSpillBytes());
+    }
+
+    public void testSplitterChargesRequestBeforeSplitsAreRead() throws Exception {
+        final RequestSpan span = new RequestSpan("GET_FTGS_SPLIT", "session");
+        final FTGSSplitter splitter;
+        final RequestSpan previous = RequestSpan.attach(span);
+        try {
+            splitter = new FTGSSplitter(new IntTermsFTGSIterator(100), 2, 1, "test", 969168349, null);
+        } finally {
+            RequestSpan.attach(previous);
+        }
+        long terms = 0;
+        for (final RawFTGSIterator split : splitter.getFtgsIterators()) {
+            while (split.nextField()) {
+                while (split.nextTerm()) {
+                    terms++;
+                }
+            }
+        }
+        // reading a split waits for the splitter thread, which adds what it spilled to the request's span
+        assertEquals(100, terms);
+        assertTrue(span.getSpillBytes() > 0);
+        span.finish(0, 0, 0, false);
+        for (final RawFTGSIterator split : splitter.getFtgsIterators()) {
+            split.close();
+        }
+        assertTrue(splitter.isClosed());
+    }
+
+    private static final class IntTermsFTGSIterator implements FTGSIterator {
+        private final int numTerms;
+        private boolean fieldDone = false;
+        private int term = 0;
+        private boolean groupDone;
+
+        IntTermsFTGSIterator(int numTerms) {
+            this.numTerms = numTerms;
+        }
+
+        @Override
+        public boolean nextField() {
+            if (fieldDone) {
+                return false;
+            }
+            fieldDone = true;
+            return true;
+        }
+
+        @Override
+        public String fieldName() {
+            return "if1";
+        }
+
+        @Override
+        public boolean fieldIsIntType() {
+            return true;
+        }
+
+        @Override
+        public boolean nextTerm() {
+            groupDone = false;
+            return ++term <= numTerms;
+        }
+
+        @Override
+        public long termDocFreq() {
+            return 1;
+        }
+
+        @Override
+        public long termIntVal() {
+            return term;
+        }
+
+        @Override
+        public String termStringVal() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean nextGroup() {
+            if (groupDone) {
+                return false;
+            }
+            groupDone = true;
+            return true;
+        }
+
+        @Override
+        public int group() {
+            return 1;
+        }
+
+        @Override
+        public void groupStats(long[] stats) {
+            stats[0] = term;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class TestWeightedFairScheduler extends TestCase {
+
+    public void testSlotsAreBounded() throws Exception {
+        final WeightedFairScheduler scheduler = new WeightedFairScheduler(2, 100, TimeUnit.MILLISECONDS);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final WeightedFairScheduler.Flow flow = scheduler.getFlow("user" + (i % 3), i % 2);
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            assertTrue(flow.acquire());
+                            try {
+                                final int n = running.incrementAndGet();
+                                synchronized (maxRunning) {
+                                    maxRunning.set(Math.max(maxRunning.get(), n));
+                                }
+                                Thread.sleep(1);
+                                running.decrementAndGet();
+                            } finally {
+                                flow.release();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.<Throwable>emptyList(), errors);
+        assertTrue(maxRunning.get() <= 2);
+        assertEquals(2, scheduler.getFreeSlots());
+        assertEquals(0, scheduler.getNumWaiting());
+    }
+
+    public void testAcquireIsReentrant() throws Exception {
+        final WeightedFairScheduler scheduler = new WeightedFairScheduler(1, 100, TimeUnit.MILLISECONDS);
+        final WeightedFairScheduler.Flow flow = scheduler.getFlow("user", 0);
+        assertTrue(flow.acquire());
+        assertFalse(flow.acquire());
+        flow.release();
+        assertEquals(1, scheduler.getFreeSlots());
+    }
+
+    public void testLeastChargedFlowGoesFirst() throws Exception {
+        final WeightedFairScheduler scheduler = new WeightedFairScheduler(1, 100, TimeUnit.MILLISECONDS);
+        final WeightedFairScheduler.Flow bulk = scheduler.getFlow("analyst", 0);
+        final WeightedFairScheduler.Flow alerts = scheduler.getFlow("alerting", 5);
+        final List<String> order = new CopyOnWriteArrayList<String>();
+
+        assertTrue(bulk.acquire());
+        final Thread bulkWaiter = waiter(bulk, "bulk", order);
+        bulkWaiter.start();
+        waitForWaiting(scheduler, 1);
+        final Thread alertWaiter = waiter(alerts, "alerts", order);
+        alertWaiter.start();
+        waitForWaiting(scheduler, 2);
+        Thread.sleep(20);
+        // the bulk flow is charged for the time it held the slot, so the alerting flow is scheduled first
+        bulk.release();
+        bulkWaiter.join();
+        alertWaiter.join();
+        assertEquals(2, order.size());
+        assertEquals("alerts", order.get(0));
+        assertEquals("bulk", order.get(1));
+    }
+
+    public void testCheckpointYieldsToWaitingFlow() throws Exception {
+        final WeightedFairScheduler scheduler = new WeightedFairScheduler(1, 1, TimeUnit.MILLISECONDS);
+        final WeightedFairScheduler.Flow bulk = scheduler.getFlow("analyst", 0);
+        final WeightedFairScheduler.Flow alerts = scheduler.getFlow("alerting", 9);
+        final AtomicBoolean alertsRan = new AtomicBoolean(false);
+
+        final Thread alertWaiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    alerts.acquire();
+                    alertsRan.set(true);
+                    alerts.release();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        assertTrue(bulk.acquire());
+        try {
+            alertWaiter.start();
+            waitForWaiting(scheduler, 1);
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (!alertsRan.get() && System.currentTimeMillis() < deadline) {
+                WeightedFairScheduler.checkpoint();
+            }
+        } finally {
+            bulk.release();
+        }
+        alertWaiter.join();
+        assertTrue(alertsRan.get());
+        assertEquals(1, scheduler.getFreeSlots());
+    }
+
+    private static Thread waiter(final WeightedFairScheduler.Flow flow, final String name, final List<String> order) {
+        return new Thread() {
+            @Override
+            public void run() {
+                try {
+                    flow.acquire();
+                    order.add(name);
+                    flow.release();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private static void waitForWaiting(WeightedFairScheduler scheduler, int numWaiting) throws InterruptedException {
+        while (scheduler.getNumWaiting() < numWaiting) {
+            Thread.sleep(1);
+        }
+    }
+}
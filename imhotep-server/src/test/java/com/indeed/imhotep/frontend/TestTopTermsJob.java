@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.frontend;
+
+import com.indeed.flamdex.query.Term;
+import com.indeed.imhotep.frontend.protobuf.ImhotepFrontendRequest;
+import com.indeed.imhotep.frontend.protobuf.ImhotepFrontendResponse;
+import com.indeed.imhotep.frontend.protobuf.TermStatsMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTopTermsJob {
+    private static ImhotepFrontendRequest.Builder request() {
+        return ImhotepFrontendRequest.newBuilder()
+                .setRequestType(ImhotepFrontendRequest.RequestType.START_TOP_TERMS)
+                .setDataset("dataset")
+                .addStrField("q")
+                .addMetric("count()")
+                .addMetric("clicks")
+                .setK(2);
+    }
+
+    private static TopTermsJob.ShardResult shard(String[] terms, long[][] stats) {
+        final TopTermsJob.ShardResult result = new TopTermsJob.ShardResult(2);
+        for (int i = 0; i < terms.length; ++i) {
+            result.termStats.put(Term.stringTerm("q", terms[i]), stats[i]);
+            result.totalStats[0] += stats[i][0];
+            result.totalStats[1] += stats[i][1];
+        }
+        return result;
+    }
+
+    private static List<String> topTerms(ImhotepFrontendResponse response) {
+        final List<String> ret = new ArrayList<String>();
+        for (final TermStatsMessage termStats : response.getTopTermList()) {
+            ret.add(termStats.getTerm().getTermStringVal());
+        }
+        return ret;
+    }
+
+    @Test
+    public void testPollsAreRefinedAsShardsFinish() {
+        final TopTermsJob job = new TopTermsJob("id", request().build());
+        job.setNumShards(2);
+
+        ImhotepFrontendResponse response = job.toResponse();
+        assertEquals(ImhotepFrontendResponse.ResponseCode.STILL_RUNNING, response.getResponseCode());
+        assertEquals(0, response.getTopTermCount());
+        assertEquals(0, response.getProgress(), 0);
+
+        job.addShardResult("shard1", shard(new String[] {"a", "b", "c"}, new long[][] {{5, 1}, {3, 2}, {1, 0}}), 10);
+        response = job.toResponse();
+        assertEquals(ImhotepFrontendResponse.ResponseCode.STILL_RUNNING, response.getResponseCode());
+        assertEquals(0.5, response.getProgress(), 0);
+        assertEquals(Arrays.asList("a", "b"), topTerms(response));
+        assertEquals(3, response.getTermCount());
+        assertEquals(Arrays.asList(9L, 3L), response.getTotalStatList());
+        assertFalse(job.isDone());
+
+        job.addShardResult("shard2", shard(new String[] {"c", "d"}, new long[][] {{6, 4}, {2, 2}}), 20);
+        response = job.toResponse();
+        assertEquals(ImhotepFrontendResponse.ResponseCode.OK, response.getResponseCode());
+        assertEquals(1.0, response.getProgress(), 0);
+        assertEquals(Arrays.asList("c", "a"), topTerms(response));
+        assertEquals(Arrays.asList(7L, 4L), response.getTopTerm(0).getStatList());
+        assertEquals(4, response.getTermCount());
+        assertEquals(2, response.getTiming().getChildCount());
+        assertTrue(job.isDone());
+    }
+
+    @Test
+    public void testRatioAndResultOrder() {
+        final TopTermsJob job = new TopTermsJob("id", request()
+                .setSortStatIndex(1)
+                .setSortDivideStatIndex(0)
+                .setResultsSortStatIndex(0)
+                .setResultsReverseSort(true)
+                .build());
+        job.setNumShards(1);
+        job.addShardResult("shard1", shard(new String[] {"a", "b", "c", "d"},
+                                           new long[][] {{10, 1}, {4, 2}, {1, 1}, {0, 5}}), 10);
+
+        // c and b have the best click through rates, listed by ascending count
+        assertEquals(Arrays.asList("c", "b"), topTerms(job.toResponse()));
+    }
+
+    @Test
+    public void testInvalidStatIndex() {
+        try {
+            new TopTermsJob("id", request().setSortStatIndex(2).build());
+            fail("expected an invalid request");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailedShardFailsTheJob() {
+        final TopTermsJob job = new TopTermsJob("id", request().build());
+        job.setNumShards(2);
+        job.addShardResult("shard1", shard(new String[] {"a"}, new long[][] {{1, 1}}), 10);
+        job.fail("shard2", new RuntimeException("daemon went away"));
+
+        final ImhotepFrontendResponse response = job.toResponse();
+        assertTrue(job.isDone());
+        assertEquals(ImhotepFrontendResponse.ResponseCode.UNSPECIFIED_ERROR, response.getResponseCode());
+        assertEquals("daemon went away", response.getErrorMessage());
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io.caching;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class TestChunkedDownloader {
+    private static final int CHUNK_SIZE = 1000;
+
+    private File tempDir;
+    private byte[] data;
+
+    @Before
+    public void setUp() {
+        tempDir = Files.createTempDir();
+        data = new byte[10 * CHUNK_SIZE + 123];
+        new Random(0).nextBytes(data);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        org.apache.commons.io.FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testDownloadsRangeInChunks() throws IOException {
+        final ChunkedDownloader downloader = new ChunkedDownloader(CHUNK_SIZE, 4, 1);
+        final FlakyFileSystem source = new FlakyFileSystem(data, 0);
+        final File file = new File(tempDir, "file");
+
+        downloader.download(source, "/file", 100, data.length - 100, file);
+        assertArrayEquals(Arrays.copyOfRange(data, 100, data.length), Files.toByteArray(file));
+        assertEquals(11, source.reads.get());
+        assertEquals(11, downloader.getChunksDownloaded());
+        assertEquals(data.length - 100, downloader.getBytesDownloaded());
+
+        // fits in a chunk
+        downloader.download(source, "/file", 0, 10, file);
+        assertArrayEquals(Arrays.copyOf(data, 10), Files.toByteArray(file));
+        assertEquals(12, source.reads.get());
+        assertEquals(2, downloader.getFilesDownloaded());
+    }
+
+    @Test
+    public void testFailedChunksResumeWhereTheyStopped() throws IOException {
+        final ChunkedDownloader downloader = new ChunkedDownloader(CHUNK_SIZE, 4, 2);
+        final FlakyFileSystem source = new FlakyFileSystem(data, 1);
+        final File file = new File(tempDir, "file");
+
+        downloader.download(source, "/file", 0, data.length, file);
+        assertArrayEquals(data, Files.toByteArray(file));
+        assertEquals(11, downloader.getChunkRetries());
+        assertEquals(22, source.reads.get());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws IOException {
+        final ChunkedDownloader downloader = new ChunkedDownloader(CHUNK_SIZE, 4, 2);
+        final FlakyFileSystem source = new FlakyFileSystem(data, 2);
+
+        try {
+            downloader.download(source, "/file", 0, data.length, new File(tempDir, "file"));
+            fail("expected the download to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, downloader.getFilesDownloaded());
+    }
+
+    /*
+     * Fails the first failuresPerChunk reads of every chunk half way
+     * through the bytes it was asked for
+     */
+    private static final class FlakyFileSystem extends RemoteFileSystem {
+        private final byte[] data;
+        private final int failuresPerChunk;
+        private final AtomicInteger reads = new AtomicInteger();
+        private final Map<Long, AtomicInteger> failures = new ConcurrentHashMap<Long, AtomicInteger>();
+
+        private FlakyFileSystem(byte[] data, int failuresPerChunk) {
+            this.data = data;
+            this.failuresPerChunk = failuresPerChunk;
+        }
+
+        @Override
+        public InputStream getInputStreamForFile(String fullPath, long startOffset, final long maxReadLength) {
+            reads.incrementAndGet();
+            final long chunk = startOffset / CHUNK_SIZE;
+            failures.putIfAbsent(chunk, new AtomicInteger());
+            final boolean fail = failures.get(chunk).getAndIncrement() < failuresPerChunk;
+            final int length = (int) Math.min(maxReadLength, data.length - startOffset);
+            return new FilterInputStream(new ByteArrayInputStream(data, (int) startOffset, length)) {
+                private long read = 0;
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (!fail) {
+                        return super.read(b, off, len);
+                    }
+                    if (read >= maxReadLength / 2) {
+                        throw new IOException("connection reset");
+                    }
+                    final int n = super.read(b, off, (int) Math.min(len, maxReadLength / 2 - read));
+                    if (n > 0) {
+                        read += n;
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void copyFileInto(String fullPath, File localFile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public File loadFile(String fullPath) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public RemoteFileInfo stat(String fullPath) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<RemoteFileInfo> readDir(String fullPath) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getMountPoint() {
+            return "/";
+        }
+
+        @Override
+        public Map<String, File> loadDirectory(String fullPath, File location) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io.caching;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class TestPagedFile {
+    private static final int LENGTH = 3 * PagedFile.PAGE_SIZE + 12345;
+
+    private File tempDir;
+    private byte[] data;
+    private RangeReadingFileSystem source;
+
+    @Before
+    public void setUp() {
+        tempDir = Files.createTempDir();
+        data = new byte[LENGTH];
+        new Random(0).nextBytes(data);
+        source = new RangeReadingFileSystem(data);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        org.apache.commons.io.FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testFetchesOnlyNeededPages() throws IOException {
+        final File file = new File(tempDir, "a/b/file");
+        final PagedFile pagedFile = new PagedFile(source, "/file", file, LENGTH);
+        assertEquals(LENGTH, file.length());
+        assertFalse(pagedFile.isComplete());
+
+        pagedFile.ensureLoaded(PagedFile.PAGE_SIZE + 10, 100);
+        assertEquals(Arrays.asList((long) PagedFile.PAGE_SIZE), source.reads);
+        assertRange(file, PagedFile.PAGE_SIZE, PagedFile.PAGE_SIZE);
+
+        // already present
+        pagedFile.ensureLoaded(PagedFile.PAGE_SIZE, PagedFile.PAGE_SIZE);
+        assertEquals(1, source.reads.size());
+
+        // the two missing pages before and after the loaded one are fetched separately
+        pagedFile.ensureLoaded(0, LENGTH + 100);
+        assertEquals(Arrays.asList((long) PagedFile.PAGE_SIZE, 0L, 2L * PagedFile.PAGE_SIZE), source.reads);
+        assertRange(file, 0, LENGTH);
+        assertTrue(pagedFile.isComplete());
+    }
+
+    @Test
+    public void testBitmapIsPersisted() throws IOException {
+        final File file = new File(tempDir, "file");
+        new PagedFile(source, "/file", file, LENGTH).ensureLoaded(3L * PagedFile.PAGE_SIZE, 1);
+        assertEquals(1, source.reads.size());
+
+        final PagedFile reopened = new PagedFile(source, "/file", file, LENGTH);
+        reopened.ensureLoaded(3L * PagedFile.PAGE_SIZE, 12345);
+        assertEquals(1, source.reads.size());
+        assertRange(file, 3 * PagedFile.PAGE_SIZE, 12345);
+
+        // a different length means the remote file changed
+        final PagedFile changed = new PagedFile(source, "/file", file, LENGTH - 1);
+        changed.ensureLoaded(3L * PagedFile.PAGE_SIZE, 1);
+        assertEquals(2, source.reads.size());
+    }
+
+    @Test
+    public void testDifferentPagesAreFetchedConcurrently() throws Exception {
+        final File file = new File(tempDir, "file");
+        final CountDownLatch bothFetching = new CountDownLatch(2);
+        final RangeReadingFileSystem blocking = new RangeReadingFileSystem(data) {
+            @Override
+            public InputStream getInputStreamForFile(String fullPath, long startOffset, long maxReadLength) {
+                bothFetching.countDown();
+                try {
+                    // a fetch that held a lock for the whole file would never let the other one start
+                    if (!bothFetching.await(10, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("fetches were serialized");
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.getInputStreamForFile(fullPath, startOffset, maxReadLength);
+            }
+        };
+        final PagedFile pagedFile = new PagedFile(blocking, "/file", file, LENGTH);
+        final IOException[] error = new IOException[1];
+        final Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pagedFile.ensureLoaded(2L * PagedFile.PAGE_SIZE, 1);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        other.start();
+        pagedFile.ensureLoaded(0, 1);
+        other.join();
+        assertNull(error[0]);
+        assertEquals(2, blocking.reads.size());
+        assertEquals(2L * PagedFile.PAGE_SIZE, pagedFile.loadedBytes());
+
+        // the page in between is the only one missing
+        pagedFile.ensureLoaded(0, 3L * PagedFile.PAGE_SIZE);
+        assertEquals(3, blocking.reads.size());
+        assertRange(file, 0, 3 * PagedFile.PAGE_SIZE);
+    }
+
+    @Test
+    public void testPageBeingFetchedIsWaitedFor() throws Exception {
+        final File file = new File(tempDir, "file");
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final RangeReadingFileSystem slow = new RangeReadingFileSystem(data) {
+            @Override
+            public InputStream getInputStreamForFile(String fullPath, long startOffset, long maxReadLength) {
+                fetching.countDown();
+                try {
+                    waiting.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.getInputStreamForFile(fullPath, startOffset, maxReadLength);
+            }
+        };
+        final PagedFile pagedFile = new PagedFile(slow, "/file", file, LENGTH);
+        final Thread fetcher = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pagedFile.ensureLoaded(0, 1);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        fetcher.start();
+        assertTrue(fetching.await(10, TimeUnit.SECONDS));
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pagedFile.ensureLoaded(10, 1);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(100);
+        waiting.countDown();
+        fetcher.join();
+        reader.join();
+        assertEquals(1, slow.reads.size());
+        assertRange(file, 0, PagedFile.PAGE_SIZE);
+    }
+
+    @Test
+    public void testEvictedCopyIsDeletedOnceReleased() throws IOException {
+        final File file = new File(tempDir, "file");
+        final PagedFile pagedFile = new PagedFile(source, "/file", file, LENGTH);
+        assertTrue(pagedFile.acquire());
+        pagedFile.ensureLoaded(0, 1);
+        assertTrue(new File(file.getPath() + ".pages").exists());
+
+        pagedFile.evict();
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".pages").exists());
+        assertFalse(pagedFile.acquire());
+        // still usable by the reader that has it mapped
+        pagedFile.ensureLoaded(PagedFile.PAGE_SIZE, 1);
+        assertEquals(2L * PagedFile.PAGE_SIZE, pagedFile.loadedBytes());
+        assertFalse(file.exists());
+
+        pagedFile.release();
+        try {
+            pagedFile.ensureLoaded(2L * PagedFile.PAGE_SIZE, 1);
+            fail("an evicted copy that nobody uses is closed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void assertRange(File file, int offset, int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, offset, offset + length), bytes);
+    }
+
+    private static class RangeReadingFileSystem extends RemoteFileSystem {
+        private final byte[] data;
+        private final List<Long> reads = Collections.synchronizedList(new ArrayList<Long>());
+
+        private RangeReadingFileSystem(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public InputStream getInputStreamForFile(String fullPath, long startOffset, long maxReadLength) {
+            reads.add(startOffset);
+            return new ByteArrayInputStream(data, (int) startOffset, (int) maxReadLength);
+        }
+
+        @Override
+        public void copyFileInto(String fullPath, File localFile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public File loadFile(String fullPath) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public RemoteFileInfo stat(String fullPath) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<RemoteFileInfo> readDir(String fullPath) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getMountPoint() {
+            return "/";
+        }
+
+        @Override
+        public Map<String, File> loadDirectory(String fullPath, File location) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
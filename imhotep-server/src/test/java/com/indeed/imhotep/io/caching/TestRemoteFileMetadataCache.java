@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io.caching;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.indeed.imhotep.io.caching.RemoteFileSystem.RemoteFileInfo;
+
+public class TestRemoteFileMetadataCache {
+    private final AtomicInteger remoteCalls = new AtomicInteger();
+
+    @Test
+    public void testStatsAreAnsweredFromParentListing() {
+        final RemoteFileMetadataCache cache = new RemoteFileMetadataCache(1, TimeUnit.HOURS);
+
+        final List<RemoteFileInfo> shards = cache.readDir("/data/dataset/", listing(
+                new RemoteFileInfo("index20140101.00", RemoteFileInfo.TYPE_DIR),
+                new RemoteFileInfo("index20140101.01", RemoteFileInfo.TYPE_DIR),
+                new RemoteFileInfo("README", RemoteFileInfo.TYPE_FILE)));
+        assertEquals(3, shards.size());
+        assertEquals(1, remoteCalls.get());
+
+        final RemoteFileInfo shard = cache.stat("/data/dataset/index20140101.01", "dataset/index20140101.01", failingStat());
+        assertEquals(RemoteFileInfo.TYPE_DIR, shard.type);
+        assertEquals("dataset/index20140101.01", shard.path);
+        assertEquals(RemoteFileInfo.TYPE_FILE, cache.stat("/data/dataset/README", "dataset/README", failingStat()).type);
+        assertNull(cache.stat("/data/dataset/index20140101.02", "dataset/index20140101.02", failingStat()));
+
+        // listed again without going to the remote file system
+        assertEquals(3, cache.readDir("/data/dataset", listing()).size());
+        assertEquals(1, remoteCalls.get());
+    }
+
+    @Test
+    public void testResultsAreCopied() {
+        final RemoteFileMetadataCache cache = new RemoteFileMetadataCache(1, TimeUnit.HOURS);
+
+        final List<RemoteFileInfo> first = cache.readDir("/data/dataset", listing(new RemoteFileInfo("shard", RemoteFileInfo.TYPE_DIR)));
+        // CachedFile.listFiles rewrites the paths of the infos it gets
+        first.get(0).path = "/data/dataset/shard";
+        assertEquals("shard", cache.readDir("/data/dataset", listing()).get(0).path);
+    }
+
+    @Test
+    public void testMissesAreCached() {
+        final RemoteFileMetadataCache cache = new RemoteFileMetadataCache(1, TimeUnit.HOURS);
+
+        for (int i = 0; i < 3; ++i) {
+            assertNull(cache.stat("/data/missing", "missing", stat(null)));
+            assertNull(cache.readDir("/data/missing", new Callable<List<RemoteFileInfo>>() {
+                @Override
+                public List<RemoteFileInfo> call() {
+                    remoteCalls.incrementAndGet();
+                    return null;
+                }
+            }));
+        }
+        assertEquals(2, remoteCalls.get());
+
+        cache.invalidateAll();
+        assertNull(cache.stat("/data/missing", "missing", stat(null)));
+        assertEquals(3, remoteCalls.get());
+    }
+
+    @Test
+    public void testErrorsAreNotCached() {
+        final RemoteFileMetadataCache cache = new RemoteFileMetadataCache(1, TimeUnit.HOURS);
+
+        for (int i = 0; i < 2; ++i) {
+            try {
+                cache.stat("/data/flaky", "flaky", new Callable<RemoteFileInfo>() {
+                    @Override
+                    public RemoteFileInfo call() throws IOException {
+                        remoteCalls.incrementAndGet();
+                        throw new IOException("connection refused");
+                    }
+                });
+                fail("expected the error to propagate");
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            try {
+                cache.readDir("/data/flaky", new Callable<List<RemoteFileInfo>>() {
+                    @Override
+                    public List<RemoteFileInfo> call() throws IOException {
+                        remoteCalls.incrementAndGet();
+                        throw new IOException("connection refused");
+                    }
+                });
+                fail("expected the error to propagate");
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+        assertEquals(4, remoteCalls.get());
+
+        // once the remote store answers, the answer is used and cached
+        final RemoteFileInfo info = cache.stat("/data/flaky", "flaky", stat(new RemoteFileInfo("flaky", RemoteFileInfo.TYPE_DIR)));
+        assertEquals(RemoteFileInfo.TYPE_DIR, info.type);
+        assertEquals(1, cache.readDir("/data/flaky", listing(new RemoteFileInfo("shard", RemoteFileInfo.TYPE_DIR))).size());
+        assertEquals(6, remoteCalls.get());
+        assertEquals(RemoteFileInfo.TYPE_DIR, cache.stat("/data/flaky", "flaky", stat(null)).type);
+        assertEquals(1, cache.readDir("/data/flaky", listing()).size());
+        assertEquals(6, remoteCalls.get());
+    }
+
+    private Callable<List<RemoteFileInfo>> listing(final RemoteFileInfo... infos) {
+        return new Callable<List<RemoteFileInfo>>() {
+            @Override
+            public List<RemoteFileInfo> call() {
+                remoteCalls.incrementAndGet();
+                return new ArrayList<RemoteFileInfo>(Arrays.asList(infos));
+            }
+        };
+    }
+
+    private Callable<RemoteFileInfo> stat(final RemoteFileInfo info) {
+        return new Callable<RemoteFileInfo>() {
+            @Override
+            public RemoteFileInfo call() {
+                remoteCalls.incrementAndGet();
+                return info;
+            }
+        };
+    }
+
+    private static Callable<RemoteFileInfo> failingStat() {
+        return new Callable<RemoteFileInfo>() {
+            @Override
+            public RemoteFileInfo call() {
+                throw new AssertionError("should have been answered from the parent listing");
+            }
+        };
+    }
+}
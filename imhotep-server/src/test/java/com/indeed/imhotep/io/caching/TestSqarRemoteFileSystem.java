@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io.caching;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.indeed.imhotep.archive.SquallArchiveWriter;
+import com.indeed.imhotep.archive.compression.BlockCompressionOutputStream;
+import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
+
+public class TestSqarRemoteFileSystem {
+    private static final int BLOCK_SIZE = BlockCompressionOutputStream.BLOCK_SIZE;
+
+    private File tempDir;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDir();
+        data = new byte[3 * BLOCK_SIZE + 1000];
+        final Random rand = new Random(0);
+        for (int i = 0; i < data.length; ++i) {
+            // half compressible, half not
+            data[i] = (byte) (i < data.length / 2 ? rand.nextInt(4) : rand.nextInt(256));
+        }
+        Files.write(data, new File(tempDir, "data.bin"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        org.apache.commons.io.FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testReadRangeFromBlocks() throws IOException {
+        for (final SquallArchiveCompressor compressor :
+                new SquallArchiveCompressor[] { SquallArchiveCompressor.LZ4, SquallArchiveCompressor.ZSTD }) {
+            final File archiveDir = new File(tempDir, compressor.getKey() + ".sqar");
+            final RawLocalFileSystem fs = new RawLocalFileSystem();
+            fs.initialize(URI.create("file:///"), new Configuration());
+            final SquallArchiveWriter writer =
+                    new SquallArchiveWriter(fs, new Path(archiveDir.getAbsolutePath()), true, compressor);
+            writer.appendFile(new File(tempDir, "data.bin"));
+            writer.commit();
+            final long archiveLength = new File(archiveDir, "archive0.bin").length();
+
+            final RemoteFileSystemMounter mounter = new RemoteFileSystemMounter(null, "/", true);
+            final RecordingFileSystem parent = new RecordingFileSystem(mounter);
+            final Map<String, Object> settings = new HashMap<String, Object>();
+            settings.put("mountpoint", tempDir.getAbsolutePath() + "/" + compressor.getKey());
+            final SqarRemoteFileSystem sqar = new SqarRemoteFileSystem(settings, parent, mounter);
+            final String path = tempDir.getAbsolutePath() + "/" + compressor.getKey() + "/data.bin";
+
+            assertEquals(data.length, sqar.getFileLength(path));
+
+            // spans the second and third blocks only
+            parent.archiveBytesRequested = 0;
+            assertRange(sqar, path, BLOCK_SIZE + 10, BLOCK_SIZE);
+            assertTrue(parent.archiveBytesRequested > 0);
+            assertTrue(parent.archiveBytesRequested < archiveLength);
+
+            // the tail of the last block, asking for more than is left
+            parent.archiveBytesRequested = 0;
+            assertRange(sqar, path, data.length - 5, 100);
+            assertTrue(parent.archiveBytesRequested < archiveLength);
+
+            assertRange(sqar, path, 0, -1);
+            assertRange(sqar, path, data.length, -1);
+        }
+    }
+
+    private void assertRange(SqarRemoteFileSystem sqar, String path, int start, int maxLength) throws IOException {
+        final int end = maxLength < 0 ? data.length : Math.min(data.length, start + maxLength);
+        final InputStream is = sqar.getInputStreamForFile(path, start, maxLength);
+        try {
+            assertArrayEquals(Arrays.copyOfRange(data, start, end), ByteStreams.toByteArray(is));
+        } finally {
+            is.close();
+        }
+    }
+
+    /*
+     * Reads local files, honoring the requested length and counting the
+     * bytes asked for from archive files
+     */
+    private static final class RecordingFileSystem extends NoOpRemoteFileSystem {
+        private long archiveBytesRequested;
+
+        private RecordingFileSystem(RemoteFileSystemMounter mounter) {
+            super(null, null, mounter);
+        }
+
+        @Override
+        public synchronized InputStream getInputStreamForFile(String fullPath,
+                                                              long startOffset,
+                                                              long maxReadLength) throws IOException {
+            final InputStream is = super.getInputStreamForFile(fullPath, startOffset, maxReadLength);
+            if (maxReadLength < 0) {
+                return is;
+            }
+            if (!fullPath.endsWith("metadata.txt")) {
+                archiveBytesRequested += maxReadLength;
+            }
+            return ByteStreams.limit(is, maxReadLength);
+        }
+    }
+}
@@ -22,12 +22,17 @@ import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
 import com.indeed.flamdex.reader.MockFlamdexReader;
 import com.indeed.imhotep.BucketStats;
+import com.indeed.imhotep.DistinctCountSketch;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
 import com.indeed.imhotep.ImhotepMemoryPool;
 import com.indeed.imhotep.MemoryReservationContext;
+import com.indeed.imhotep.QuantileSketch;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
+import com.indeed.imhotep.WeightedFairScheduler;
+import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.RawFTGSIterator;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.flamdex.MakeAFlamdex;
 import com.indeed.imhotep.group.ImhotepChooser;
@@ -35,12 +40,15 @@ import com.indeed.imhotep.group.ImhotepChooser;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.fail;
@@ -50,12 +58,23 @@ import static org.junit.Assert.*;
  * @author jsgroth
  */
 public class TestImhotepLocalSession {
+    /**
+     * overridden to run the same tests against sessions set up differently
+     */
+    protected ImhotepLocalSession newSession(FlamdexReader r) throws ImhotepOutOfMemoryException {
+        return newSession(r, new MemoryReservationContext(new ImhotepMemoryPool(Long.MAX_VALUE)));
+    }
+
+    protected ImhotepLocalSession newSession(FlamdexReader r, MemoryReservationContext memory) throws ImhotepOutOfMemoryException {
+        return new ImhotepLocalSession(r, null, memory, false, null);
+    }
+
     @Test
     public void testPushPopGetDepth() throws ImhotepOutOfMemoryException {
         // This test doesn't really specifically need the 2d test setup,
         // but that setup is good enoguh for this too.
         FlamdexReader r = new2DMetricRegroupTestReader();
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         assertEquals(0, session.getNumStats());
         int numStats = session.pushStat("if1");
         assertEquals(1, numStats);
@@ -90,7 +109,7 @@ public class TestImhotepLocalSession {
         r.addIntTerm("if1", 4, 4, 5, 6, 7, 12, 13, 14, 15); // 2nd bit
         r.addIntTerm("if1", 8, 8, 9, 10, 11, 12, 13, 14, 15); // 2nd bit
         // 0000, 0001, 0010, 0011, 0100, 0101, 0110, 0111, 1000, 1001, ...
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                             1,
                                                                             0,
@@ -134,7 +153,7 @@ public class TestImhotepLocalSession {
         r.addIntTerm("if1", 0, 1, 3, 5, 7, 9);
         r.addIntTerm("if1", 5, 0, 2, 4, 6, 8);
 
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.regroup(new GroupRemapRule[] { new GroupRemapRule(
                                                                   1,
                                                                   new RegroupCondition("if1", true,
@@ -159,7 +178,7 @@ public class TestImhotepLocalSession {
     public void testMetricRegroup() throws ImhotepOutOfMemoryException {
         MockFlamdexReader r = newMetricRegroupTestReader();
 
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.pushStat("if1");
         int numGroups = session.metricRegroup(0, 0, 20, 5);
         assertEquals(7, numGroups); // 4 buckets, 2 gutters, group 0
@@ -173,7 +192,7 @@ public class TestImhotepLocalSession {
     public void testMetricRegroup2() throws ImhotepOutOfMemoryException {
         MockFlamdexReader r = newMetricRegroupTestReader();
 
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         assertEquals(2,
                      session.regroup(new GroupRemapRule[] { new GroupRemapRule(
                                                                                1,
@@ -209,7 +228,7 @@ public class TestImhotepLocalSession {
     @Test
     public void test2DMetricRegroup() throws ImhotepOutOfMemoryException {
         MockFlamdexReader r = new2DMetricRegroupTestReader();
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.pushStat("if1");
         session.pushStat("if2");
         session.metricRegroup2D(0, 1, 8, 3, 1, 4, 12, 2);
@@ -267,7 +286,7 @@ public class TestImhotepLocalSession {
     @Test
     public void test2DMetricRegroup2() throws ImhotepOutOfMemoryException {
         FlamdexReader r = new2DMetricRegroupTestReader();
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.pushStat("if1");
         session.pushStat("if2");
 
@@ -305,7 +324,7 @@ public class TestImhotepLocalSession {
     @Test
     public void test2DMetricRegroup3() throws ImhotepOutOfMemoryException {
         FlamdexReader r = new2DMetricRegroupTestReader();
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.pushStat("if1");
         session.pushStat("if2");
 
@@ -379,7 +398,7 @@ public class TestImhotepLocalSession {
     @Test
     public void testOrRegroup() throws ImhotepOutOfMemoryException {
         final FlamdexReader r = MakeAFlamdex.make();
-        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        final ImhotepLocalSession session = newSession(r);
         session.stringOrRegroup("sf4",
                                 new String[] { "asdf", "cdef" },
                                 (char) 1,
@@ -394,7 +413,7 @@ public class TestImhotepLocalSession {
     @Test
     public void testStuff() throws ImhotepOutOfMemoryException {
         final FlamdexReader r = MakeAFlamdex.make();
-        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        final ImhotepLocalSession session = newSession(r);
         session.pushStat("count()");
         session.regroup(new GroupRemapRule[] { new GroupRemapRule(1, new RegroupCondition("if3",
                                                                                           true,
@@ -424,7 +443,7 @@ public class TestImhotepLocalSession {
     @Test
     public void testDynamicMetric() throws ImhotepOutOfMemoryException {
         final FlamdexReader r = MakeAFlamdex.make();
-        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        final ImhotepLocalSession session = newSession(r);
         session.createDynamicMetric("foo");
         session.pushStat("dynamic foo");
 
@@ -461,7 +480,7 @@ public class TestImhotepLocalSession {
     @Test
     public void testRandomMultiRegroup_firstIndexLessThan() throws ImhotepOutOfMemoryException {
         final FlamdexReader r = MakeAFlamdex.make();
-        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        final ImhotepLocalSession session = newSession(r);
 
         // normal case -- 0.5 falls in the [0.4, 0.7) bucket, which is the
         // fourth (index == 3) in the list of:
@@ -492,7 +511,7 @@ public class TestImhotepLocalSession {
     @Test
     public void testRandomMultiRegroup_ensureValidMultiRegroupArrays() throws ImhotepOutOfMemoryException {
         final FlamdexReader r = MakeAFlamdex.make();
-        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        final ImhotepLocalSession session = newSession(r);
 
         // ******************************** Stuff that's OK:
         // normal case
@@ -547,7 +566,7 @@ public class TestImhotepLocalSession {
     @Test
     public void testRandomMultiRegroup() throws ImhotepOutOfMemoryException {
         final FlamdexReader r = MakeAFlamdex.make();
-        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        final ImhotepLocalSession session = newSession(r);
 
         // Expected
         // ( @see MakeAFlamdex.make() )
@@ -618,7 +637,7 @@ public class TestImhotepLocalSession {
             }
             r.addIntTerm("if1", i, l);
         }
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         final RegroupCondition[] conditions = new RegroupCondition[10];
         final int[] positiveGroups = new int[10];
         for (int i = 1; i <= 10; i++) {
@@ -637,6 +656,26 @@ public class TestImhotepLocalSession {
         assertEquals("doc id #10 should be in no group", 0, docIdToGroup[10]);
     }
 
+    @Test
+    public void testMultisplitEqualityAndInequalityOnOneField() throws ImhotepOutOfMemoryException {
+        MockFlamdexReader r =
+                new MockFlamdexReader(Arrays.asList("if1"), Arrays.<String> asList(),
+                                      Arrays.<String> asList(), 10);
+        for (int i = 0; i < 10; i++) {
+            r.addIntTerm("if1", i, i);
+        }
+        ImhotepLocalSession session = newSession(r);
+        session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(1, 5, new int[] { 2, 3, 4 },
+                new RegroupCondition[] {
+                        new RegroupCondition("if1", true, 7, null, false),
+                        new RegroupCondition("if1", true, 3, null, true),
+                        new RegroupCondition("if1", true, 2, null, false) }) });
+        int[] docIdToGroup = new int[10];
+        session.exportDocIdToGroupId(docIdToGroup);
+        // doc 2 matches the inequality before its equality condition
+        assertEquals(Ints.asList(3, 3, 3, 3, 5, 5, 5, 2, 5, 5), Ints.asList(docIdToGroup));
+    }
+
     @Test
     public void testSingleMultisplitStringRegroup() throws ImhotepOutOfMemoryException {
         MockFlamdexReader r =
@@ -649,7 +688,7 @@ public class TestImhotepLocalSession {
             }
             r.addStringTerm("sf1", "" + i, l);
         }
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         final RegroupCondition[] conditions = new RegroupCondition[10];
         final int[] positiveGroups = new int[10];
         for (int i = 1; i <= 10; i++) {
@@ -689,7 +728,7 @@ public class TestImhotepLocalSession {
         }
         r.addIntTerm("if2", 0, l);
 
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.regroup(new QueryRemapRule(1, Query.newTermQuery(new Term("if2", true, 0, null)),
                                            1, 2));
         final int[] positiveGroups = new int[10];
@@ -736,7 +775,7 @@ public class TestImhotepLocalSession {
         }
         r.addStringTerm("sf2", "0", l);
 
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.regroup(new QueryRemapRule(1, Query.newTermQuery(new Term("sf2", false, 0, "0")),
                                            1, 2));
         final int[] positiveGroups = new int[10];
@@ -767,7 +806,7 @@ public class TestImhotepLocalSession {
         MockFlamdexReader r =
                 new MockFlamdexReader(Arrays.asList("if1"), Arrays.<String> asList(),
                                       Arrays.<String> asList(), 11);
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                             1000,
                                                                             1234,
@@ -789,7 +828,7 @@ public class TestImhotepLocalSession {
             r.addIntTerm("if1", i, i);
             r.addIntTerm("if2", i, i);
         }
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                             1,
                                                                             5,
@@ -838,7 +877,7 @@ public class TestImhotepLocalSession {
             MockFlamdexReader r =
                     new MockFlamdexReader(Arrays.asList("if1"), Arrays.<String> asList(),
                                           Arrays.<String> asList(), 10);
-            ImhotepLocalSession session = new ImhotepLocalSession(r);
+            ImhotepLocalSession session = newSession(r);
             try {
                 session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                                     1,
@@ -867,7 +906,7 @@ public class TestImhotepLocalSession {
             MockFlamdexReader r =
                     new MockFlamdexReader(Arrays.asList("if1"), Arrays.<String> asList(),
                                           Arrays.<String> asList(), 10);
-            ImhotepLocalSession session = new ImhotepLocalSession(r);
+            ImhotepLocalSession session = newSession(r);
             try {
                 session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                                     1,
@@ -892,7 +931,7 @@ public class TestImhotepLocalSession {
         MockFlamdexReader r =
                 new MockFlamdexReader(Arrays.asList("if1"), Arrays.<String> asList(),
                                       Arrays.<String> asList(), 10);
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         try {
             session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                                 1,
@@ -921,7 +960,7 @@ public class TestImhotepLocalSession {
         final List<String> fields = Arrays.asList("sf1");
         final List<String> emptyList = Arrays.<String> asList();
         MockFlamdexReader r = new MockFlamdexReader(emptyList, fields, emptyList, 10);
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         try {
             session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                                 1,
@@ -950,7 +989,7 @@ public class TestImhotepLocalSession {
         final List<String> fields = Arrays.asList("sf1");
         final List<String> emptyList = Arrays.<String> asList();
         MockFlamdexReader r = new MockFlamdexReader(emptyList, fields, emptyList, 10);
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         // verify doesn't fail
         session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                             1,
@@ -999,7 +1038,7 @@ public class TestImhotepLocalSession {
         final List<String> fields = Arrays.asList("if1");
         final List<String> emptyList = Arrays.<String> asList();
         MockFlamdexReader r = new MockFlamdexReader(fields, emptyList, emptyList, 10);
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         // verify doesn't fail
         session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                             1,
@@ -1054,7 +1093,7 @@ public class TestImhotepLocalSession {
         for (int i = 0; i < 10; i++) {
             r.addIntTerm("if2", 1, Arrays.asList(10, 11, 12, 13, 14, 15, 16, 17, 18, 19));
         }
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                             1,
                                                                             1,
@@ -1140,7 +1179,7 @@ public class TestImhotepLocalSession {
             r.addStringTerm("sf1", "" + i, i);
             r.addStringTerm("sf2", "" + i, i);
         }
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                             1,
                                                                             5,
@@ -1190,7 +1229,7 @@ public class TestImhotepLocalSession {
         for (int i = 0; i < 10; i++) {
             r.addStringTerm("sf2", "1", Arrays.asList(10, 11, 12, 13, 14, 15, 16, 17, 18, 19));
         }
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                             1,
                                                                             1,
@@ -1283,7 +1322,7 @@ public class TestImhotepLocalSession {
         addStringField(r, "sf1", s1terms);
         addStringField(r, "sf2", s2terms);
 
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         testAllInequalitySplits(numDocs, "if1", i1terms, session);
         testAllInequalitySplits(numDocs, "if2", i2terms, session);
         testAllInequalitySplits(numDocs, "sf1", s1terms, session);
@@ -1363,7 +1402,7 @@ public class TestImhotepLocalSession {
         for (int i = 0; i < 10; i++) {
             r.addIntTerm("if1", i, i);
         }
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                             1,
                                                                             2,
@@ -1391,7 +1430,7 @@ public class TestImhotepLocalSession {
         for (int i = 0; i < 10; i++) {
             r.addIntTerm("if1", i, i);
         }
-        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        ImhotepLocalSession session = newSession(r);
         session.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(
                                                                             2,
                                                                             3,
@@ -1539,7 +1578,7 @@ public class TestImhotepLocalSession {
         r.addIntTerm("if1", 1, 1, 3, 5, 7, 9);
         r.addStringTerm("sf1", "even", 0, 2, 4, 6, 8);
         r.addStringTerm("sf1", "odd", 1, 3, 5, 7, 9);
-        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        final ImhotepLocalSession session = newSession(r);
         final String METRIC_NAME = "test metric!";
         session.createDynamicMetric(METRIC_NAME);
         final long[] exported = new long[10];
@@ -1575,7 +1614,7 @@ public class TestImhotepLocalSession {
     @Test
     public void testPushStatFloatScale() throws ImhotepOutOfMemoryException {
         final FlamdexReader r = MakeAFlamdex.make();
-        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        final ImhotepLocalSession session = newSession(r);
         session.pushStat("floatscale floatfield*100+9000"); // like iplat
         long[] stats = session.getGroupStats(0);
         long scaledSum = stats[1];
@@ -1949,4 +1988,324 @@ public class TestImhotepLocalSession {
         Assert.assertArrayEquals(new long[]{0, 0}, session.getGroupStats(0));
         session.popStat();
     }
+
+    @Test
+    public void testFTGSWithFewActiveDocs() throws ImhotepOutOfMemoryException {
+        final int numDocs = 50000;
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"),
+                                                          Arrays.asList("if1"), numDocs);
+        for (int term = 0; term < 3; term++) {
+            final List<Integer> docs = Lists.newArrayList();
+            for (int doc = term; doc < numDocs; doc += 3) {
+                docs.add(doc);
+            }
+            r.addIntTerm("if1", term, docs);
+        }
+        r.addStringTerm("sf1", "a", 100, 2501, 4999);
+
+        final ImhotepLocalSession session = newSession(r);
+        session.pushStat("count()");
+        session.regroup(new GroupRemapRule[] {
+                new GroupRemapRule(1, new RegroupCondition("sf1", false, 0, "a", false), 0, 1) });
+
+        final FTGSIterator iterator = session.getFTGSIterator(new String[] { "if1" }, new String[0]);
+        final long[] stats = new long[1];
+        final Map<Long, Long> termCounts = Maps.newHashMap();
+        assertTrue(iterator.nextField());
+        while (iterator.nextTerm()) {
+            while (iterator.nextGroup()) {
+                assertEquals(1, iterator.group());
+                iterator.groupStats(stats);
+                termCounts.put(iterator.termIntVal(), stats[0]);
+            }
+        }
+        assertFalse(iterator.nextField());
+        iterator.close();
+
+        assertEquals(2, termCounts.size());
+        assertEquals(2L, (long) termCounts.get(1L));
+        assertEquals(1L, (long) termCounts.get(2L));
+    }
+
+    @Test
+    public void testCompactIfWorthwhile() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"),
+                                                          Arrays.asList("if1"), 10);
+        r.addIntTerm("if1", 1, 0, 1, 2, 3, 4);
+        r.addIntTerm("if1", 2, 5, 6, 7, 8, 9);
+        r.addStringTerm("sf1", "a", 2, 7);
+
+        final ImhotepLocalSession session =
+                new ImhotepLocalSession(r,
+                                        "/tmp/imhotep.test",
+                                        new MemoryReservationContext(new ImhotepMemoryPool(Long.MAX_VALUE)),
+                                        false, null);
+        session.pushStat("count()");
+        session.regroup(new GroupRemapRule[] {
+                new GroupRemapRule(1, new RegroupCondition("sf1", false, 0, "a", false), 0, 1) });
+
+        final CompactionPolicy policy = new CompactionPolicy(0.5, 0, 1);
+        /* nothing has scanned the shard yet */
+        assertFalse(session.compactIfWorthwhile(policy));
+
+        final FTGSIterator iterator = session.getFTGSIterator(new String[] { "if1" }, new String[0]);
+        /* doc ids cannot change under an open iterator */
+        assertFalse(session.compactIfWorthwhile(policy));
+        iterator.close();
+
+        final long totalDocFreq = session.getTotalDocFreq(new String[] { "if1" }, new String[] { "sf1" });
+        assertEquals(12L, totalDocFreq);
+        assertTrue(session.compactIfWorthwhile(policy));
+        assertEquals(2, session.getNumDocs());
+        assertEquals(2L, session.getGroupStats(0)[1]);
+        /* doc freqs still describe the whole shard */
+        assertEquals(totalDocFreq, session.getTotalDocFreq(new String[] { "if1" }, new String[] { "sf1" }));
+        /* already compacted */
+        assertFalse(session.compactIfWorthwhile(policy));
+
+        session.resetGroups();
+        assertEquals(10, session.getNumDocs());
+        assertEquals(10L, session.getGroupStats(0)[1]);
+        session.close();
+    }
+
+    @Test
+    public void testRegroupGroupZeroAfterCompaction() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"),
+                                                          Arrays.asList("if1"), 10);
+        r.addIntTerm("if1", 1, 0, 1, 2, 3, 4);
+        r.addIntTerm("if1", 2, 5, 6, 7, 8, 9);
+        r.addStringTerm("sf1", "a", 2, 7);
+
+        final ImhotepMemoryPool pool = new ImhotepMemoryPool(Long.MAX_VALUE);
+        final ImhotepLocalSession session =
+                new ImhotepLocalSession(r, "/tmp/imhotep.test", new MemoryReservationContext(pool), false, null);
+        session.pushStat("count()");
+        session.regroup(new GroupRemapRule[] {
+                new GroupRemapRule(1, new RegroupCondition("sf1", false, 0, "a", false), 0, 1) });
+        session.getFTGSIterator(new String[] { "if1" }, new String[0]).close();
+        assertTrue(session.compactIfWorthwhile(new CompactionPolicy(0.5, 0, 1)));
+        assertEquals(2, session.getNumDocs());
+
+        /* docs 0, 1, 3 and 4 were filtered out by the rebuild but are still in group 0 */
+        session.intOrRegroup("if1", new long[] { 1 }, 0, 0, 2);
+        assertEquals(10, session.getNumDocs());
+        long[] counts = session.getGroupStats(0);
+        assertEquals(2L, counts[1]);
+        assertEquals(4L, counts[2]);
+
+        assertTrue(session.compactIfWorthwhile(new CompactionPolicy(0.3, 0, 0)));
+        assertEquals(6, session.getNumDocs());
+        session.regroup(new GroupRemapRule[] {
+                new GroupRemapRule(0, new RegroupCondition("if1", true, 2, null, false), 0, 3) });
+        assertEquals(10, session.getNumDocs());
+        /* groups without a rule go to group 0 */
+        counts = session.getGroupStats(0);
+        assertEquals(4, counts.length);
+        assertEquals(0L, counts[1]);
+        assertEquals(0L, counts[2]);
+        assertEquals(4L, counts[3]);
+        session.close();
+        assertEquals(0, pool.usedMemory());
+    }
+
+    @Test
+    public void testGetGroupDistinctSketches() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"),
+                                                          Arrays.asList("if1"), 10);
+        r.addIntTerm("if1", 1, 0, 1, 2);
+        r.addIntTerm("if1", 2, 3, 4);
+        r.addIntTerm("if1", 3, 5, 6, 7, 8, 9);
+        r.addStringTerm("sf1", "a", 0, 3, 5);
+        r.addStringTerm("sf1", "b", 1, 6);
+        r.addStringTerm("sf1", "c", 2, 4, 7, 8);
+
+        final ImhotepLocalSession session = newSession(r);
+        session.pushStat("if1");
+        assertEquals(4, session.metricRegroup(0, 1, 4, 1, true));
+
+        final DistinctCountSketch[] stringSketches = session.getGroupDistinctSketches("sf1", false, 12);
+        assertEquals(4, stringSketches.length);
+        assertNull(stringSketches[0]);
+        assertEquals(3, stringSketches[1].cardinality());
+        assertEquals(2, stringSketches[2].cardinality());
+        assertEquals(3, stringSketches[3].cardinality());
+
+        final DistinctCountSketch[] intSketches = session.getGroupDistinctSketches("if1", true, 12);
+        for (int group = 1; group < 4; group++) {
+            assertTrue(intSketches[group].isExact());
+            assertEquals(1, intSketches[group].cardinality());
+        }
+    }
+
+    @Test
+    public void testGroupDistinctSketchesMemory() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(),
+                                                          Arrays.asList("if1"), 10);
+        r.addIntTerm("if1", 1, 0, 1, 2);
+        r.addIntTerm("if1", 2, 3, 4);
+        r.addIntTerm("if1", 3, 5, 6, 7, 8, 9);
+
+        final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(4 * 1024 * 1024));
+        final ImhotepLocalSession session = newSession(r, memory);
+        session.pushStat("if1");
+        session.metricRegroup(0, 1, 2001, 1, true);
+        final long before = memory.usedMemory();
+
+        /* only the three groups with docs get a sketch */
+        final DistinctCountSketch[] sketches = session.getGroupDistinctSketches("if1", true, 14);
+        assertEquals(1, sketches[1].cardinality());
+        assertNull(sketches[4]);
+        assertTrue(memory.usedMemory() >= before + 3 * DistinctCountSketch.maxMemoryUsage(14));
+
+        /* held until the response is built */
+        session.releaseSketchMemory();
+        assertEquals(before, memory.usedMemory());
+        session.getGroupDistinctSketches("if1", true, 4);
+        assertTrue(memory.usedMemory() < before + 3 * DistinctCountSketch.maxMemoryUsage(14));
+
+        try {
+            session.getGroupDistinctSketches("if1", true, 0);
+            fail("precision 0 should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        session.close();
+        assertEquals(0, memory.usedMemory());
+    }
+
+    @Test
+    public void testGetGroupQuantiles() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(),
+                                                          Arrays.asList("if1"), 10);
+        r.addIntTerm("if1", 1, 0, 1, 2);
+        r.addIntTerm("if1", 2, 3, 4);
+        r.addIntTerm("if1", 1000, 5, 6, 7, 8, 9);
+
+        final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(Long.MAX_VALUE));
+        final ImhotepLocalSession session = newSession(r, memory);
+        session.pushStat("if1");
+        final long before = memory.usedMemory();
+
+        final QuantileSketch[] sketches = session.getGroupQuantiles(0, 0.01);
+        assertEquals(2, sketches.length);
+        assertNull(sketches[0]);
+        assertEquals(10, sketches[1].getCount());
+        assertEquals(2.0, sketches[1].quantile(0.5), 0.02);
+        assertEquals(1000.0, sketches[1].quantile(1), 10);
+        /* the sketch and its buckets stay accounted while the response is built */
+        assertTrue(memory.usedMemory() >= before + sketches[1].memoryUsage());
+        session.releaseSketchMemory();
+        assertEquals(before, memory.usedMemory());
+
+        for (final double accuracy : new double[] {0, -0.5, 1}) {
+            try {
+                session.getGroupQuantiles(0, accuracy);
+                fail("accuracy " + accuracy + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        session.close();
+        assertEquals(0, memory.usedMemory());
+    }
+
+    @Test
+    public void testGetGroupQuantilesSkipsGroupZero() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(),
+                                                          Arrays.asList("if1"), 10);
+        r.addIntTerm("if1", 1, 0, 1, 2);
+        r.addIntTerm("if1", 2, 3, 4);
+        r.addIntTerm("if1", 1000, 5, 6, 7, 8, 9);
+
+        final ImhotepLocalSession session = newSession(r);
+        session.pushStat("if1");
+        /* the docs with 1000 fall outside of the buckets into group 0 */
+        assertEquals(3, session.metricRegroup(0, 1, 3, 1, true));
+
+        final QuantileSketch[] sketches = session.getGroupQuantiles(0, 0.01);
+        assertEquals(3, sketches.length);
+        assertNull(sketches[0]);
+        assertEquals(3, sketches[1].getCount());
+        assertEquals(1.0, sketches[1].quantile(1), 0.02);
+        assertEquals(2, sketches[2].getCount());
+        assertEquals(2.0, sketches[2].quantile(1), 0.02);
+        session.close();
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws ImhotepOutOfMemoryException, IOException {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(),
+                                                          Arrays.asList("if1"), 10);
+        r.addIntTerm("if1", 1, 0, 1, 2);
+        r.addIntTerm("if1", 2, 3, 4);
+        r.addIntTerm("if1", 3, 5, 6, 7, 8, 9);
+
+        final ImhotepLocalSession session = newSession(r);
+        session.pushStat("if1");
+        assertEquals(4, session.metricRegroup(0, 1, 4, 1, true));
+        session.createDynamicMetric("dm");
+        session.updateDynamicMetric("dm", new int[] {0, 5, 7, 11});
+        session.pushStat("dynamic dm");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        session.writeSnapshot(out);
+
+        final ImhotepLocalSession restored = newSession(r);
+        restored.restoreSnapshot(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(4, restored.getNumGroups());
+        assertEquals(2, restored.getNumStats());
+        assertTrue(Arrays.equals(session.getGroupStats(0), restored.getGroupStats(0)));
+        assertTrue(Arrays.equals(session.getGroupStats(1), restored.getGroupStats(1)));
+    }
+
+    @Test
+    public void testFTGSSplitterHoldsSchedulerSlot() throws Exception {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(),
+                                                          Arrays.asList("if1"), 10);
+        r.addIntTerm("if1", 1, 0, 1, 2);
+        r.addIntTerm("if1", 2, 3, 4);
+        r.addIntTerm("if1", 3, 5, 6, 7, 8, 9);
+        final ImhotepLocalSession session = newSession(r);
+        session.pushStat("count()");
+
+        final WeightedFairScheduler scheduler = new WeightedFairScheduler(1, 100, TimeUnit.MILLISECONDS);
+        final WeightedFairScheduler.Flow flow = scheduler.getFlow("user", 0);
+        final RawFTGSIterator[] splits = new RawFTGSIterator[2];
+        assertTrue(flow.acquire());
+        try {
+            for (int i = 0; i < splits.length; i++) {
+                splits[i] = session.getFTGSIteratorSplit(new String[] { "if1" }, new String[0], i, splits.length);
+            }
+            // the splitter thread cannot scan until the only slot is given back
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (scheduler.getNumWaiting() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(1, scheduler.getNumWaiting());
+        } finally {
+            flow.release();
+        }
+
+        final Map<Long, Long> counts = Maps.newHashMap();
+        final long[] stats = new long[1];
+        for (final RawFTGSIterator split : splits) {
+            while (split.nextField()) {
+                while (split.nextTerm()) {
+                    while (split.nextGroup()) {
+                        split.groupStats(stats);
+                        counts.put(split.termIntVal(), stats[0]);
+                    }
+                }
+            }
+            split.close();
+        }
+        final Map<Long, Long> expected = Maps.newHashMap();
+        expected.put(1L, 3L);
+        expected.put(2L, 2L);
+        expected.put(3L, 5L);
+        assertEquals(expected, counts);
+        assertEquals(1, scheduler.getFreeSlots());
+        assertEquals(0, scheduler.getNumWaiting());
+    }
 }
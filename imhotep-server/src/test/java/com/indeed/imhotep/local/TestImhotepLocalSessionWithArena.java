@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.imhotep.ImhotepMemoryPool;
+import com.indeed.imhotep.MemoryReservationContext;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs every session test with the session arena in use, plus tests of the group lookups it allocates.
+ */
+public class TestImhotepLocalSessionWithArena extends TestImhotepLocalSession {
+    @Override
+    protected ImhotepLocalSession newSession(FlamdexReader r, MemoryReservationContext memory) throws ImhotepOutOfMemoryException {
+        final ImhotepLocalSession session = super.newSession(r, memory);
+        session.useSessionArena();
+        return session;
+    }
+
+    private static MockFlamdexReader newLargeGroupsTestReader() {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(),
+                                                          Arrays.asList("if1"), 10);
+        r.addIntTerm("if1", 70000, 0, 1, 2);
+        r.addIntTerm("if1", 80000, 3, 4);
+        r.addIntTerm("if1", 90000, 5, 6, 7, 8, 9);
+        return r;
+    }
+
+    @Test
+    public void testLargeGroupsAreAllocatedInArena() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader r = newLargeGroupsTestReader();
+        final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(Long.MAX_VALUE));
+        final ImhotepLocalSession session = newSession(r, memory);
+        final ImhotepLocalSession heapSession = new ImhotepLocalSession(r);
+        for (final ImhotepLocalSession s : new ImhotepLocalSession[] { session, heapSession }) {
+            s.pushStat("if1");
+            assertEquals(90002, s.metricRegroup(0, 0, 100000, 1, true));
+        }
+        assertTrue(session.docIdToGroup instanceof NativeIntGroupLookup);
+        assertTrue(heapSession.docIdToGroup instanceof IntGroupLookup);
+        assertEquals(4L * 10, session.getArena().getAllocatedBytes());
+
+        final int[] groups = new int[10];
+        session.exportDocIdToGroupId(groups);
+        final int[] heapGroups = new int[10];
+        heapSession.exportDocIdToGroupId(heapGroups);
+        assertArrayEquals(heapGroups, groups);
+        assertEquals(70001, groups[0]);
+        assertEquals(90001, groups[9]);
+
+        final long[] stats = session.getGroupStats(0);
+        assertArrayEquals(heapSession.getGroupStats(0), stats);
+        assertEquals(3 * 70000, stats[70001]);
+        assertEquals(2 * 80000, stats[80001]);
+        assertEquals(5 * 90000, stats[90001]);
+        heapSession.close();
+
+        // replacing the lookup gives its memory back to the session
+        session.resetGroups();
+        assertEquals(0, session.getArena().getAllocatedBytes());
+
+        assertEquals(90002, session.metricRegroup(0, 0, 100000, 1, true));
+        assertEquals(4L * 10, session.getArena().getAllocatedBytes());
+        session.close();
+        assertEquals(0, session.getArena().getAllocatedBytes());
+        assertEquals(0, memory.usedMemory());
+    }
+
+    @Test
+    public void testShrinkingFreesArenaLookup() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(),
+                                                          Arrays.asList("if1"), 10);
+        r.addIntTerm("if1", 1, 0, 1, 2);
+        r.addIntTerm("if1", 2, 3, 4);
+        r.addIntTerm("if1", 3, 5, 6, 7, 8, 9);
+        final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(Long.MAX_VALUE));
+        final ImhotepLocalSession session = newSession(r, memory);
+        session.pushStat("if1");
+        // regrouped in an int lookup, which is shrunk once the groups in use are counted
+        assertEquals(4, session.metricRegroup(0, 1, 100000, 1, true));
+        assertTrue(session.docIdToGroup instanceof ByteGroupLookup);
+        assertEquals(0, session.getArena().getAllocatedBytes());
+        assertArrayEquals(new long[] { 0, 3, 4, 15 }, session.getGroupStats(0));
+        session.close();
+        assertEquals(0, memory.usedMemory());
+    }
+}
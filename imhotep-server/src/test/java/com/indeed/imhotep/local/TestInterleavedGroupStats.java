@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.fieldcache.LongArrayIntValueLookup;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestInterleavedGroupStats {
+    private static final int NUM_DOCS = 1000;
+
+    private static IntValueLookup[] makeLookups(Random rand, int numStats, long[][] values) {
+        final IntValueLookup[] lookups = new IntValueLookup[numStats];
+        for (int statIndex = 0; statIndex < numStats; statIndex++) {
+            values[statIndex] = new long[NUM_DOCS];
+            for (int doc = 0; doc < NUM_DOCS; doc++) {
+                values[statIndex][doc] = rand.nextInt(1000) - 500;
+            }
+            lookups[statIndex] = new LongArrayIntValueLookup(values[statIndex]);
+        }
+        return lookups;
+    }
+
+    private static void checkTerm(Random rand, InterleavedGroupStats stats, IntValueLookup[] lookups, long[][] values,
+                                  int n, int maxGroup) {
+        checkTerm(rand, stats, lookups, values, n, maxGroup, 1);
+    }
+
+    // adds n random docs in groups stride * [1, maxGroup] in batches and checks the result against per group sums
+    private static void checkTerm(Random rand, InterleavedGroupStats stats, IntValueLookup[] lookups, long[][] values,
+                                  int n, int maxGroup, int stride) {
+        final int numStats = values.length;
+        final Map<Integer, long[]> expected = new TreeMap<Integer, long[]>();
+        final int[] docIds = new int[n];
+        final int[] groups = new int[n];
+        for (int i = 0; i < n; i++) {
+            docIds[i] = rand.nextInt(NUM_DOCS);
+            groups[i] = stride * (1 + rand.nextInt(maxGroup));
+            if (!expected.containsKey(groups[i])) {
+                expected.put(groups[i], new long[numStats]);
+            }
+            for (int statIndex = 0; statIndex < numStats; statIndex++) {
+                expected.get(groups[i])[statIndex] += values[statIndex][docIds[i]];
+            }
+        }
+        for (int start = 0; start < n; start += ImhotepLocalSession.BUFFER_SIZE) {
+            final int batch = Math.min(ImhotepLocalSession.BUFFER_SIZE, n - start);
+            stats.add(lookups, copyFrom(docIds, start), copyFrom(groups, start), batch);
+        }
+
+        assertEquals(expected.size(), stats.dump());
+        final long[] actual = new long[numStats];
+        int index = 0;
+        for (final Map.Entry<Integer, long[]> entry : expected.entrySet()) {
+            assertEquals((int) entry.getKey(), stats.group(index));
+            stats.get(index, actual);
+            assertArrayEquals(entry.getValue(), actual);
+            index++;
+        }
+        stats.clear();
+    }
+
+    @Test
+    public void testMatchesPerStatSums() {
+        final Random rand = new Random(42);
+        // covers the unrolled stat counts and the generic fallback
+        for (int numStats = 0; numStats <= 10; numStats++) {
+            final long[][] values = new long[numStats][];
+            final IntValueLookup[] lookups = makeLookups(rand, numStats, values);
+            final InterleavedGroupStats stats = new InterleavedGroupStats(numStats, 7);
+            assertTrue(stats.isDense());
+            checkTerm(rand, stats, lookups, values, 300, 6);
+            checkTerm(rand, stats, lookups, values, 5, 6);
+        }
+    }
+
+    @Test
+    public void testSparseGroups() {
+        final Random rand = new Random(42);
+        final int numGroups = 4 * InterleavedGroupStats.SPARSE_MIN_GROUPS;
+        for (final int numStats : new int[] {0, 1, 3, 9}) {
+            final long[][] values = new long[numStats][];
+            final IntValueLookup[] lookups = makeLookups(rand, numStats, values);
+            final InterleavedGroupStats stats = new InterleavedGroupStats(numStats, numGroups);
+            assertFalse(stats.isDense());
+            checkTerm(rand, stats, lookups, values, 2000, numGroups - 1);
+            checkTerm(rand, stats, lookups, values, 10, 20);
+            assertFalse(stats.isDense());
+
+            // enough distinct groups in one term to switch to dense rows half way through
+            final int n = 2 * numGroups / InterleavedGroupStats.DENSE_RATIO;
+            for (int i = 0; i < 3; i++) {
+                checkTerm(rand, stats, lookups, values, n, numGroups - 1);
+            }
+            assertTrue(stats.isDense());
+            checkTerm(rand, stats, lookups, values, 10, 20);
+        }
+    }
+
+    @Test
+    public void testStridedGroups() {
+        // groups a multiple of the table size apart must not all start probing from the same slot
+        final int tableShift = Integer.numberOfLeadingZeros(512) + 1;
+        final Set<Integer> slots = new HashSet<Integer>();
+        for (int i = 1; i <= 256; i++) {
+            final int slot = InterleavedGroupStats.homeSlot(i * 512, tableShift);
+            assertTrue(slot >= 0 && slot < 512);
+            slots.add(slot);
+        }
+        assertTrue(slots.size() > 200);
+
+        final Random rand = new Random(42);
+        final int numGroups = 4 * InterleavedGroupStats.SPARSE_MIN_GROUPS;
+        final long[][] values = new long[2][];
+        final IntValueLookup[] lookups = makeLookups(rand, 2, values);
+        final InterleavedGroupStats stats = new InterleavedGroupStats(2, numGroups);
+        for (final int stride : new int[] {512, 1024, 4096}) {
+            checkTerm(rand, stats, lookups, values, 2000, (numGroups - 1) / stride, stride);
+        }
+        assertFalse(stats.isDense());
+    }
+
+    private static int[] copyFrom(int[] array, int from) {
+        final int[] ret = new int[array.length - from];
+        System.arraycopy(array, from, ret, 0, ret.length);
+        return ret;
+    }
+}
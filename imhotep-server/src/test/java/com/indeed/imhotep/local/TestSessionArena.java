@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.imhotep.ImhotepMemoryPool;
+import com.indeed.imhotep.MemoryReservationContext;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import com.indeed.util.mmap.IntArray;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestSessionArena {
+    @Test
+    public void testAllocationsAreReserved() throws ImhotepOutOfMemoryException {
+        final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(1024));
+        final SessionArena arena = new SessionArena(memory);
+
+        final IntArray first = arena.allocateInts(100);
+        assertEquals(400, memory.usedMemory());
+        assertEquals(400, arena.getAllocatedBytes());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, first.get(i));
+            first.set(i, i);
+        }
+        final IntArray second = arena.allocateInts(50);
+        assertEquals(600, memory.usedMemory());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(0, second.get(i));
+        }
+        assertEquals(99, first.get(99));
+
+        arena.free(first);
+        assertEquals(200, memory.usedMemory());
+        assertEquals(200, arena.getAllocatedBytes());
+        // freeing twice gives nothing back
+        arena.free(first);
+        assertEquals(200, memory.usedMemory());
+
+        arena.close();
+        assertEquals(0, memory.usedMemory());
+        assertEquals(0, arena.getAllocatedBytes());
+    }
+
+    @Test
+    public void testOutOfMemory() throws ImhotepOutOfMemoryException {
+        final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(100));
+        final SessionArena arena = new SessionArena(memory);
+        arena.allocateInts(10);
+        try {
+            arena.allocateInts(20);
+            fail("allocation beyond the memory pool should fail");
+        } catch (ImhotepOutOfMemoryException e) {
+            // expected
+        }
+        assertEquals(40, memory.usedMemory());
+        assertEquals(40, arena.getAllocatedBytes());
+        arena.close();
+        assertEquals(0, memory.usedMemory());
+    }
+
+    @Test
+    public void testClosedArena() throws ImhotepOutOfMemoryException {
+        final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(1024));
+        final SessionArena arena = new SessionArena(memory);
+        final IntArray array = arena.allocateInts(10);
+        arena.close();
+        assertEquals(0, memory.usedMemory());
+
+        // freeing what the arena already freed is harmless
+        arena.free(array);
+        arena.close();
+        assertEquals(0, memory.usedMemory());
+        try {
+            arena.allocateInts(10);
+            fail("closed arena should not allocate");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, memory.usedMemory());
+    }
+}
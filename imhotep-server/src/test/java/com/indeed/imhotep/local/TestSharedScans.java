@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.RegroupCondition;
+import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSharedScans {
+    private static final int NUM_DOCS = 3 * ImhotepLocalSession.BUFFER_SIZE + 17;
+
+    private static MockFlamdexReader makeReader() {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1", "metric"), Arrays.asList("sf1"),
+                                                          Arrays.asList("metric"), NUM_DOCS);
+        final List<Integer> evens = new ArrayList<Integer>();
+        final List<Integer> odds = new ArrayList<Integer>();
+        for (int doc = 0; doc < NUM_DOCS; ++doc) {
+            (doc % 2 == 0 ? evens : odds).add(doc);
+            r.addIntTerm("metric", doc % 7, doc);
+        }
+        r.addIntTerm("if1", 1, evens);
+        r.addIntTerm("if1", 2, odds);
+        r.addIntTerm("if1", 3, 5, 6, 7);
+        r.addStringTerm("sf1", "a", evens);
+        r.addStringTerm("sf1", "b", 1, 2, 3);
+        r.addStringTerm("sf1", "c", odds);
+        return r;
+    }
+
+    private static ImhotepLocalSession makeSession(MockFlamdexReader reader, SharedScans scans, int threshold)
+            throws ImhotepOutOfMemoryException {
+        final ImhotepLocalSession session = new ImhotepLocalSession(reader);
+        session.regroup(new GroupRemapRule[] {
+                new GroupRemapRule(1, new RegroupCondition("metric", true, threshold, null, true), 1, 2)
+        });
+        session.pushStat("count()");
+        session.pushStat("metric");
+        if (scans != null) {
+            session.setSharedScans(scans, reader);
+        }
+        return session;
+    }
+
+    private static void readField(FTGSIterator iterator, List<String> out) {
+        while (iterator.nextTerm()) {
+            readTerm(iterator, out);
+        }
+    }
+
+    private static void readTerm(FTGSIterator iterator, List<String> out) {
+        final long[] stats = new long[2];
+        final String term = iterator.fieldIsIntType() ? String.valueOf(iterator.termIntVal()) : iterator.termStringVal();
+        while (iterator.nextGroup()) {
+            iterator.groupStats(stats);
+            out.add(iterator.fieldName() + ":" + term + ":" + iterator.group() + ":" + Arrays.toString(stats));
+        }
+    }
+
+    private static List<String> readAll(FTGSIterator iterator) {
+        final List<String> ret = new ArrayList<String>();
+        while (iterator.nextField()) {
+            readField(iterator, ret);
+        }
+        iterator.close();
+        return ret;
+    }
+
+    private static List<String> expected(MockFlamdexReader reader, int threshold) throws ImhotepOutOfMemoryException {
+        final ImhotepLocalSession session = makeSession(reader, null, threshold);
+        try {
+            return readAll(session.getFTGSIterator(new String[] {"if1"}, new String[] {"sf1"}));
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testInterleavedIterators() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader reader = makeReader();
+        final SharedScans scans = new SharedScans(60000, 1024 * 1024);
+        final ImhotepLocalSession session1 = makeSession(reader, scans, 3);
+        final ImhotepLocalSession session2 = makeSession(reader, scans, 5);
+        final FTGSIterator iterator1 = session1.getFTGSIterator(new String[] {"if1"}, new String[] {"sf1"});
+        final FTGSIterator iterator2 = session2.getFTGSIterator(new String[] {"if1"}, new String[] {"sf1"});
+        final List<String> results1 = new ArrayList<String>();
+        final List<String> results2 = new ArrayList<String>();
+        while (iterator1.nextField()) {
+            assertTrue(iterator2.nextField());
+            while (iterator1.nextTerm()) {
+                assertTrue(iterator2.nextTerm());
+                readTerm(iterator1, results1);
+                readTerm(iterator2, results2);
+            }
+            readField(iterator2, results2);
+        }
+        assertFalse(iterator2.nextField());
+        iterator1.close();
+        iterator2.close();
+
+        assertEquals(expected(reader, 3), results1);
+        assertEquals(expected(reader, 5), results2);
+        assertEquals(2, scans.getScansStarted());
+        assertEquals(2, scans.getCursorsAttached());
+        assertEquals(0, scans.getCursorsDetached());
+        assertEquals(0, scans.getRunningScans());
+        session1.close();
+        session2.close();
+    }
+
+    @Test
+    public void testSlowIteratorContinuesAlone() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader reader = makeReader();
+        // room for only two batches of doc ids
+        final SharedScans scans = new SharedScans(60000, 0);
+        final ImhotepLocalSession session1 = makeSession(reader, scans, 3);
+        final ImhotepLocalSession session2 = makeSession(reader, scans, 5);
+        final FTGSIterator iterator1 = session1.getFTGSIterator(new String[] {"if1"}, new String[] {"sf1"});
+        final FTGSIterator iterator2 = session2.getFTGSIterator(new String[] {"if1"}, new String[] {"sf1"});
+        assertTrue(iterator1.nextField());
+        assertTrue(iterator2.nextField());
+        final List<String> results2 = new ArrayList<String>();
+        assertTrue(iterator2.nextTerm());
+        readTerm(iterator2, results2);
+
+        // the first iterator runs ahead over the whole shard, the second one can't join its scan of sf1 anymore
+        final List<String> results1 = new ArrayList<String>();
+        readField(iterator1, results1);
+        results1.addAll(readAll(iterator1));
+        readField(iterator2, results2);
+        results2.addAll(readAll(iterator2));
+
+        assertEquals(expected(reader, 3), results1);
+        assertEquals(expected(reader, 5), results2);
+        assertEquals(1, scans.getCursorsAttached());
+        assertEquals(1, scans.getCursorsDetached());
+        assertEquals(0, scans.getRunningScans());
+        session1.close();
+        session2.close();
+    }
+
+    @Test
+    public void testSingleSession() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader reader = makeReader();
+        final SharedScans scans = new SharedScans(60000, 1024 * 1024);
+        final ImhotepLocalSession session = makeSession(reader, scans, 3);
+        try {
+            assertEquals(expected(reader, 3),
+                         readAll(session.getFTGSIterator(new String[] {"if1"}, new String[] {"sf1"})));
+            assertEquals(2, scans.getScansStarted());
+        } finally {
+            session.close();
+        }
+    }
+}
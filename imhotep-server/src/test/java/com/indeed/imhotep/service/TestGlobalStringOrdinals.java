@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.imhotep.ImhotepMemoryPool;
+import com.indeed.imhotep.RawFTGSMerger;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TestGlobalStringOrdinals extends TestCase {
+
+    public void testBuild() {
+        final MockFlamdexReader r1 = new MockFlamdexReader(Collections.<String>emptyList(), Arrays.asList("sf", "big"), Collections.<String>emptyList(), 4);
+        r1.addStringTerm("sf", "a", 0);
+        r1.addStringTerm("sf", "c", 1);
+        r1.addStringTerm("big", "x", 0);
+        r1.addStringTerm("big", "y", 1);
+        final MockFlamdexReader r2 = new MockFlamdexReader(Collections.<String>emptyList(), Arrays.asList("sf", "other"), Collections.<String>emptyList(), 4);
+        r2.addStringTerm("sf", "b", 0);
+        r2.addStringTerm("sf", "c", 1);
+        r2.addStringTerm("sf", "d", 2);
+        r2.addStringTerm("other", "z", 3);
+        final ShardId s1 = new ShardId("dataset", "shard1", 0, "/shard1");
+        final ShardId s2 = new ShardId("dataset", "shard2", 0, "/shard2");
+
+        final ImhotepMemoryPool memory = new ImhotepMemoryPool(Long.MAX_VALUE);
+        final GlobalStringOrdinals ordinals = GlobalStringOrdinals.build(ImmutableMap.of(s1, r1, s2, r2), 4, memory);
+        final byte[][] terms = ordinals.getTerms("sf");
+        assertEquals(4, terms.length);
+        for (int i = 0; i < terms.length; i++) {
+            assertEquals(String.valueOf((char) ('a' + i)), new String(terms[i], Charsets.UTF_8));
+        }
+        assertTrue(Arrays.equals(new int[] {0, 2}, ordinals.getShardOrdinals("sf", s1)));
+        assertTrue(Arrays.equals(new int[] {1, 2, 3}, ordinals.getShardOrdinals("sf", s2)));
+        assertEquals(0, ordinals.getShardOrdinals("other", s1).length);
+        assertEquals(ImmutableMap.of(s1, 0, s2, 0).keySet(), ordinals.getShards());
+
+        assertTrue(ordinals.memoryUsed() > 0);
+        assertEquals(ordinals.memoryUsed(), memory.usedMemory());
+
+        final GlobalStringOrdinals limited = GlobalStringOrdinals.build(ImmutableMap.of(s1, r1, s2, r2), 2, memory);
+        assertNull(limited.getTerms("sf"));
+        assertNotNull(limited.getTerms("big"));
+
+        limited.close();
+        ordinals.close();
+        assertEquals(0, memory.usedMemory());
+    }
+
+    public void testSupplementaryCharacters() {
+        // surrogate pairs sort before U+E000-U+FFFF as UTF-16, but after them as plain UTF-8 bytes
+        final String smile = "\ud83d\ude00";
+        final MockFlamdexReader r1 = new MockFlamdexReader(Collections.<String>emptyList(), Arrays.asList("sf"), Collections.<String>emptyList(), 4);
+        r1.addStringTerm("sf", "\ue000", 0);
+        r1.addStringTerm("sf", smile, 1);
+        r1.addStringTerm("sf", "\uffff", 2);
+        final MockFlamdexReader r2 = new MockFlamdexReader(Collections.<String>emptyList(), Arrays.asList("sf"), Collections.<String>emptyList(), 4);
+        r2.addStringTerm("sf", "\u00e9", 0);
+        r2.addStringTerm("sf", smile + "a", 1);
+        r2.addStringTerm("sf", "\uefff", 2);
+        final ShardId s1 = new ShardId("dataset", "shard1", 0, "/shard1");
+        final ShardId s2 = new ShardId("dataset", "shard2", 0, "/shard2");
+
+        final GlobalStringOrdinals ordinals =
+                GlobalStringOrdinals.build(ImmutableMap.of(s1, r1, s2, r2), 10, new ImhotepMemoryPool(Long.MAX_VALUE));
+        final byte[][] terms = ordinals.getTerms("sf");
+        assertEquals(6, terms.length);
+        for (int i = 1; i < terms.length; i++) {
+            assertTrue(RawFTGSMerger.compareBytes(terms[i - 1], terms[i - 1].length, terms[i], terms[i].length) < 0);
+        }
+        for (final ShardId shard : Arrays.asList(s1, s2)) {
+            for (final int ordinal : ordinals.getShardOrdinals("sf", shard)) {
+                assertTrue(ordinal >= 0);
+            }
+        }
+        for (int i = 0; i < terms.length; i++) {
+            assertEquals(i, GlobalStringOrdinals.findOrdinal(terms, 0, terms[i], terms[i].length));
+        }
+    }
+
+    public void testMemoryLimit() {
+        final MockFlamdexReader r1 = new MockFlamdexReader(Collections.<String>emptyList(), Arrays.asList("sf"), Collections.<String>emptyList(), 4);
+        r1.addStringTerm("sf", "a", 0);
+        final MockFlamdexReader r2 = new MockFlamdexReader(Collections.<String>emptyList(), Arrays.asList("sf"), Collections.<String>emptyList(), 4);
+        r2.addStringTerm("sf", "b", 0);
+        final ShardId s1 = new ShardId("dataset", "shard1", 0, "/shard1");
+        final ShardId s2 = new ShardId("dataset", "shard2", 0, "/shard2");
+
+        final ImhotepMemoryPool memory = new ImhotepMemoryPool(10);
+        final GlobalStringOrdinals ordinals = GlobalStringOrdinals.build(ImmutableMap.of(s1, r1, s2, r2), 10, memory);
+        assertNull(ordinals.getTerms("sf"));
+        assertEquals(0, memory.usedMemory());
+    }
+
+    public void testFindOrdinal() {
+        final String[] strings = {"", "a", "ab", "b", "\u00e9", "\ud83d\ude00", "\uffff"};
+        final byte[][] terms = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            terms[i] = strings[i].getBytes(Charsets.UTF_8);
+        }
+        for (int from = 0; from < terms.length; from++) {
+            for (int i = 0; i < terms.length; i++) {
+                final int found = GlobalStringOrdinals.findOrdinal(terms, from, terms[i], terms[i].length);
+                if (i >= from) {
+                    assertEquals(i, found);
+                } else {
+                    assertTrue(found < 0);
+                }
+            }
+        }
+        final byte[] missing = "aa".getBytes(Charsets.UTF_8);
+        assertEquals(-3, GlobalStringOrdinals.findOrdinal(terms, 0, missing, missing.length));
+    }
+}
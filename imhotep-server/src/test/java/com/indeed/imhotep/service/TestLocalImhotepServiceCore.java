@@ -16,6 +16,8 @@
 import com.indeed.util.io.Files;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.flamdex.simple.SimpleFlamdexWriter;
+import com.indeed.flamdex.writer.FlamdexDocument;
 import com.indeed.imhotep.ShardInfo;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 
@@ -31,15 +33,19 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -178,4 +184,321 @@ public class TestLocalImhotepServiceCore {
             Files.delete(directory);
         }
     }
+
+    @Test
+    public void testLiveShard() throws IOException, ImhotepOutOfMemoryException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            new SimpleFlamdexWriter(new File(new File(directory, "dataset"), "shard0.20120101000000").getPath(), 0).close();
+
+            LocalImhotepServiceCore service = new LocalImhotepServiceCore(directory, tempDir, Long.MAX_VALUE, false,
+                                                                          new GenericFlamdexReaderSource(),
+                                                                          new LocalImhotepServiceConfig());
+            try {
+                service.handleAppendToLiveShard("dataset", "shard0", Collections.<FlamdexDocument>emptyList());
+                fail("appending to a shard on disk should fail");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            final FlamdexDocument doc = new FlamdexDocument();
+            doc.setIntField("if1", 1);
+            service.handleAppendToLiveShard("live", "live0", Arrays.asList(doc, doc));
+            ShardInfo live = findShard(service.handleGetShardList(), "live0");
+            assertEquals(2, live.getNumDocs());
+            final long firstVersion = live.getVersion();
+
+            service.handleAppendToLiveShard("live", "live0", Arrays.asList(doc));
+            live = findShard(service.handleGetShardList(), "live0");
+            assertEquals(3, live.getNumDocs());
+            assertTrue(live.getVersion() > firstVersion);
+            assertTrue(service.handleGetStatusDump().getUsedMemory() > 0);
+
+            service.flushLiveShards(true);
+            live = findShard(service.handleGetShardList(), "live0");
+            assertEquals(3, live.getNumDocs());
+            assertTrue(new File(new File(directory, "live"), "live0." + live.getVersion()).isDirectory());
+            assertEquals(0, service.handleGetStatusDump().getUsedMemory());
+            try {
+                service.handleAppendToLiveShard("live", "live0", Arrays.asList(doc));
+                fail("appending to a rolled over shard should fail");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+        }
+    }
+
+    @Test
+    public void testLiveShardVersionBump() {
+        assertEquals(20141231235959L, LiveShard.toVersion(LiveShard.fromVersion(20141231235959L)));
+        assertEquals(20150101000000L, LiveShard.toVersion(LiveShard.fromVersion(20141231235959L) + 1000));
+        assertEquals(20140101120100L, LiveShard.toVersion(LiveShard.fromVersion(20140101120059L) + 1000));
+    }
+
+    @Test
+    public void testLiveShardFlushedOnClose() throws IOException, ImhotepOutOfMemoryException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            LocalImhotepServiceCore service = new LocalImhotepServiceCore(directory, tempDir, Long.MAX_VALUE, false,
+                                                                          new GenericFlamdexReaderSource(),
+                                                                          new LocalImhotepServiceConfig());
+            final FlamdexDocument doc = new FlamdexDocument();
+            doc.setIntField("if1", 1);
+            service.handleAppendToLiveShard("live", "live0", Arrays.asList(doc, doc));
+            final long version = findShard(service.handleGetShardList(), "live0").getVersion();
+            service.close();
+            assertTrue(new File(new File(directory, "live"), "live0." + version).isDirectory());
+
+            service = new LocalImhotepServiceCore(directory, tempDir, Long.MAX_VALUE, false,
+                                                  new GenericFlamdexReaderSource(),
+                                                  new LocalImhotepServiceConfig());
+            assertEquals(2, findShard(service.handleGetShardList(), "live0").getNumDocs());
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+        }
+    }
+
+    @Test
+    public void testLiveShardMemory() throws IOException, ImhotepOutOfMemoryException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            LocalImhotepServiceCore service = new LocalImhotepServiceCore(directory, tempDir, 4096, false,
+                                                                          new GenericFlamdexReaderSource(),
+                                                                          new LocalImhotepServiceConfig());
+            final FlamdexDocument doc = new FlamdexDocument();
+            doc.setIntField("if1", 1);
+            service.handleAppendToLiveShard("live", "live0", Arrays.asList(doc));
+            final long used = service.handleGetStatusDump().getUsedMemory();
+            assertTrue(used > 0);
+
+            final FlamdexDocument large = new FlamdexDocument();
+            final char[] chars = new char[4096];
+            Arrays.fill(chars, 'a');
+            large.setStringField("sf1", new String(chars));
+            try {
+                service.handleAppendToLiveShard("live", "live0", Arrays.asList(large));
+                fail("appending more than the available memory should fail");
+            } catch (ImhotepOutOfMemoryException e) {
+                // expected
+            }
+            assertEquals(1, findShard(service.handleGetShardList(), "live0").getNumDocs());
+            assertEquals(used, service.handleGetStatusDump().getUsedMemory());
+
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+        }
+    }
+
+    @Test
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    public void testIncrementalReload() throws IOException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            final File dataset1 = new File(directory, "dataset1");
+            final File dataset2 = new File(directory, "dataset2");
+            new File(dataset1, "shard0.20120101000000").mkdirs();
+            new File(dataset2, "shard0.20120101000000").mkdirs();
+
+            final AtomicInteger opened = new AtomicInteger();
+            LocalImhotepServiceCore service = new LocalImhotepServiceCore(directory, tempDir, Long.MAX_VALUE, false, new FlamdexReaderSource() {
+                @Override
+                public FlamdexReader openReader(String directory) throws IOException {
+                    opened.incrementAndGet();
+                    return new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"), Arrays.asList("if1"), 5);
+                }
+            }, new LocalImhotepServiceConfig().setShardLoadThreads(2));
+            assertEquals(2, service.handleGetShardList().size());
+            assertEquals(2, opened.get());
+            assertEquals(2, service.getShardReloadDatasets());
+
+            // nothing changed, nothing is looked at again
+            service.updateShards();
+            assertEquals(2, opened.get());
+            assertEquals(2, service.getShardReloadDatasets());
+
+            // only the new shard is opened
+            new File(dataset2, "shard1.20120101000000").mkdir();
+            new File(dataset2, "shard0.20120102000000").mkdir();
+            service.updateShards();
+            assertEquals(4, opened.get());
+            assertEquals(3, service.getShardReloadDatasets());
+            assertEquals(20120102000000L, findShard(service.handleGetShardList(), "shard0", "dataset2").getVersion());
+            assertEquals(3, service.handleGetShardList().size());
+
+            Files.delete(dataset1.getPath());
+            service.updateShards();
+            assertEquals(2, service.handleGetShardList().size());
+            assertEquals(1, service.handleGetDatasetList().size());
+
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+        }
+    }
+
+    @Test
+    public void testRetargetedShardSymlink() throws IOException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        String targets = Files.getTempDirectory("imhotep", "targets");
+        try {
+            final File dataset = new File(directory, "dataset");
+            dataset.mkdir();
+            final File target1 = new File(targets, "shard0.a");
+            final File target2 = new File(targets, "shard0.b");
+            target1.mkdir();
+            target2.mkdir();
+            final File link = new File(dataset, "shard0.20120101000000");
+            java.nio.file.Files.createSymbolicLink(link.toPath(), target1.toPath());
+
+            final List<String> opened = Collections.synchronizedList(new ArrayList<String>());
+            LocalImhotepServiceCore service = new LocalImhotepServiceCore(directory, tempDir, Long.MAX_VALUE, false, new FlamdexReaderSource() {
+                @Override
+                public FlamdexReader openReader(String directory) throws IOException {
+                    opened.add(directory);
+                    return new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"), Arrays.asList("if1"), 5);
+                }
+            }, new LocalImhotepServiceConfig());
+            assertTrue(opened.contains(target1.getCanonicalPath()));
+            assertFalse(opened.contains(target2.getCanonicalPath()));
+
+            // same name, same version, but the shard now lives somewhere else
+            final long modified = dataset.lastModified();
+            link.delete();
+            java.nio.file.Files.createSymbolicLink(link.toPath(), target2.toPath());
+            dataset.setLastModified(modified + 2000);
+            service.updateShards();
+            assertTrue(opened.contains(target2.getCanonicalPath()));
+            assertEquals(1, service.handleGetShardList().size());
+
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+            Files.delete(targets);
+        }
+    }
+
+    @Test
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    public void testSnapshotVersionAndOverwrite() throws IOException, ImhotepOutOfMemoryException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            final File dataset = new File(directory, "dataset");
+            new File(dataset, "shard0.20120101000000").mkdirs();
+            LocalImhotepServiceCore service = new LocalImhotepServiceCore(directory, tempDir, Long.MAX_VALUE, false, new FlamdexReaderSource() {
+                @Override
+                public FlamdexReader openReader(String directory) throws IOException {
+                    return new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"), Arrays.asList("if1"), 5);
+                }
+            }, new LocalImhotepServiceConfig());
+            final String sessionId = service.handleOpenSession("dataset", Arrays.asList("shard0"), "", "", 0, 0, false, "", null);
+            service.handlePushStat(sessionId, "count()");
+            assertEquals(Arrays.asList("shard0"), service.handleExportSnapshot(sessionId, "snap"));
+            try {
+                service.handleExportSnapshot(sessionId, "snap");
+                fail("exporting an existing snapshot id should fail");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            service.handleCloseSession(sessionId);
+
+            final String restoredId = service.handleOpenSessionFromSnapshot("dataset", Arrays.asList("shard0"), "", "", 0, 0, false, "", null, "snap", 0);
+            assertEquals(5, service.handleGetGroupStats(restoredId, 0)[1]);
+            service.handleCloseSession(restoredId);
+
+            // a newer version of the shard must not be restored from a snapshot of the old one
+            new File(dataset, "shard0.20120102000000").mkdir();
+            service.updateShards();
+            try {
+                service.handleOpenSessionFromSnapshot("dataset", Arrays.asList("shard0"), "", "", 0, 0, false, "", null, "snap", 0);
+                fail("snapshot of another shard version should not be restored");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+        }
+    }
+
+    @Test
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    public void testSnapshotCleanup() throws IOException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            LocalImhotepServiceCore service = new LocalImhotepServiceCore(directory, tempDir, Long.MAX_VALUE, false, new FlamdexReaderSource() {
+                @Override
+                public FlamdexReader openReader(String directory) throws IOException {
+                    return new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"), Arrays.asList("if1"), 5);
+                }
+            }, new LocalImhotepServiceConfig());
+            final long now = System.currentTimeMillis();
+            final File expired = writeSnapshot(service.getSnapshotDirectory(), "expired", 100, now - 10000);
+            final File older = writeSnapshot(service.getSnapshotDirectory(), "older", 100, now - 3000);
+            final File newer = writeSnapshot(service.getSnapshotDirectory(), "newer", 100, now - 2000);
+
+            service.cleanUpSnapshots(now, 5000, 0);
+            assertFalse(expired.exists());
+            assertTrue(older.exists());
+            assertTrue(newer.exists());
+
+            service.cleanUpSnapshots(now, 5000, 150);
+            assertFalse(older.exists());
+            assertTrue(newer.exists());
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+        }
+    }
+
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    private static File writeSnapshot(File snapshotRoot, String snapshotId, int bytes, long modified) throws IOException {
+        final File snapshot = new File(snapshotRoot, snapshotId);
+        snapshot.mkdirs();
+        final OutputStream os = new FileOutputStream(new File(snapshot, "shard0.snapshot"));
+        try {
+            os.write(new byte[bytes]);
+        } finally {
+            os.close();
+        }
+        snapshot.setLastModified(modified);
+        return snapshot;
+    }
+
+    private static ShardInfo findShard(List<ShardInfo> shards, String shardId, String dataset) {
+        for (final ShardInfo shard : shards) {
+            if (shard.getShardId().equals(shardId) && shard.getDataset().equals(dataset)) {
+                return shard;
+            }
+        }
+        throw new AssertionError("missing shard " + shardId + " in dataset " + dataset);
+    }
+
+    private static ShardInfo findShard(List<ShardInfo> shards, String shardId) {
+        for (final ShardInfo shard : shards) {
+            if (shard.getShardId().equals(shardId)) {
+                return shard;
+            }
+        }
+        throw new AssertionError("missing shard " + shardId);
+    }
 }